@@ -0,0 +1,315 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.http.filter.throttling;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.http.Responses.newInternalServerError;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.forgerock.util.time.Duration.duration;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import org.forgerock.http.ContextAndRequest;
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.Factory;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This filter caps the number of in-flight requests with an adaptive limit (see {@link GradientConcurrencyLimit}):
+ * when the downstream handler slows down, the limit decreases so that requests do not pile up and latency does not
+ * explode. Multiple limits can be supported in parallel with the support of a partition key.
+ *
+ * <p>Requests over the limit are queued (FIFO) up to {@code maxQueueSize} requests and for at most
+ * {@code maxQueueWait}. Requests that cannot be queued, or that waited too long, are rejected with a 503 (Service
+ * Unavailable) response.
+ */
+public class ConcurrencyLimitFilter implements Filter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrencyLimitFilter.class);
+
+    private final ScheduledExecutorService scheduledExecutor;
+    private final TimeService time;
+    private final AsyncFunction<ContextAndRequest, String, Exception> requestGroupingPolicy;
+    private final Factory<GradientConcurrencyLimit> limitFactory;
+    private final int maxQueueSize;
+    private final Duration maxQueueWait;
+    private final Duration cleaningInterval;
+    private final ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> cleaningFuture;
+
+    /**
+     * Constructs a ConcurrencyLimitFilter.
+     *
+     * @param scheduledExecutor
+     *         the scheduled executor service used to expire queued requests and to schedule house cleaning tasks
+     *         (must not be {@code null}).
+     * @param time
+     *         the time service (must not be {@code null}).
+     * @param cleaningInterval
+     *         the interval after which an idle partition is forgotten (must not be {@code null} and in the range
+     *         ]0, 1 day]).
+     * @param requestGroupingPolicy
+     *         the function computing the partition key of a request (must not be {@code null}).
+     * @param limitFactory
+     *         the factory creating the limit of each new partition (must not be {@code null}).
+     * @param maxQueueSize
+     *         the maximum number of requests that can wait for the limit to allow them (0 disables queueing).
+     * @param maxQueueWait
+     *         the maximum duration a request can wait in the queue (must not be {@code null}).
+     */
+    public ConcurrencyLimitFilter(ScheduledExecutorService scheduledExecutor,
+                                  TimeService time,
+                                  Duration cleaningInterval,
+                                  AsyncFunction<ContextAndRequest, String, Exception> requestGroupingPolicy,
+                                  Factory<GradientConcurrencyLimit> limitFactory,
+                                  int maxQueueSize,
+                                  Duration maxQueueWait) {
+        this.scheduledExecutor = checkNotNull(scheduledExecutor);
+        this.time = checkNotNull(time);
+        this.requestGroupingPolicy = checkNotNull(requestGroupingPolicy);
+        this.limitFactory = checkNotNull(limitFactory);
+        this.maxQueueWait = checkNotNull(maxQueueWait);
+        this.cleaningInterval = checkNotNull(cleaningInterval);
+        if (maxQueueSize < 0) {
+            throw new IllegalArgumentException("Invalid value for maxQueueSize : it cannot be negative");
+        }
+        this.maxQueueSize = maxQueueSize;
+        if (maxQueueWait.isUnlimited()) {
+            throw new IllegalArgumentException("Invalid value for maxQueueWait : it cannot be unlimited");
+        }
+        if (cleaningInterval.isZero() || cleaningInterval.compareTo(duration(1, DAYS)) > 0) {
+            throw new IllegalArgumentException("Invalid value for cleaningInterval : "
+                                                       + "it has to be in the range ]0, 1 day]");
+        }
+
+        cleaningFuture = scheduledExecutor.scheduleWithFixedDelay(new CleaningThread(),
+                                                                  cleaningInterval.getValue(),
+                                                                  cleaningInterval.getValue(),
+                                                                  cleaningInterval.getUnit());
+    }
+
+    /**
+     * Stops this filter and frees the resources.
+     */
+    public void stop() {
+        cleaningFuture.cancel(false);
+    }
+
+    /**
+     * Returns a snapshot of the state of each partition: current {@literal limit}, number of {@literal inFlight}
+     * requests, {@literal queued} requests and {@literal minRtt} (in milliseconds).
+     *
+     * @return a snapshot of the state of each partition
+     */
+    public Map<String, Object> getState() {
+        Map<String, Object> state = new LinkedHashMap<>();
+        for (Map.Entry<String, Partition> entry : partitions.entrySet()) {
+            state.put(entry.getKey(), entry.getValue().getState());
+        }
+        return state;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                          final Request request,
+                                                          final Handler next) {
+        return newResultPromise(new ContextAndRequest(context, request))
+                .thenAsync(requestGroupingPolicy)
+                .thenAsync(new AsyncFunction<String, Response, NeverThrowsException>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> apply(final String partitionKey) {
+                        if (partitionKey == null) {
+                            LOGGER.error("Did not expect a null value for the partition key after "
+                                                 + "having evaluated the function");
+                            return newResponsePromise(newInternalServerError());
+                        }
+                        final Partition partition = selectPartition(partitionKey);
+                        return partition.acquire()
+                                        .thenAsync(new AsyncFunction<Boolean, Response, NeverThrowsException>() {
+                                            @Override
+                                            public Promise<Response, NeverThrowsException> apply(Boolean admitted) {
+                                                if (!admitted) {
+                                                    LOGGER.trace("Request rejected by the concurrency limit of "
+                                                                         + "partition {}", partitionKey);
+                                                    return newResponsePromise(new Response(
+                                                            Status.SERVICE_UNAVAILABLE));
+                                                }
+                                                return proceed(partition, context, request, next);
+                                            }
+                                        });
+                    }
+                }, new AsyncFunction<Exception, Response, NeverThrowsException>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> apply(final Exception e) {
+                        return newResponsePromise(newInternalServerError(e));
+                    }
+                });
+    }
+
+    private Promise<Response, NeverThrowsException> proceed(final Partition partition,
+                                                            final Context context,
+                                                            final Request request,
+                                                            final Handler next) {
+        final long start = time.now();
+        return next.handle(context, request)
+                   .thenAlways(new Runnable() {
+                       @Override
+                       public void run() {
+                           partition.release(time.since(start));
+                       }
+                   });
+    }
+
+    private Partition selectPartition(final String partitionKey) {
+        Partition partition = partitions.get(partitionKey);
+        if (partition == null) {
+            Partition created = new Partition(limitFactory.newInstance());
+            partition = partitions.putIfAbsent(partitionKey, created);
+            if (partition == null) {
+                partition = created;
+            }
+        }
+        return partition;
+    }
+
+    private class CleaningThread implements Runnable {
+
+        @Override
+        public void run() {
+            long idleMillis = cleaningInterval.to(MILLISECONDS);
+            Iterator<Map.Entry<String, Partition>> iterator = partitions.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Partition> entry = iterator.next();
+                if (entry.getValue().isIdleSince(idleMillis)) {
+                    iterator.remove();
+                    LOGGER.trace("Cleaned the partition {}", entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * A waiting request: its promise is completed with {@code true} once admitted, with {@code false} on expiration.
+     */
+    private static final class Waiter {
+        private final PromiseImpl<Boolean, NeverThrowsException> promise = PromiseImpl.create();
+        private ScheduledFuture<?> expiration;
+    }
+
+    /**
+     * Holds the limit, the in-flight count and the waiting queue of a partition.
+     */
+    private final class Partition {
+        private final GradientConcurrencyLimit limit;
+        private final Deque<Waiter> queue = new ArrayDeque<>();
+        private int inFlight;
+        private long lastAccess;
+
+        Partition(final GradientConcurrencyLimit limit) {
+            this.limit = limit;
+            this.lastAccess = time.now();
+        }
+
+        Promise<Boolean, NeverThrowsException> acquire() {
+            final Waiter waiter;
+            synchronized (this) {
+                lastAccess = time.now();
+                if (inFlight < limit.getLimit()) {
+                    inFlight++;
+                    return newResultPromise(true);
+                }
+                if (queue.size() >= maxQueueSize || maxQueueWait.isZero()) {
+                    return newResultPromise(false);
+                }
+                waiter = new Waiter();
+                queue.addLast(waiter);
+                waiter.expiration = scheduledExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        expire(waiter);
+                    }
+                }, maxQueueWait.getValue(), maxQueueWait.getUnit());
+            }
+            return waiter.promise;
+        }
+
+        void release(final long rtt) {
+            List<Waiter> admitted = new ArrayList<>();
+            synchronized (this) {
+                limit.onSample(rtt, inFlight);
+                inFlight--;
+                lastAccess = time.now();
+                while (inFlight < limit.getLimit() && !queue.isEmpty()) {
+                    inFlight++;
+                    admitted.add(queue.removeFirst());
+                }
+            }
+            // Complete the promises outside of the lock, they will execute the rest of the chain
+            for (Waiter waiter : admitted) {
+                waiter.expiration.cancel(false);
+                waiter.promise.handleResult(true);
+            }
+        }
+
+        private void expire(final Waiter waiter) {
+            boolean removed;
+            synchronized (this) {
+                removed = queue.remove(waiter);
+            }
+            if (removed) {
+                waiter.promise.handleResult(false);
+            }
+        }
+
+        synchronized boolean isIdleSince(final long idleMillis) {
+            return inFlight == 0 && queue.isEmpty() && time.since(lastAccess) >= idleMillis;
+        }
+
+        synchronized Map<String, Object> getState() {
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("limit", limit.getLimit());
+            state.put("inFlight", inFlight);
+            state.put("queued", queue.size());
+            state.put("minRtt", limit.getMinRtt());
+            return state;
+        }
+    }
+}
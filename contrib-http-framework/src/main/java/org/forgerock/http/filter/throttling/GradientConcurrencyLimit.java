@@ -0,0 +1,130 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.http.filter.throttling;
+
+/**
+ * A concurrency limit that adapts itself to the observed round-trip time (RTT) of the requests, following a gradient
+ * algorithm: the limit grows while the RTT stays close to the minimum RTT observed (the backend is not queueing), and
+ * shrinks proportionally to the {@code minRtt / rtt} ratio as soon as the latency increases.
+ *
+ * <p>On each sample, the new limit is computed as:
+ * <pre>
+ * {@code
+ * gradient = max(0.5, min(1.0, minRtt / rtt))
+ * newLimit = limit * gradient + sqrt(limit)
+ * limit    = limit * (1 - smoothing) + newLimit * smoothing
+ * }
+ * </pre>
+ *
+ * The {@code sqrt(limit)} term is the queue size that is allowed at the backend: it lets the limit grow when the
+ * latency is stable. The limit does not grow when fewer than half of the allowed requests are in-flight
+ * (the limit is not the bottleneck). The minimum RTT is periodically reset to the latest sample so that a permanent
+ * change of the backend latency is eventually accepted as the new baseline.
+ *
+ * <p>This class is thread-safe.
+ */
+public class GradientConcurrencyLimit {
+
+    private static final int MIN_RTT_RESET_SAMPLES = 1000;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double smoothing;
+
+    private volatile int limit;
+    private double estimatedLimit;
+    private long minRtt = Long.MAX_VALUE;
+    private int samples;
+
+    /**
+     * Constructs a new gradient concurrency limit.
+     *
+     * @param initialLimit
+     *         the limit to start with
+     * @param minLimit
+     *         the lower bound of the limit (must be strictly positive)
+     * @param maxLimit
+     *         the upper bound of the limit (must be greater than or equal to {@code minLimit})
+     * @param smoothing
+     *         the weight given to the new computed limit, in the range ]0, 1]
+     */
+    public GradientConcurrencyLimit(final int initialLimit,
+                                    final int minLimit,
+                                    final int maxLimit,
+                                    final double smoothing) {
+        if (minLimit <= 0 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limits : expecting 0 < minLimit <= maxLimit");
+        }
+        if (smoothing <= 0.0 || smoothing > 1.0) {
+            throw new IllegalArgumentException("Invalid value for smoothing : it has to be in the range ]0, 1]");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.smoothing = smoothing;
+        this.estimatedLimit = clamp(initialLimit);
+        this.limit = (int) estimatedLimit;
+    }
+
+    /**
+     * Returns the current limit.
+     *
+     * @return the current limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Returns the minimum RTT observed so far, in milliseconds ({@literal -1} if no sample has been recorded yet).
+     *
+     * @return the minimum RTT observed so far, in milliseconds
+     */
+    public synchronized long getMinRtt() {
+        return minRtt == Long.MAX_VALUE ? -1L : minRtt;
+    }
+
+    /**
+     * Records a new RTT sample and updates the limit accordingly.
+     *
+     * @param rtt
+     *         the RTT of the completed request, in milliseconds
+     * @param inFlight
+     *         the number of in-flight requests (including the completed one) when the request completed
+     */
+    public synchronized void onSample(final long rtt, final int inFlight) {
+        final long sample = Math.max(1L, rtt);
+        if (++samples >= MIN_RTT_RESET_SAMPLES) {
+            samples = 0;
+            minRtt = sample;
+        } else {
+            minRtt = Math.min(minRtt, sample);
+        }
+
+        if (inFlight * 2 < estimatedLimit) {
+            // The limit is not the bottleneck: the sample does not tell anything about the backend capacity
+            return;
+        }
+
+        final double gradient = Math.max(0.5, Math.min(1.0, (double) minRtt / sample));
+        final double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        estimatedLimit = clamp(estimatedLimit * (1.0 - smoothing) + newLimit * smoothing);
+        limit = (int) estimatedLimit;
+    }
+
+    private double clamp(final double value) {
+        return Math.max(minLimit, Math.min(maxLimit, value));
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.http.filter.throttling;
+
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.forgerock.util.time.Duration.duration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.http.ContextAndRequest;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.Factory;
+import org.forgerock.util.FakeTimeService;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.Duration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class ConcurrencyLimitFilterTest {
+
+    private static final Duration CLEANING_INTERVAL = duration("1 minute");
+
+    private ScheduledExecutorService executor;
+    private FakeTimeService time;
+    private PendingHandler next;
+    private ConcurrencyLimitFilter filter;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        executor = newSingleThreadScheduledExecutor();
+        time = new FakeTimeService(0L);
+        next = new PendingHandler();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        if (filter != null) {
+            filter.stop();
+        }
+        executor.shutdownNow();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRefuseNegativeQueueSize() throws Exception {
+        new ConcurrencyLimitFilter(executor, time, CLEANING_INTERVAL, partition("foo"), limit(2), -1,
+                                   duration("1 second"));
+    }
+
+    @Test
+    public void shouldRejectRequestsOverTheLimitWhenThereIsNoQueue() throws Exception {
+        filter = new ConcurrencyLimitFilter(executor, time, CLEANING_INTERVAL, partition("foo"), limit(2), 0,
+                                            duration("1 second"));
+
+        Promise<Response, NeverThrowsException> first = filter.filter(new RootContext(), new Request(), next);
+        Promise<Response, NeverThrowsException> second = filter.filter(new RootContext(), new Request(), next);
+        Response third = filter.filter(new RootContext(), new Request(), next).get();
+
+        assertThat(third.getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        assertThat(next.pending).hasSize(2);
+        assertThat(first.isDone()).isFalse();
+        assertThat(second.isDone()).isFalse();
+    }
+
+    @Test
+    public void shouldAdmitQueuedRequestWhenAnInFlightRequestCompletes() throws Exception {
+        filter = new ConcurrencyLimitFilter(executor, time, CLEANING_INTERVAL, partition("foo"), limit(1), 10,
+                                            duration("1 minute"));
+
+        Promise<Response, NeverThrowsException> first = filter.filter(new RootContext(), new Request(), next);
+        Promise<Response, NeverThrowsException> second = filter.filter(new RootContext(), new Request(), next);
+        assertThat(next.pending).hasSize(1);
+        assertThat(queued("foo")).isEqualTo(1);
+
+        next.completeFirst();
+        assertThat(first.get().getStatus()).isEqualTo(Status.OK);
+        assertThat(next.pending).hasSize(1);
+        assertThat(queued("foo")).isEqualTo(0);
+
+        next.completeFirst();
+        assertThat(second.get().getStatus()).isEqualTo(Status.OK);
+    }
+
+    @Test
+    public void shouldRejectQueuedRequestAfterMaxQueueWait() throws Exception {
+        filter = new ConcurrencyLimitFilter(executor, time, CLEANING_INTERVAL, partition("foo"), limit(1), 10,
+                                            duration("10 milliseconds"));
+
+        filter.filter(new RootContext(), new Request(), next);
+        Response queued = filter.filter(new RootContext(), new Request(), next).get(5, TimeUnit.SECONDS);
+
+        assertThat(queued.getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        assertThat(queued("foo")).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldApplyOneLimitPerPartition() throws Exception {
+        final List<String> keys = new ArrayList<>();
+        AsyncFunction<ContextAndRequest, String, Exception> grouping =
+                new AsyncFunction<ContextAndRequest, String, Exception>() {
+                    @Override
+                    public Promise<String, Exception> apply(ContextAndRequest contextAndRequest) {
+                        return newResultPromise(keys.remove(0));
+                    }
+                };
+        filter = new ConcurrencyLimitFilter(executor, time, CLEANING_INTERVAL, grouping, limit(1), 0,
+                                            duration("1 second"));
+
+        keys.add("alice");
+        keys.add("bob");
+        keys.add("alice");
+        filter.filter(new RootContext(), new Request(), next);
+        filter.filter(new RootContext(), new Request(), next);
+        Response rejected = filter.filter(new RootContext(), new Request(), next).get();
+
+        assertThat(next.pending).hasSize(2);
+        assertThat(rejected.getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        assertThat(filter.getState()).containsOnlyKeys("alice", "bob");
+    }
+
+    @Test
+    public void shouldRespondInternalServerErrorOnNullPartitionKey() throws Exception {
+        filter = new ConcurrencyLimitFilter(executor, time, CLEANING_INTERVAL, partition(null), limit(1), 0,
+                                            duration("1 second"));
+
+        Response response = filter.filter(new RootContext(), new Request(), next).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.INTERNAL_SERVER_ERROR);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int queued(final String partition) {
+        return (Integer) ((Map<String, Object>) filter.getState().get(partition)).get("queued");
+    }
+
+    private static AsyncFunction<ContextAndRequest, String, Exception> partition(final String value) {
+        return new AsyncFunction<ContextAndRequest, String, Exception>() {
+            @Override
+            public Promise<String, Exception> apply(ContextAndRequest contextAndRequest) {
+                return newResultPromise(value);
+            }
+        };
+    }
+
+    private static Factory<GradientConcurrencyLimit> limit(final int value) {
+        return new Factory<GradientConcurrencyLimit>() {
+            @Override
+            public GradientConcurrencyLimit newInstance() {
+                // Fixed limit: min == max
+                return new GradientConcurrencyLimit(value, value, value, 0.2);
+            }
+        };
+    }
+
+    private static final class PendingHandler implements Handler {
+        private final List<PromiseImpl<Response, NeverThrowsException>> pending = new ArrayList<>();
+
+        @Override
+        public synchronized Promise<Response, NeverThrowsException> handle(Context context, Request request) {
+            PromiseImpl<Response, NeverThrowsException> promise = PromiseImpl.create();
+            pending.add(promise);
+            return promise;
+        }
+
+        void completeFirst() {
+            PromiseImpl<Response, NeverThrowsException> promise;
+            synchronized (this) {
+                promise = pending.remove(0);
+            }
+            promise.handleResult(new Response(Status.OK));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.http.filter.throttling;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class GradientConcurrencyLimitTest {
+
+    @DataProvider
+    public static Object[][] invalidSettings() {
+        //@Checkstyle:off
+        return new Object[][]{
+                { 10, 0, 100, 0.2 },
+                { 10, 20, 10, 0.2 },
+                { 10, 1, 100, 0.0 },
+                { 10, 1, 100, 1.5 },
+        };
+        //@Checkstyle:on
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class, dataProvider = "invalidSettings")
+    public void shouldRefuseInvalidSettings(int initial, int min, int max, double smoothing) throws Exception {
+        new GradientConcurrencyLimit(initial, min, max, smoothing);
+    }
+
+    @Test
+    public void shouldClampInitialLimit() throws Exception {
+        assertThat(new GradientConcurrencyLimit(5000, 1, 100, 0.2).getLimit()).isEqualTo(100);
+        assertThat(new GradientConcurrencyLimit(0, 3, 100, 0.2).getLimit()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldGrowWhileLatencyIsStable() throws Exception {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(10, 1, 100, 1.0);
+        for (int i = 0; i < 5; i++) {
+            limit.onSample(10L, limit.getLimit());
+        }
+        assertThat(limit.getLimit()).isGreaterThan(10);
+        assertThat(limit.getMinRtt()).isEqualTo(10L);
+    }
+
+    @Test
+    public void shouldShrinkWhenLatencyIncreases() throws Exception {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(100, 1, 1000, 1.0);
+        limit.onSample(10L, 100);
+        int before = limit.getLimit();
+        for (int i = 0; i < 10; i++) {
+            limit.onSample(100L, limit.getLimit());
+        }
+        assertThat(limit.getLimit()).isLessThan(before);
+        assertThat(limit.getLimit()).isLessThan(100);
+    }
+
+    @Test
+    public void shouldNotGrowWhenLimitIsNotTheBottleneck() throws Exception {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(50, 1, 1000, 1.0);
+        for (int i = 0; i < 10; i++) {
+            limit.onSample(10L, 2);
+        }
+        assertThat(limit.getLimit()).isEqualTo(50);
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.util;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.forgerock.util.promise.ExceptionHandler;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * PromiseCache is a bounded, thread-safe cache of asynchronously loaded values.
+ * <p>
+ * The values are cached as promises: concurrent requests of the same key share the same load, and a failed load is
+ * not cached. A loaded value is cached for the time-to-live computed from it ({@link Duration#ZERO} to not cache
+ * it), never longer than {@code maxExpiration}. When the cache holds {@code maxEntries} values, the least recently
+ * used ones are evicted.
+ * <p>
+ * A value can also be served stale while it is revalidated: once older than its time-to-live, it is reloaded in the
+ * background, the cached value being served in the meantime, until its maximum age.
+ *
+ * @param <K>
+ *            Type of the key
+ * @param <V>
+ *            Type of the value
+ * @param <E>
+ *            Type of the load failures
+ */
+public class PromiseCache<K, V, E extends Exception> {
+
+    private final TimeService time;
+    private final long maxExpiration;
+    private final Map<K, Entry> entries;
+
+    /**
+     * Build a new {@link PromiseCache}.
+     *
+     * @param time
+     *            the time service
+     * @param maxEntries
+     *            the maximum number of cached values
+     * @param maxExpiration
+     *            the maximum duration a value is cached
+     * @throws IllegalArgumentException
+     *             if {@code maxEntries} or {@code maxExpiration} is not positive (or if it is unlimited)
+     */
+    public PromiseCache(final TimeService time, final int maxEntries, final Duration maxExpiration) {
+        Reject.ifTrue(maxEntries < 1 || maxExpiration.isZero() || maxExpiration.isUnlimited(),
+                      "The cache maxEntries and maxExpiration have to be positive");
+        this.time = checkNotNull(time);
+        this.maxExpiration = maxExpiration.to(MILLISECONDS);
+        this.entries = new LinkedHashMap<K, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<K, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the value of the given key, loading it if it is not cached (or expired).
+     *
+     * @param key
+     *            entry key
+     * @param load
+     *            loads the value when it is not cached (a runtime exception evicts the entry and is re-thrown)
+     * @param timeToLive
+     *            computes how long a loaded value is cached
+     * @return a promise completed with the value
+     */
+    public Promise<V, E> getValue(final K key,
+                                  final AsyncFunction<K, V, E> load,
+                                  final Function<V, Duration, NeverThrowsException> timeToLive) {
+        final Entry entry;
+        synchronized (entries) {
+            final Entry cached = entries.get(key);
+            if (cached != null && cached.isFresh(time.now())) {
+                return cached.promise;
+            }
+            entry = new Entry(Long.MAX_VALUE);
+            entries.put(key, entry);
+        }
+        load(key, entry, load, timeToLive);
+        return entry.loaded;
+    }
+
+    /**
+     * Returns the value of the given key, loading it if it is not cached (or expired). Once older than its
+     * time-to-live, a cached value is still returned while it is reloaded in the background, until {@code maxAge}
+     * after it was first loaded. A successful reload replaces the cached value; a failed one keeps it (to be reloaded
+     * again after the same time-to-live), unless {@code evictOnFailure} tells otherwise.
+     *
+     * @param key
+     *            entry key
+     * @param load
+     *            loads the value when it is not cached, or reloads it (a runtime exception evicts the entry and is
+     *            re-thrown)
+     * @param timeToLive
+     *            computes how long a loaded value is served without being reloaded
+     * @param maxAge
+     *            how long the value can be served after it was first loaded ({@link Duration#ZERO} to not cache it)
+     * @param evictOnFailure
+     *            tells whether the failure of a reload evicts the cached value
+     * @return a promise completed with the value
+     */
+    public Promise<V, E> getValue(final K key,
+                                  final AsyncFunction<K, V, E> load,
+                                  final Function<V, Duration, NeverThrowsException> timeToLive,
+                                  final Duration maxAge,
+                                  final Function<E, Boolean, NeverThrowsException> evictOnFailure) {
+        final long now = time.now();
+        final Entry entry;
+        final Promise<V, E> stale;
+        synchronized (entries) {
+            final Entry cached = entries.get(key);
+            if (cached != null && cached.expiresAt > now) {
+                if (cached.refreshAt > now) {
+                    return cached.promise;
+                }
+                // Serve the cached value while it is reloaded (only once)
+                cached.refreshAt = Long.MAX_VALUE;
+                entry = cached;
+                stale = cached.promise;
+            } else {
+                entry = new Entry(now + millis(maxAge));
+                entries.put(key, entry);
+                stale = null;
+            }
+        }
+        if (stale != null) {
+            reload(key, entry, load, timeToLive, evictOnFailure);
+            return stale;
+        }
+        load(key, entry, load, timeToLive);
+        return entry.loaded;
+    }
+
+    /**
+     * Returns the number of cached values (including the pending loads).
+     *
+     * @return the number of cached values
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Removes all the cached values.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private void load(final K key,
+                      final Entry entry,
+                      final AsyncFunction<K, V, E> load,
+                      final Function<V, Duration, NeverThrowsException> timeToLive) {
+        apply(key, entry, load).thenOnResultOrException(new ResultHandler<V>() {
+            @Override
+            public void handleResult(final V value) {
+                boolean cached = false;
+                try {
+                    final long ttl = millis(timeToLive.apply(value));
+                    synchronized (entries) {
+                        if (ttl > 0L && entry.expiresAt > time.now()) {
+                            entry.refresh(ttl);
+                            cached = true;
+                        }
+                    }
+                } finally {
+                    // Whatever happened, the waiting requests get the loaded value
+                    if (!cached) {
+                        remove(key, entry);
+                    }
+                    entry.loaded.handleResult(value);
+                }
+            }
+        }, new ExceptionHandler<E>() {
+            @Override
+            public void handleException(final E exception) {
+                remove(key, entry);
+                entry.loaded.handleException(exception);
+            }
+        });
+    }
+
+    private void reload(final K key,
+                        final Entry entry,
+                        final AsyncFunction<K, V, E> load,
+                        final Function<V, Duration, NeverThrowsException> timeToLive,
+                        final Function<E, Boolean, NeverThrowsException> evictOnFailure) {
+        apply(key, entry, load).thenOnResultOrException(new ResultHandler<V>() {
+            @Override
+            public void handleResult(final V value) {
+                boolean cached = false;
+                try {
+                    final long ttl = millis(timeToLive.apply(value));
+                    synchronized (entries) {
+                        if (ttl > 0L) {
+                            entry.promise = newResultPromise(value);
+                            entry.refresh(ttl);
+                            cached = true;
+                        }
+                    }
+                } finally {
+                    if (!cached) {
+                        remove(key, entry);
+                    }
+                }
+            }
+        }, new ExceptionHandler<E>() {
+            @Override
+            public void handleException(final E exception) {
+                if (evictOnFailure.apply(exception)) {
+                    remove(key, entry);
+                } else {
+                    synchronized (entries) {
+                        entry.refresh(entry.timeToLive);
+                    }
+                }
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private Promise<? extends V, ? extends E> apply(final K key,
+                                                    final Entry entry,
+                                                    final AsyncFunction<K, V, E> load) {
+        try {
+            return load.apply(key);
+        } catch (RuntimeException e) {
+            remove(key, entry);
+            throw e;
+        } catch (Exception e) {
+            // Only E can be thrown here
+            return newExceptionPromise((E) e);
+        }
+    }
+
+    private void remove(final K key, final Entry entry) {
+        synchronized (entries) {
+            if (entries.get(key) == entry) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    /** Returns the given duration in milliseconds, capped to maxExpiration. */
+    private long millis(final Duration duration) {
+        if (duration == null || duration.isZero()) {
+            return 0L;
+        }
+        return duration.isUnlimited() ? maxExpiration : Math.min(duration.to(MILLISECONDS), maxExpiration);
+    }
+
+    /** A cached (or pending) value. */
+    private final class Entry {
+        private final PromiseImpl<V, E> loaded = PromiseImpl.create();
+        private final long expiresAt;
+        private Promise<V, E> promise = loaded;
+        private long refreshAt = Long.MAX_VALUE;
+        private long timeToLive;
+
+        Entry(final long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isFresh(final long now) {
+            return expiresAt > now && refreshAt > now;
+        }
+
+        void refresh(final long timeToLive) {
+            this.timeToLive = timeToLive;
+            this.refreshAt = time.now() + timeToLive;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.forgerock.util.time.Duration.UNLIMITED;
+import static org.forgerock.util.time.Duration.duration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.Duration;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class PromiseCacheTest {
+
+    private static final Duration ONE_MINUTE = duration(1L, TimeUnit.MINUTES);
+
+    private FakeTimeService time;
+    private PromiseCache<String, String, Exception> cache;
+    private Loader loader;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        time = new FakeTimeService(0);
+        cache = new PromiseCache<>(time, 2, duration(1L, TimeUnit.HOURS));
+        loader = new Loader();
+    }
+
+    // @Checkstyle:off
+    @DataProvider
+    public static Object[][] invalidSizes() {
+        return new Object[][] {
+            { 0, ONE_MINUTE },
+            { 10, Duration.ZERO },
+            { 10, UNLIMITED }
+        };
+    }
+    // @Checkstyle:on
+
+    @Test(dataProvider = "invalidSizes", expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectInvalidSizes(final int maxEntries, final Duration maxExpiration) throws Exception {
+        new PromiseCache<String, String, Exception>(time, maxEntries, maxExpiration);
+    }
+
+    @Test
+    public void shouldShareConcurrentLoads() throws Exception {
+        Promise<String, Exception> first = cache.getValue("a", loader, ttl(ONE_MINUTE));
+        Promise<String, Exception> second = cache.getValue("a", loader, ttl(ONE_MINUTE));
+
+        assertThat(loader.pending).hasSize(1);
+        assertThat(first.isDone()).isFalse();
+        loader.complete(0, "A");
+        assertThat(first.get()).isEqualTo("A");
+        assertThat(second.get()).isEqualTo("A");
+        assertThat(cache.getValue("a", loader, ttl(ONE_MINUTE)).get()).isEqualTo("A");
+        assertThat(loader.pending).hasSize(1);
+    }
+
+    @Test
+    public void shouldReloadExpiredValues() throws Exception {
+        loader.immediate = true;
+        assertThat(cache.getValue("a", loader, ttl(ONE_MINUTE)).get()).isEqualTo("a1");
+
+        time.advance(59L, TimeUnit.SECONDS);
+        assertThat(cache.getValue("a", loader, ttl(ONE_MINUTE)).get()).isEqualTo("a1");
+
+        time.advance(1L, TimeUnit.SECONDS);
+        assertThat(cache.getValue("a", loader, ttl(ONE_MINUTE)).get()).isEqualTo("a2");
+    }
+
+    @Test
+    public void shouldNotCacheValuesWithoutTimeToLive() throws Exception {
+        loader.immediate = true;
+        assertThat(cache.getValue("a", loader, ttl(Duration.ZERO)).get()).isEqualTo("a1");
+        assertThat(cache.size()).isEqualTo(0);
+        assertThat(cache.getValue("a", loader, ttl(Duration.ZERO)).get()).isEqualTo("a2");
+    }
+
+    @Test
+    public void shouldNotCacheValuesLongerThanMaxExpiration() throws Exception {
+        loader.immediate = true;
+        cache.getValue("a", loader, ttl(UNLIMITED));
+
+        time.advance(1L, TimeUnit.HOURS);
+        assertThat(cache.getValue("a", loader, ttl(UNLIMITED)).get()).isEqualTo("a2");
+    }
+
+    @Test
+    public void shouldNotCacheFailures() throws Exception {
+        Promise<String, Exception> failed = cache.getValue("a", loader, ttl(ONE_MINUTE));
+        loader.fail(0);
+
+        try {
+            failed.getOrThrow();
+            failBecauseExceptionWasNotThrown(Exception.class);
+        } catch (Exception e) {
+            assertThat(e).hasMessage("Boom");
+        }
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldCompleteTheLoadWhenTheTimeToLiveCannotBeComputed() throws Exception {
+        Function<String, Duration, NeverThrowsException> failing = new Function<String, Duration,
+                NeverThrowsException>() {
+            @Override
+            public Duration apply(final String value) {
+                throw new IllegalStateException("Boom");
+            }
+        };
+        Promise<String, Exception> loaded = cache.getValue("a", loader, failing);
+        try {
+            loader.complete(0, "A");
+        } catch (IllegalStateException e) {
+            // Thrown by the time-to-live function
+        }
+
+        assertThat(loaded.get()).isEqualTo("A");
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldEvictAndRethrowTheRuntimeExceptionsOfTheLoad() throws Exception {
+        try {
+            cache.getValue("a", new AsyncFunction<String, String, Exception>() {
+                @Override
+                public Promise<String, Exception> apply(final String key) {
+                    throw new IllegalStateException("Boom");
+                }
+            }, ttl(ONE_MINUTE));
+        } finally {
+            assertThat(cache.size()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void shouldEvictTheLeastRecentlyUsedValues() throws Exception {
+        loader.immediate = true;
+        cache.getValue("a", loader, ttl(ONE_MINUTE));
+        cache.getValue("b", loader, ttl(ONE_MINUTE));
+        cache.getValue("a", loader, ttl(ONE_MINUTE));
+        cache.getValue("c", loader, ttl(ONE_MINUTE));
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.getValue("a", loader, ttl(ONE_MINUTE)).get()).isEqualTo("a1");
+        assertThat(cache.getValue("b", loader, ttl(ONE_MINUTE)).get()).isEqualTo("b2");
+    }
+
+    @Test
+    public void shouldServeTheStaleValueWhileRevalidating() throws Exception {
+        loader.immediate = true;
+        assertThat(staleWhileRevalidate("a", false).get()).isEqualTo("a1");
+        time.advance(1L, TimeUnit.MINUTES);
+        loader.immediate = false;
+
+        assertThat(staleWhileRevalidate("a", false).get()).isEqualTo("a1");
+        assertThat(staleWhileRevalidate("a", false).get()).isEqualTo("a1");
+        assertThat(loader.pending).hasSize(1);
+
+        loader.complete(0, "A");
+        assertThat(staleWhileRevalidate("a", false).get()).isEqualTo("A");
+    }
+
+    @Test
+    public void shouldKeepTheStaleValueWhenTheRevalidationFails() throws Exception {
+        loader.immediate = true;
+        staleWhileRevalidate("a", false);
+        time.advance(1L, TimeUnit.MINUTES);
+        loader.immediate = false;
+
+        staleWhileRevalidate("a", false);
+        loader.fail(0);
+        assertThat(staleWhileRevalidate("a", false).get()).isEqualTo("a1");
+        assertThat(loader.pending).hasSize(1);
+
+        // Revalidated again after the time-to-live
+        time.advance(1L, TimeUnit.MINUTES);
+        staleWhileRevalidate("a", false);
+        assertThat(loader.pending).hasSize(2);
+    }
+
+    @Test
+    public void shouldEvictTheStaleValueWhenTheRevalidationFails() throws Exception {
+        loader.immediate = true;
+        staleWhileRevalidate("a", true);
+        time.advance(1L, TimeUnit.MINUTES);
+        loader.immediate = false;
+
+        staleWhileRevalidate("a", true);
+        loader.fail(0);
+
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotServeTheStaleValueAfterItsMaxAge() throws Exception {
+        loader.immediate = true;
+        staleWhileRevalidate("a", false);
+        time.advance(5L, TimeUnit.MINUTES);
+
+        assertThat(staleWhileRevalidate("a", false).get()).isEqualTo("a2");
+    }
+
+    private Promise<String, Exception> staleWhileRevalidate(final String key, final boolean evictOnFailure) {
+        return cache.getValue(key, loader, ttl(ONE_MINUTE), duration(5L, TimeUnit.MINUTES),
+                              new Function<Exception, Boolean, NeverThrowsException>() {
+                                  @Override
+                                  public Boolean apply(final Exception exception) {
+                                      return evictOnFailure;
+                                  }
+                              });
+    }
+
+    private static Function<String, Duration, NeverThrowsException> ttl(final Duration timeToLive) {
+        return new Function<String, Duration, NeverThrowsException>() {
+            @Override
+            public Duration apply(final String value) {
+                return timeToLive;
+            }
+        };
+    }
+
+    /** Loads "key" followed by the number of loads of that key, immediately or when completed. */
+    private static final class Loader implements AsyncFunction<String, String, Exception> {
+        private final List<PromiseImpl<String, Exception>> pending = new ArrayList<>();
+        private final List<String> loads = new ArrayList<>();
+        private boolean immediate;
+
+        @Override
+        public Promise<String, Exception> apply(final String key) {
+            loads.add(key);
+            if (immediate) {
+                int count = 0;
+                for (String load : loads) {
+                    if (load.equals(key)) {
+                        count++;
+                    }
+                }
+                return newResultPromise(key + count);
+            }
+            PromiseImpl<String, Exception> promise = PromiseImpl.create();
+            pending.add(promise);
+            return promise;
+        }
+
+        void complete(final int index, final String value) {
+            pending.get(index).handleResult(value);
+        }
+
+        void fail(final int index) {
+            pending.get(index).handleException(new Exception("Boom"));
+        }
+    }
+}
@@ -25,9 +25,11 @@ import org.forgerock.openig.decoration.capture.CaptureDecorator;
 import org.forgerock.openig.decoration.timer.TimerDecorator;
 import org.forgerock.openig.filter.AssignmentFilter;
 import org.forgerock.openig.filter.Chain;
+import org.forgerock.openig.filter.CompressionFilter;
 import org.forgerock.openig.filter.ConditionEnforcementFilter;
 import org.forgerock.openig.filter.CookieFilter;
 import org.forgerock.openig.filter.CryptoHeaderFilter;
+import org.forgerock.openig.filter.DeadlineFilter;
 import org.forgerock.openig.filter.EntityExtractFilter;
 import org.forgerock.openig.filter.FileAttributesFilter;
 import org.forgerock.openig.filter.HeaderFilter;
@@ -38,6 +40,7 @@ import org.forgerock.openig.filter.ScriptableFilter;
 import org.forgerock.openig.filter.SqlAttributesFilter;
 import org.forgerock.openig.filter.StaticRequestFilter;
 import org.forgerock.openig.filter.SwitchFilter;
+import org.forgerock.openig.filter.throttling.ConcurrencyLimitFilterHeaplet;
 import org.forgerock.openig.filter.throttling.DefaultRateThrottlingPolicyHeaplet;
 import org.forgerock.openig.filter.throttling.MappedThrottlingPolicyHeaplet;
 import org.forgerock.openig.filter.throttling.ScriptableThrottlingPolicy;
@@ -45,6 +48,8 @@ import org.forgerock.openig.filter.throttling.ThrottlingFilterHeaplet;
 import org.forgerock.openig.handler.ClientHandler;
 import org.forgerock.openig.handler.DesKeyGenHandler;
 import org.forgerock.openig.handler.DispatchHandler;
+import org.forgerock.openig.handler.HedgingHandler;
+import org.forgerock.openig.handler.LoadBalancingHandler;
 import org.forgerock.openig.handler.ScriptableHandler;
 import org.forgerock.openig.handler.SequenceHandler;
 import org.forgerock.openig.handler.StaticResponseHandler;
@@ -60,6 +65,8 @@ import org.forgerock.openig.security.KeyManagerHeaplet;
 import org.forgerock.openig.security.KeyStoreHeaplet;
 import org.forgerock.openig.security.TrustAllManager;
 import org.forgerock.openig.security.TrustManagerHeaplet;
+import org.forgerock.openig.session.ServerSessionManager;
+import org.forgerock.openig.thread.OffloadExecutor;
 import org.forgerock.openig.thread.ScheduledExecutorServiceHeaplet;
 
 /**
@@ -75,10 +82,13 @@ public class CoreClassAliasResolver implements ClassAliasResolver {
         ALIASES.put("CaptureDecorator", CaptureDecorator.class);
         ALIASES.put("Chain", Chain.class);
         ALIASES.put("ClientHandler", ClientHandler.class);
+        ALIASES.put("ConcurrencyLimitFilter", ConcurrencyLimitFilterHeaplet.class);
+        ALIASES.put("CompressionFilter", CompressionFilter.class);
         ALIASES.put("ConditionEnforcementFilter", ConditionEnforcementFilter.class);
         ALIASES.put("ConsoleLogSink", ConsoleLogSink.class);
         ALIASES.put("CookieFilter", CookieFilter.class);
         ALIASES.put("CryptoHeaderFilter", CryptoHeaderFilter.class);
+        ALIASES.put("DeadlineFilter", DeadlineFilter.class);
         ALIASES.put("DefaultRateThrottlingPolicy", DefaultRateThrottlingPolicyHeaplet.class);
         ALIASES.put("DesKeyGenHandler", DesKeyGenHandler.class);
         ALIASES.put("DispatchHandler", DispatchHandler.class);
@@ -86,15 +96,18 @@ public class CoreClassAliasResolver implements ClassAliasResolver {
         ALIASES.put("FileAttributesFilter", FileAttributesFilter.class);
         ALIASES.put("FileLogSink", FileLogSink.class);
         ALIASES.put("HeaderFilter", HeaderFilter.class);
+        ALIASES.put("HedgingHandler", HedgingHandler.class);
         ALIASES.put("HttpBasicAuthFilter", HttpBasicAuthFilter.class);
         ALIASES.put("JwtSessionFactory", JwtSessionManager.class);
         ALIASES.put("JwtSession", JwtSessionManager.class);
         ALIASES.put("KeyManager", KeyManagerHeaplet.class);
         ALIASES.put("KeyStore", KeyStoreHeaplet.class);
+        ALIASES.put("LoadBalancingHandler", LoadBalancingHandler.class);
         ALIASES.put("LocationHeaderFilter", LocationHeaderFilter.class);
         ALIASES.put("MappedThrottlingPolicy", MappedThrottlingPolicyHeaplet.class);
         ALIASES.put("MonitorEndpointHandler", MonitorEndpointHandler.class);
         ALIASES.put("NullLogSink", NullLogSink.class);
+        ALIASES.put("OffloadExecutor", OffloadExecutor.class);
         ALIASES.put("PasswordReplayFilter", PasswordReplayFilterHeaplet.class);
         ALIASES.put("RedirectFilter", LocationHeaderFilter.class);
         ALIASES.put("Router", RouterHandler.class);
@@ -104,6 +117,7 @@ public class CoreClassAliasResolver implements ClassAliasResolver {
         ALIASES.put("ScriptableHandler", ScriptableHandler.class);
         ALIASES.put("ScriptableThrottlingPolicy", ScriptableThrottlingPolicy.class);
         ALIASES.put("SequenceHandler", SequenceHandler.class);
+        ALIASES.put("ServerSession", ServerSessionManager.class);
         ALIASES.put("SqlAttributesFilter", SqlAttributesFilter.class);
         ALIASES.put("StaticRequestFilter", StaticRequestFilter.class);
         ALIASES.put("StaticResponseHandler", StaticResponseHandler.class);
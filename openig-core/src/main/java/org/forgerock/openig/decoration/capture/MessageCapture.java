@@ -18,6 +18,7 @@ package org.forgerock.openig.decoration.capture;
 
 import static groovy.json.JsonOutput.prettyPrint;
 import static groovy.json.JsonOutput.toJson;
+import static org.forgerock.openig.decoration.capture.NoEntityCaptureContext.isEntityCaptureDisabled;
 
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -98,12 +99,13 @@ public class MessageCapture {
         StringWriter out = new StringWriter();
         PrintWriter writer = new PrintWriter(out);
         String id = context.getId();
+        boolean skipEntity = isEntityCaptureDisabled(context);
         switch (mode) {
         case REQUEST:
-            captureRequest(writer, request, id);
+            captureRequest(writer, request, id, skipEntity);
             break;
         case FILTERED_REQUEST:
-            captureFilteredRequest(writer, request, id);
+            captureFilteredRequest(writer, request, id, skipEntity);
             break;
         default:
             throw new IllegalArgumentException("The given mode is not accepted: " + mode.name());
@@ -133,12 +135,13 @@ public class MessageCapture {
         StringWriter out = new StringWriter();
         PrintWriter writer = new PrintWriter(out);
         String id = context.getId();
+        boolean skipEntity = isEntityCaptureDisabled(context);
         switch (mode) {
         case RESPONSE:
-            captureResponse(writer, response, id);
+            captureResponse(writer, response, id, skipEntity);
             break;
         case FILTERED_RESPONSE:
-            captureFilteredResponse(writer, response, id);
+            captureFilteredResponse(writer, response, id, skipEntity);
             break;
         default:
             throw new IllegalArgumentException("The given mode is not accepted: " + mode.name());
@@ -163,42 +166,42 @@ public class MessageCapture {
         writer.println(prettyPrint(toJson(map)));
     }
 
-    private void captureRequest(PrintWriter writer, Request request, String id) {
+    private void captureRequest(PrintWriter writer, Request request, String id, boolean skipEntity) {
         writer.printf("%n%n--- (request) id:%s --->%n%n", id);
         if (request != null) {
-            captureRequestMessage(writer, request);
+            captureRequestMessage(writer, request, skipEntity);
         }
     }
 
-    private void captureFilteredRequest(PrintWriter writer, Request request, String id) {
+    private void captureFilteredRequest(PrintWriter writer, Request request, String id, boolean skipEntity) {
         writer.printf("%n%n--- (filtered-request) id:%s --->%n%n", id);
         if (request != null) {
-            captureRequestMessage(writer, request);
+            captureRequestMessage(writer, request, skipEntity);
         }
     }
 
-    private void captureResponse(PrintWriter writer, Response response, String id) {
+    private void captureResponse(PrintWriter writer, Response response, String id, boolean skipEntity) {
         writer.printf("%n%n<--- (response) id:%s ---%n%n", id);
         if (response != null) {
-            captureResponseMessage(writer, response);
+            captureResponseMessage(writer, response, skipEntity);
         }
     }
 
-    private void captureFilteredResponse(PrintWriter writer, Response response, String id) {
+    private void captureFilteredResponse(PrintWriter writer, Response response, String id, boolean skipEntity) {
         writer.printf("%n%n<--- (filtered-response) id:%s ---%n%n", id);
         if (response != null) {
-            captureResponseMessage(writer, response);
+            captureResponseMessage(writer, response, skipEntity);
         }
     }
 
-    private void captureRequestMessage(final PrintWriter writer, Request request) {
+    private void captureRequestMessage(final PrintWriter writer, Request request, boolean skipEntity) {
         writer.println(request.getMethod() + " " + request.getUri() + " " + request.getVersion());
         writeHeaders(writer, request);
-        writeEntity(writer, request);
+        writeEntity(writer, request, skipEntity);
         writer.flush();
     }
 
-    private void captureResponseMessage(final PrintWriter writer, Response response) {
+    private void captureResponseMessage(final PrintWriter writer, Response response, boolean skipEntity) {
         writer.print(response.getVersion() + " ");
         if (response.getStatus() != null) {
             writer.print(response.getStatus().getCode() + " ");
@@ -206,7 +209,7 @@ public class MessageCapture {
         }
         writer.println();
         writeHeaders(writer, response);
-        writeEntity(writer, response);
+        writeEntity(writer, response, skipEntity);
         writer.flush();
     }
 
@@ -218,7 +221,7 @@ public class MessageCapture {
         }
     }
 
-    private void writeEntity(final PrintWriter writer, Message message) {
+    private void writeEntity(final PrintWriter writer, Message message, boolean skipEntity) {
         ContentTypeHeader contentType = ContentTypeHeader.valueOf(message);
         if (message.getEntity() == null || contentType.getType() == null) {
             return;
@@ -233,6 +236,11 @@ public class MessageCapture {
             writer.println("[binary entity]");
             return;
         }
+        if (skipEntity) {
+            // capturing the content would buffer an entity that nothing else in the route reads
+            writer.println("[entity not captured]");
+            return;
+        }
         try {
             message.getEntity().push();
             try {
@@ -0,0 +1,110 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.decoration.capture;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.forgerock.services.context.AbstractContext;
+import org.forgerock.services.context.Context;
+
+/**
+ * A {@link NoEntityCaptureContext} marks an exchange of a route declared with {@literal "captureEntities": false}:
+ * the capture decorator does not read (and thus buffer in a {@link org.forgerock.openig.io.TemporaryStorage}) the
+ * entities it would otherwise print, and writes {@literal [entity not captured]} instead.
+ * <p>
+ * This is the only effect of this setting: it does not change how the HTTP framework (servlet adapter, client
+ * handler) buffers entities, and a component reading an entity still buffers it. The entity extract filter and the
+ * request copy made to replay a request (HTTP Basic authentication, password replay) declare it with
+ * {@link #requireEntity(Context, String)}: as the entity is buffered anyway, the capture prints it again, and the
+ * route logs the buffering. Other readers do not declare it (scripts, expressions such as
+ * {@literal ${request.entity}}).
+ * <p>
+ * A component that reads the entity content declares it before reading it:
+ *
+ * <pre>
+ * {@code
+ * NoEntityCaptureContext.requireEntity(context, "EntityExtractFilter");
+ * try (Reader reader = message.getEntity().newDecodedContentReader(charset)) {
+ *     ...
+ * }
+ * }
+ * </pre>
+ */
+public class NoEntityCaptureContext extends AbstractContext {
+
+    private final Set<String> entityConsumers = Collections.synchronizedSet(new LinkedHashSet<String>());
+
+    /**
+     * Creates a new context that keeps the capture decorator from reading the entities.
+     *
+     * @param parent
+     *         The parent context.
+     */
+    public NoEntityCaptureContext(final Context parent) {
+        super(parent, "noEntityCapture");
+    }
+
+    /**
+     * Returns the names of the components that declared they read the entity content during this exchange.
+     *
+     * @return the names of the components that declared they read the entity content (never {@code null}).
+     */
+    public Set<String> getEntityConsumers() {
+        synchronized (entityConsumers) {
+            return new LinkedHashSet<>(entityConsumers);
+        }
+    }
+
+    /**
+     * Returns {@code true} if a component declared it reads the entity content, which is then buffered anyway.
+     *
+     * @return {@code true} if a component declared it reads the entity content.
+     */
+    public boolean isEntityRequired() {
+        return !entityConsumers.isEmpty();
+    }
+
+    /**
+     * Returns {@code true} if the capture decorator should not read the entities of the given context: entity
+     * capture is disabled on its route, and no component has declared it reads the entity content.
+     *
+     * @param context
+     *         the context to inspect
+     * @return {@code true} if the capture decorator should not read the entities.
+     */
+    public static boolean isEntityCaptureDisabled(final Context context) {
+        return context.containsContext(NoEntityCaptureContext.class)
+                && !context.asContext(NoEntityCaptureContext.class).isEntityRequired();
+    }
+
+    /**
+     * Declares that the given component reads the entity content. This has no effect if entity capture is not
+     * disabled for the given context.
+     *
+     * @param context
+     *         the context of the exchange
+     * @param component
+     *         the name of the component that reads the entity content
+     */
+    public static void requireEntity(final Context context, final String component) {
+        if (context.containsContext(NoEntityCaptureContext.class)) {
+            context.asContext(NoEntityCaptureContext.class).entityConsumers.add(component);
+        }
+    }
+}
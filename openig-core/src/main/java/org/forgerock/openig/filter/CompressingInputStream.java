@@ -0,0 +1,160 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An {@link InputStream} compressing the content of another stream as it is read, either in the gzip format
+ * (RFC 1952) or in the zlib format (RFC 1950) used by the HTTP {@literal deflate} content-coding. Only a small
+ * fixed-size window of the source is held in memory.
+ */
+final class CompressingInputStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Fixed gzip header: magic number, deflate method, no flags, no modification time, unknown OS. */
+    private static final byte[] GZIP_HEADER = {
+        (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private final InputStream source;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] input = new byte[BUFFER_SIZE];
+
+    private final byte[] output = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private boolean headerWritten;
+    private boolean trailerWritten;
+
+    private CompressingInputStream(final InputStream source, final int level, final boolean gzip) {
+        this.source = source;
+        // gzip wraps raw deflate data in its own header and trailer
+        this.deflater = new Deflater(level, gzip);
+        this.headerWritten = !gzip;
+        this.trailerWritten = !gzip;
+    }
+
+    /**
+     * Returns a stream producing the gzip encoded content of the given source.
+     *
+     * @param source
+     *         the stream to compress
+     * @param level
+     *         the compression level (0-9, or -1 for the default level)
+     * @return a stream producing the gzip encoded content of the given source
+     */
+    static InputStream gzip(final InputStream source, final int level) {
+        return new CompressingInputStream(source, level, true);
+    }
+
+    /**
+     * Returns a stream producing the deflate encoded content of the given source.
+     *
+     * @param source
+     *         the stream to compress
+     * @param level
+     *         the compression level (0-9, or -1 for the default level)
+     * @return a stream producing the deflate encoded content of the given source
+     */
+    static InputStream deflate(final InputStream source, final int level) {
+        return new CompressingInputStream(source, level, false);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (position == limit) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int count = Math.min(len, limit - position);
+        System.arraycopy(output, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        source.close();
+    }
+
+    /**
+     * Produces more output bytes.
+     *
+     * @return {@code false} when the end of the compressed stream is reached
+     */
+    private boolean fill() throws IOException {
+        position = 0;
+        limit = 0;
+        if (!headerWritten) {
+            System.arraycopy(GZIP_HEADER, 0, output, 0, GZIP_HEADER.length);
+            limit = GZIP_HEADER.length;
+            headerWritten = true;
+            return true;
+        }
+        if (!deflater.finished()) {
+            if (deflater.needsInput()) {
+                int n = source.read(input);
+                if (n == -1) {
+                    deflater.finish();
+                } else if (n > 0) {
+                    crc.update(input, 0, n);
+                    deflater.setInput(input, 0, n);
+                }
+            }
+            limit = deflater.deflate(output);
+            return true;
+        }
+        if (!trailerWritten) {
+            writeInt((int) crc.getValue(), 0);
+            writeInt((int) deflater.getBytesRead(), 4);
+            limit = 8;
+            trailerWritten = true;
+            return true;
+        }
+        return false;
+    }
+
+    private void writeInt(final int value, final int offset) {
+        // gzip integers are little endian
+        output[offset] = (byte) value;
+        output[offset + 1] = (byte) (value >> 8);
+        output[offset + 2] = (byte) (value >> 16);
+        output[offset + 3] = (byte) (value >> 24);
+    }
+}
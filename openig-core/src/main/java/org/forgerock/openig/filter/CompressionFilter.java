@@ -0,0 +1,441 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static java.lang.String.format;
+import static org.forgerock.http.Responses.newInternalServerError;
+import static org.forgerock.openig.util.JsonValues.asBoolean;
+import static org.forgerock.openig.util.JsonValues.asInteger;
+import static org.forgerock.util.Utils.closeSilently;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.io.IO;
+import org.forgerock.http.protocol.Header;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.Function;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+
+/**
+ * Compresses textual response entities according to the content-codings accepted by the client ({@literal gzip} is
+ * preferred over {@literal deflate}). Entities are compressed as they are streamed to the client.
+ * <p>
+ * When a cache is configured, the compressed representations of cacheable responses (successful {@literal GET}
+ * responses with an {@literal ETag} and a known length) are kept, so that the same representation is not compressed
+ * again as long as the protected application returns the same {@literal ETag}.
+ * <p>
+ * When {@code decompress} is enabled, {@literal gzip} and {@literal deflate} encoded responses returned by the next
+ * handler are decoded first, so that filters placed before this one see the plain content.
+ *
+ * <pre>
+ * {@code {
+ *      "type": "CompressionFilter",
+ *      "config": {
+ *         "compress"                     : boolean             [OPTIONAL - compress responses. Default to true]
+ *         "decompress"                   : boolean             [OPTIONAL - decode gzip/deflate encoded responses.
+ *                                                                          Default to false]
+ *         "level"                        : integer             [OPTIONAL - compression level, from 0 to 9.
+ *                                                                          Default to 6]
+ *         "minSize"                      : integer             [OPTIONAL - responses with a smaller
+ *                                                                          Content-Length are not compressed.
+ *                                                                          Default to 1024]
+ *         "contentTypes"                 : [ string, ... ]     [OPTIONAL - compressed media types, a type
+ *                                                                          ending with '/*' matches all subtypes.
+ *                                                                          Default to common textual types]
+ *         "cache": {                                           [OPTIONAL - cache compressed representations]
+ *            "maxEntries"                : integer             [OPTIONAL - default to 100]
+ *            "maxEntrySize"              : integer             [OPTIONAL - largest cached uncompressed entity.
+ *                                                                          Default to 1 MiB]
+ *         }
+ *      }
+ *  }
+ *  }
+ * </pre>
+ */
+public class CompressionFilter extends GenericHeapObject implements Filter {
+
+    /** The {@literal gzip} content-coding. */
+    public static final String GZIP = "gzip";
+
+    /** The {@literal deflate} content-coding. */
+    public static final String DEFLATE = "deflate";
+
+    /** Media types compressed by default. */
+    public static final List<String> DEFAULT_CONTENT_TYPES =
+            Collections.unmodifiableList(Arrays.asList("text/*",
+                                                       "application/json",
+                                                       "application/javascript",
+                                                       "application/xml",
+                                                       "application/xhtml+xml",
+                                                       "image/svg+xml"));
+
+    private final boolean compress;
+    private final boolean decompress;
+    private final int level;
+    private final int minSize;
+    private final List<String> contentTypes;
+    private final Map<String, CachedRepresentation> cache;
+    private final int maxEntrySize;
+
+    /**
+     * Creates a new compression filter, without cache.
+     *
+     * @param compress
+     *         compress responses
+     * @param decompress
+     *         decode gzip/deflate encoded responses returned by the next handler
+     * @param level
+     *         the compression level (0-9, or -1 for the default level)
+     * @param minSize
+     *         responses with a smaller Content-Length are not compressed
+     * @param contentTypes
+     *         compressed media types
+     */
+    public CompressionFilter(final boolean compress,
+                             final boolean decompress,
+                             final int level,
+                             final int minSize,
+                             final List<String> contentTypes) {
+        this(compress, decompress, level, minSize, contentTypes, 0, 0);
+    }
+
+    /**
+     * Creates a new compression filter.
+     *
+     * @param compress
+     *         compress responses
+     * @param decompress
+     *         decode gzip/deflate encoded responses returned by the next handler
+     * @param level
+     *         the compression level (0-9, or -1 for the default level)
+     * @param minSize
+     *         responses with a smaller Content-Length are not compressed
+     * @param contentTypes
+     *         compressed media types
+     * @param maxEntries
+     *         number of cached compressed representations (0 to disable the cache)
+     * @param maxEntrySize
+     *         largest uncompressed entity whose compressed representation is cached
+     */
+    public CompressionFilter(final boolean compress,
+                             final boolean decompress,
+                             final int level,
+                             final int minSize,
+                             final List<String> contentTypes,
+                             final int maxEntries,
+                             final int maxEntrySize) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException(format("Invalid compression level %d", level));
+        }
+        this.compress = compress;
+        this.decompress = decompress;
+        this.level = level;
+        this.minSize = minSize;
+        this.contentTypes = contentTypes;
+        this.cache = maxEntries > 0 ? newLruMap(maxEntries) : null;
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    private static Map<String, CachedRepresentation> newLruMap(final int maxEntries) {
+        return Collections.synchronizedMap(new LinkedHashMap<String, CachedRepresentation>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CachedRepresentation> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                          final Request request,
+                                                          final Handler next) {
+        final String encoding = compress ? negotiate(request.getHeaders().getFirst("Accept-Encoding")) : null;
+        return next.handle(context, request)
+                   .then(new Function<Response, Response, NeverThrowsException>() {
+                       @Override
+                       public Response apply(final Response value) {
+                           Response response = value;
+                           if (decompress && response != null) {
+                               response = decode(response);
+                           }
+                           if (encoding != null && isCompressible(request, response)) {
+                               response = encode(request, response, encoding);
+                           }
+                           return response;
+                       }
+                   });
+    }
+
+    /**
+     * Selects the content-coding to use given the value of the {@literal Accept-Encoding} header.
+     *
+     * @param acceptEncoding
+     *         the value of the {@literal Accept-Encoding} header (may be {@code null})
+     * @return {@link #GZIP}, {@link #DEFLATE} or {@code null} if none of them is acceptable
+     */
+    static String negotiate(final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        Float gzip = null;
+        Float deflate = null;
+        Float any = null;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            float q = 1f;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0f;
+                    }
+                }
+            }
+            if (GZIP.equals(coding) || "x-gzip".equals(coding)) {
+                gzip = q;
+            } else if (DEFLATE.equals(coding)) {
+                deflate = q;
+            } else if ("*".equals(coding)) {
+                any = q;
+            }
+        }
+        float gzipQ = gzip != null ? gzip : (any != null ? any : 0f);
+        float deflateQ = deflate != null ? deflate : (any != null ? any : 0f);
+        if (gzipQ > 0f && gzipQ >= deflateQ) {
+            return GZIP;
+        }
+        if (deflateQ > 0f) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    private boolean isCompressible(final Request request, final Response response) {
+        if (response == null
+                || "HEAD".equals(request.getMethod())
+                || Status.NO_CONTENT.equals(response.getStatus())
+                || Status.NOT_MODIFIED.equals(response.getStatus())
+                || response.getHeaders().getFirst("Content-Encoding") != null
+                || contains(response.getHeaders().getFirst("Cache-Control"), "no-transform")) {
+            return false;
+        }
+        long length = contentLength(response);
+        return (length < 0 || length >= minSize) && isTextual(response.getHeaders().getFirst("Content-Type"));
+    }
+
+    private boolean isTextual(final String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+        for (String accepted : contentTypes) {
+            if (accepted.endsWith("/*") ? type.startsWith(accepted.substring(0, accepted.length() - 1))
+                    : type.equals(accepted)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Response encode(final Request request, final Response response, final String encoding) {
+        InputStream raw = response.getEntity().getRawContentInputStream();
+        String etag = response.getHeaders().getFirst("ETag");
+        if (cache != null && etag != null && isCacheable(request, response)) {
+            String key = encoding + " " + request.getUri();
+            CachedRepresentation cached = cache.get(key);
+            if (cached != null && cached.etag.equals(etag)) {
+                // Same representation as the one already compressed
+                closeSilently(raw);
+                return copyOf(response, encoding, new ByteArrayInputStream(cached.content), cached.content.length);
+            }
+            long length = contentLength(response);
+            if (length >= 0 && length <= maxEntrySize) {
+                try {
+                    byte[] content = readFully(compressing(raw, encoding));
+                    cache.put(key, new CachedRepresentation(etag, content));
+                    return copyOf(response, encoding, new ByteArrayInputStream(content), content.length);
+                } catch (IOException e) {
+                    logger.warning(format("Cannot compress the response of '%s'", request.getUri()));
+                    logger.warning(e);
+                    closeSilently(raw);
+                    return newInternalServerError(e);
+                }
+            }
+        }
+        return copyOf(response, encoding, compressing(raw, encoding), -1);
+    }
+
+    private static boolean isCacheable(final Request request, final Response response) {
+        String cacheControl = response.getHeaders().getFirst("Cache-Control");
+        return "GET".equals(request.getMethod())
+                && Status.OK.equals(response.getStatus())
+                && response.getHeaders().getFirst("Set-Cookie") == null
+                && !contains(cacheControl, "no-store")
+                && !contains(cacheControl, "private");
+    }
+
+    private InputStream compressing(final InputStream raw, final String encoding) {
+        return GZIP.equals(encoding)
+                ? CompressingInputStream.gzip(raw, level)
+                : CompressingInputStream.deflate(raw, level);
+    }
+
+    private Response decode(final Response response) {
+        String encoding = response.getHeaders().getFirst("Content-Encoding");
+        if (encoding == null) {
+            return response;
+        }
+        encoding = encoding.trim().toLowerCase(Locale.ROOT);
+        InputStream raw = response.getEntity().getRawContentInputStream();
+        try {
+            if (GZIP.equals(encoding) || "x-gzip".equals(encoding)) {
+                return copyOf(response, null, new GZIPInputStream(raw), -1);
+            } else if (DEFLATE.equals(encoding)) {
+                return copyOf(response, null, new InflaterInputStream(raw), -1);
+            }
+        } catch (IOException e) {
+            logger.warning("Cannot decode the response entity, it is left untouched");
+            logger.warning(e);
+        }
+        return response;
+    }
+
+    /**
+     * Returns a copy of the given response, with a new entity.
+     *
+     * @param response
+     *         the original response
+     * @param encoding
+     *         the content-coding of the new entity ({@code null} if it is not encoded)
+     * @param content
+     *         the content of the new entity
+     * @param length
+     *         the length of the new entity ({@literal -1} if unknown)
+     * @return a copy of the given response, with a new entity
+     */
+    private Response copyOf(final Response response, final String encoding, final InputStream content,
+                            final long length) {
+        Response copy = new Response(response.getStatus());
+        copy.setVersion(response.getVersion());
+        copy.setCause(response.getCause());
+        for (Header header : response.getHeaders().asMapOfHeaders().values()) {
+            String name = header.getName();
+            if (!"Content-Length".equalsIgnoreCase(name) && !"Content-Encoding".equalsIgnoreCase(name)) {
+                copy.getHeaders().add(header);
+            }
+        }
+        if (length >= 0) {
+            copy.getHeaders().put("Content-Length", String.valueOf(length));
+        }
+        if (encoding != null) {
+            copy.getHeaders().put("Content-Encoding", encoding);
+            copy.getHeaders().add("Vary", "Accept-Encoding");
+            // The encoded representation is not byte-for-byte identical to the original one
+            String etag = response.getHeaders().getFirst("ETag");
+            if (etag != null && !etag.startsWith("W/")) {
+                copy.getHeaders().put("ETag", "W/" + etag);
+            }
+        }
+        copy.setEntity(IO.newBranchingInputStream(content, storage));
+        return copy;
+    }
+
+    private static long contentLength(final Response response) {
+        String value = response.getHeaders().getFirst("Content-Length");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean contains(final String headerValue, final String directive) {
+        return headerValue != null && headerValue.toLowerCase(Locale.ROOT).contains(directive);
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            IO.stream(in, out);
+            return out.toByteArray();
+        } finally {
+            closeSilently(in);
+        }
+    }
+
+    private static final class CachedRepresentation {
+        private final String etag;
+        private final byte[] content;
+
+        CachedRepresentation(final String etag, final byte[] content) {
+            this.etag = etag;
+            this.content = content;
+        }
+    }
+
+    /** Creates and initializes a compression filter in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+        @Override
+        public Object create() throws HeapException {
+            JsonValue cache = config.get("cache");
+            int maxEntries = 0;
+            int maxEntrySize = 0;
+            if (cache.isNotNull()) {
+                maxEntries = asInteger(cache.get("maxEntries").defaultTo(100));
+                maxEntrySize = asInteger(cache.get("maxEntrySize").defaultTo(1024 * 1024));
+            }
+            return new CompressionFilter(asBoolean(config.get("compress").defaultTo(true)),
+                                         asBoolean(config.get("decompress").defaultTo(false)),
+                                         asInteger(config.get("level").defaultTo(6)),
+                                         asInteger(config.get("minSize").defaultTo(1024)),
+                                         config.get("contentTypes").defaultTo(DEFAULT_CONTENT_TYPES)
+                                               .asList(String.class),
+                                         maxEntries,
+                                         maxEntrySize);
+        }
+    }
+}
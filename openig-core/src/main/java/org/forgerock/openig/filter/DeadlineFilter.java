@@ -0,0 +1,106 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.asDuration;
+import static org.forgerock.util.Reject.checkNotNull;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.http.DeadlineContext;
+import org.forgerock.openig.http.Deadlines;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Sets a deadline on the processing of the incoming request: the request is given to the next handler within a
+ * {@link DeadlineContext}, that downstream components consult to cap the timeouts of their upstream calls. If the
+ * response is not ready when the deadline expires, the pending processing is cancelled and a
+ * {@literal 504 Gateway Timeout} response is returned.
+ *
+ * <pre>
+ *     {@code
+ *     {
+ *         "type": "DeadlineFilter",
+ *         "config": {
+ *             "deadline"                 : duration    [ REQUIRED ]
+ *             "scheduledExecutorService" : reference   [ OPTIONAL - default to the global scheduled executor ]
+ *         }
+ *     }
+ *     }
+ * </pre>
+ *
+ * <p>A deadline can also be set on a whole route with the {@literal deadline} route attribute. When deadlines are
+ * nested, the soonest one applies.
+ */
+public class DeadlineFilter extends GenericHeapObject implements Filter {
+
+    private final Duration deadline;
+    private final ScheduledExecutorService executor;
+    private final TimeService time;
+
+    /**
+     * Creates a new deadline filter.
+     *
+     * @param deadline
+     *         the time allowed to process each request
+     * @param executor
+     *         the executor used to schedule the expiration of the deadlines
+     * @param time
+     *         the time service
+     */
+    public DeadlineFilter(final Duration deadline, final ScheduledExecutorService executor, final TimeService time) {
+        this.deadline = checkNotNull(deadline);
+        this.executor = checkNotNull(executor);
+        this.time = checkNotNull(time);
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                          final Request request,
+                                                          final Handler next) {
+        return Deadlines.handle(new DeadlineContext(context, time, deadline), request, next, executor);
+    }
+
+    /** Creates and initializes a deadline filter in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+        @Override
+        public Object create() throws HeapException {
+            Duration deadline = asDuration(config.get("deadline").required());
+            if (deadline.isZero()) {
+                throw new HeapException("'deadline' has to be a positive duration");
+            }
+            ScheduledExecutorService executor =
+                    heap.resolve(config.get("scheduledExecutorService")
+                                       .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY),
+                                 ScheduledExecutorService.class);
+            return new DeadlineFilter(deadline, executor, heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class));
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package org.forgerock.openig.filter;
 
 import static org.forgerock.openig.el.Bindings.bindings;
+import static org.forgerock.openig.decoration.capture.NoEntityCaptureContext.requireEntity;
 import static org.forgerock.openig.util.JsonValues.asExpression;
 
 import java.io.IOException;
@@ -115,9 +116,11 @@ public class EntityExtractFilter extends GenericHeapObject implements Filter {
         return extractor;
     }
 
-    private void process(Bindings bindings, Message message) {
+    private void process(Context context, Bindings bindings, Message message) {
         Map<String, String> map = new HashMap<>();
         if (message != null) {
+            // Only the message the patterns are extracted from is read (and buffered)
+            requireEntity(context, "EntityExtractFilter");
             try {
                 try (Reader reader = message.getEntity().newDecodedContentReader(charset)) {
                     // get 'em all now
@@ -139,14 +142,14 @@ public class EntityExtractFilter extends GenericHeapObject implements Filter {
                                                           final Handler next) {
 
         if (messageType == MessageType.REQUEST) {
-            process(bindings(context, request), request);
+            process(context, bindings(context, request), request);
         }
         Promise<Response, NeverThrowsException> promise = next.handle(context, request);
         if (messageType == MessageType.RESPONSE) {
             return promise.thenOnResult(new ResultHandler<Response>() {
                 @Override
                 public void handleResult(final Response response) {
-                    process(bindings(context, request, response), response);
+                    process(context, bindings(context, request, response), response);
                 }
             });
         }
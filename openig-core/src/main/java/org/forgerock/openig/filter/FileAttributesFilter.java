@@ -12,13 +12,15 @@
  * information: "Portions Copyright [year] [name of copyright owner]".
  *
  * Copyright 2010-2011 ApexIdentity Inc.
- * Portions Copyright 2011-2015 ForgeRock AS.
+ * Portions Copyright 2011-2016 ForgeRock AS.
  */
 
 package org.forgerock.openig.filter;
 
 import static java.lang.String.format;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
 import static org.forgerock.openig.el.Bindings.bindings;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.util.JsonValues.asExpression;
 import static org.forgerock.openig.util.JsonValues.evaluate;
 
@@ -26,11 +28,14 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
 import org.forgerock.openig.el.Bindings;
 import org.forgerock.openig.el.Expression;
 import org.forgerock.openig.heap.GenericHeapObject;
@@ -38,7 +43,9 @@ import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
 import org.forgerock.openig.text.SeparatedValuesFile;
 import org.forgerock.openig.text.Separators;
+import org.forgerock.openig.thread.OffloadExecutor;
 import org.forgerock.services.context.Context;
+import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.Factory;
 import org.forgerock.util.LazyMap;
 import org.forgerock.util.promise.NeverThrowsException;
@@ -55,6 +62,15 @@ import org.forgerock.util.promise.Promise;
  * to access a value in the target. This defers the overhead of file operations and text
  * processing until a value is first required. This also means that the {@code value}
  * expression will not be evaluated until the map is first accessed.
+ * <p>
+ * When an {@code offloadExecutor} is configured, the record is instead retrieved by this {@link OffloadExecutor}
+ * before the request is given to the next handler, so that the thread processing the request does not wait for
+ * the file to be read.
+ * <p>
+ * Unless {@code index} is set to {@code false}, the file is read once into an in-memory index of the records by
+ * {@code key}, rebuilt in the background (by the {@code executor}, the {@literal ScheduledExecutorService} heap object
+ * by default) when the file changes. The lookup statistics are exposed as a JSON object at
+ * {@literal /openig/system/objects/.../[filter-name]/records}.
  *
  * @see SeparatedValuesFile
  */
@@ -73,6 +89,9 @@ public class FileAttributesFilter extends GenericHeapObject implements Filter {
     /** Expression that yields the value to be looked-up within the file. */
     private final Expression<String> value;
 
+    /** Retrieves the records outside of the request processing threads (may be {@code null}). */
+    private OffloadExecutor offloadExecutor;
+
     /**
      * Builds a new FileAttributesFilter extracting values from the given separated values file.
      *
@@ -95,12 +114,23 @@ public class FileAttributesFilter extends GenericHeapObject implements Filter {
         this.target = target;
     }
 
+    /**
+     * Sets the executor used to retrieve the records outside of the request processing threads. When set, the record
+     * is retrieved before the request is given to the next handler, instead of lazily.
+     *
+     * @param offloadExecutor
+     *         the executor retrieving the records ({@code null} to retrieve them lazily, on the calling thread)
+     */
+    public void setOffloadExecutor(final OffloadExecutor offloadExecutor) {
+        this.offloadExecutor = offloadExecutor;
+    }
+
     @Override
     public Promise<Response, NeverThrowsException> filter(final Context context,
                                                           final Request request,
                                                           final Handler next) {
         final Bindings bindings = bindings(context, request);
-        target.set(bindings, new LazyMap<>(new Factory<Map<String, String>>() {
+        final Factory<Map<String, String>> lookup = new Factory<Map<String, String>>() {
             @Override
             public Map<String, String> newInstance() {
                 try {
@@ -118,8 +148,34 @@ public class FileAttributesFilter extends GenericHeapObject implements Filter {
                     return Collections.emptyMap();
                 }
             }
-        }));
-        return next.handle(context, request);
+        };
+
+        if (offloadExecutor == null) {
+            target.set(bindings, new LazyMap<>(lookup));
+            return next.handle(context, request);
+        }
+
+        // The record is retrieved eagerly, but not on the thread processing the request
+        return offloadExecutor.submit(new Callable<Map<String, String>>() {
+            @Override
+            public Map<String, String> call() throws Exception {
+                return lookup.newInstance();
+            }
+        }).thenAsync(new AsyncFunction<Map<String, String>, Response, NeverThrowsException>() {
+            @Override
+            public Promise<Response, NeverThrowsException> apply(final Map<String, String> record) {
+                target.set(bindings, record);
+                return next.handle(context, request);
+            }
+        }, new AsyncFunction<Exception, Response, NeverThrowsException>() {
+            @Override
+            public Promise<Response, NeverThrowsException> apply(final Exception e) {
+                logger.warning(e);
+                // results in an empty map
+                target.set(bindings, Collections.emptyMap());
+                return next.handle(context, request);
+            }
+        });
     }
 
     /** Creates and initializes a separated values file attribute provider in a heap environment. */
@@ -136,10 +192,32 @@ public class FileAttributesFilter extends GenericHeapObject implements Filter {
             if (config.isDefined("fields")) {
                 sources.getFields().addAll(config.get("fields").asList(String.class));
             }
-            return new FileAttributesFilter(sources,
-                                            config.get("key").required().asString(),
-                                            asExpression(config.get("value").required(), String.class),
-                                            asExpression(config.get("target").required(), Map.class));
+            if (config.get("index").defaultTo(true).asBoolean()) {
+                sources.setIndexed(true);
+                sources.setReloadExecutor(heap.resolve(config.get("executor")
+                                                             .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY),
+                                                       ScheduledExecutorService.class));
+            }
+            FileAttributesFilter filter =
+                    new FileAttributesFilter(sources,
+                                             config.get("key").required().asString(),
+                                             asExpression(config.get("value").required(), String.class),
+                                             asExpression(config.get("target").required(), Map.class));
+            filter.setOffloadExecutor(heap.resolve(config.get("offloadExecutor"), OffloadExecutor.class, true));
+            return filter;
+        }
+
+        @Override
+        public void start() throws HeapException {
+            final SeparatedValuesFile file = ((FileAttributesFilter) object).file;
+            endpointRegistry().register("records", new Handler() {
+                @Override
+                public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                    Response response = new Response(Status.OK);
+                    response.getEntity().setJson(file.getStatistics());
+                    return newResponsePromise(response);
+                }
+            });
         }
     }
 }
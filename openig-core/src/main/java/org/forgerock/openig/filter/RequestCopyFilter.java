@@ -17,6 +17,7 @@ package org.forgerock.openig.filter;
 
 import static org.forgerock.http.Responses.newInternalServerError;
 import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.openig.decoration.capture.NoEntityCaptureContext.requireEntity;
 import static org.forgerock.util.Utils.closeSilently;
 
 import java.io.IOException;
@@ -49,6 +50,8 @@ final class RequestCopyFilter implements Filter {
 
     @Override
     public Promise<Response, NeverThrowsException> filter(Context context, Request request, Handler next) {
+        // The copy retains the entity content so that the original request can be reused
+        requireEntity(context, "RequestCopyFilter");
         final Request requestCopy;
         try {
             requestCopy = new Request(request);
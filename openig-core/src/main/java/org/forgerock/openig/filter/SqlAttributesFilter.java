@@ -18,10 +18,18 @@
 package org.forgerock.openig.filter;
 
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
 import static org.forgerock.openig.el.Bindings.bindings;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.log.LogLevel.DEBUG;
+import static org.forgerock.openig.util.JsonValues.asDuration;
 import static org.forgerock.openig.util.JsonValues.asExpression;
+import static org.forgerock.openig.util.JsonValues.asInteger;
 import static org.forgerock.openig.util.JsonValues.ofExpression;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -33,6 +41,9 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Pattern;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -42,6 +53,7 @@ import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.JsonValueException;
 import org.forgerock.openig.el.Bindings;
@@ -49,11 +61,15 @@ import org.forgerock.openig.el.Expression;
 import org.forgerock.openig.heap.GenericHeapObject;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.thread.OffloadExecutor;
 import org.forgerock.services.context.Context;
+import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.Factory;
 import org.forgerock.util.LazyMap;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
 
 /**
  * Executes a SQL query through a prepared statement and exposes its first result. Parameters
@@ -65,6 +81,47 @@ import org.forgerock.util.promise.Promise;
  * to access a value in the target. This defers the overhead of connection pool, network
  * and database query processing until a value is first required. This also means that the
  * {@code parameters} expressions will not be evaluated until the map is first accessed.
+ * <p>
+ * When an {@code offloadExecutor} is configured, the query is instead executed by this {@link OffloadExecutor}
+ * before the request is given to the next handler, so that the thread processing the request is not blocked by
+ * the database.
+ * <p>
+ * When a {@code cache} is configured, the query results are cached, keyed by the evaluated parameters values:
+ * <pre>
+ *     {@code
+ *     "cache": {
+ *         "maxEntries"  : integer     [ OPTIONAL - default to 1000 ]
+ *         "ttl"         : duration    [ OPTIONAL - default to '1 minute' ]
+ *         "negativeTtl" : duration    [ OPTIONAL - how long an empty result is cached, default to ttl,
+ *                                                  zero to not cache empty results ]
+ *     }
+ *     }
+ * </pre>
+ * Concurrent lookups of the same parameters share the same query, failed queries are not cached. The cache
+ * statistics are exposed as a JSON object at {@literal /openig/system/objects/.../[filter-name]/cache}.
+ * <p>
+ * When the query looks a single row up by its key (such as {@literal SELECT * FROM users WHERE uid = ?}), a
+ * {@code batch} can be configured (along with an {@code offloadExecutor}): the lookups arriving within a small window
+ * are then combined into a single query, executed by the {@code offloadExecutor}, and the returned rows are given
+ * back to each request according to the value of their {@code keyColumn}:
+ * <pre>
+ *     {@code
+ *     "batch": {
+ *         "keyColumn"         : string      [ REQUIRED - the column holding the looked up key ]
+ *         "preparedStatement" : string      [ OPTIONAL - the batch query, whose single ? placeholder stands for the
+ *                                                        list of keys, default to the preparedStatement with its
+ *                                                        '= ?' replaced by 'IN (?)' ]
+ *         "maxSize"           : integer     [ OPTIONAL - default to 100 ]
+ *         "window"            : duration    [ OPTIONAL - how long a lookup waits for others to join its batch,
+ *                                                        default to '5 milliseconds' ]
+ *         "executor"          : executor    [ OPTIONAL - schedules the batches, default to the
+ *                                                        'ScheduledExecutorService' heap object ]
+ *     }
+ *     }
+ * </pre>
+ * Keys and key column values are compared according to the column type; when the database matched rows that none of
+ * the keys match this way, the keys left without a row are looked up again with the {@code preparedStatement}.
+ * The batching statistics are exposed as a JSON object at {@literal /openig/system/objects/.../[filter-name]/batch}.
  *
  * @see PreparedStatement
  */
@@ -83,6 +140,18 @@ public class SqlAttributesFilter extends GenericHeapObject implements Filter {
     /** The list of parameters to evaluate and include in the execution of the prepared statement. */
     private final List<Expression<?>> parameters = new ArrayList<>();
 
+    /** Executes the queries outside of the request processing threads (may be {@code null}). */
+    private OffloadExecutor offloadExecutor;
+
+    /** Caches the query results (may be {@code null}). */
+    private SqlResultCache cache;
+
+    /** Combines the concurrent lookups into batched queries (may be {@code null}). */
+    private SqlBatcher batcher;
+
+    /** The number of placeholders in the prepared statement ({@literal -1} until known). */
+    private volatile int parameterCount = -1;
+
     /**
      * Builds a new SqlAttributesFilter that will execute the given SQL statement on the given {@link DataSource},
      * placing the results in a {@link Map} in the specified target.
@@ -110,6 +179,38 @@ public class SqlAttributesFilter extends GenericHeapObject implements Filter {
         return parameters;
     }
 
+    /**
+     * Sets the executor used to run the queries outside of the request processing threads. When set, the query is
+     * executed before the request is given to the next handler, instead of lazily.
+     *
+     * @param offloadExecutor
+     *         the executor running the queries ({@code null} to execute them lazily, on the calling thread)
+     */
+    public void setOffloadExecutor(final OffloadExecutor offloadExecutor) {
+        this.offloadExecutor = offloadExecutor;
+    }
+
+    /**
+     * Sets the cache of the query results.
+     *
+     * @param cache
+     *         the cache of the query results ({@code null} to execute the query for each request)
+     */
+    void setCache(final SqlResultCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Sets the batcher combining the concurrent lookups into batched queries. The filter must have a single parameter,
+     * holding the looked up key, and an {@link #setOffloadExecutor(OffloadExecutor) offload executor}.
+     *
+     * @param batcher
+     *         the batcher of the lookups ({@code null} to execute one query per lookup)
+     */
+    void setBatcher(final SqlBatcher batcher) {
+        this.batcher = batcher;
+    }
+
     @Override
     public Promise<Response, NeverThrowsException> filter(final Context context,
                                                           final Request request,
@@ -117,84 +218,167 @@ public class SqlAttributesFilter extends GenericHeapObject implements Filter {
 
         final Bindings bindings = bindings(context, request);
 
-        target.set(bindings, new LazyMap<>(new Factory<Map<String, Object>>() {
+        final Factory<Map<String, Object>> query = new Factory<Map<String, Object>>() {
             @Override
             public Map<String, Object> newInstance() {
-                Map<String, Object> result = new HashMap<>();
-                Connection c = null;
                 try {
-                    c = dataSource.getConnection();
+                    return lookup(evaluate(bindings)).getOrThrowUninterruptibly();
+                } catch (Exception e) {
+                    // probably a config issue
+                    logger.error(e);
+                    return new HashMap<>();
+                }
+            }
+        };
 
-                    PreparedStatement ps = createPreparedStatement(c);
+        if (offloadExecutor == null) {
+            target.set(bindings, new LazyMap<>(query));
+            return next.handle(context, request);
+        }
 
-                    ResultSet rs = ps.executeQuery();
-                    if (rs.next()) {
-                        ResultSetMetaData rsmd = rs.getMetaData();
-                        int columns = rsmd.getColumnCount();
-                        for (int n = 1; n <= columns; n++) {
-                            result.put(rsmd.getColumnLabel(n), rs.getObject(n));
-                        }
-                    }
-                    if (logger.isLoggable(DEBUG)) {
-                        logger.debug("Result: " + result);
-                    }
-                    rs.close();
-                    ps.close();
-                } catch (SQLException sqle) {
-                    // probably a config issue
-                    logger.error(sqle);
-                } finally {
-                    if (c != null) {
-                        try {
-                            c.close();
-                        } catch (SQLException sqle) {
-                            // probably a network issue
-                            logger.error(sqle);
-                        }
-                    }
+        // The query is executed eagerly, but not on the thread processing the request
+        final Promise<Map<String, Object>, Exception> promise;
+        if (batcher != null) {
+            // The batch is executed by the offload executor: no need to block one of its threads for this lookup
+            promise = lookup(evaluate(bindings));
+        } else {
+            promise = offloadExecutor.submit(new Callable<Map<String, Object>>() {
+                @Override
+                public Map<String, Object> call() throws Exception {
+                    return query.newInstance();
                 }
-                return result;
+            });
+        }
+        return promise.thenAsync(new AsyncFunction<Map<String, Object>, Response, NeverThrowsException>() {
+            @Override
+            public Promise<Response, NeverThrowsException> apply(final Map<String, Object> result) {
+                target.set(bindings, result);
+                return next.handle(context, request);
+            }
+        }, new AsyncFunction<Exception, Response, NeverThrowsException>() {
+            @Override
+            public Promise<Response, NeverThrowsException> apply(final Exception e) {
+                logger.error(e);
+                target.set(bindings, new HashMap<String, Object>());
+                return next.handle(context, request);
             }
+        });
+    }
 
-            private PreparedStatement createPreparedStatement(final Connection connection) throws SQLException {
-                logger.debug(format("PreparedStatement %s", preparedStatement));
+    private List<Object> evaluate(final Bindings bindings) {
+        final List<Object> values = new ArrayList<>(parameters.size());
+        for (Expression<?> parameter : parameters) {
+            values.add(parameter.eval(bindings));
+        }
+        return values;
+    }
 
-                // probably cached in connection pool
-                PreparedStatement ps = connection.prepareStatement(preparedStatement);
+    /**
+     * Looks the result of the query with the given parameter values up in the cache (if any), or queries it.
+     */
+    private Promise<Map<String, Object>, Exception> lookup(final List<Object> values) {
+        if (cache == null) {
+            return query(values);
+        }
+        return cache.get(values, new Callable<Promise<Map<String, Object>, Exception>>() {
+            @Override
+            public Promise<Map<String, Object>, Exception> call() throws Exception {
+                return query(values);
+            }
+        });
+    }
 
-                // probably unnecessary but a safety precaution
-                ps.clearParameters();
+    private Promise<Map<String, Object>, Exception> query(final List<Object> values) {
+        if (batcher != null) {
+            return batcher.lookup(values.get(0));
+        }
+        try {
+            return newResultPromise(execute(values));
+        } catch (SQLException e) {
+            return newExceptionPromise((Exception) e);
+        }
+    }
 
-                // Inject evaluated expression values into statement's placeholders
-                Iterator<Expression<?>> expressions = parameters.iterator();
-                int count = ps.getParameterMetaData().getParameterCount();
-                for (int i = 0; i < count; i++) {
-                    if (!expressions.hasNext()) {
-                        // Got a statement parameter, but no expression to evaluate
-                        logger.warning(format(" Placeholder %d has no provided value as parameter", i + 1));
-                        continue;
-                    }
-                    Object eval = expressions.next().eval(bindings);
-                    ps.setObject(i + 1, eval);
-                    logger.debug(format(" Placeholder #%d -> %s", i + 1, eval));
-                }
+    /**
+     * Executes the query with the given parameter values, and returns its first result.
+     */
+    private Map<String, Object> execute(final List<Object> values) throws SQLException {
+        Map<String, Object> result = new HashMap<>();
+        Connection c = dataSource.getConnection();
+        try {
+            PreparedStatement ps = createPreparedStatement(c, values);
 
-                // Output a warning if there are too many expressions compared to the number
-                // of parameters/placeholders in the prepared statement
-                if (expressions.hasNext()) {
-                    logger.warning(format(" All parameters with index >= %d are ignored because there are "
-                                          + "no placeholders for them in the configured prepared statement (%s)",
-                                          count,
-                                          preparedStatement));
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) {
+                ResultSetMetaData rsmd = rs.getMetaData();
+                int columns = rsmd.getColumnCount();
+                for (int n = 1; n <= columns; n++) {
+                    result.put(rsmd.getColumnLabel(n), rs.getObject(n));
                 }
-                return ps;
             }
-        }));
-        return next.handle(context, request);
+            if (logger.isLoggable(DEBUG)) {
+                logger.debug("Result: " + result);
+            }
+            rs.close();
+            ps.close();
+        } finally {
+            try {
+                c.close();
+            } catch (SQLException sqle) {
+                // probably a network issue
+                logger.error(sqle);
+            }
+        }
+        return result;
+    }
+
+    private PreparedStatement createPreparedStatement(final Connection connection,
+                                                      final List<Object> values) throws SQLException {
+        logger.debug(format("PreparedStatement %s", preparedStatement));
+
+        // probably cached in connection pool
+        PreparedStatement ps = connection.prepareStatement(preparedStatement);
+
+        // probably unnecessary but a safety precaution
+        ps.clearParameters();
+
+        // The statement does not change: only ask the driver once for its number of placeholders
+        int count = parameterCount;
+        if (count < 0) {
+            count = ps.getParameterMetaData().getParameterCount();
+            parameterCount = count;
+        }
+
+        // Inject evaluated expression values into statement's placeholders
+        Iterator<Object> evaluated = values.iterator();
+        for (int i = 0; i < count; i++) {
+            if (!evaluated.hasNext()) {
+                // Got a statement parameter, but no expression to evaluate
+                logger.warning(format(" Placeholder %d has no provided value as parameter", i + 1));
+                continue;
+            }
+            Object eval = evaluated.next();
+            ps.setObject(i + 1, eval);
+            logger.debug(format(" Placeholder #%d -> %s", i + 1, eval));
+        }
+
+        // Output a warning if there are too many expressions compared to the number
+        // of parameters/placeholders in the prepared statement
+        if (evaluated.hasNext()) {
+            logger.warning(format(" All parameters with index >= %d are ignored because there are "
+                                  + "no placeholders for them in the configured prepared statement (%s)",
+                                  count,
+                                  preparedStatement));
+        }
+        return ps;
     }
 
     /** Creates and initializes a static attribute provider in a heap environment. */
     public static class Heaplet extends GenericHeaplet {
+
+        /** The {@literal = ?} condition of a single key lookup (and not a {@literal <= ?}, {@literal >= ?}...). */
+        private static final Pattern EQUALS_PLACEHOLDER = Pattern.compile("(?<![<>!])=\\s*\\?");
+
         @Override
         public Object create() throws HeapException {
             InitialContext ctx;
@@ -222,7 +406,96 @@ public class SqlAttributesFilter extends GenericHeapObject implements Filter {
             if (config.isDefined("parameters")) {
                 filter.parameters.addAll(config.get("parameters").asList(ofExpression()));
             }
+            filter.setOffloadExecutor(heap.resolve(config.get("offloadExecutor"), OffloadExecutor.class, true));
+
+            JsonValue cache = config.get("cache");
+            if (cache.isNotNull()) {
+                int maxEntries = asInteger(cache.get("maxEntries").defaultTo(1000));
+                Duration ttl = asDuration(cache.get("ttl").defaultTo("1 minute"));
+                Duration negativeTtl = cache.isDefined("negativeTtl") ? asDuration(cache.get("negativeTtl")) : ttl;
+                if (ttl.isZero() || ttl.isUnlimited() || negativeTtl.isUnlimited()) {
+                    throw new HeapException("The cache ttl and negativeTtl have to be positive");
+                }
+                try {
+                    filter.setCache(new SqlResultCache(heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class),
+                                                       maxEntries,
+                                                       ttl.to(MILLISECONDS),
+                                                       negativeTtl.to(MILLISECONDS)));
+                } catch (IllegalArgumentException e) {
+                    throw new HeapException(e.getMessage(), e);
+                }
+            }
+
+            JsonValue batch = config.get("batch");
+            if (batch.isNotNull()) {
+                if (filter.offloadExecutor == null || filter.parameters.size() != 1) {
+                    throw new HeapException("The batch requires an offloadExecutor and a single parameter");
+                }
+                String statement = batch.get("preparedStatement").asString();
+                if (statement == null) {
+                    statement = batchStatement(filter.preparedStatement);
+                }
+                if (statement.indexOf('?') < 0 || statement.indexOf('?') != statement.lastIndexOf('?')
+                        || statement.equals(filter.preparedStatement)) {
+                    throw new HeapException(format("Cannot batch the lookups of '%s': configure a batch "
+                                                   + "preparedStatement with a single ? placeholder",
+                                                   filter.preparedStatement));
+                }
+                int maxSize = asInteger(batch.get("maxSize").defaultTo(100));
+                Duration window = asDuration(batch.get("window").defaultTo("5 milliseconds"));
+                if (maxSize < 1 || window.isUnlimited()) {
+                    throw new HeapException("The batch maxSize and window have to be positive");
+                }
+                ScheduledExecutorService scheduler =
+                        heap.resolve(batch.get("executor").defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY),
+                                     ScheduledExecutorService.class);
+                filter.setBatcher(new SqlBatcher(source,
+                                                 statement,
+                                                 filter.preparedStatement,
+                                                 batch.get("keyColumn").required().asString(),
+                                                 maxSize,
+                                                 window.to(MILLISECONDS),
+                                                 scheduler,
+                                                 filter.offloadExecutor,
+                                                 logger));
+            }
             return filter;
         }
+
+        /**
+         * Returns the batch statement of a single key lookup: its {@literal = ?} condition becomes {@literal IN (?)}.
+         * The statement is returned unchanged if it has no such condition.
+         */
+        static String batchStatement(final String preparedStatement) {
+            return EQUALS_PLACEHOLDER.matcher(preparedStatement).replaceFirst("IN (?)");
+        }
+
+        @Override
+        public void start() throws HeapException {
+            final SqlResultCache cache = ((SqlAttributesFilter) object).cache;
+            if (cache != null) {
+                endpointRegistry().register("cache", new Handler() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> handle(final Context context,
+                                                                          final Request request) {
+                        Response response = new Response(Status.OK);
+                        response.getEntity().setJson(cache.getStatistics());
+                        return newResponsePromise(response);
+                    }
+                });
+            }
+            final SqlBatcher batcher = ((SqlAttributesFilter) object).batcher;
+            if (batcher != null) {
+                endpointRegistry().register("batch", new Handler() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> handle(final Context context,
+                                                                          final Request request) {
+                        Response response = new Response(Status.OK);
+                        response.getEntity().setJson(batcher.getStatistics());
+                        return newResponsePromise(response);
+                    }
+                });
+            }
+        }
     }
 }
@@ -0,0 +1,372 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.util.Reject.checkNotNull;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.forgerock.openig.log.Logger;
+import org.forgerock.openig.thread.OffloadExecutor;
+import org.forgerock.util.promise.ExceptionHandler;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+
+/**
+ * Combines the concurrent single-key lookups of a {@link SqlAttributesFilter} into batched queries.
+ *
+ * <p>The lookups arriving within {@code window} milliseconds of the first one (or until {@code maxSize} lookups are
+ * pending) are executed as a single query, by an {@link OffloadExecutor}: the single {@literal ?} placeholder of the
+ * batch statement (typically {@literal WHERE id IN (?)}) is expanded into as many placeholders as there are distinct
+ * keys in the batch. The rows are then given back to each lookup according to the value of their {@code keyColumn}:
+ * a lookup whose key matched no row gets an empty map, and all the lookups of a failed batch fail.
+ *
+ * <p>Keys and key column values are compared the way the column type suggests: numbers by value ({@literal "042"}
+ * matches {@literal 42}), fixed-length strings without their trailing spaces. When the database matched rows in a way
+ * that cannot be reproduced (a case insensitive collation for instance), the keys left without a row are looked up
+ * again, one by one, with the single key statement, rather than being given an empty result.
+ */
+final class SqlBatcher {
+
+    private final DataSource dataSource;
+    private final String statement;
+    private final String singleStatement;
+    private final String keyColumn;
+    private final int maxSize;
+    private final long window;
+    private final ScheduledExecutorService scheduler;
+    private final OffloadExecutor executor;
+    private final Logger logger;
+
+    /** The lookups waiting for the next batch (guarded by this). */
+    private List<Lookup> pending = new ArrayList<>();
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * Creates a new batcher of lookups.
+     *
+     * @param dataSource
+     *         the JDBC data source
+     * @param statement
+     *         the batch statement, with a single {@literal ?} placeholder standing for the list of keys
+     * @param singleStatement
+     *         the statement looking up a single key, used for the keys the batch could not match
+     * @param keyColumn
+     *         the label of the column holding the key of each returned row
+     * @param maxSize
+     *         the maximum number of lookups in a batch
+     * @param window
+     *         how long (in milliseconds) the first lookup of a batch waits for other lookups to join it
+     * @param scheduler
+     *         schedules the execution of the batches at the end of their window
+     * @param executor
+     *         executes the batch queries
+     * @param logger
+     *         the logger of the filter
+     */
+    SqlBatcher(final DataSource dataSource,
+               final String statement,
+               final String singleStatement,
+               final String keyColumn,
+               final int maxSize,
+               final long window,
+               final ScheduledExecutorService scheduler,
+               final OffloadExecutor executor,
+               final Logger logger) {
+        this.dataSource = checkNotNull(dataSource);
+        this.statement = checkNotNull(statement);
+        this.singleStatement = checkNotNull(singleStatement);
+        this.keyColumn = checkNotNull(keyColumn);
+        this.maxSize = maxSize;
+        this.window = window;
+        this.scheduler = checkNotNull(scheduler);
+        this.executor = checkNotNull(executor);
+        this.logger = checkNotNull(logger);
+    }
+
+    /**
+     * Looks up the row whose key column holds the given key, in the next batch.
+     *
+     * @param key
+     *         the evaluated value of the single parameter of the filter query
+     * @return a promise completed with (a copy of) the matching row, or with an empty map if no row matched
+     */
+    Promise<Map<String, Object>, Exception> lookup(final Object key) {
+        lookups.incrementAndGet();
+        final Lookup lookup = new Lookup(key);
+        List<Lookup> full = null;
+        boolean first;
+        synchronized (this) {
+            pending.add(lookup);
+            first = pending.size() == 1;
+            if (pending.size() >= maxSize) {
+                full = pending;
+                pending = new ArrayList<>();
+            }
+        }
+        if (full != null) {
+            submit(full);
+        } else if (first) {
+            try {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, window, MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // The scheduler is shut down: do not wait for the window to end
+                flush();
+            }
+        }
+        return lookup.promise;
+    }
+
+    /**
+     * Returns the statistics of this batcher as a JSON compatible map.
+     *
+     * @return the statistics of this batcher
+     */
+    Map<String, Object> getStatistics() {
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        final long lookups = this.lookups.get();
+        final long batches = this.batches.get();
+        statistics.put("lookups", lookups);
+        statistics.put("batches", batches);
+        statistics.put("meanBatchSize", batches == 0L ? 0.0 : (double) lookups / batches);
+        statistics.put("fallbacks", fallbacks.get());
+        return statistics;
+    }
+
+    /** Submits the pending lookups, if any (their batch may already have been submitted because it was full). */
+    private void flush() {
+        final List<Lookup> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        submit(batch);
+    }
+
+    private void submit(final List<Lookup> batch) {
+        batches.incrementAndGet();
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                execute(batch);
+                return null;
+            }
+        }).thenOnException(new ExceptionHandler<Exception>() {
+            @Override
+            public void handleException(final Exception exception) {
+                // The failure is logged by the filter, once per lookup
+                for (Lookup lookup : batch) {
+                    lookup.promise.handleException(exception);
+                }
+            }
+        });
+    }
+
+    /**
+     * Executes the batch query, and completes the lookups once all the rows have been read (so that a failure can
+     * still fail all of them).
+     */
+    private void execute(final List<Lookup> batch) throws SQLException {
+        // The same key may be looked up several times in a batch: only query it once
+        final Map<String, Object> keys = new LinkedHashMap<>();
+        for (Lookup lookup : batch) {
+            if (!keys.containsKey(lookup.id)) {
+                keys.put(lookup.id, lookup.key);
+            }
+        }
+        final StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < keys.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        final String sql = statement.replace("?", placeholders);
+
+        // The rows of each key (by lookup id)
+        final Map<String, Map<String, Object>> results = new HashMap<>();
+        final Connection c = dataSource.getConnection();
+        try {
+            logger.debug(format("Batch of %d lookups (%d keys): %s", batch.size(), keys.size(), sql));
+            final PreparedStatement ps = c.prepareStatement(sql);
+            int index = 1;
+            for (Object key : keys.values()) {
+                ps.setObject(index++, key);
+            }
+            final ResultSet rs = ps.executeQuery();
+            final ResultSetMetaData rsmd = rs.getMetaData();
+            final int columns = rsmd.getColumnCount();
+            final int keyIndex = keyIndex(rsmd, columns);
+            final int keyType = rsmd.getColumnType(keyIndex);
+            // The rows, by normalized value of their key column
+            final Map<String, Map<String, Object>> rows = new HashMap<>();
+            while (rs.next()) {
+                final String value = normalize(rs.getObject(keyIndex), keyType);
+                if (!rows.containsKey(value)) {
+                    // Like the non-batched query, only the first row matching a key is exposed
+                    rows.put(value, readRow(rs, rsmd, columns));
+                }
+            }
+            rs.close();
+            ps.close();
+
+            final Set<String> matched = new HashSet<>();
+            final List<String> unmatched = new ArrayList<>();
+            for (Map.Entry<String, Object> key : keys.entrySet()) {
+                final String value = normalize(key.getValue(), keyType);
+                final Map<String, Object> row = rows.get(value);
+                if (row != null) {
+                    matched.add(value);
+                    results.put(key.getKey(), row);
+                } else {
+                    unmatched.add(key.getKey());
+                }
+            }
+            // Some rows matched none of the keys: the database compares them differently, ask it for each key
+            if (matched.size() < rows.size()) {
+                for (String id : unmatched) {
+                    fallbacks.incrementAndGet();
+                    results.put(id, querySingle(c, keys.get(id)));
+                }
+            }
+        } finally {
+            try {
+                c.close();
+            } catch (SQLException sqle) {
+                // probably a network issue
+                logger.error(sqle);
+            }
+        }
+
+        for (Lookup lookup : batch) {
+            final Map<String, Object> row = results.get(lookup.id);
+            lookup.promise.handleResult(row == null ? new HashMap<String, Object>() : new HashMap<>(row));
+        }
+    }
+
+    /** Looks a single key up with the single key statement. */
+    private Map<String, Object> querySingle(final Connection c, final Object key) throws SQLException {
+        logger.debug(format("Key '%s' not matched by its batch, looked up alone: %s", key, singleStatement));
+        final PreparedStatement ps = c.prepareStatement(singleStatement);
+        ps.setObject(1, key);
+        final ResultSet rs = ps.executeQuery();
+        final ResultSetMetaData rsmd = rs.getMetaData();
+        final Map<String, Object> row = rs.next() ? readRow(rs, rsmd, rsmd.getColumnCount()) : null;
+        rs.close();
+        ps.close();
+        return row;
+    }
+
+    private static Map<String, Object> readRow(final ResultSet rs, final ResultSetMetaData rsmd, final int columns)
+            throws SQLException {
+        final Map<String, Object> row = new HashMap<>();
+        for (int n = 1; n <= columns; n++) {
+            row.put(rsmd.getColumnLabel(n), rs.getObject(n));
+        }
+        return row;
+    }
+
+    /**
+     * Returns the form under which a key, or a key column value, is compared, according to the type of the key
+     * column: numbers are compared by value, fixed-length strings without their padding.
+     */
+    private static String normalize(final Object value, final int type) {
+        if (value == null) {
+            return null;
+        }
+        final String string = String.valueOf(value);
+        switch (type) {
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+        case Types.BIGINT:
+        case Types.DECIMAL:
+        case Types.NUMERIC:
+        case Types.REAL:
+        case Types.FLOAT:
+        case Types.DOUBLE:
+            try {
+                final BigDecimal number = new BigDecimal(string.trim());
+                return number.signum() == 0 ? "0" : number.stripTrailingZeros().toPlainString();
+            } catch (NumberFormatException e) {
+                // Not a number: it cannot match by value
+                return string;
+            }
+        case Types.CHAR:
+        case Types.NCHAR:
+            int end = string.length();
+            while (end > 0 && string.charAt(end - 1) == ' ') {
+                end--;
+            }
+            return string.substring(0, end);
+        default:
+            return string;
+        }
+    }
+
+    /** Returns the index of the key column (labels are compared ignoring case, as databases often upper-case them). */
+    private int keyIndex(final ResultSetMetaData rsmd, final int columns) throws SQLException {
+        for (int n = 1; n <= columns; n++) {
+            if (keyColumn.equalsIgnoreCase(rsmd.getColumnLabel(n))) {
+                return n;
+            }
+        }
+        throw new SQLException(format("The batch statement does not return the key column '%s'", keyColumn));
+    }
+
+    /** A lookup waiting for its batch. */
+    private static final class Lookup {
+        private final Object key;
+        /** Identifies the keys looked up several times in a batch. */
+        private final String id;
+        private final PromiseImpl<Map<String, Object>, Exception> promise = PromiseImpl.create();
+
+        private Lookup(final Object key) {
+            this.key = key;
+            this.id = String.valueOf(key);
+        }
+    }
+}
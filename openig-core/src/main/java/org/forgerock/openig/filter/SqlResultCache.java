@@ -0,0 +1,125 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.time.Duration.duration;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.Function;
+import org.forgerock.util.PromiseCache;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Caches the results of the {@link SqlAttributesFilter} queries, keyed by the evaluated values of the query
+ * parameters.
+ *
+ * <p>A result is cached for {@code ttl} milliseconds, an empty result (no matching row) for {@code negativeTtl}
+ * milliseconds ({@literal 0} to not cache them). Concurrent lookups of the same parameters share the same query,
+ * failed queries are not cached. When the cache is full, the least recently used results are evicted.
+ */
+final class SqlResultCache {
+
+    private final PromiseCache<List<Object>, Map<String, Object>, Exception> cache;
+    private final Function<Map<String, Object>, Duration, NeverThrowsException> timeToLive;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a new cache of query results.
+     *
+     * @param time
+     *         the time service
+     * @param maxEntries
+     *         the maximum number of cached results
+     * @param ttl
+     *         how long (in milliseconds) a result is cached
+     * @param negativeTtl
+     *         how long (in milliseconds) an empty result is cached ({@literal 0} to not cache them)
+     * @throws IllegalArgumentException
+     *         if {@code maxEntries} is not positive, or if neither {@code ttl} nor {@code negativeTtl} is
+     */
+    SqlResultCache(final TimeService time, final int maxEntries, final long ttl, final long negativeTtl) {
+        this.cache = new PromiseCache<>(time, maxEntries, duration(Math.max(ttl, negativeTtl), MILLISECONDS));
+        this.timeToLive = new Function<Map<String, Object>, Duration, NeverThrowsException>() {
+            @Override
+            public Duration apply(final Map<String, Object> result) {
+                return duration(result.isEmpty() ? negativeTtl : ttl, MILLISECONDS);
+            }
+        };
+    }
+
+    /**
+     * Returns (a copy of) the result of the query with the given parameters, executing the query if its result is not
+     * cached.
+     *
+     * @param parameters
+     *         the evaluated values of the query parameters
+     * @param query
+     *         executes the query when its result is not cached
+     * @return a promise completed with the result of the query
+     */
+    Promise<Map<String, Object>, Exception> get(final List<Object> parameters,
+                                                final Callable<Promise<Map<String, Object>, Exception>> query) {
+        lookups.incrementAndGet();
+        final Promise<Map<String, Object>, Exception> cached =
+                cache.getValue(parameters, new AsyncFunction<List<Object>, Map<String, Object>, Exception>() {
+                    @Override
+                    public Promise<Map<String, Object>, Exception> apply(final List<Object> key) {
+                        misses.incrementAndGet();
+                        try {
+                            return query.call();
+                        } catch (Exception e) {
+                            return newExceptionPromise(e);
+                        }
+                    }
+                }, timeToLive);
+        // The cached map is shared: each caller gets its own copy
+        return cached.then(new Function<Map<String, Object>, Map<String, Object>, Exception>() {
+            @Override
+            public Map<String, Object> apply(final Map<String, Object> result) {
+                return new HashMap<>(result);
+            }
+        });
+    }
+
+    /**
+     * Returns the statistics of this cache as a JSON compatible map.
+     *
+     * @return the statistics of this cache
+     */
+    Map<String, Object> getStatistics() {
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("entries", cache.size());
+        final long missed = misses.get();
+        statistics.put("hits", lookups.get() - missed);
+        statistics.put("misses", missed);
+        return statistics;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.throttling;
+
+import static java.lang.String.format;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.asDuration;
+import static org.forgerock.openig.util.JsonValues.asExpression;
+import static org.forgerock.openig.util.JsonValues.asInteger;
+import static org.forgerock.openig.util.JsonValues.evaluateJsonStaticExpression;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.filter.throttling.ConcurrencyLimitFilter;
+import org.forgerock.http.filter.throttling.GradientConcurrencyLimit;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.heap.Keys;
+import org.forgerock.openig.http.EndpointRegistry;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.Factory;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Creates and initializes an adaptive concurrency limit filter in a heap environment.
+ *
+ * Configuration options:
+ *
+ * <pre>
+ * {@code {
+ *      "type": "ConcurrencyLimitFilter",
+ *      "config": {
+ *         "executor"                     : executor            [OPTIONAL - by default uses 'ScheduledThreadPool'
+ *                                                                          heap object]
+ *         "requestGroupingPolicy"        : expression<String>  [OPTIONAL - Expression to evaluate the partition of
+ *                                                                          a request, each partition has its own
+ *                                                                          limit. Default to a single partition.]
+ *         "initialLimit"                 : integer             [OPTIONAL - default to 20]
+ *         "minLimit"                     : integer             [OPTIONAL - default to 1]
+ *         "maxLimit"                     : integer             [OPTIONAL - default to 1000]
+ *         "smoothing"                    : number              [OPTIONAL - weight of each new computed limit, in
+ *                                                                          the range ]0, 1]. Default to 0.2]
+ *         "maxQueueSize"                 : integer             [OPTIONAL - number of requests that can wait for
+ *                                                                          the limit. Default to 0 (no queue)]
+ *         "maxQueueWait"                 : duration            [OPTIONAL - how long a request can wait in the
+ *                                                                          queue before being rejected. Default to
+ *                                                                          1 second]
+ *         "cleaningInterval"             : duration            [OPTIONAL - idle partitions are forgotten after this
+ *                                                                          interval. Default to 1 minute.]
+ *      }
+ *  }
+ *  }
+ * </pre>
+ *
+ * <p>The current limit, in-flight and queued requests of each partition are exposed as a JSON object at
+ * {@literal /openig/system/objects/.../[filter-name]/limits}.
+ *
+ * @see GradientConcurrencyLimit
+ */
+public class ConcurrencyLimitFilterHeaplet extends GenericHeaplet {
+
+    private ConcurrencyLimitFilter filter;
+
+    @Override
+    public Object create() throws HeapException {
+        TimeService time = heap.get(Keys.TIME_SERVICE_HEAP_KEY, TimeService.class);
+
+        final Expression<String> requestGroupingPolicy =
+                asExpression(config.get("requestGroupingPolicy").defaultTo(""), String.class);
+
+        final int initialLimit = asInteger(config.get("initialLimit").defaultTo(20));
+        final int minLimit = asInteger(config.get("minLimit").defaultTo(1));
+        final int maxLimit = asInteger(config.get("maxLimit").defaultTo(1000));
+        final double smoothing = evaluateJsonStaticExpression(config.get("smoothing").defaultTo(0.2)).asDouble();
+        // Fail fast on invalid limit definitions
+        new GradientConcurrencyLimit(initialLimit, minLimit, maxLimit, smoothing);
+
+        ScheduledExecutorService executorService = heap.resolve(config.get("executor")
+                                                                      .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY),
+                                                                ScheduledExecutorService.class);
+
+        return filter = new ConcurrencyLimitFilter(executorService,
+                                                   time,
+                                                   asDuration(config.get("cleaningInterval").defaultTo("1 minute")),
+                                                   new ExpressionRequestAsyncFunction<>(requestGroupingPolicy),
+                                                   new Factory<GradientConcurrencyLimit>() {
+                                                       @Override
+                                                       public GradientConcurrencyLimit newInstance() {
+                                                           return new GradientConcurrencyLimit(initialLimit,
+                                                                                               minLimit,
+                                                                                               maxLimit,
+                                                                                               smoothing);
+                                                       }
+                                                   },
+                                                   asInteger(config.get("maxQueueSize").defaultTo(0)),
+                                                   asDuration(config.get("maxQueueWait").defaultTo("1 second")));
+    }
+
+    @Override
+    public void start() throws HeapException {
+        EndpointRegistry.Registration registration = endpointRegistry().register("limits", new Handler() {
+            @Override
+            public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                Response response = new Response(Status.OK);
+                response.getEntity().setJson(filter.getState());
+                return newResponsePromise(response);
+            }
+        });
+        logger.info(format("Concurrency limits available at '%s'", registration.getPath()));
+    }
+
+    @Override
+    public void destroy() {
+        super.destroy();
+        if (filter != null) {
+            filter.stop();
+        }
+    }
+}
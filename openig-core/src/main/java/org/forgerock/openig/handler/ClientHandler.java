@@ -19,6 +19,7 @@
 package org.forgerock.openig.handler;
 
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.forgerock.http.handler.HttpClientHandler.OPTION_CONNECT_TIMEOUT;
 import static org.forgerock.http.handler.HttpClientHandler.OPTION_HOSTNAME_VERIFIER;
 import static org.forgerock.http.handler.HttpClientHandler.OPTION_KEY_MANAGERS;
@@ -31,12 +32,18 @@ import static org.forgerock.http.handler.HttpClientHandler.OPTION_SSL_CIPHER_SUI
 import static org.forgerock.http.handler.HttpClientHandler.OPTION_SSL_ENABLED_PROTOCOLS;
 import static org.forgerock.http.handler.HttpClientHandler.OPTION_TEMPORARY_STORAGE;
 import static org.forgerock.http.handler.HttpClientHandler.OPTION_TRUST_MANAGERS;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.asDuration;
+import static org.forgerock.openig.util.JsonValues.asInteger;
+import static org.forgerock.openig.util.JsonValues.asString;
 import static org.forgerock.openig.util.JsonValues.ofRequiredHeapObject;
 import static org.forgerock.util.Utils.closeSilently;
 import static org.forgerock.util.time.Duration.duration;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.TrustManager;
@@ -51,6 +58,8 @@ import org.forgerock.json.JsonValue;
 import org.forgerock.openig.heap.GenericHeapObject;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.http.DeadlineContext;
+import org.forgerock.openig.http.Deadlines;
 import org.forgerock.services.context.Context;
 import org.forgerock.util.Options;
 import org.forgerock.util.promise.NeverThrowsException;
@@ -80,7 +89,15 @@ import org.forgerock.util.time.Duration;
  *       "keyManager": [ "RefToKeyManager", ... ],
  *       "trustManager": [ "RefToTrustManager", ... ],
  *       "sslEnabledProtocols": [ "SSLv2", ... ],
- *       "sslCipherSuites": [ "TLS_DH_anon_WITH_AES_256_CBC_SHA256", ... ]
+ *       "sslCipherSuites": [ "TLS_DH_anon_WITH_AES_256_CBC_SHA256", ... ],
+ *       "scheduledExecutorService": "ScheduledExecutorService",
+ *       "warmUp": {
+ *         "targets": [ { "uri": "https://backend.example.com/", "connections": 4 }, ... ],
+ *         "method": "HEAD",
+ *         "timeout": "5 seconds",
+ *         "interval": "1 minute",
+ *         "executor": "ScheduledExecutorService"
+ *       }
  *     }
  *   }
  *   }
@@ -131,6 +148,20 @@ import org.forgerock.util.time.Duration;
  * <a href="http://docs.oracle.com/javase/7/docs/technotes/guides/security/StandardNames.html#ciphersuites">
  * cipher suite names</a> used by the SSL connection.
  *
+ * <p>The {@literal warmUp} optional attribute opens connections to the given {@literal targets} when the handler
+ * starts, that is before the route using it is published: for each target, {@literal connections} concurrent
+ * requests (using {@literal method}, {@literal HEAD} by default) are sent to {@literal uri} and their responses are
+ * awaited at most {@literal timeout} ({@literal 5 seconds} by default). The connections then stay idle in the
+ * connection pool, and the TLS sessions negotiated with {@literal https} targets can be resumed by later
+ * connections. If an {@literal interval} is given, the warm-up is repeated periodically (using the given
+ * {@literal executor}, or the default {@literal ScheduledExecutorService}) to keep connections ready.
+ *
+ * <p>When the request carries a deadline (see {@link org.forgerock.openig.filter.DeadlineFilter}), the handler does
+ * not wait for the response longer than the time left before the deadline, whatever the {@literal soTimeout}: the
+ * pending request is then cancelled and a {@literal 504 Gateway Timeout} response is returned. Deadline expirations
+ * are scheduled with the {@literal scheduledExecutorService} optional attribute (default to the global
+ * {@literal ScheduledExecutorService}).
+ *
  * @see Duration
  * @see org.forgerock.openig.security.KeyManagerHeaplet
  * @see org.forgerock.openig.security.TrustManagerHeaplet
@@ -138,6 +169,7 @@ import org.forgerock.util.time.Duration;
 public class ClientHandler extends GenericHeapObject implements Handler {
 
     private final Handler delegate;
+    private ScheduledExecutorService deadlineExecutor;
 
     /**
      * Creates a new client handler.
@@ -149,9 +181,27 @@ public class ClientHandler extends GenericHeapObject implements Handler {
         this.delegate = delegate;
     }
 
+    /**
+     * Sets the executor used to enforce request deadlines. When set, a request carrying a {@link DeadlineContext}
+     * does not wait for its response longer than the remaining time before the deadline.
+     *
+     * @param deadlineExecutor
+     *         the executor used to schedule deadline expirations ({@code null} to ignore deadlines)
+     */
+    public void setDeadlineExecutor(final ScheduledExecutorService deadlineExecutor) {
+        this.deadlineExecutor = deadlineExecutor;
+    }
+
     @Override
     public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
-        return delegate.handle(context, request)
+        Promise<Response, NeverThrowsException> promise;
+        if (deadlineExecutor != null) {
+            // The socket timeouts are static, cap the wait to the remaining budget of the request
+            promise = Deadlines.handle(context, request, delegate, deadlineExecutor);
+        } else {
+            promise = delegate.handle(context, request);
+        }
+        return promise
                        .thenOnResult(new ResultHandler<Response>() {
                            @Override
                            public void handleResult(final Response response) {
@@ -166,6 +216,8 @@ public class ClientHandler extends GenericHeapObject implements Handler {
     public static class Heaplet extends GenericHeaplet {
 
         private HttpClientHandler httpClientHandler;
+        private ConnectionWarmUp warmUp;
+        private ScheduledFuture<?> scheduledWarmUp;
 
         @Override
         public Object create() throws HeapException {
@@ -226,14 +278,58 @@ public class ClientHandler extends GenericHeapObject implements Handler {
 
             try {
                 httpClientHandler = new HttpClientHandler(options);
-                return new ClientHandler(httpClientHandler);
+                if (config.isDefined("warmUp")) {
+                    warmUp = createWarmUp(config.get("warmUp"), httpClientHandler);
+                }
+                ClientHandler clientHandler = new ClientHandler(httpClientHandler);
+                clientHandler.setDeadlineExecutor(
+                        heap.resolve(config.get("scheduledExecutorService")
+                                           .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY),
+                                     ScheduledExecutorService.class,
+                                     true));
+                return clientHandler;
             } catch (final HttpApplicationException e) {
                 throw new HeapException(format("Cannot build ClientHandler named '%s'", name), e);
             }
         }
 
+        @Override
+        public void start() throws HeapException {
+            if (warmUp == null) {
+                return;
+            }
+            // Synchronous: connections are ready before any route can use this handler
+            warmUp.warmUp();
+            JsonValue interval = config.get("warmUp").get("interval");
+            if (interval.isNotNull()) {
+                long period = asDuration(interval).to(MILLISECONDS);
+                ScheduledExecutorService executor =
+                        heap.resolve(config.get("warmUp").get("executor")
+                                           .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY),
+                                     ScheduledExecutorService.class);
+                scheduledWarmUp = executor.scheduleWithFixedDelay(warmUp, period, period, MILLISECONDS);
+            }
+        }
+
+        private ConnectionWarmUp createWarmUp(final JsonValue warmUpConfig, final Handler client)
+                throws HeapException {
+            List<ConnectionWarmUp.Target> targets = new ArrayList<>();
+            for (JsonValue target : warmUpConfig.get("targets").required().expect(List.class)) {
+                targets.add(new ConnectionWarmUp.Target(target.get("uri").required().asURI(),
+                                                        asInteger(target.get("connections").defaultTo(1))));
+            }
+            return new ConnectionWarmUp(client,
+                                        targets,
+                                        asString(warmUpConfig.get("method").defaultTo("HEAD")),
+                                        asDuration(warmUpConfig.get("timeout").defaultTo("5 seconds")),
+                                        logger);
+        }
+
         @Override
         public void destroy() {
+            if (scheduledWarmUp != null) {
+                scheduledWarmUp.cancel(false);
+            }
             if (httpClientHandler != null) {
                 closeSilently(httpClientHandler);
             }
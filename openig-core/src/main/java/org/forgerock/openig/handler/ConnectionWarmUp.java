@@ -0,0 +1,157 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static java.lang.String.format;
+import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.Utils.closeSilently;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.openig.log.Logger;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+
+/**
+ * Opens connections to a set of target URIs ahead of the traffic, by sending concurrent lightweight requests
+ * through a client {@link Handler}: once their responses are consumed, the connections stay idle in the client's
+ * connection pool, ready to be reused. For {@literal https} targets, the TLS sessions negotiated during the warm-up
+ * are kept in the client session cache, so later reconnects can resume them instead of doing a full handshake.
+ */
+class ConnectionWarmUp implements Runnable {
+
+    /**
+     * A target of the warm-up.
+     */
+    static final class Target {
+        private final URI uri;
+        private final int connections;
+
+        /**
+         * Creates a new target.
+         *
+         * @param uri
+         *         the URI requested to open the connections
+         * @param connections
+         *         the number of connections to open
+         */
+        Target(final URI uri, final int connections) {
+            if (connections <= 0) {
+                throw new IllegalArgumentException("The number of connections to warm up must be positive");
+            }
+            this.uri = checkNotNull(uri);
+            this.connections = connections;
+        }
+    }
+
+    private final Handler client;
+    private final List<Target> targets;
+    private final String method;
+    private final Duration timeout;
+    private final Logger logger;
+
+    /**
+     * Creates a new warm-up.
+     *
+     * @param client
+     *         the client handler holding the connections
+     * @param targets
+     *         the targets to warm up
+     * @param method
+     *         the HTTP method of the warm-up requests
+     * @param timeout
+     *         how long to wait for the warm-up responses
+     * @param logger
+     *         the logger used to report the warm-up
+     */
+    ConnectionWarmUp(final Handler client,
+                     final List<Target> targets,
+                     final String method,
+                     final Duration timeout,
+                     final Logger logger) {
+        this.client = checkNotNull(client);
+        this.targets = Collections.unmodifiableList(new ArrayList<>(targets));
+        this.method = checkNotNull(method);
+        this.timeout = checkNotNull(timeout);
+        this.logger = checkNotNull(logger);
+    }
+
+    @Override
+    public void run() {
+        warmUp();
+    }
+
+    /**
+     * Sends the warm-up requests and waits (at most {@code timeout}) for their responses.
+     *
+     * @return the number of connections that have been successfully warmed up
+     */
+    int warmUp() {
+        // Send all the requests at once: concurrent requests cannot share a connection
+        List<Promise<Response, NeverThrowsException>> pending = new ArrayList<>();
+        for (Target target : targets) {
+            for (int i = 0; i < target.connections; i++) {
+                Request request = new Request();
+                request.setMethod(method);
+                request.setUri(target.uri);
+                pending.add(client.handle(new RootContext(), request));
+            }
+        }
+
+        long deadline = System.nanoTime() + timeout.to(TimeUnit.NANOSECONDS);
+        int warmed = 0;
+        for (Promise<Response, NeverThrowsException> promise : pending) {
+            try {
+                long remaining = Math.max(0L, deadline - System.nanoTime());
+                Response response = promise.getOrThrow(remaining, TimeUnit.NANOSECONDS);
+                if (response.getCause() == null) {
+                    warmed++;
+                }
+                // Consuming the response gives the connection back to the pool
+                closeSilently(response);
+            } catch (TimeoutException e) {
+                // Too late: the connection will be ready when the response comes
+                closeWhenDone(promise);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                closeWhenDone(promise);
+            }
+        }
+        logger.debug(format("Warmed up %d/%d connections", warmed, pending.size()));
+        return warmed;
+    }
+
+    private static void closeWhenDone(final Promise<Response, NeverThrowsException> promise) {
+        promise.thenOnResult(new ResultHandler<Response>() {
+            @Override
+            public void handleResult(final Response response) {
+                closeSilently(response);
+            }
+        });
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static java.lang.String.format;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.openig.el.Bindings.bindings;
+import static org.forgerock.openig.heap.Keys.CLIENT_HANDLER_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.asDuration;
+import static org.forgerock.openig.util.JsonValues.asExpression;
+import static org.forgerock.openig.util.JsonValues.evaluateJsonStaticExpression;
+import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.Utils.closeSilently;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.http.EndpointRegistry;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+
+/**
+ * Reduces the tail latency of idempotent requests by sending a second (hedged) copy of a request when the first one
+ * did not complete within a delay derived from the observed latency percentile. The first response to arrive is
+ * returned, the other one is closed as soon as it arrives (releasing its connection), and a pending hedge is
+ * cancelled when the original request completes first.
+ *
+ * <p>Hedges are bounded by a budget: each eligible request earns {@literal budget} hedge (e.g. {@literal 0.05} means
+ * at most 5% extra load), and a hedge is only sent if a whole hedge has been earned.
+ *
+ * <pre>
+ *   {@code
+ *   {
+ *     "type": "HedgingHandler",
+ *     "config": {
+ *       "handler": "ClientHandler",          [OPTIONAL - default to the 'ClientHandler' heap object]
+ *       "condition": "${request.method == 'GET'}",
+ *                                            [OPTIONAL - requests to hedge, default to GET, HEAD and OPTIONS]
+ *       "percentile": 0.95,                  [OPTIONAL - latency percentile used as hedging delay, default to 0.95]
+ *       "minDelay": "5 milliseconds",        [OPTIONAL - lower bound of the hedging delay, default to 5 ms]
+ *       "maxDelay": "1 second",              [OPTIONAL - upper bound of the hedging delay (used until enough
+ *                                                        latencies have been observed), default to 1 second]
+ *       "budget": 0.05,                      [OPTIONAL - ratio of extra requests allowed, default to 0.05]
+ *       "executor": "ScheduledExecutorService"
+ *                                            [OPTIONAL - default to the 'ScheduledExecutorService' heap object]
+ *     }
+ *   }
+ *   }
+ * </pre>
+ *
+ * <p>The number of hedged requests, hedges issued and hedges won, as well as the current hedging delay are exposed
+ * as a JSON object at {@literal /openig/system/objects/.../[handler-name]/hedging}.
+ *
+ * <p>Note that the request is copied (including its entity) before being sent, so that the hedge can be sent
+ * unaltered: only use it for requests with small (or no) entities.
+ */
+public class HedgingHandler extends GenericHeapObject implements Handler {
+
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<>(asList("GET", "HEAD", "OPTIONS"));
+
+    /** Number of latency samples to observe before trusting the percentile. */
+    private static final int MIN_SAMPLES = 20;
+
+    /** Fixed-point unit of the hedge budget (one hedge). */
+    private static final long ONE_HEDGE = 1000L;
+
+    /** Maximum number of hedges that can be saved up in the budget. */
+    private static final long MAX_SAVED_HEDGES = 10L;
+
+    private final Handler delegate;
+    private final ScheduledExecutorService executor;
+    private final TimeService time;
+    private final Expression<Boolean> condition;
+    private final double percentile;
+    private final long minDelay;
+    private final long maxDelay;
+    private final long deposit;
+
+    private final Histogram latencies = new Histogram(new ExponentiallyDecayingReservoir());
+    private final AtomicLong credits = new AtomicLong();
+    private final AtomicLong hedgedRequests = new AtomicLong();
+    private final AtomicLong hedgesIssued = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    /**
+     * Creates a new hedging handler.
+     *
+     * @param delegate
+     *         the handler sending the requests (must not be {@code null})
+     * @param executor
+     *         the executor used to schedule hedges (must not be {@code null})
+     * @param time
+     *         the time service (must not be {@code null})
+     * @param condition
+     *         selects the requests to hedge ({@code null} means GET, HEAD and OPTIONS requests)
+     * @param percentile
+     *         the latency percentile used as the hedging delay, in the range ]0, 1[
+     * @param minDelay
+     *         the lower bound of the hedging delay
+     * @param maxDelay
+     *         the upper bound of the hedging delay
+     * @param budget
+     *         the ratio of extra requests allowed, in the range [0, 1]
+     */
+    public HedgingHandler(final Handler delegate,
+                          final ScheduledExecutorService executor,
+                          final TimeService time,
+                          final Expression<Boolean> condition,
+                          final double percentile,
+                          final Duration minDelay,
+                          final Duration maxDelay,
+                          final double budget) {
+        if (percentile <= 0.0 || percentile >= 1.0) {
+            throw new IllegalArgumentException("percentile has to be in the range ]0, 1[");
+        }
+        if (budget < 0.0 || budget > 1.0) {
+            throw new IllegalArgumentException("budget has to be in the range [0, 1]");
+        }
+        this.delegate = checkNotNull(delegate);
+        this.executor = checkNotNull(executor);
+        this.time = checkNotNull(time);
+        this.condition = condition;
+        this.percentile = percentile;
+        this.minDelay = minDelay.to(MILLISECONDS);
+        this.maxDelay = maxDelay.to(MILLISECONDS);
+        this.deposit = (long) (budget * ONE_HEDGE);
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+        if (!isHedgeable(context, request)) {
+            return delegate.handle(context, request);
+        }
+
+        final Request hedge;
+        try {
+            hedge = new Request(request);
+        } catch (IOException e) {
+            logger.warning(e);
+            return delegate.handle(context, request);
+        }
+        hedgedRequests.incrementAndGet();
+        earnCredit();
+
+        final PromiseImpl<Response, NeverThrowsException> result = PromiseImpl.create();
+        final AtomicBoolean done = new AtomicBoolean();
+        final long start = time.now();
+
+        final ScheduledFuture<?> scheduledHedge = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (done.get() || !spendCredit()) {
+                    closeSilently(hedge);
+                    return;
+                }
+                hedgesIssued.incrementAndGet();
+                delegate.handle(context, hedge)
+                        .thenOnResult(new ResultHandler<Response>() {
+                            @Override
+                            public void handleResult(final Response response) {
+                                closeSilently(hedge);
+                                if (complete(result, done, response)) {
+                                    hedgesWon.incrementAndGet();
+                                }
+                            }
+                        });
+            }
+        }, currentDelay(), MILLISECONDS);
+
+        delegate.handle(context, request)
+                .thenOnResult(new ResultHandler<Response>() {
+                    @Override
+                    public void handleResult(final Response response) {
+                        latencies.update(time.since(start));
+                        if (scheduledHedge.cancel(false)) {
+                            // The hedge will never be sent
+                            closeSilently(hedge);
+                        }
+                        complete(result, done, response);
+                    }
+                });
+
+        return result;
+    }
+
+    /**
+     * Returns the delay after which a hedge is sent: the configured percentile of the observed latencies, bounded by
+     * the minimum and maximum delays.
+     *
+     * @return the delay after which a hedge is sent, in milliseconds
+     */
+    long currentDelay() {
+        if (latencies.getCount() < MIN_SAMPLES) {
+            return maxDelay;
+        }
+        long delay = (long) latencies.getSnapshot().getValue(percentile);
+        return Math.max(minDelay, Math.min(maxDelay, delay));
+    }
+
+    /**
+     * Returns the hedging statistics of this handler.
+     *
+     * @return the hedging statistics of this handler
+     */
+    Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("requests", hedgedRequests.get());
+        statistics.put("hedgesIssued", hedgesIssued.get());
+        statistics.put("hedgesWon", hedgesWon.get());
+        statistics.put("delay", currentDelay());
+        return statistics;
+    }
+
+    private boolean isHedgeable(final Context context, final Request request) {
+        if (condition == null) {
+            return IDEMPOTENT_METHODS.contains(request.getMethod());
+        }
+        return Boolean.TRUE.equals(condition.eval(bindings(context, request)));
+    }
+
+    private void earnCredit() {
+        long max = MAX_SAVED_HEDGES * ONE_HEDGE;
+        long current;
+        do {
+            current = credits.get();
+            if (current >= max) {
+                return;
+            }
+        } while (!credits.compareAndSet(current, Math.min(max, current + deposit)));
+    }
+
+    private boolean spendCredit() {
+        long current;
+        do {
+            current = credits.get();
+            if (current < ONE_HEDGE) {
+                return false;
+            }
+        } while (!credits.compareAndSet(current, current - ONE_HEDGE));
+        return true;
+    }
+
+    /**
+     * Completes the result with the given response if it is the first one to arrive, closes it otherwise.
+     */
+    private static boolean complete(final PromiseImpl<Response, NeverThrowsException> result,
+                                    final AtomicBoolean done,
+                                    final Response response) {
+        if (done.compareAndSet(false, true)) {
+            result.handleResult(response);
+            return true;
+        }
+        closeSilently(response);
+        return false;
+    }
+
+    /** Creates and initializes a hedging handler in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+
+        @Override
+        public Object create() throws HeapException {
+            Handler handler = heap.resolve(config.get("handler").defaultTo(CLIENT_HANDLER_HEAP_KEY), Handler.class);
+            ScheduledExecutorService executor =
+                    heap.resolve(config.get("executor").defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY),
+                                 ScheduledExecutorService.class);
+            TimeService time = heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class);
+            try {
+                return new HedgingHandler(handler,
+                                          executor,
+                                          time,
+                                          asExpression(config.get("condition"), Boolean.class),
+                                          evaluateJsonStaticExpression(config.get("percentile").defaultTo(0.95))
+                                                  .asDouble(),
+                                          asDuration(config.get("minDelay").defaultTo("5 milliseconds")),
+                                          asDuration(config.get("maxDelay").defaultTo("1 second")),
+                                          evaluateJsonStaticExpression(config.get("budget").defaultTo(0.05))
+                                                  .asDouble());
+            } catch (IllegalArgumentException e) {
+                throw new HeapException(format("Cannot build HedgingHandler named '%s'", name), e);
+            }
+        }
+
+        @Override
+        public void start() throws HeapException {
+            final HedgingHandler handler = (HedgingHandler) object;
+            EndpointRegistry.Registration registration = endpointRegistry().register("hedging", new Handler() {
+                @Override
+                public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                    Response response = new Response(Status.OK);
+                    response.getEntity().setJson(handler.getStatistics());
+                    return newResponsePromise(response);
+                }
+            });
+            logger.info(format("Hedging statistics available at '%s'", registration.getPath()));
+        }
+    }
+}
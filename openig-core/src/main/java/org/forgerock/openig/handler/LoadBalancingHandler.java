@@ -0,0 +1,443 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.http.Responses.newInternalServerError;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.openig.heap.Keys.CLIENT_HANDLER_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.asDuration;
+import static org.forgerock.openig.util.JsonValues.asInteger;
+import static org.forgerock.openig.util.JsonValues.asString;
+import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.Utils.closeSilently;
+import static org.forgerock.util.time.Duration.duration;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Distributes requests across a set of backend base URIs. The request URI is rebased on the selected backend (the
+ * same way {@link org.forgerock.openig.decoration.baseuri.BaseUriDecorator} would do) before being given to the
+ * delegate handler (usually a {@link ClientHandler}) for transport.
+ *
+ * <p>Two selection policies are supported:
+ * <ul>
+ *     <li>{@link Policy#LEAST_OUTSTANDING}: the backend with the fewest in-flight requests is selected</li>
+ *     <li>{@link Policy#PEAK_EWMA}: the backend with the lowest {@code latency * (in-flight + 1)} cost is selected,
+ *     latency being tracked as an exponentially weighted moving average that immediately jumps to any
+ *     higher observed value (peak-sensitive) and decays back over {@literal decayTime}</li>
+ * </ul>
+ *
+ * <p>Backends are passively ejected from the selection once they have returned {@literal consecutiveFailures}
+ * server errors (5xx status or transport failure) in a row. The ejection lasts {@literal baseEjectionTime} multiplied
+ * by the number of times the backend has been successively ejected, capped by {@literal maxEjectionTime}. If every
+ * backend is ejected, they are all considered again (fail open).
+ *
+ * <p>Optional active health checks periodically send a {@literal GET} request to {@literal path} (relative to each
+ * backend base URI): a non-5xx answer re-admits the backend, a server error ejects it.
+ *
+ * <pre>
+ *   {@code
+ *   {
+ *     "type": "LoadBalancingHandler",
+ *     "config": {
+ *       "baseUris": [ "http://app1.example.com:8080", "http://app2.example.com:8080" ],   [REQUIRED]
+ *       "handler": "ClientHandler",                    [OPTIONAL - default to the 'ClientHandler' heap object]
+ *       "policy": "PEAK_EWMA",                         [OPTIONAL - default to LEAST_OUTSTANDING]
+ *       "decayTime": "10 seconds",                     [OPTIONAL - PEAK_EWMA only, default to 10 seconds]
+ *       "outlierDetection": {                          [OPTIONAL]
+ *         "consecutiveFailures": 5,                    [OPTIONAL - default to 5]
+ *         "baseEjectionTime": "30 seconds",            [OPTIONAL - default to 30 seconds]
+ *         "maxEjectionTime": "5 minutes"               [OPTIONAL - default to 5 minutes]
+ *       },
+ *       "healthCheck": {                               [OPTIONAL - no active health checks by default]
+ *         "path": "/health",                           [REQUIRED]
+ *         "interval": "10 seconds",                    [OPTIONAL - default to 10 seconds]
+ *         "executor": "ScheduledExecutorService"       [OPTIONAL - default to the 'ScheduledExecutorService'
+ *                                                                  heap object]
+ *       }
+ *     }
+ *   }
+ *   }
+ * </pre>
+ */
+public class LoadBalancingHandler extends GenericHeapObject implements Handler {
+
+    /**
+     * Backend selection policies.
+     */
+    public enum Policy {
+        /** Selects the backend with the fewest in-flight requests. */
+        LEAST_OUTSTANDING,
+        /** Selects the backend with the lowest peak-EWMA latency weighted by its in-flight requests. */
+        PEAK_EWMA
+    }
+
+    private final Handler delegate;
+    private final List<Endpoint> endpoints;
+    private final Policy policy;
+    private final TimeService time;
+    private final long decayTimeMillis;
+    private final int consecutiveFailures;
+    private final long baseEjectionMillis;
+    private final long maxEjectionMillis;
+
+    /**
+     * Creates a new load balancing handler with default outlier detection settings.
+     *
+     * @param delegate
+     *         the handler used for transport (must not be {@code null})
+     * @param baseUris
+     *         the backends base URIs (must not be empty)
+     * @param policy
+     *         the selection policy (must not be {@code null})
+     * @param time
+     *         the time service (must not be {@code null})
+     */
+    public LoadBalancingHandler(final Handler delegate,
+                                final List<URI> baseUris,
+                                final Policy policy,
+                                final TimeService time) {
+        this(delegate, baseUris, policy, time, duration("10 seconds"),
+             5, duration("30 seconds"), duration("5 minutes"));
+    }
+
+    /**
+     * Creates a new load balancing handler.
+     *
+     * @param delegate
+     *         the handler used for transport (must not be {@code null})
+     * @param baseUris
+     *         the backends base URIs (must not be empty)
+     * @param policy
+     *         the selection policy (must not be {@code null})
+     * @param time
+     *         the time service (must not be {@code null})
+     * @param decayTime
+     *         the time window over which the latency moving average decays ({@link Policy#PEAK_EWMA} only)
+     * @param consecutiveFailures
+     *         the number of consecutive server errors that ejects a backend (0 disables passive ejection)
+     * @param baseEjectionTime
+     *         the base ejection duration
+     * @param maxEjectionTime
+     *         the maximum ejection duration
+     */
+    public LoadBalancingHandler(final Handler delegate,
+                                final List<URI> baseUris,
+                                final Policy policy,
+                                final TimeService time,
+                                final Duration decayTime,
+                                final int consecutiveFailures,
+                                final Duration baseEjectionTime,
+                                final Duration maxEjectionTime) {
+        this.delegate = checkNotNull(delegate);
+        this.policy = checkNotNull(policy);
+        this.time = checkNotNull(time);
+        if (baseUris == null || baseUris.isEmpty()) {
+            throw new IllegalArgumentException("At least one base URI is required");
+        }
+        List<Endpoint> list = new ArrayList<>(baseUris.size());
+        for (URI baseUri : baseUris) {
+            list.add(new Endpoint(baseUri));
+        }
+        this.endpoints = Collections.unmodifiableList(list);
+        this.decayTimeMillis = Math.max(1L, decayTime.to(MILLISECONDS));
+        this.consecutiveFailures = consecutiveFailures;
+        this.baseEjectionMillis = baseEjectionTime.to(MILLISECONDS);
+        this.maxEjectionMillis = maxEjectionTime.to(MILLISECONDS);
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+        final Endpoint endpoint = select();
+        try {
+            request.getUri().rebase(endpoint.baseUri);
+        } catch (URISyntaxException e) {
+            logger.error(format("Cannot rebase request URI on '%s'", endpoint.baseUri));
+            return newResponsePromise(newInternalServerError(e));
+        }
+        final long start = time.now();
+        endpoint.outstanding.incrementAndGet();
+        return delegate.handle(context, request)
+                       .thenOnResult(new ResultHandler<Response>() {
+                           @Override
+                           public void handleResult(final Response response) {
+                               endpoint.outstanding.decrementAndGet();
+                               long now = time.now();
+                               endpoint.observeLatency(now - start, now, decayTimeMillis);
+                               if (isFailure(response)) {
+                                   onFailure(endpoint, now);
+                               } else {
+                                   endpoint.onSuccess(now);
+                               }
+                           }
+                       });
+    }
+
+    /**
+     * Returns the backends this handler balances the load across, in declaration order.
+     *
+     * @return the backends this handler balances the load across
+     */
+    List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Selects the backend with the lowest cost amongst the ones that are not ejected. The scan starts at a random
+     * position so that equally loaded backends share the traffic.
+     */
+    Endpoint select() {
+        long now = time.now();
+        int size = endpoints.size();
+        int offset = size == 1 ? 0 : ThreadLocalRandom.current().nextInt(size);
+        Endpoint best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            Endpoint candidate = endpoints.get((offset + i) % size);
+            if (candidate.isEjected(now)) {
+                continue;
+            }
+            double cost = cost(candidate, now);
+            if (cost < bestCost) {
+                best = candidate;
+                bestCost = cost;
+            }
+        }
+        if (best == null) {
+            // Every backend is ejected: fail open and fall back on the least loaded one
+            for (int i = 0; i < size; i++) {
+                Endpoint candidate = endpoints.get((offset + i) % size);
+                double cost = cost(candidate, now);
+                if (cost < bestCost) {
+                    best = candidate;
+                    bestCost = cost;
+                }
+            }
+        }
+        return best;
+    }
+
+    private double cost(final Endpoint endpoint, final long now) {
+        int outstanding = endpoint.outstanding.get();
+        if (policy == Policy.LEAST_OUTSTANDING) {
+            return outstanding;
+        }
+        return endpoint.latency(now, decayTimeMillis) * (outstanding + 1);
+    }
+
+    private void onFailure(final Endpoint endpoint, final long now) {
+        int failures = endpoint.failures.incrementAndGet();
+        if (consecutiveFailures > 0 && failures >= consecutiveFailures) {
+            eject(endpoint, now);
+        }
+    }
+
+    private void eject(final Endpoint endpoint, final long now) {
+        if (endpoint.isEjected(now)) {
+            return;
+        }
+        int ejections = endpoint.ejections.incrementAndGet();
+        long duration = Math.min(baseEjectionMillis * ejections, maxEjectionMillis);
+        endpoint.ejectedUntil = now + duration;
+        endpoint.failures.set(0);
+        logger.warning(format("Backend '%s' ejected for %d ms", endpoint.baseUri, duration));
+    }
+
+    private void runHealthCheck(final String path) {
+        for (final Endpoint endpoint : endpoints) {
+            Request request = new Request();
+            request.setMethod("GET");
+            request.setUri(endpoint.baseUri.resolve(path));
+            delegate.handle(new RootContext(), request)
+                    .thenOnResult(new ResultHandler<Response>() {
+                        @Override
+                        public void handleResult(final Response response) {
+                            try {
+                                if (isFailure(response)) {
+                                    eject(endpoint, time.now());
+                                } else if (endpoint.ejectedUntil != 0L) {
+                                    logger.info(format("Backend '%s' is healthy again", endpoint.baseUri));
+                                    endpoint.readmit();
+                                }
+                            } finally {
+                                closeSilently(response);
+                            }
+                        }
+                    });
+        }
+    }
+
+    private static boolean isFailure(final Response response) {
+        return response == null
+                || response.getCause() != null
+                || response.getStatus() == null
+                || response.getStatus().getFamily() == Status.Family.SERVER_ERROR;
+    }
+
+    /**
+     * Tracks the runtime state of a single backend.
+     */
+    static final class Endpoint {
+        private final URI baseUri;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicInteger ejections = new AtomicInteger();
+        private volatile long ejectedUntil;
+
+        // Peak-EWMA state, guarded by this
+        private double ewma;
+        private long lastObservation;
+
+        Endpoint(final URI baseUri) {
+            this.baseUri = baseUri;
+        }
+
+        URI getBaseUri() {
+            return baseUri;
+        }
+
+        int getOutstanding() {
+            return outstanding.get();
+        }
+
+        boolean isEjected(final long now) {
+            return now < ejectedUntil;
+        }
+
+        void onSuccess(final long now) {
+            failures.set(0);
+            if (ejectedUntil != 0L && ejectedUntil <= now) {
+                // The backend recovered after its ejection: next ejection will start again from the base duration
+                ejections.set(0);
+            }
+        }
+
+        void readmit() {
+            ejectedUntil = 0L;
+            ejections.set(0);
+            failures.set(0);
+        }
+
+        synchronized void observeLatency(final long rtt, final long now, final long decayTimeMillis) {
+            if (rtt > ewma) {
+                // Peak sensitivity: jump immediately to the new (higher) value
+                ewma = rtt;
+            } else {
+                double weight = Math.exp(-(now - lastObservation) / (double) decayTimeMillis);
+                ewma = ewma * weight + rtt * (1.0 - weight);
+            }
+            lastObservation = now;
+        }
+
+        synchronized double latency(final long now, final long decayTimeMillis) {
+            // Decay the value towards 0 while no response is observed so idle backends get probed again
+            double weight = Math.exp(-(now - lastObservation) / (double) decayTimeMillis);
+            return ewma * weight;
+        }
+    }
+
+    /** Creates and initializes a load balancing handler in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+
+        private ScheduledFuture<?> healthCheck;
+
+        @Override
+        public Object create() throws HeapException {
+            List<URI> baseUris = new ArrayList<>();
+            for (JsonValue baseUri : config.get("baseUris").required().expect(List.class)) {
+                baseUris.add(baseUri.asURI());
+            }
+            Handler handler = heap.resolve(config.get("handler").defaultTo(CLIENT_HANDLER_HEAP_KEY), Handler.class);
+            Policy policy = config.get("policy").defaultTo(Policy.LEAST_OUTSTANDING.name()).asEnum(Policy.class);
+            TimeService time = heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class);
+            Duration decayTime = asDuration(config.get("decayTime").defaultTo("10 seconds"));
+
+            JsonValue outlier = config.get("outlierDetection").defaultTo(Collections.emptyMap());
+            int consecutiveFailures = asInteger(outlier.get("consecutiveFailures").defaultTo(5));
+            Duration baseEjectionTime = asDuration(outlier.get("baseEjectionTime").defaultTo("30 seconds"));
+            Duration maxEjectionTime = asDuration(outlier.get("maxEjectionTime").defaultTo("5 minutes"));
+
+            return new LoadBalancingHandler(handler,
+                                            baseUris,
+                                            policy,
+                                            time,
+                                            decayTime,
+                                            consecutiveFailures,
+                                            baseEjectionTime,
+                                            maxEjectionTime);
+        }
+
+        @Override
+        public void start() throws HeapException {
+            JsonValue check = config.get("healthCheck");
+            if (check.isNull()) {
+                return;
+            }
+            final String path = asString(check.get("path").required());
+            Duration interval = asDuration(check.get("interval").defaultTo("10 seconds"));
+            if (interval.isZero() || interval.isUnlimited()) {
+                throw new HeapException("'healthCheck/interval' can be neither zero nor unlimited");
+            }
+            ScheduledExecutorService executor =
+                    heap.resolve(check.get("executor").defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY),
+                                 ScheduledExecutorService.class);
+            final LoadBalancingHandler handler = (LoadBalancingHandler) object;
+            healthCheck = executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    handler.runHealthCheck(path);
+                }
+            }, 0L, interval.getValue(), interval.getUnit());
+        }
+
+        @Override
+        public void destroy() {
+            if (healthCheck != null) {
+                healthCheck.cancel(false);
+            }
+            super.destroy();
+        }
+    }
+}
@@ -12,12 +12,16 @@
  * information: "Portions Copyright [year] [name of copyright owner]".
  *
  * Copyright 2010-2011 ApexIdentity Inc.
- * Portions Copyright 2011-2015 ForgeRock AS.
+ * Portions Copyright 2011-2016 ForgeRock AS.
  */
 
 package org.forgerock.openig.handler;
 
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.openig.http.DeadlineContext.isExpired;
+import static org.forgerock.openig.http.Deadlines.newGatewayTimeout;
 import static org.forgerock.openig.util.JsonValues.asExpression;
+import static org.forgerock.util.Utils.closeSilently;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
@@ -43,6 +47,9 @@ import org.forgerock.util.promise.ResultHandler;
 /**
  * Processes a request through a sequence of handlers. This allows multi-request processing such as retrieving a form,
  * extracting form content (e.g. nonce) and submitting in a subsequent request.
+ * <p>
+ * If the request deadline (see {@link org.forgerock.openig.http.DeadlineContext}) expires between two steps, the
+ * sequence is interrupted with a {@literal 504 Gateway Timeout} response.
  */
 public class SequenceHandler extends GenericHeapObject implements Handler {
 
@@ -66,6 +73,10 @@ public class SequenceHandler extends GenericHeapObject implements Handler {
     @Override
     public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
 
+        if (isExpired(context)) {
+            return newResponsePromise(newGatewayTimeout());
+        }
+
         final PromiseImpl<Response, NeverThrowsException> composite = PromiseImpl.create();
 
         final Deque<Binding> theBindings = new ArrayDeque<>(bindings);
@@ -82,6 +93,10 @@ public class SequenceHandler extends GenericHeapObject implements Handler {
                         || theBindings.isEmpty()) {
                     // Do not continue
                     composite.handleResult(result);
+                } else if (isExpired(context)) {
+                    // No time left for the next requests of the sequence
+                    closeSilently(result);
+                    composite.handleResult(newGatewayTimeout());
                 } else {
                     // Next promise
                     final Binding next = theBindings.peekFirst();
@@ -0,0 +1,66 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler.router;
+
+import static java.lang.String.format;
+import static org.forgerock.util.Reject.checkNotNull;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.openig.decoration.capture.NoEntityCaptureContext;
+import org.forgerock.openig.log.Logger;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.ResultHandler;
+
+/**
+ * This class keeps the capture decorator from reading the entities of the route's exchanges (see
+ * {@link NoEntityCaptureContext} for its limits). When a component of the route declared it reads the entity content,
+ * a message is logged, containing the requested URI and the names of these components.
+ *
+ * @see NoEntityCaptureContext
+ */
+class NoEntityCaptureFilter implements Filter {
+
+    private final Logger logger;
+
+    NoEntityCaptureFilter(Logger logger) {
+        this.logger = checkNotNull(logger);
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                          final Request request,
+                                                          final Handler next) {
+        final NoEntityCaptureContext noEntityCaptureContext = new NoEntityCaptureContext(context);
+        return next.handle(noEntityCaptureContext, request)
+                .thenOnResult(new ResultHandler<Response>() {
+                    @Override
+                    public void handleResult(Response response) {
+                        if (noEntityCaptureContext.isEntityRequired()) {
+                            logger.debug(format("Entity buffered for the request '%s' (id: %s), required by %s",
+                                                request.getUri().toASCIIString(),
+                                                context.getId(),
+                                                noEntityCaptureContext.getEntityConsumers()));
+                        }
+                    }
+                });
+    }
+}
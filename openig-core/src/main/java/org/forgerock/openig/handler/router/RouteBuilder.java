@@ -27,7 +27,9 @@ import static org.forgerock.json.resource.http.CrestHttp.newHttpHandler;
 import static org.forgerock.openig.handler.router.MonitoringResourceProvider.DEFAULT_PERCENTILES;
 import static org.forgerock.openig.heap.Keys.ENDPOINT_REGISTRY_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.LOGSINK_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.asDuration;
 import static org.forgerock.openig.util.JsonValues.asExpression;
 import static org.forgerock.openig.util.JsonValues.evaluateJsonStaticExpression;
 import static org.forgerock.openig.util.StringUtil.slug;
@@ -39,6 +41,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.forgerock.audit.AuditService;
 import org.forgerock.http.Filter;
@@ -48,6 +51,7 @@ import org.forgerock.http.session.SessionManager;
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.resource.RequestHandler;
 import org.forgerock.openig.el.Expression;
+import org.forgerock.openig.filter.DeadlineFilter;
 import org.forgerock.openig.filter.HttpAccessAuditFilter;
 import org.forgerock.openig.filter.RuntimeExceptionFilter;
 import org.forgerock.openig.handler.Handlers;
@@ -130,7 +134,7 @@ class RouteBuilder {
 
         try {
             routeHeap.init(config, "handler", "session", "name", "condition", "logSink", "auditService",
-                           "globalDecorators", "monitor");
+                           "globalDecorators", "monitor", "captureEntities", "deadline");
 
             Expression<Boolean> condition = asExpression(config.get("condition"), Boolean.class);
 
@@ -179,6 +183,18 @@ class RouteBuilder {
 
         List<Filter> filters = new ArrayList<>();
 
+        // The capture does not read the entities unless a component of the route declares it reads them
+        if (!evaluateJsonStaticExpression(config.get("captureEntities").defaultTo("${true}")).asBoolean()) {
+            filters.add(new NoEntityCaptureFilter(logger));
+        }
+
+        // Requests not answered within the route's deadline get a 504
+        if (config.isDefined("deadline")) {
+            ScheduledExecutorService executor = routeHeap.get(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY,
+                                                              ScheduledExecutorService.class);
+            filters.add(new DeadlineFilter(asDuration(config.get("deadline")), executor, time));
+        }
+
         SessionManager sessionManager = routeHeap.resolve(config.get("session"), SessionManager.class, true);
         if (sessionManager != null) {
             filters.add(newSessionFilter(sessionManager));
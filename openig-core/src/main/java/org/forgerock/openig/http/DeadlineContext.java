@@ -0,0 +1,103 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.util.Reject.checkNotNull;
+
+import org.forgerock.services.context.AbstractContext;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * A {@link DeadlineContext} carries the point in time after which the response to the incoming request is not useful
+ * anymore (the client has given up). Components issuing upstream calls consult it to cap their own timeouts, and
+ * stop doing work once the deadline has expired.
+ * <p>
+ * Deadlines can only be shortened: when a {@link DeadlineContext} is created on top of a context that already has a
+ * sooner deadline, the sooner one is kept.
+ *
+ * @see Deadlines
+ */
+public class DeadlineContext extends AbstractContext {
+
+    private final TimeService time;
+    private final long deadline;
+
+    /**
+     * Creates a new deadline context, expiring after the given budget.
+     *
+     * @param parent
+     *         The parent context.
+     * @param time
+     *         The time service used to measure the elapsed time.
+     * @param budget
+     *         The time allowed to process the request.
+     */
+    public DeadlineContext(final Context parent, final TimeService time, final Duration budget) {
+        super(parent, "deadline");
+        this.time = checkNotNull(time);
+        long deadline = budget.isUnlimited() ? Long.MAX_VALUE : time.now() + budget.to(MILLISECONDS);
+        if (parent.containsContext(DeadlineContext.class)) {
+            deadline = Math.min(deadline, parent.asContext(DeadlineContext.class).getDeadline());
+        }
+        this.deadline = deadline;
+    }
+
+    /**
+     * Returns the deadline, in milliseconds since epoch ({@link Long#MAX_VALUE} if there is none).
+     *
+     * @return the deadline, in milliseconds since epoch.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Returns the time left before the deadline expires, in milliseconds.
+     *
+     * @return the time left before the deadline expires, in milliseconds (0 if already expired).
+     */
+    public long getRemaining() {
+        if (deadline == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0L, deadline - time.now());
+    }
+
+    /**
+     * Returns {@code true} if the deadline has expired.
+     *
+     * @return {@code true} if the deadline has expired.
+     */
+    public boolean isExpired() {
+        return getRemaining() == 0L;
+    }
+
+    /**
+     * Returns {@code true} if the given context has a deadline, and if this deadline has expired.
+     *
+     * @param context
+     *         the context to inspect
+     * @return {@code true} if the deadline of the given context has expired.
+     */
+    public static boolean isExpired(final Context context) {
+        return context.containsContext(DeadlineContext.class)
+                && context.asContext(DeadlineContext.class).isExpired();
+    }
+}
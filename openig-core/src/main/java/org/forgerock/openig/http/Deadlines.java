@@ -0,0 +1,117 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.util.Utils.closeSilently;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+
+/**
+ * Utility methods to enforce the deadline carried by a {@link DeadlineContext}.
+ */
+public final class Deadlines {
+
+    private Deadlines() { }
+
+    /**
+     * Returns a new {@literal 504 Gateway Timeout} response, signaling that the request deadline has expired.
+     *
+     * @return a new {@literal 504 Gateway Timeout} response
+     */
+    public static Response newGatewayTimeout() {
+        Response response = new Response(Status.GATEWAY_TIMEOUT);
+        response.setCause(new TimeoutException("The request deadline has expired"));
+        return response;
+    }
+
+    /**
+     * Gives the request to the handler, but does not wait for its response longer than the deadline of the given
+     * context: once the deadline has expired, a {@literal 504 Gateway Timeout} response is returned instead, and the
+     * pending response is closed when it comes. If the deadline has already expired, the handler is not called at
+     * all.
+     *
+     * @param context
+     *         the context of the request (may not contain a {@link DeadlineContext})
+     * @param request
+     *         the request to handle
+     * @param handler
+     *         the handler processing the request
+     * @param executor
+     *         the executor used to schedule the expiration of the deadline
+     * @return the promise of the handler's response, or of a {@literal 504 Gateway Timeout} response
+     */
+    public static Promise<Response, NeverThrowsException> handle(final Context context,
+                                                                 final Request request,
+                                                                 final Handler handler,
+                                                                 final ScheduledExecutorService executor) {
+        if (!context.containsContext(DeadlineContext.class)) {
+            return handler.handle(context, request);
+        }
+        DeadlineContext deadline = context.asContext(DeadlineContext.class);
+        long remaining = deadline.getRemaining();
+        if (remaining == 0L) {
+            return newResponsePromise(newGatewayTimeout());
+        }
+
+        final Promise<Response, NeverThrowsException> pending = handler.handle(context, request);
+        if (pending.isDone() || remaining == Long.MAX_VALUE) {
+            return pending;
+        }
+
+        final PromiseImpl<Response, NeverThrowsException> result = PromiseImpl.create();
+        final AtomicBoolean done = new AtomicBoolean();
+        final ScheduledFuture<?> expiration = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (done.compareAndSet(false, true)) {
+                    // The pending request is not cancelled (cancellation is not propagated to the connection):
+                    // its late response is closed when it comes, freeing the connection
+                    result.handleResult(newGatewayTimeout());
+                }
+            }
+        }, remaining, MILLISECONDS);
+
+        pending.thenOnResult(new ResultHandler<Response>() {
+            @Override
+            public void handleResult(final Response response) {
+                expiration.cancel(false);
+                if (done.compareAndSet(false, true)) {
+                    result.handleResult(response);
+                } else {
+                    // Too late
+                    closeSilently(response);
+                }
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.io;
+
+import static org.forgerock.util.Utils.closeSilently;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A memory-mapped file region, allocated once and divided in fixed size blocks. Buffers that cannot be held in
+ * memory spill their content into blocks of this region instead of creating their own temporary file.
+ */
+class MappedSpillRegion {
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final int blockSize;
+    private final int blockCount;
+    private final Queue<ByteBuffer> freeBlocks = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger used = new AtomicInteger();
+    private final AtomicLong spills = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+
+    /**
+     * Creates and maps a new region of {@code blockSize * blockCount} bytes, backed by a temporary file created in
+     * the given directory.
+     *
+     * @param directory
+     *         the directory where the backing file is created ({@code null} for the default temporary directory)
+     * @param blockSize
+     *         the size of each block
+     * @param blockCount
+     *         the number of blocks in the region
+     * @throws IOException
+     *         if the region cannot be created or mapped
+     */
+    MappedSpillRegion(final File directory, final int blockSize, final int blockCount) throws IOException {
+        long size = (long) blockSize * blockCount;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The spill region cannot exceed " + Integer.MAX_VALUE + " bytes");
+        }
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+        this.file = File.createTempFile("openig-spill", ".tmp", directory);
+        this.file.deleteOnExit();
+        this.raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            MappedByteBuffer region = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            for (int i = 0; i < blockCount; i++) {
+                region.limit((i + 1) * blockSize);
+                region.position(i * blockSize);
+                freeBlocks.offer(region.slice());
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Acquires a cleared block of this region.
+     *
+     * @return a block, or {@code null} if the region is full
+     */
+    ByteBuffer acquire() {
+        ByteBuffer block = freeBlocks.poll();
+        if (block == null) {
+            overflows.incrementAndGet();
+            return null;
+        }
+        used.incrementAndGet();
+        spills.incrementAndGet();
+        block.clear();
+        return block;
+    }
+
+    /**
+     * Gives back a block previously obtained with {@link #acquire()}.
+     *
+     * @param block
+     *         the block to release
+     */
+    void release(final ByteBuffer block) {
+        used.decrementAndGet();
+        freeBlocks.offer(block);
+    }
+
+    /**
+     * Closes the backing file and deletes it. The mapping itself is released when the blocks are garbage collected.
+     */
+    void close() {
+        freeBlocks.clear();
+        closeSilently(raf);
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Returns the region utilisation and spill counts as a JSON compatible map.
+     *
+     * @return the region utilisation and spill counts
+     */
+    Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("capacity", (long) blockSize * blockCount);
+        statistics.put("inUse", (long) blockSize * used.get());
+        statistics.put("spills", spills.get());
+        statistics.put("overflows", overflows.get());
+        return statistics;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.io;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.forgerock.http.io.Buffer;
+
+/**
+ * A {@link Buffer} made of a list of segments: direct slabs borrowed from a {@link SlabPool} while the buffer holds
+ * less than {@code memoryLimit} bytes, then blocks of a {@link MappedSpillRegion}. Segments are given back when the
+ * buffer is closed, or reclaimed by the pool when the buffer is garbage collected without having been closed.
+ */
+class PooledBuffer implements Buffer {
+
+    private final SlabPool pool;
+    private final MappedSpillRegion region;
+    private final int initialLength;
+    private final int memoryLimit;
+    private final int limit;
+
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private final List<Boolean> spilled = new ArrayList<>();
+    /** Offset (in the buffer) of the first byte of each segment. */
+    private final List<Integer> offsets = new ArrayList<>();
+    private final Release release;
+    private final Reference<?> tracking;
+
+    private int length;
+    private int memory;
+    private boolean closed;
+
+    /**
+     * Creates a new buffer.
+     *
+     * @param pool
+     *         the pool providing in-memory slabs
+     * @param region
+     *         the region providing spill blocks ({@code null} if spilling is not possible)
+     * @param initialLength
+     *         the length of the first slab
+     * @param memoryLimit
+     *         the number of bytes that can be held in memory before spilling
+     * @param limit
+     *         the maximum number of bytes this buffer can hold
+     */
+    PooledBuffer(final SlabPool pool,
+                 final MappedSpillRegion region,
+                 final int initialLength,
+                 final int memoryLimit,
+                 final int limit) {
+        this.pool = pool;
+        this.region = region;
+        this.initialLength = initialLength;
+        this.memoryLimit = memoryLimit;
+        this.limit = limit;
+        this.release = new Release(pool, region, segments, spilled);
+        this.tracking = pool.track(this, release);
+    }
+
+    @Override
+    public byte read(final int index) throws IOException {
+        checkOpen();
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int segment = segmentOf(index);
+        return segments.get(segment).get(index - offsets.get(segment));
+    }
+
+    @Override
+    public int read(final int index, final byte[] b, final int off, final int len) throws IOException {
+        checkOpen();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (index < 0 || index > length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int n = Math.min(len, length - index);
+        int read = 0;
+        int segment = n > 0 ? segmentOf(index) : 0;
+        while (read < n) {
+            ByteBuffer view = segments.get(segment).duplicate();
+            int position = index + read - offsets.get(segment);
+            int count = Math.min(n - read, view.position() - position);
+            view.position(position);
+            view.get(b, off + read, count);
+            read += count;
+            segment++;
+        }
+        return n;
+    }
+
+    @Override
+    public int length() throws IOException {
+        checkOpen();
+        return length;
+    }
+
+    @Override
+    public void append(final byte b) throws IOException {
+        append(new byte[] {b}, 0, 1);
+    }
+
+    @Override
+    public void append(final byte[] b, final int off, final int len) throws IOException {
+        checkOpen();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if ((long) length + len > limit) {
+            throw new IOException("Buffer limit of " + limit + " bytes exceeded");
+        }
+        int written = 0;
+        while (written < len) {
+            ByteBuffer current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (current == null || !current.hasRemaining()) {
+                current = nextSegment();
+            }
+            int count = Math.min(len - written, current.remaining());
+            current.put(b, off + written, count);
+            written += count;
+            length += count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pool.untrack(tracking);
+        release.run();
+        offsets.clear();
+    }
+
+    private ByteBuffer nextSegment() throws IOException {
+        // Take the opportunity to give back the segments of the buffers that have been leaked
+        pool.reclaim();
+        ByteBuffer segment = null;
+        boolean spill = false;
+        if (memory < memoryLimit) {
+            // Start small, then double the size of each new slab
+            int size = segments.isEmpty() ? initialLength : segments.get(segments.size() - 1).capacity() * 2;
+            segment = pool.acquire(pool.sizeClass(Math.min(size, memoryLimit - memory)));
+        }
+        if (segment == null && region != null) {
+            segment = region.acquire();
+            spill = true;
+        }
+        if (segment == null) {
+            throw new IOException("No more memory or spill space available to buffer the entity");
+        }
+        if (!spill) {
+            memory += segment.capacity();
+        }
+        offsets.add(length);
+        segments.add(segment);
+        spilled.add(spill);
+        return segment;
+    }
+
+    private int segmentOf(final int index) {
+        // Few segments, and reads are mostly sequential: start from the end
+        int segment = offsets.size() - 1;
+        while (offsets.get(segment) > index) {
+            segment--;
+        }
+        return segment;
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Buffer is closed");
+        }
+    }
+
+    /** Gives back the segments of a buffer: it must not reference the buffer, so that the buffer can be collected. */
+    private static final class Release implements Runnable {
+        private final SlabPool pool;
+        private final MappedSpillRegion region;
+        private final List<ByteBuffer> segments;
+        private final List<Boolean> spilled;
+
+        Release(final SlabPool pool,
+                final MappedSpillRegion region,
+                final List<ByteBuffer> segments,
+                final List<Boolean> spilled) {
+            this.pool = pool;
+            this.region = region;
+            this.segments = segments;
+            this.spilled = spilled;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < segments.size(); i++) {
+                if (spilled.get(i)) {
+                    region.release(segments.get(i));
+                } else {
+                    pool.release(segments.get(i));
+                }
+            }
+            segments.clear();
+            spilled.clear();
+        }
+    }
+}
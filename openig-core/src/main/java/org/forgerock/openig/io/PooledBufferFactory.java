@@ -0,0 +1,89 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.io;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.forgerock.http.io.Buffer;
+import org.forgerock.util.Factory;
+
+/**
+ * Creates {@link PooledBuffer}s sharing the same {@link SlabPool} and {@link MappedSpillRegion}.
+ */
+class PooledBufferFactory implements Factory<Buffer> {
+
+    private final SlabPool pool;
+    private final MappedSpillRegion region;
+    private final int initialLength;
+    private final int memoryLimit;
+    private final int limit;
+
+    /**
+     * Creates a new factory.
+     *
+     * @param pool
+     *         the pool providing in-memory slabs
+     * @param region
+     *         the region providing spill blocks ({@code null} if buffers cannot spill)
+     * @param initialLength
+     *         the length of the first slab of each buffer
+     * @param memoryLimit
+     *         the number of bytes each buffer can hold in memory before spilling
+     * @param limit
+     *         the maximum number of bytes each buffer can hold
+     */
+    PooledBufferFactory(final SlabPool pool,
+                        final MappedSpillRegion region,
+                        final int initialLength,
+                        final int memoryLimit,
+                        final int limit) {
+        this.pool = pool;
+        this.region = region;
+        this.initialLength = initialLength;
+        this.memoryLimit = memoryLimit;
+        this.limit = limit;
+    }
+
+    @Override
+    public Buffer newInstance() {
+        return new PooledBuffer(pool, region, initialLength, memoryLimit, limit);
+    }
+
+    /**
+     * Returns the pool utilisation and spill counts as a JSON compatible map.
+     *
+     * @return the pool utilisation and spill counts
+     */
+    Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("pool", pool.getStatistics());
+        if (region != null) {
+            statistics.put("spill", region.getStatistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * Releases the spill region.
+     */
+    void close() {
+        if (region != null) {
+            region.close();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.io;
+
+import static java.lang.String.format;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of reusable direct {@link ByteBuffer} slabs, organized in power-of-two size classes ranging from
+ * {@code minSlabSize} to {@code maxSlabSize}. At most {@code capacity} bytes of slabs are ever allocated: once this
+ * capacity is reached, {@link #acquire(int)} returns {@code null} unless a released slab of the requested size class
+ * is available.
+ * <p>
+ * The owners of slabs are {@link #track(Object, Runnable) tracked}: when an owner is garbage collected without having
+ * been {@link #untrack(Reference) untracked} (a buffer that was never closed), its release action is run by the next
+ * {@link #reclaim()}, so that a leaked buffer does not hold its slabs (and spill blocks) forever.
+ */
+class SlabPool {
+
+    private final int minSlabSize;
+    private final int maxSlabSize;
+    private final long capacity;
+    private final Queue<ByteBuffer>[] classes;
+
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong inUse = new AtomicLong();
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong reclaimed = new AtomicLong();
+
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+    private final Set<Owner> owners = Collections.newSetFromMap(new ConcurrentHashMap<Owner, Boolean>());
+
+    /**
+     * Creates a new pool of direct slabs.
+     *
+     * @param minSlabSize
+     *         size of the smallest slabs (power of two)
+     * @param maxSlabSize
+     *         size of the largest slabs (power of two, greater than or equal to {@code minSlabSize})
+     * @param capacity
+     *         maximum number of bytes allocated by this pool
+     */
+    @SuppressWarnings("unchecked")
+    SlabPool(final int minSlabSize, final int maxSlabSize, final long capacity) {
+        if (Integer.bitCount(minSlabSize) != 1 || Integer.bitCount(maxSlabSize) != 1 || minSlabSize > maxSlabSize) {
+            throw new IllegalArgumentException(format("Slab sizes must be powers of two with min (%d) <= max (%d)",
+                                                      minSlabSize,
+                                                      maxSlabSize));
+        }
+        if (capacity < 0) {
+            throw new IllegalArgumentException("The pool capacity cannot be negative");
+        }
+        this.minSlabSize = minSlabSize;
+        this.maxSlabSize = maxSlabSize;
+        this.capacity = capacity;
+        int count = Integer.numberOfTrailingZeros(maxSlabSize) - Integer.numberOfTrailingZeros(minSlabSize) + 1;
+        this.classes = new Queue[count];
+        for (int i = 0; i < count; i++) {
+            classes[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    int getMinSlabSize() {
+        return minSlabSize;
+    }
+
+    int getMaxSlabSize() {
+        return maxSlabSize;
+    }
+
+    /**
+     * Returns the size of the smallest size class that can hold {@code size} bytes, capped to the largest size class.
+     *
+     * @param size
+     *         the requested number of bytes
+     * @return the size of the matching size class
+     */
+    int sizeClass(final int size) {
+        if (size <= minSlabSize) {
+            return minSlabSize;
+        }
+        if (size >= maxSlabSize) {
+            return maxSlabSize;
+        }
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    /**
+     * Acquires a cleared slab of the given size class.
+     *
+     * @param slabSize
+     *         a size returned by {@link #sizeClass(int)}
+     * @return a slab, or {@code null} if the pool is exhausted
+     */
+    ByteBuffer acquire(final int slabSize) {
+        acquisitions.incrementAndGet();
+        ByteBuffer slab = classes[indexOf(slabSize)].poll();
+        if (slab == null) {
+            long current;
+            do {
+                current = allocated.get();
+                if (current + slabSize > capacity) {
+                    misses.incrementAndGet();
+                    return null;
+                }
+            } while (!allocated.compareAndSet(current, current + slabSize));
+            slab = ByteBuffer.allocateDirect(slabSize);
+        }
+        inUse.addAndGet(slabSize);
+        slab.clear();
+        return slab;
+    }
+
+    /**
+     * Gives back a slab previously obtained with {@link #acquire(int)}.
+     *
+     * @param slab
+     *         the slab to release
+     */
+    void release(final ByteBuffer slab) {
+        inUse.addAndGet(-slab.capacity());
+        classes[indexOf(slab.capacity())].offer(slab);
+    }
+
+    /**
+     * Tracks the owner of slabs, so that {@code release} is run once the owner has been garbage collected, unless
+     * it is untracked before.
+     *
+     * @param owner
+     *         the object holding slabs (it must not be reachable from {@code release})
+     * @param release
+     *         gives back the slabs of the owner
+     * @return the reference to give to {@link #untrack(Reference)}
+     */
+    Reference<?> track(final Object owner, final Runnable release) {
+        Owner reference = new Owner(owner, collected, release);
+        owners.add(reference);
+        return reference;
+    }
+
+    /**
+     * Stops tracking an owner that released its slabs itself.
+     *
+     * @param reference
+     *         the reference returned by {@link #track(Object, Runnable)}
+     */
+    void untrack(final Reference<?> reference) {
+        owners.remove(reference);
+        reference.clear();
+    }
+
+    /**
+     * Gives back the slabs of the owners that have been garbage collected while still tracked.
+     *
+     * @return the number of owners whose slabs have been given back
+     */
+    int reclaim() {
+        int count = 0;
+        Reference<?> reference;
+        while ((reference = collected.poll()) != null) {
+            Owner owner = (Owner) reference;
+            if (owners.remove(owner)) {
+                owner.release.run();
+                count++;
+            }
+        }
+        if (count > 0) {
+            reclaimed.addAndGet(count);
+        }
+        return count;
+    }
+
+    private int indexOf(final int slabSize) {
+        return Integer.numberOfTrailingZeros(slabSize) - Integer.numberOfTrailingZeros(minSlabSize);
+    }
+
+    /**
+     * Returns the pool utilisation as a JSON compatible map.
+     *
+     * @return the pool utilisation
+     */
+    Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("capacity", capacity);
+        statistics.put("allocated", allocated.get());
+        statistics.put("inUse", inUse.get());
+        statistics.put("acquisitions", acquisitions.get());
+        statistics.put("misses", misses.get());
+        statistics.put("reclaimed", reclaimed.get());
+        return statistics;
+    }
+
+    /** A phantom reference to an owner of slabs, with the action giving them back. */
+    private static final class Owner extends PhantomReference<Object> {
+        private final Runnable release;
+
+        Owner(final Object owner, final ReferenceQueue<Object> queue, final Runnable release) {
+            super(owner, queue);
+            this.release = release;
+        }
+    }
+}
@@ -17,15 +17,65 @@
 
 package org.forgerock.openig.io;
 
+import static java.lang.String.format;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.forgerock.http.Handler;
 import org.forgerock.http.io.Buffer;
 import org.forgerock.http.io.IO;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.http.EndpointRegistry;
+import org.forgerock.services.context.Context;
 import org.forgerock.util.Factory;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
 
 /**
  * A wrapper class around {@link IO#newTemporaryStorage} to make it usable
  * within a heaplet environment.
+ * <p>
+ * When a {@code pool} is configured, buffers are instead made of reusable direct slabs, and spill into a single
+ * pre-allocated memory-mapped file instead of creating one temporary file per buffer:
+ *
+ * <pre>
+ * {@code {
+ *      "type": "TemporaryStorage",
+ *      "config": {
+ *         "directory"                    : file                [OPTIONAL - where temporary files are created]
+ *         "initialLength"                : integer             [OPTIONAL - default to 8 KiB]
+ *         "memoryLimit"                  : integer             [OPTIONAL - bytes held in memory per buffer before
+ *                                                                          spilling to disk. Default to 64 KiB]
+ *         "fileLimit"                    : integer             [OPTIONAL - maximum size of a buffer.
+ *                                                                          Default to 1 GiB. With a pool, at most
+ *                                                                          (and default to) the spill size, or the
+ *                                                                          memoryLimit when spilling is disabled]
+ *         "pool": {                                            [OPTIONAL - use pooled buffers]
+ *            "capacity"                  : integer             [OPTIONAL - bytes of direct slabs allocated by the pool.
+ *                                                                          Default to 64 MiB]
+ *            "minSlabSize"               : integer             [OPTIONAL - smallest size class, a power of two.
+ *                                                                          Default to 4 KiB]
+ *            "maxSlabSize"               : integer             [OPTIONAL - largest size class, a power of two, also
+ *                                                                          used as spill block size.
+ *                                                                          Default to 64 KiB]
+ *            "spillSize"                 : integer             [OPTIONAL - size of the memory-mapped spill file,
+ *                                                                          0 to disable spilling.
+ *                                                                          Default to 256 MiB]
+ *         }
+ *      }
+ *  }
+ *  }
+ * </pre>
+ *
+ * <p>The pool utilisation and spill counts are exposed as a JSON object at
+ * {@literal /openig/system/objects/.../[storage-name]/storage}.
  */
 public class TemporaryStorage implements Factory<Buffer> {
 
@@ -38,7 +88,7 @@ public class TemporaryStorage implements Factory<Buffer> {
         this(IO.newTemporaryStorage());
     }
 
-    private TemporaryStorage(final Factory<Buffer> factory) {
+    TemporaryStorage(final Factory<Buffer> factory) {
         this.factory = factory;
     }
 
@@ -51,12 +101,71 @@ public class TemporaryStorage implements Factory<Buffer> {
      * Creates and initializes a temporary storage object in a heap environment.
      */
     public static class Heaplet extends GenericHeaplet {
+
+        private PooledBufferFactory pooled;
+
         @Override
         public Object create() throws HeapException {
-            return new TemporaryStorage(IO.newTemporaryStorage(config.get("directory").asFile(),
-                    config.get("initialLength").defaultTo(IO.DEFAULT_TMP_INIT_LENGTH).asInteger(),
-                    config.get("memoryLimit").defaultTo(IO.DEFAULT_TMP_MEMORY_LIMIT).asInteger(),
-                    config.get("fileLimit").defaultTo(IO.DEFAULT_TMP_FILE_LIMIT).asInteger()));
+            File directory = config.get("directory").asFile();
+            int initialLength = config.get("initialLength").defaultTo(IO.DEFAULT_TMP_INIT_LENGTH).asInteger();
+            int memoryLimit = config.get("memoryLimit").defaultTo(IO.DEFAULT_TMP_MEMORY_LIMIT).asInteger();
+
+            JsonValue pool = config.get("pool");
+            if (pool.isNull()) {
+                int fileLimit = config.get("fileLimit").defaultTo(IO.DEFAULT_TMP_FILE_LIMIT).asInteger();
+                return new TemporaryStorage(IO.newTemporaryStorage(directory, initialLength, memoryLimit, fileLimit));
+            }
+
+            int maxSlabSize = pool.get("maxSlabSize").defaultTo(64 * 1024).asInteger();
+            SlabPool slabs = new SlabPool(pool.get("minSlabSize").defaultTo(4 * 1024).asInteger(),
+                                          maxSlabSize,
+                                          pool.get("capacity").defaultTo(64L * 1024 * 1024).asLong());
+            MappedSpillRegion region = null;
+            long spillSize = pool.get("spillSize").defaultTo(256L * 1024 * 1024).asLong();
+            // A pooled buffer cannot hold more than the spill region (or its memory when it cannot spill)
+            long maxLimit = spillSize > 0 ? spillSize / maxSlabSize * maxSlabSize : memoryLimit;
+            int fileLimit = config.get("fileLimit")
+                                  .defaultTo((int) Math.min(IO.DEFAULT_TMP_FILE_LIMIT, maxLimit))
+                                  .asInteger();
+            if (fileLimit > maxLimit) {
+                throw new HeapException(format("The fileLimit (%d bytes) cannot exceed the %s (%d bytes)",
+                                               fileLimit,
+                                               spillSize > 0 ? "spill size" : "memoryLimit",
+                                               maxLimit));
+            }
+            if (spillSize > 0) {
+                try {
+                    region = new MappedSpillRegion(directory, maxSlabSize, (int) (spillSize / maxSlabSize));
+                } catch (IOException e) {
+                    throw new HeapException("Cannot create the spill region", e);
+                }
+            }
+            pooled = new PooledBufferFactory(slabs, region, initialLength, memoryLimit, fileLimit);
+            return new TemporaryStorage(pooled);
+        }
+
+        @Override
+        public void start() throws HeapException {
+            if (pooled == null) {
+                return;
+            }
+            EndpointRegistry.Registration registration = endpointRegistry().register("storage", new Handler() {
+                @Override
+                public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                    Response response = new Response(Status.OK);
+                    response.getEntity().setJson(pooled.getStatistics());
+                    return newResponsePromise(response);
+                }
+            });
+            logger.info(format("Storage statistics available at '%s'", registration.getPath()));
+        }
+
+        @Override
+        public void destroy() {
+            super.destroy();
+            if (pooled != null) {
+                pooled.close();
+            }
         }
     }
 }
@@ -17,20 +17,25 @@
 package org.forgerock.openig.jwt;
 
 import static java.lang.String.format;
-import static java.util.Collections.singletonList;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static org.forgerock.http.util.Json.*;
+import static org.forgerock.openig.jwt.JwtSessionManager.DEFAULT_MAX_COOKIES;
 import static org.forgerock.openig.jwt.JwtSessionManager.MAX_SESSION_TIMEOUT;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.KeyPair;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.forgerock.http.header.SetCookieHeader;
 import org.forgerock.http.protocol.Cookie;
@@ -50,8 +55,10 @@ import org.forgerock.openig.jwt.dirty.DirtyCollection;
 import org.forgerock.openig.jwt.dirty.DirtyListener;
 import org.forgerock.openig.jwt.dirty.DirtySet;
 import org.forgerock.openig.log.Logger;
+import org.forgerock.openig.session.SessionValues;
 import org.forgerock.util.MapDecorator;
 import org.forgerock.util.Reject;
+import org.forgerock.util.encode.Base64url;
 import org.forgerock.util.time.Duration;
 import org.forgerock.util.time.TimeService;
 
@@ -59,6 +66,13 @@ import org.forgerock.util.time.TimeService;
  * Represents an OpenIG {@link Session} that will be stored as an encrypted JSON Web Token in a Cookie.
  * The generated JWT is encrypted with the {@link JweAlgorithm#RSAES_PKCS1_V1_5} algorithm and {@link
  * EncryptionMethod#A128CBC_HS256} method.
+ * <p>
+ * When compression is enabled and it makes the JWT smaller, the session's content is serialized in a compact binary
+ * form (see {@link SessionValues}) and deflated into a single claim before the encryption. Compression is disabled by
+ * default: the size of the cookie would otherwise reveal how much the session's values have in common (see
+ * {@link JwtSessionManager}). A JWT larger than a cookie can hold is split across numbered cookies
+ * ({@literal <cookieName>_1}, {@literal <cookieName>_2}...), the first cookie value being prefixed with the number of
+ * cookies.
  */
 public class JwtCookieSession extends MapDecorator<String, Object> implements Session, DirtyListener {
 
@@ -79,11 +93,38 @@ public class JwtCookieSession extends MapDecorator<String, Object> implements Se
      */
     private static final String IG_EXP_SESSION_KEY = "_ig_exp";
 
+    /**
+     * This key holds the compressed session's content within the JWT session.
+     */
+    private static final String IG_COMPRESSED_SESSION_KEY = "_ig_z";
+
+    /**
+     * Separates the number of cookies from the first part of a JWT split across several cookies (a JWT never contains
+     * this character).
+     */
+    private static final String CHUNKED = "~";
+
     /**
      * Setting sessionTimeout to this date will effectively remove it from the user agent.
      */
     private static final Date EPOCH = new Date(0L);
 
+    /**
+     * The largest JWT stored in a single cookie.
+     */
+    private static final int MAX_COOKIE_SIZE = 4096;
+
+    /**
+     * The size of the JWT chunks when the JWT is split across several cookies (leaves room for the number of cookies,
+     * the cookie name and attributes).
+     */
+    private static final int CHUNK_SIZE = 4000;
+
+    /**
+     * The largest decompressed session's content (protects against decompression bombs).
+     */
+    private static final int MAX_DECOMPRESSED_SIZE = 1024 * 1024;
+
     /**
      * Know how to rebuild a JWT from a String.
      */
@@ -125,7 +166,23 @@ public class JwtCookieSession extends MapDecorator<String, Object> implements Se
     private final Duration sessionTimeout;
 
     /**
-     * Builds a new JwtCookieSession that will manage the given Request's session.
+     * The maximum number of cookies a JWT can be split across.
+     */
+    private final int maxCookies;
+
+    /**
+     * Whether the session's content is compressed.
+     */
+    private final boolean compression;
+
+    /**
+     * The number of cookies the JWT was loaded from.
+     */
+    private int loadedCookies;
+
+    /**
+     * Builds a new JwtCookieSession that will manage the given Request's session, stored uncompressed in at most
+     * {@link JwtSessionManager#DEFAULT_MAX_COOKIES} cookies.
      *
      * @param request
      *         Request used to access {@literal Cookie} and {@literal Set-Cookie} headers.
@@ -146,11 +203,44 @@ public class JwtCookieSession extends MapDecorator<String, Object> implements Se
                             final Logger logger,
                             final TimeService timeService,
                             final Duration sessionTimeout) {
+        this(request, pair, cookieName, logger, timeService, sessionTimeout, DEFAULT_MAX_COOKIES, false);
+    }
+
+    /**
+     * Builds a new JwtCookieSession that will manage the given Request's session.
+     *
+     * @param request
+     *         Request used to access {@literal Cookie} and {@literal Set-Cookie} headers.
+     * @param pair
+     *         Secret key used to sign the JWT payload.
+     * @param cookieName
+     *         Name to be used for the JWT Cookie.
+     * @param logger
+     *         Logger
+     * @param timeService
+     *         TimeService to use when dealing with cookie sessions
+     * @param sessionTimeout
+     *         The duration of the cookie session
+     * @param maxCookies
+     *         The maximum number of cookies the JWT can be split across
+     * @param compression
+     *         Whether the session's content is compressed
+     */
+    public JwtCookieSession(final Request request,
+                            final KeyPair pair,
+                            final String cookieName,
+                            final Logger logger,
+                            final TimeService timeService,
+                            final Duration sessionTimeout,
+                            final int maxCookies,
+                            final boolean compression) {
         super(new LinkedHashMap<String, Object>());
         this.pair = pair;
         this.cookieName = cookieName;
         this.logger = logger;
         this.timeService = timeService;
+        this.maxCookies = maxCookies;
+        this.compression = compression;
 
         // The MAX_SESSION_TIMEOUT is more than enough to mark a session to not expire
         // so use this in place of larger values.
@@ -170,15 +260,19 @@ public class JwtCookieSession extends MapDecorator<String, Object> implements Se
      * @param request Request used to access {@literal Cookie} and {@literal Set-Cookie} headers.
      */
     private void loadJwtSession(Request request) {
-        Cookie cookie = findJwtSessionCookie(request);
+        Cookie cookie = findJwtSessionCookie(request, cookieName);
         if (cookie != null) {
             try {
-                EncryptedJwt jwt = reader.reconstructJwt(cookie.getValue(), EncryptedJwt.class);
+                EncryptedJwt jwt = reader.reconstructJwt(readJwtSessionCookies(request, cookie), EncryptedJwt.class);
                 jwt.decrypt(pair.getPrivate());
                 JwtClaimsSet claimsSet = jwt.getClaimsSet();
                 for (String key : claimsSet.keys()) {
-                    // directly use super to avoid session be marked as dirty
-                    super.put(key, claimsSet.getClaim(key));
+                    if (IG_COMPRESSED_SESSION_KEY.equals(key)) {
+                        super.putAll(decompress((String) claimsSet.getClaim(key)));
+                    } else {
+                        // directly use super to avoid session be marked as dirty
+                        super.put(key, claimsSet.getClaim(key));
+                    }
                 }
                 Number expiryTime = (Number) get(IG_EXP_SESSION_KEY);
                 if (expiryTime != null) {
@@ -269,26 +363,44 @@ public class JwtCookieSession extends MapDecorator<String, Object> implements Se
         if (dirty) {
             Reject.ifNull(response, "Cannot save session state on a null response");
             // Update the Set-Cookie header
-            final Cookie jwtCookie;
+            final List<Cookie> cookies = new ArrayList<>();
             if (isEmpty()) {
-                jwtCookie = buildExpiredJwtCookie();
+                cookies.add(buildExpiredJwtCookie(cookieName));
             } else {
-                jwtCookie = buildJwtCookie();
-                String value = jwtCookie.getValue();
-                if (value.length() > 4096) {
+                final Date expires = getExpires();
+                final String value = buildJwtSession();
+                final int limit = maxCookies == 1 ? MAX_COOKIE_SIZE : maxCookies * CHUNK_SIZE;
+                if (value.length() > limit) {
                     throw new IOException(
                             format("JWT session is too large (%d chars), failing the request because "
-                                    + "session does not support serialized content that is larger than 4KB "
-                                    + "(Http Cookie limitation)", value.length()));
+                                    + "session does not support serialized content that is larger than %d chars "
+                                    + "(%d Http Cookies limitation)", value.length(), limit, maxCookies));
                 }
-                if (value.length() > 3072) {
+                if (value.length() > limit * 3 / 4) {
                     logger.warning(format(
-                            "Current JWT session's size (%d chars) is quite close to the 4KB limit. Maybe "
+                            "Current JWT session's size (%d chars) is quite close to the %d chars limit. Maybe "
                                     + "consider using the traditional Http-based session (the default), or place"
-                                    + "less objects in the session", value.length()));
+                                    + "less objects in the session", value.length(), limit));
                 }
+                if (value.length() <= MAX_COOKIE_SIZE) {
+                    cookies.add(buildJwtCookie(cookieName, value, expires));
+                } else {
+                    // Split the JWT across numbered cookies, the first one holding the number of cookies
+                    final int count = (value.length() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+                    cookies.add(buildJwtCookie(cookieName, count + CHUNKED + value.substring(0, CHUNK_SIZE), expires));
+                    for (int i = 1; i < count; i++) {
+                        cookies.add(buildJwtCookie(chunkName(i),
+                                                   value.substring(i * CHUNK_SIZE,
+                                                                   Math.min(value.length(), (i + 1) * CHUNK_SIZE)),
+                                                   expires));
+                    }
+                }
+            }
+            // Remove the chunks that are not used anymore
+            for (int i = Math.max(1, cookies.size()); i < Math.min(loadedCookies, maxCookies); i++) {
+                cookies.add(buildExpiredJwtCookie(chunkName(i)));
             }
-            response.getHeaders().add(new SetCookieHeader(singletonList(jwtCookie)));
+            response.getHeaders().add(new SetCookieHeader(cookies));
         }
 
     }
@@ -304,11 +416,19 @@ public class JwtCookieSession extends MapDecorator<String, Object> implements Se
         }
     }
 
-    private Cookie buildExpiredJwtCookie() {
-        return new Cookie().setPath("/").setName(cookieName).setExpires(EPOCH);
+    private static Cookie buildExpiredJwtCookie(final String name) {
+        return new Cookie().setPath("/").setName(name).setExpires(EPOCH);
     }
 
-    private Cookie buildJwtCookie() {
+    private static Cookie buildJwtCookie(final String name, final String value, final Date expires) {
+        return new Cookie()
+                .setPath("/")
+                .setName(name)
+                .setValue(value)
+                .setExpires(expires);
+    }
+
+    private Date getExpires() {
         // Reuse existing expiryTime if it exists.
         // If the value fits within a Integer, then an Integer rather than a Long is returned.
         Number expiryTime = (Number) get(IG_EXP_SESSION_KEY);
@@ -316,20 +436,16 @@ public class JwtCookieSession extends MapDecorator<String, Object> implements Se
             expiryTime = getNewExpiryTime();
             super.put(IG_EXP_SESSION_KEY, expiryTime.longValue());
         }
-        return new Cookie()
-                .setPath("/")
-                .setName(cookieName)
-                .setValue(buildJwtSession())
-                .setExpires(new Date(expiryTime.longValue()));
+        return new Date(expiryTime.longValue());
     }
 
     /**
      * Builds a JWT from the session's content.
      */
-    private String buildJwtSession() {
+    private String buildJwtSession() throws IOException {
         EncryptedJwtBuilder jwtBuilder = factory.jwe(pair.getPublic());
         JwtClaimsSetBuilder claimsBuilder = factory.claims();
-        claimsBuilder.claims(this);
+        claimsBuilder.claims(compression ? compress() : this);
         jwtBuilder.claims(claimsBuilder.build());
         jwtBuilder.headers()
                   .alg(JweAlgorithm.RSAES_PKCS1_V1_5)
@@ -338,13 +454,108 @@ public class JwtCookieSession extends MapDecorator<String, Object> implements Se
     }
 
     /**
-     * Find if there is an existing cookie storing a JWT session.
+     * Returns the claims of the JWT: the session's content is compressed into a single claim if it makes it smaller.
+     */
+    private Map<String, Object> compress() throws IOException {
+        final Map<String, Object> content = new LinkedHashMap<>(this);
+        final Object expiryTime = content.remove(IG_EXP_SESSION_KEY);
+        final byte[] encoded = SessionValues.encode(content);
+
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        final ByteArrayOutputStream deflated = new ByteArrayOutputStream(encoded.length);
+        try {
+            deflater.setInput(encoded);
+            deflater.finish();
+            final byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                deflated.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+        final String compressed = Base64url.encode(deflated.toByteArray());
+        // The encoded content is smaller than its JSON form: compressing is worth it when it is even smaller
+        if (compressed.length() >= encoded.length) {
+            return this;
+        }
+        final Map<String, Object> claims = new LinkedHashMap<>();
+        claims.put(IG_EXP_SESSION_KEY, expiryTime);
+        claims.put(IG_COMPRESSED_SESSION_KEY, compressed);
+        return claims;
+    }
+
+    private static Map<String, Object> decompress(final String compressed) throws IOException, DataFormatException {
+        final byte[] deflated = Base64url.decode(compressed);
+        if (deflated == null) {
+            throw new IOException("Invalid compressed session");
+        }
+        final Inflater inflater = new Inflater(true);
+        final ByteArrayOutputStream inflated = new ByteArrayOutputStream(deflated.length * 4);
+        try {
+            inflater.setInput(deflated);
+            final byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                final int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed session");
+                }
+                inflated.write(buffer, 0, length);
+                if (inflated.size() > MAX_DECOMPRESSED_SIZE) {
+                    throw new IOException("The compressed session is too large");
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+        return SessionValues.decode(inflated.toByteArray());
+    }
+
+    /**
+     * Reassembles the JWT from the given first cookie and the numbered cookies (if the JWT was split).
+     */
+    private String readJwtSessionCookies(final Request request, final Cookie first) throws IOException {
+        final String value = first.getValue();
+        final int separator = value.indexOf(CHUNKED);
+        if (separator < 1) {
+            loadedCookies = 1;
+            return value;
+        }
+        final int count;
+        try {
+            count = Integer.parseInt(value.substring(0, separator));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid JWT session cookie", e);
+        }
+        // The count is not authenticated yet: bound it before allocating anything
+        if (count < 2 || count > maxCookies) {
+            throw new IOException(format("Invalid number of JWT session cookies: %d (at most %d)", count, maxCookies));
+        }
+        final StringBuilder jwt = new StringBuilder(count * CHUNK_SIZE);
+        jwt.append(value, separator + 1, value.length());
+        for (int i = 1; i < count; i++) {
+            final Cookie chunk = findJwtSessionCookie(request, chunkName(i));
+            if (chunk == null) {
+                throw new IOException(format("The JWT session cookie '%s' is missing", chunkName(i)));
+            }
+            jwt.append(chunk.getValue());
+        }
+        loadedCookies = count;
+        return jwt.toString();
+    }
+
+    private String chunkName(final int index) {
+        return cookieName + "_" + index;
+    }
+
+    /**
+     * Find if there is an existing cookie storing a JWT session (or a part of it).
      *
      * @param request Request used to access {@literal Cookie} and {@literal Set-Cookie} headers.
+     * @param name the name of the cookie
      * @return a {@link Cookie} if found, {@literal null} otherwise.
      */
-    private Cookie findJwtSessionCookie(Request request) {
-        List<Cookie> cookies = request.getCookies().get(cookieName);
+    private static Cookie findJwtSessionCookie(Request request, String name) {
+        List<Cookie> cookies = request.getCookies().get(name);
         if (cookies != null) {
             return cookies.get(0);
         }
@@ -58,7 +58,9 @@ import org.forgerock.util.time.TimeService;
  *             "alias": "PrivateKey Alias",
  *             "password": "KeyStore/Key Password",
  *             "cookieName": "OpenIG",
- *             "sessionTimeout": "30 minutes"
+ *             "sessionTimeout": "30 minutes",
+ *             "maxCookies": 2,
+ *             "compression": false
  *         }
  *     }
  *     }
@@ -84,6 +86,17 @@ import org.forgerock.util.time.TimeService;
  * The {@literal sessionTimeout} optional duration attribute, specifies the amount of time before the cookie session
  * expires. If not set, a default of 30 minutes is used. A duration of 0 is not valid and it will be limited to
  * a maximum duration of approximately 10 years.
+ * <p>
+ * The {@literal maxCookies} optional integer attribute specifies across how many cookies
+ * ({@literal <cookieName>_1}, {@literal <cookieName>_2}...) a JWT larger than 4KB can be split. If not set, a
+ * default of {@link #DEFAULT_MAX_COOKIES} is used. Note that the total size of the request headers is usually limited
+ * by the containers (8KB for Tomcat and Jetty by default).
+ * <p>
+ * The {@literal compression} optional boolean attribute (default to {@code false}) deflates the session's content
+ * before its encryption when it makes the JWT smaller. Only enable it when the session never holds both a secret
+ * and a value an attacker can influence: the size of the compressed (then encrypted) cookie reveals how much these
+ * values have in common, which lets an attacker guess the secret by repeatedly observing the cookie size (as with
+ * the CRIME and BREACH attacks).
  *
  * @since 3.1
  */
@@ -100,6 +113,11 @@ public class JwtSessionManager extends GenericHeapObject implements SessionManag
      */
     public static final Duration MAX_SESSION_TIMEOUT = Duration.duration("3650 days");
 
+    /**
+     * Default maximum number of cookies a JWT session can be split across.
+     */
+    public static final int DEFAULT_MAX_COOKIES = 2;
+
     /**
      * The pair of keys for JWT payload encryption/decryption.
      */
@@ -121,8 +139,18 @@ public class JwtSessionManager extends GenericHeapObject implements SessionManag
     private final Duration sessionTimeout;
 
     /**
-     * Builds a new JwtSessionManager using the given KeyPair for session encryption, storing the opaque result in a
-     * cookie with the given name.
+     * The maximum number of cookies a JWT session can be split across.
+     */
+    private final int maxCookies;
+
+    /**
+     * Whether the session's content is compressed.
+     */
+    private final boolean compression;
+
+    /**
+     * Builds a new JwtSessionManager using the given KeyPair for session encryption, storing the opaque result in at
+     * most {@link #DEFAULT_MAX_COOKIES} cookies with the given name.
      *
      * @param keyPair
      *         Private and public keys used for ciphering/deciphering
@@ -137,15 +165,50 @@ public class JwtSessionManager extends GenericHeapObject implements SessionManag
                              final String cookieName,
                              final TimeService timeService,
                              final Duration sessionTimeout) {
+        this(keyPair, cookieName, timeService, sessionTimeout, DEFAULT_MAX_COOKIES, false);
+    }
+
+    /**
+     * Builds a new JwtSessionManager using the given KeyPair for session encryption, storing the opaque result in
+     * cookies with the given name.
+     *
+     * @param keyPair
+     *         Private and public keys used for ciphering/deciphering
+     * @param cookieName
+     *         name of the cookie
+     * @param timeService
+     *         TimeService to use when dealing with cookie sessions
+     * @param sessionTimeout
+     *         The duration of the cookie session
+     * @param maxCookies
+     *         The maximum number of cookies a JWT session can be split across
+     * @param compression
+     *         Whether the session's content is compressed (see the size oracle risk above)
+     */
+    public JwtSessionManager(final KeyPair keyPair,
+                             final String cookieName,
+                             final TimeService timeService,
+                             final Duration sessionTimeout,
+                             final int maxCookies,
+                             final boolean compression) {
         this.keyPair = keyPair;
         this.cookieName = cookieName;
         this.timeService = timeService;
         this.sessionTimeout = sessionTimeout;
+        this.maxCookies = maxCookies;
+        this.compression = compression;
     }
 
     @Override
     public Session load(final Request request) {
-        return new JwtCookieSession(request, keyPair, cookieName, logger, timeService, sessionTimeout);
+        return new JwtCookieSession(request,
+                                    keyPair,
+                                    cookieName,
+                                    logger,
+                                    timeService,
+                                    sessionTimeout,
+                                    maxCookies,
+                                    compression);
     }
 
     @Override
@@ -229,11 +292,18 @@ public class JwtSessionManager extends GenericHeapObject implements SessionManag
                 throw new HeapException("sessionTimeout duration must be greater than 0");
             }
 
+            final int maxCookies = asInteger(config.get("maxCookies").defaultTo(DEFAULT_MAX_COOKIES));
+            if (maxCookies < 1) {
+                throw new HeapException("maxCookies must be greater than 0");
+            }
+
             // Create the session factory with the given KeyPair and cookie name
             return new JwtSessionManager(keyPair,
                                          config.get("cookieName").defaultTo(OPENIG_JWT_SESSION).asString(),
                                          timeService,
-                                         sessionTimeout);
+                                         sessionTimeout,
+                                         maxCookies,
+                                         config.get("compression").defaultTo(false).asBoolean());
         }
     }
 }
@@ -27,6 +27,7 @@ import static org.forgerock.util.promise.Promises.newResultPromise;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.script.ScriptException;
@@ -42,7 +43,9 @@ import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.Heap;
 import org.forgerock.openig.heap.HeapException;
 import org.forgerock.openig.ldap.LdapClient;
+import org.forgerock.openig.thread.OffloadExecutor;
 import org.forgerock.services.context.Context;
+import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.promise.Promise;
 
 /**
@@ -85,6 +88,7 @@ public abstract class AbstractScriptableHeapObject<V> extends GenericHeapObject
             if (config.isDefined(CONFIG_OPTION_ARGS)) {
                 component.setArgs(config.get(CONFIG_OPTION_ARGS).asMap());
             }
+            component.setOffloadExecutor(heap.resolve(config.get("offloadExecutor"), OffloadExecutor.class, true));
 
             if (config.isDefined("httpClient")) {
                 String message = format("'%s no longer uses a 'httpClient' attribute: 'clientHandler' "
@@ -160,6 +164,7 @@ public abstract class AbstractScriptableHeapObject<V> extends GenericHeapObject
     private final LdapClient ldapClient = LdapClient.getInstance();
     private final Map<String, Object> scriptGlobals = new ConcurrentHashMap<>();
     private Map<String, Object> args;
+    private OffloadExecutor offloadExecutor;
 
     /**
      * Creates a new scriptable heap object using the provided compiled script.
@@ -190,6 +195,16 @@ public abstract class AbstractScriptableHeapObject<V> extends GenericHeapObject
         this.args = args;
     }
 
+    /**
+     * Sets the executor used to run the script outside of the request processing threads, for scripts doing blocking
+     * calls (such as LDAP requests).
+     *
+     * @param offloadExecutor The executor running the script ({@code null} to run it on the calling thread).
+     */
+    public void setOffloadExecutor(final OffloadExecutor offloadExecutor) {
+        this.offloadExecutor = offloadExecutor;
+    }
+
     /**
      * Runs the compiled script using the provided bindings.
      *
@@ -198,10 +213,34 @@ public abstract class AbstractScriptableHeapObject<V> extends GenericHeapObject
      * @param clazz the class representing the expected result type of the {@code Promise}
      * @return the Promise of a Response produced by the script
      */
-    @SuppressWarnings("unchecked")
     protected final Promise<V, ScriptException> runScript(final Bindings bindings,
                                                           final Context context,
                                                           final Class<V> clazz) {
+        if (offloadExecutor == null) {
+            return execute(bindings, context, clazz);
+        }
+        return offloadExecutor.submit(new Callable<Promise<V, ScriptException>>() {
+            @Override
+            public Promise<V, ScriptException> call() throws Exception {
+                return execute(bindings, context, clazz);
+            }
+        }).thenAsync(new AsyncFunction<Promise<V, ScriptException>, V, ScriptException>() {
+            @Override
+            public Promise<V, ScriptException> apply(final Promise<V, ScriptException> result) {
+                return result;
+            }
+        }, new AsyncFunction<Exception, V, ScriptException>() {
+            @Override
+            public Promise<V, ScriptException> apply(final Exception e) {
+                logger.warning("Cannot execute script");
+                logger.warning(e);
+                return newExceptionPromise(new ScriptException(e));
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private Promise<V, ScriptException> execute(final Bindings bindings, final Context context, final Class<V> clazz) {
         try {
             Object o = compiledScript.run(enrichBindings(bindings, context));
             if (o instanceof Promise) {
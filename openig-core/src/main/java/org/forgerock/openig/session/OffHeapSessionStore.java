@@ -0,0 +1,295 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.session;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.util.Reject.checkNotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Stores serialized sessions outside of the Java heap, in a fixed size direct memory area.
+ *
+ * <p>The memory area is split into blocks of {@code blockSize} bytes: a session occupies a chain of blocks, so that
+ * the memory never gets fragmented. When there are not enough free blocks to store a session, the least recently used
+ * sessions are evicted.
+ *
+ * <p>Sessions expire once they have not been accessed for the idle timeout. They are checked when accessed, and the
+ * expired sessions are periodically freed by {@link #expire()}, using a timer wheel: a session is only examined when
+ * the wheel reaches the slot of its idle deadline, so each call only looks at the sessions that may have expired.
+ */
+final class OffHeapSessionStore {
+
+    /** Marks the end of a chain of blocks. */
+    private static final int END = -1;
+
+    private final TimeService time;
+    private final long idleTimeout;
+    private final int blockSize;
+    private final ByteBuffer memory;
+
+    /** The next block of each block (in a session chain or in the free list). */
+    private final int[] next;
+    private int freeHead;
+    private int freeCount;
+
+    /** The stored sessions, in access order. */
+    private final LinkedHashMap<String, Slot> slots = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The timer wheel: the identifiers of the sessions that may expire during each tick. */
+    private final List<List<String>> wheel;
+    private final long tick;
+    private long currentTick;
+
+    /**
+     * Creates a new store.
+     *
+     * @param time
+     *         the time service
+     * @param capacity
+     *         the size of the memory area, in bytes
+     * @param blockSize
+     *         the size of the blocks, in bytes
+     * @param idleTimeout
+     *         how long an unused session is kept
+     * @param wheelSize
+     *         the number of slots of the timer wheel
+     */
+    OffHeapSessionStore(final TimeService time,
+                        final long capacity,
+                        final int blockSize,
+                        final Duration idleTimeout,
+                        final int wheelSize) {
+        this.time = checkNotNull(time);
+        this.idleTimeout = idleTimeout.to(MILLISECONDS);
+        this.blockSize = blockSize;
+        final long blocks = capacity / blockSize;
+        if (blocks < 1 || blocks * blockSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The capacity must hold at least one block and less than 2GB");
+        }
+        this.memory = ByteBuffer.allocateDirect((int) blocks * blockSize);
+        this.next = new int[(int) blocks];
+        for (int i = 0; i < next.length; i++) {
+            next[i] = i + 1 < next.length ? i + 1 : END;
+        }
+        this.freeHead = 0;
+        this.freeCount = next.length;
+        this.wheel = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            wheel.add(new ArrayList<String>());
+        }
+        this.tick = Math.max(1L, this.idleTimeout / wheelSize);
+        this.currentTick = time.now() / tick;
+    }
+
+    /**
+     * Returns the serialized session with the given identifier, and resets its idle timeout.
+     *
+     * @param id
+     *         the session identifier
+     * @return the serialized session, or {@code null} if there is no such session (or if it has expired)
+     */
+    synchronized byte[] get(final String id) {
+        final Slot slot = slots.get(id);
+        if (slot == null) {
+            return null;
+        }
+        final long now = time.now();
+        if (slot.expiresAt <= now) {
+            free(slots.remove(id));
+            return null;
+        }
+        slot.expiresAt = now + idleTimeout;
+        final byte[] bytes = new byte[slot.length];
+        final ByteBuffer view = memory.duplicate();
+        int block = slot.first;
+        for (int offset = 0; offset < bytes.length; offset += blockSize) {
+            view.position(block * blockSize);
+            view.get(bytes, offset, Math.min(blockSize, bytes.length - offset));
+            block = next[block];
+        }
+        return bytes;
+    }
+
+    /**
+     * Stores a serialized session, replacing the previous content of this session (if any), and resets its idle
+     * timeout. The least recently used sessions are evicted when the memory is full.
+     *
+     * @param id
+     *         the session identifier
+     * @param bytes
+     *         the serialized session
+     * @return {@code false} if the session is larger than the memory area (and could not be stored)
+     */
+    synchronized boolean put(final String id, final byte[] bytes) {
+        final int needed = Math.max(1, (bytes.length + blockSize - 1) / blockSize);
+        final Slot previous = slots.remove(id);
+        if (previous != null) {
+            free(previous);
+        }
+        if (needed > next.length) {
+            return false;
+        }
+        // Evict the least recently used sessions until the new one fits
+        final Iterator<Slot> eldest = slots.values().iterator();
+        while (freeCount < needed && eldest.hasNext()) {
+            free(eldest.next());
+            eldest.remove();
+        }
+        final Slot slot = new Slot(allocate(needed), bytes.length, time.now() + idleTimeout);
+        final ByteBuffer view = memory.duplicate();
+        int block = slot.first;
+        for (int offset = 0; offset < bytes.length; offset += blockSize) {
+            view.position(block * blockSize);
+            view.put(bytes, offset, Math.min(blockSize, bytes.length - offset));
+            block = next[block];
+        }
+        slots.put(id, slot);
+        if (previous == null) {
+            schedule(id, slot.expiresAt);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a session.
+     *
+     * @param id
+     *         the session identifier
+     */
+    synchronized void remove(final String id) {
+        final Slot slot = slots.remove(id);
+        if (slot != null) {
+            free(slot);
+        }
+    }
+
+    /**
+     * Frees the sessions that have not been accessed for the idle timeout. The timer wheel is advanced up to the
+     * current time: the sessions found in the passed slots are either freed, or re-scheduled to the slot of their new
+     * idle deadline if they have been accessed in the meantime.
+     */
+    synchronized void expire() {
+        final long now = time.now();
+        final long nowTick = now / tick;
+        // Do not turn more than once: all the slots are examined after a full turn
+        final long from = Math.max(currentTick, nowTick - wheel.size() + 1);
+        final List<String> rescheduled = new ArrayList<>();
+        for (long t = from; t <= nowTick; t++) {
+            final List<String> bucket = wheel.get((int) (t % wheel.size()));
+            for (String id : bucket) {
+                final Slot slot = slots.get(id);
+                if (slot == null) {
+                    continue;
+                }
+                if (slot.expiresAt <= now) {
+                    free(slots.remove(id));
+                } else {
+                    rescheduled.add(id);
+                }
+            }
+            bucket.clear();
+        }
+        currentTick = nowTick + 1;
+        for (String id : rescheduled) {
+            schedule(id, slots.get(id).expiresAt);
+        }
+    }
+
+    /**
+     * Returns the number of stored sessions.
+     *
+     * @return the number of stored sessions
+     */
+    synchronized int size() {
+        return slots.size();
+    }
+
+    /**
+     * Returns the number of free bytes.
+     *
+     * @return the number of free bytes
+     */
+    synchronized long free() {
+        return (long) freeCount * blockSize;
+    }
+
+    /**
+     * Removes all the sessions.
+     */
+    synchronized void clear() {
+        slots.clear();
+        for (int i = 0; i < next.length; i++) {
+            next[i] = i + 1 < next.length ? i + 1 : END;
+        }
+        freeHead = 0;
+        freeCount = next.length;
+        for (List<String> bucket : wheel) {
+            bucket.clear();
+        }
+    }
+
+    private void schedule(final String id, final long expiresAt) {
+        // Never schedule in a slot the wheel has already passed
+        final long deadlineTick = Math.max(currentTick, expiresAt / tick);
+        wheel.get((int) (deadlineTick % wheel.size())).add(id);
+    }
+
+    private int allocate(final int count) {
+        final int first = freeHead;
+        int last = first;
+        for (int i = 1; i < count; i++) {
+            last = next[last];
+        }
+        freeHead = next[last];
+        next[last] = END;
+        freeCount -= count;
+        return first;
+    }
+
+    private void free(final Slot slot) {
+        int last = slot.first;
+        int count = 1;
+        while (next[last] != END) {
+            last = next[last];
+            count++;
+        }
+        next[last] = freeHead;
+        freeHead = slot.first;
+        freeCount += count;
+    }
+
+    /** The location of a stored session. */
+    private static final class Slot {
+        private final int first;
+        private final int length;
+        private long expiresAt;
+
+        Slot(final int first, final int length, final long expiresAt) {
+            this.first = first;
+            this.length = length;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
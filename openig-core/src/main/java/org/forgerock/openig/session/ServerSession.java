@@ -0,0 +1,172 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.session;
+
+import static java.lang.String.format;
+import static java.util.Collections.singletonList;
+import static org.forgerock.http.util.Json.checkJsonCompatibility;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+
+import org.forgerock.http.header.SetCookieHeader;
+import org.forgerock.http.protocol.Cookie;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.session.Session;
+import org.forgerock.openig.jwt.dirty.DirtyCollection;
+import org.forgerock.openig.jwt.dirty.DirtyListener;
+import org.forgerock.openig.jwt.dirty.DirtySet;
+import org.forgerock.util.MapDecorator;
+import org.forgerock.util.Reject;
+
+/**
+ * Represents an OpenIG {@link Session} whose content is kept on the server side, in an {@link OffHeapSessionStore}.
+ * The user agent only holds an opaque random identifier in a cookie, that is only issued when the session is first
+ * saved.
+ */
+final class ServerSession extends MapDecorator<String, Object> implements Session, DirtyListener {
+
+    /** Setting the cookie expiration to this date will effectively remove it from the user agent. */
+    private static final Date EPOCH = new Date(0L);
+
+    private final ServerSessionManager manager;
+    private String id;
+    private boolean dirty;
+
+    /**
+     * Builds a session.
+     *
+     * @param manager
+     *         the manager storing the sessions
+     * @param id
+     *         the session identifier, or {@code null} for a new session
+     * @param content
+     *         the (mutable) session content
+     * @param dirty
+     *         {@code true} if the session has to be saved even if it is not modified (to remove an unknown
+     *         session cookie)
+     */
+    ServerSession(final ServerSessionManager manager,
+                  final String id,
+                  final Map<String, Object> content,
+                  final boolean dirty) {
+        super(content);
+        this.manager = manager;
+        this.id = id;
+        this.dirty = dirty;
+    }
+
+    @Override
+    public void onElementsRemoved() {
+        dirty = true;
+    }
+
+    @Override
+    public Object put(final String key, final Object value) {
+        // Put null into a key, results in the complete entry removal
+        if (value == null) {
+            return remove(key);
+        }
+        // Only JSON compatible values can be serialized
+        checkJsonCompatibility(key, value);
+        dirty = true;
+        return super.put(key, value);
+    }
+
+    @Override
+    public void putAll(final Map<? extends String, ?> m) {
+        for (Entry<? extends String, ?> entry : m.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public Object remove(final Object key) {
+        dirty = true;
+        return super.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        dirty = true;
+        super.clear();
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return new DirtySet<>(super.keySet(), this);
+    }
+
+    @Override
+    public Collection<Object> values() {
+        return new DirtyCollection<>(super.values(), this);
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new DirtySet<>(super.entrySet(), this);
+    }
+
+    @Override
+    public void save(final Response response) throws IOException {
+        if (!dirty) {
+            return;
+        }
+        Reject.ifNull(response, "Cannot save session state on a null response");
+        if (isEmpty()) {
+            if (id != null) {
+                manager.getStore().remove(id);
+                id = null;
+            }
+            setCookie(response, new Cookie().setPath("/")
+                                            .setName(manager.getCookieName())
+                                            .setExpires(EPOCH));
+        } else {
+            final boolean created = id == null;
+            if (created) {
+                id = manager.newSessionId();
+            }
+            final byte[] content = SessionValues.encode(this);
+            if (!manager.getStore().put(id, content)) {
+                throw new IOException(format("The session is too large (%d bytes) to be stored", content.length));
+            }
+            if (created) {
+                setCookie(response, new Cookie().setPath("/")
+                                                .setName(manager.getCookieName())
+                                                .setValue(id)
+                                                .setHttpOnly(true));
+            }
+        }
+        dirty = false;
+    }
+
+    /**
+     * Returns the session identifier.
+     *
+     * @return the session identifier, or {@code null} if the session has not been stored
+     */
+    String getId() {
+        return id;
+    }
+
+    private static void setCookie(final Response response, final Cookie cookie) {
+        response.getHeaders().add(new SetCookieHeader(singletonList(cookie)));
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.session;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.asDuration;
+import static org.forgerock.openig.util.JsonValues.asInteger;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import org.forgerock.http.protocol.Cookie;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.session.Session;
+import org.forgerock.http.session.SessionManager;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.util.encode.Base64url;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * A {@link ServerSessionManager} keeps the sessions on the server side: the user agent only holds an opaque random
+ * identifier in a cookie. Unlike the {@literal JwtSession}, the session size is not limited by the cookie size, and
+ * there is no cryptography involved per request.
+ *
+ * <pre>
+ *     {@code
+ *     {
+ *         "name": "Session",
+ *         "type": "ServerSession",
+ *         "config": {
+ *             "cookieName": "openig-session",
+ *             "sessionTimeout": "30 minutes",
+ *             "capacity": 67108864,
+ *             "blockSize": 256,
+ *             "executor": "ScheduledExecutorService"
+ *         }
+ *     }
+ *     }
+ * </pre>
+ *
+ * All the session configuration is optional.
+ * <p>
+ * The {@literal cookieName} optional string attribute specifies the name of the cookie holding the session
+ * identifier. If not set, {@link #OPENIG_SESSION} is used.
+ * <p>
+ * The {@literal sessionTimeout} optional duration attribute specifies how long a session is kept when it is not used
+ * (defaults to 30 minutes).
+ * <p>
+ * The {@literal capacity} optional integer attribute specifies the size (in bytes) of the memory used to store the
+ * sessions, outside of the Java heap (defaults to 64MB). When it is full, the least recently used sessions are evicted.
+ * The {@literal blockSize} optional integer attribute specifies the allocation unit of this memory (defaults to 256
+ * bytes): a session uses as many blocks as needed for its serialized content.
+ * <p>
+ * The {@literal executor} optional attribute references the {@link ScheduledExecutorService} used to free the expired
+ * sessions (defaults to the {@literal ScheduledExecutorService} heap object).
+ * <p>
+ * Only JSON compatible values (strings, numbers, booleans, lists and maps of them) can be stored in these sessions.
+ * The sessions are local to an OpenIG instance and do not survive a restart.
+ */
+public class ServerSessionManager extends GenericHeapObject implements SessionManager {
+
+    /** Default name of the cookie holding the session identifier. */
+    public static final String OPENIG_SESSION = "openig-session";
+
+    /** The number of slots of the timer wheel used to expire the sessions. */
+    static final int WHEEL_SIZE = 64;
+
+    /** The number of random bytes of a session identifier. */
+    private static final int ID_LENGTH = 20;
+
+    private final OffHeapSessionStore store;
+    private final String cookieName;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Builds a new session manager.
+     *
+     * @param store
+     *         the store of the sessions
+     * @param cookieName
+     *         the name of the cookie holding the session identifier
+     */
+    ServerSessionManager(final OffHeapSessionStore store, final String cookieName) {
+        this.store = store;
+        this.cookieName = cookieName;
+    }
+
+    @Override
+    public Session load(final Request request) {
+        final List<Cookie> cookies = request.getCookies().get(cookieName);
+        if (cookies == null) {
+            return new ServerSession(this, null, new LinkedHashMap<String, Object>(), false);
+        }
+        final String id = cookies.get(0).getValue();
+        final byte[] content = id != null ? store.get(id) : null;
+        if (content == null) {
+            // Unknown or expired session: the cookie will be removed, or replaced with a new session identifier
+            logger.debug(format("The session referenced by the cookie '%s' does not exist (anymore)", cookieName));
+            return new ServerSession(this, null, new LinkedHashMap<String, Object>(), true);
+        }
+        try {
+            final Map<String, Object> values = SessionValues.decode(content);
+            return new ServerSession(this, id, values, false);
+        } catch (IOException e) {
+            logger.warning(format("Cannot read the session referenced by the cookie '%s'", cookieName));
+            logger.debug(e);
+            store.remove(id);
+            return new ServerSession(this, null, new LinkedHashMap<String, Object>(), true);
+        }
+    }
+
+    @Override
+    public void save(final Session session, final Response response) throws IOException {
+        if (response != null) {
+            session.save(response);
+        }
+    }
+
+    OffHeapSessionStore getStore() {
+        return store;
+    }
+
+    String getCookieName() {
+        return cookieName;
+    }
+
+    String newSessionId() {
+        final byte[] bytes = new byte[ID_LENGTH];
+        random.nextBytes(bytes);
+        return Base64url.encode(bytes);
+    }
+
+    /** Creates and initializes a server-side session manager in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+
+        private ScheduledFuture<?> expiration;
+
+        @Override
+        public Object create() throws HeapException {
+            TimeService time = heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class);
+            Duration sessionTimeout = asDuration(config.get("sessionTimeout").defaultTo("30 minutes"));
+            if (sessionTimeout.isZero() || sessionTimeout.isUnlimited()) {
+                throw new HeapException("sessionTimeout duration must be greater than 0 and not unlimited");
+            }
+            int capacity = asInteger(config.get("capacity").defaultTo(64 * 1024 * 1024));
+            int blockSize = asInteger(config.get("blockSize").defaultTo(256));
+            if (blockSize < 1 || capacity < blockSize) {
+                throw new HeapException("The capacity and blockSize have to be positive, with a larger capacity");
+            }
+            final OffHeapSessionStore store =
+                    new OffHeapSessionStore(time, capacity, blockSize, sessionTimeout, WHEEL_SIZE);
+
+            ScheduledExecutorService executor = heap.resolve(config.get("executor")
+                                                                   .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY),
+                                                             ScheduledExecutorService.class);
+            long tick = Math.max(1000L, sessionTimeout.to(MILLISECONDS) / WHEEL_SIZE);
+            expiration = executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    store.expire();
+                }
+            }, tick, tick, MILLISECONDS);
+
+            return new ServerSessionManager(store,
+                                            config.get("cookieName").defaultTo(OPENIG_SESSION).asString());
+        }
+
+        @Override
+        public void destroy() {
+            super.destroy();
+            if (expiration != null) {
+                expiration.cancel(false);
+            }
+            if (object != null) {
+                ((ServerSessionManager) object).getStore().clear();
+            }
+        }
+    }
+}
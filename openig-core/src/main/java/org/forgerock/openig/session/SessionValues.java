@@ -0,0 +1,278 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.session;
+
+import static java.lang.String.format;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes the content of a session (JSON compatible values) into a compact binary form.
+ * It is used to store the {@link ServerSessionManager} sessions, and to encode the content of the compressed JWT
+ * session cookies.
+ *
+ * <p>Each value is written as a one byte type tag followed by its content: integers are written as zig-zag encoded
+ * variable length integers, strings as their variable length UTF-8 size followed by their UTF-8 bytes, lists and maps
+ * as their variable length size followed by their elements (and keys). {@link BigInteger} and {@link BigDecimal}
+ * values are written as strings, so that they are not rounded to a double.
+ */
+public final class SessionValues {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** The first byte of a serialized session (version of the format). */
+    private static final byte VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte STRING = 6;
+    private static final byte LIST = 7;
+    private static final byte MAP = 8;
+    private static final byte BIG_INTEGER = 9;
+    private static final byte BIG_DECIMAL = 10;
+
+    private SessionValues() {
+    }
+
+    /**
+     * Serializes the given session content.
+     *
+     * @param values
+     *         the session content (JSON compatible values)
+     * @return the serialized session content
+     * @throws IOException
+     *         if a value is not JSON compatible
+     */
+    public static byte[] encode(final Map<String, ?> values) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        out.write(VERSION);
+        writeMap(out, values);
+        return out.toByteArray();
+    }
+
+    /**
+     * Deserializes a session content.
+     *
+     * @param bytes
+     *         the serialized session content
+     * @return the session content
+     * @throws IOException
+     *         if the serialized content is malformed
+     */
+    public static Map<String, Object> decode(final byte[] bytes) throws IOException {
+        final Reader in = new Reader(bytes);
+        if (in.readByte() != VERSION) {
+            throw new IOException("Unsupported session format");
+        }
+        if (in.readByte() != MAP) {
+            throw new IOException("Malformed session content");
+        }
+        final Map<String, Object> values = in.readMap();
+        if (in.position != bytes.length) {
+            throw new IOException("Malformed session content");
+        }
+        return values;
+    }
+
+    private static void write(final ByteArrayOutputStream out, final Object value) throws IOException {
+        if (value == null) {
+            out.write(NULL);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.write(INT);
+            writeVarLong(out, zigZag(((Number) value).longValue()));
+        } else if (value instanceof Long) {
+            out.write(LONG);
+            writeVarLong(out, zigZag((Long) value));
+        } else if (value instanceof BigInteger) {
+            out.write(BIG_INTEGER);
+            writeString(out, value.toString());
+        } else if (value instanceof BigDecimal) {
+            out.write(BIG_DECIMAL);
+            writeString(out, value.toString());
+        } else if (value instanceof Number) {
+            out.write(DOUBLE);
+            final long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (bits >>> shift));
+            }
+        } else if (value instanceof String) {
+            out.write(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof List) {
+            final List<?> list = (List<?>) value;
+            out.write(LIST);
+            writeVarLong(out, list.size());
+            for (Object element : list) {
+                write(out, element);
+            }
+        } else if (value instanceof Map) {
+            writeMap(out, (Map<?, ?>) value);
+        } else {
+            throw new IOException(format("The value of type %s is not JSON compatible", value.getClass().getName()));
+        }
+    }
+
+    private static void writeMap(final ByteArrayOutputStream out, final Map<?, ?> map) throws IOException {
+        out.write(MAP);
+        writeVarLong(out, map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (!(entry.getKey() instanceof String)) {
+                throw new IOException("Only the maps with String keys are JSON compatible");
+            }
+            writeString(out, (String) entry.getKey());
+            write(out, entry.getValue());
+        }
+    }
+
+    private static void writeString(final ByteArrayOutputStream out, final String value) {
+        final byte[] bytes = value.getBytes(UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarLong(final ByteArrayOutputStream out, final long value) {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0L) {
+            out.write((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        out.write((int) remaining);
+    }
+
+    private static long zigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /** Reads the values from a serialized session content. */
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position;
+
+        Reader(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        Object read() throws IOException {
+            final byte type = readByte();
+            switch (type) {
+            case NULL:
+                return null;
+            case FALSE:
+                return Boolean.FALSE;
+            case TRUE:
+                return Boolean.TRUE;
+            case INT:
+                return (int) unZigZag(readVarLong());
+            case LONG:
+                return unZigZag(readVarLong());
+            case DOUBLE:
+                long bits = 0L;
+                for (int i = 0; i < 8; i++) {
+                    bits = (bits << 8) | (readByte() & 0xFF);
+                }
+                return Double.longBitsToDouble(bits);
+            case STRING:
+                return readString();
+            case LIST:
+                final int size = readSize();
+                final List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(read());
+                }
+                return list;
+            case MAP:
+                return readMap();
+            case BIG_INTEGER:
+            case BIG_DECIMAL:
+                return readBigNumber(type);
+            default:
+                throw new IOException(format("Unknown value type %d", type));
+            }
+        }
+
+        Map<String, Object> readMap() throws IOException {
+            final int size = readSize();
+            final Map<String, Object> map = new LinkedHashMap<>(Math.max(16, size * 2));
+            for (int i = 0; i < size; i++) {
+                final String key = readString();
+                map.put(key, read());
+            }
+            return map;
+        }
+
+        private String readString() throws IOException {
+            final int length = readSize();
+            final String value = new String(bytes, position, length, UTF_8);
+            position += length;
+            return value;
+        }
+
+        private Number readBigNumber(final byte type) throws IOException {
+            final String number = readString();
+            try {
+                return type == BIG_INTEGER ? new BigInteger(number) : new BigDecimal(number);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed number", e);
+            }
+        }
+
+        private int readSize() throws IOException {
+            final long size = readVarLong();
+            if (size < 0L || size > bytes.length - position) {
+                throw new IOException("Malformed session content");
+            }
+            return (int) size;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0L;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed variable length integer");
+        }
+
+        private byte readByte() throws IOException {
+            if (position >= bytes.length) {
+                throw new IOException("Truncated session content");
+            }
+            return bytes[position++];
+        }
+
+        private static long unZigZag(final long value) {
+            return (value >>> 1) ^ -(value & 1L);
+        }
+    }
+}
@@ -19,25 +19,43 @@ package org.forgerock.openig.text;
 
 import static java.nio.charset.StandardCharsets.*;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Allows records to be retrieved from a delimiter-separated file using key and value. Once
  * constructed, an instance of this class is thread-safe, meaning the object can be long-lived,
  * and multiple concurrent calls to {@link #getRecord(String, String) getRecord} is fully
  * supported.
+ * <p>
+ * When {@linkplain #setIndexed(boolean) indexed}, the file is read once per lookup key into an in-memory index of
+ * the records by the values of this key, so that a lookup does not read the file anymore. When the file's
+ * modification time (or length) changes, the index is rebuilt (by the {@linkplain #setReloadExecutor(Executor)
+ * reload executor} if any), the previous index being used until the new one replaces it. The explicit field keys
+ * (see {@link #getFields()}) have to be set before the first lookup.
  */
 public class SeparatedValuesFile {
 
+    /** Separates the values of the records packed in the indexes. */
+    private static final char PACKED_SEPARATOR = '\u0000';
+
     /** The file containing the separated values to be read. */
     private final File file;
 
@@ -56,6 +74,19 @@ public class SeparatedValuesFile {
      */
     private final List<String> fields = new ArrayList<>();
 
+    /** Are the records looked up in an in-memory index rather than by reading the file. */
+    private boolean indexed;
+
+    /** Rebuilds the indexes when the file changes (the calling thread does if {@code null}). */
+    private Executor reloadExecutor;
+
+    /** The indexes of the records, by lookup key. */
+    private final ConcurrentMap<String, Index> indexes = new ConcurrentHashMap<>();
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+
     /**
      * Builds a new SeparatedValuesFile reading the given {@code file} using a the {@link Separators#COMMA}
      * separator specification and {@code UTF-8} charset. This constructor consider the file has a header line.
@@ -138,6 +169,47 @@ public class SeparatedValuesFile {
         return fields;
     }
 
+    /**
+     * Sets whether the records are looked up in an in-memory index (built on the first lookup) rather than by
+     * reading the file for each lookup.
+     *
+     * @param indexed
+     *         {@code true} to look up the records in an in-memory index
+     */
+    public void setIndexed(final boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    /**
+     * Sets the executor rebuilding the indexes when the file changes. If not set, the index is rebuilt by the thread
+     * performing the lookup that detects the change.
+     *
+     * @param reloadExecutor
+     *         the executor rebuilding the indexes (may be {@code null})
+     */
+    public void setReloadExecutor(final Executor reloadExecutor) {
+        this.reloadExecutor = reloadExecutor;
+    }
+
+    /**
+     * Returns the lookup statistics of this file as a JSON compatible map.
+     *
+     * @return the lookup statistics of this file
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("indexed", indexed);
+        int records = 0;
+        for (Index index : indexes.values()) {
+            records += index.records.size();
+        }
+        statistics.put("records", records);
+        statistics.put("lookups", lookups.get());
+        statistics.put("misses", misses.get());
+        statistics.put("reloads", reloads.get());
+        return statistics;
+    }
+
     /**
      * Returns a record from the file where the specified key is equal to the specified value.
      *
@@ -147,36 +219,35 @@ public class SeparatedValuesFile {
      * @throws IOException if an I/O exception occurs.
      */
     public Map<String, String> getRecord(String key, String value) throws IOException {
+        lookups.incrementAndGet();
         Map<String, String> map = null;
-        SeparatedValuesReader reader = new SeparatedValuesReader(
-                new InputStreamReader(new FileInputStream(file), charset),
-                separator
-        );
-        try {
-            List<String> fields = this.fields;
-            if (header) {
-                // first line in the file is the field header
-                List<String> record = reader.next();
-                if (record != null && fields.size() == 0) {
-                    // use header fields
-                    fields = record;
-                }
+        if (indexed) {
+            Index index = getIndex(key);
+            Object record = index.records.get(value);
+            if (record != null) {
+                map = toMap(index.fields, unpack(record));
             }
+        } else {
+            map = scan(key, value);
+        }
+        if (map == null) {
+            misses.incrementAndGet();
+        }
+        return map;
+    }
+
+    private Map<String, String> scan(String key, String value) throws IOException {
+        SeparatedValuesReader reader = open();
+        try {
+            List<String> fields = readFields(reader);
             if (fields.size() > 0) {
                 int index = fields.indexOf(key);
                 if (index >= 0) {
                     // requested key exists
                     List<String> record;
                     while ((record = reader.next()) != null) {
-                        if (record.get(index).equals(value)) {
-                            map = new HashMap<>(fields.size());
-                            Iterator<String> fi = fields.iterator();
-                            Iterator<String> ri = record.iterator();
-                            while (fi.hasNext() && ri.hasNext()) {
-                                // assign field-value pairs in map
-                                map.put(fi.next(), ri.next());
-                            }
-                            break;
+                        if (record.size() > index && record.get(index).equals(value)) {
+                            return toMap(fields, record);
                         }
                     }
                 }
@@ -184,6 +255,167 @@ public class SeparatedValuesFile {
         } finally {
             reader.close();
         }
+        return null;
+    }
+
+    private Index getIndex(final String key) throws IOException {
+        Index index = indexes.get(key);
+        if (index == null) {
+            synchronized (indexes) {
+                index = indexes.get(key);
+                if (index == null) {
+                    index = load(key);
+                    indexes.put(key, index);
+                }
+            }
+        } else if (index.isStale(file) && index.reloading.compareAndSet(false, true)) {
+            reload(key, index);
+            // The index has been rebuilt already if there is no reload executor
+            index = indexes.get(key);
+        }
+        return index;
+    }
+
+    private void reload(final String key, final Index stale) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    indexes.put(key, load(key));
+                    reloads.incrementAndGet();
+                } catch (IOException e) {
+                    // Keep using the previous index, the next lookup will try again
+                    stale.reloading.set(false);
+                }
+            }
+        };
+        if (reloadExecutor == null) {
+            task.run();
+        } else {
+            try {
+                reloadExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                stale.reloading.set(false);
+            }
+        }
+    }
+
+    /**
+     * Reads the file into an index of the records by the values of the given key. When several records have the same
+     * value, the first one is indexed.
+     */
+    private Index load(final String key) throws IOException {
+        // Read before the content, so that a change made while reading is detected
+        long lastModified = file.lastModified();
+        long length = file.length();
+        SeparatedValuesReader reader = open();
+        try {
+            List<String> fields = new ArrayList<>(readFields(reader));
+            Map<String, Object> records = new HashMap<>();
+            int index = fields.indexOf(key);
+            if (index >= 0) {
+                List<String> record;
+                while ((record = reader.next()) != null) {
+                    if (record.size() > index && !records.containsKey(record.get(index))) {
+                        records.put(record.get(index), pack(record));
+                    }
+                }
+            }
+            return new Index(fields, records, lastModified, length);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private SeparatedValuesReader open() throws IOException {
+        return new SeparatedValuesReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), charset)),
+                                         separator);
+    }
+
+    /**
+     * Returns the explicit field keys, or the field header (read from the given reader) if there is none.
+     */
+    private List<String> readFields(final SeparatedValuesReader reader) throws IOException {
+        List<String> fields = this.fields;
+        if (header) {
+            // first line in the file is the field header
+            List<String> record = reader.next();
+            if (record != null && fields.size() == 0) {
+                // use header fields
+                fields = record;
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Packs the values of a record into a single string (much smaller than a list of strings), or into an array if a
+     * value contains the {@link #PACKED_SEPARATOR}.
+     */
+    private static Object pack(final List<String> record) {
+        StringBuilder packed = new StringBuilder();
+        for (int i = 0; i < record.size(); i++) {
+            String value = record.get(i);
+            if (value.indexOf(PACKED_SEPARATOR) >= 0) {
+                return record.toArray(new String[record.size()]);
+            }
+            // Separate by position, so that empty values are kept
+            if (i > 0) {
+                packed.append(PACKED_SEPARATOR);
+            }
+            packed.append(value);
+        }
+        return packed.toString();
+    }
+
+    private static List<String> unpack(final Object record) {
+        if (record instanceof String[]) {
+            return Arrays.asList((String[]) record);
+        }
+        String packed = (String) record;
+        List<String> values = new ArrayList<>();
+        int start = 0;
+        int end;
+        while ((end = packed.indexOf(PACKED_SEPARATOR, start)) >= 0) {
+            values.add(packed.substring(start, end));
+            start = end + 1;
+        }
+        values.add(packed.substring(start));
+        return values;
+    }
+
+    private static Map<String, String> toMap(final List<String> fields, final List<String> record) {
+        Map<String, String> map = new HashMap<>(fields.size());
+        Iterator<String> fi = fields.iterator();
+        Iterator<String> ri = record.iterator();
+        while (fi.hasNext() && ri.hasNext()) {
+            // assign field-value pairs in map
+            map.put(fi.next(), ri.next());
+        }
         return map;
     }
+
+    /** The records of the file, by the values of a lookup key. */
+    private static final class Index {
+        private final List<String> fields;
+        /** The packed records, by the values of the lookup key. */
+        private final Map<String, Object> records;
+        private final long lastModified;
+        private final long length;
+        private final AtomicBoolean reloading = new AtomicBoolean();
+
+        Index(final List<String> fields,
+              final Map<String, Object> records,
+              final long lastModified,
+              final long length) {
+            this.fields = fields;
+            this.records = records;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        boolean isStale(final File file) {
+            return file.lastModified() != lastModified || file.length() != length;
+        }
+    }
 }
@@ -0,0 +1,351 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.thread;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.openig.util.JsonValues.asBoolean;
+import static org.forgerock.openig.util.JsonValues.asDuration;
+import static org.forgerock.openig.util.JsonValues.asInteger;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.http.EndpointRegistry;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.Duration;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * Runs blocking work (JDBC queries, synchronous LDAP operations, file scans, scripts...) outside of the threads
+ * processing the requests, and gives back a {@link Promise} of the result, so that a slow backend does not exhaust
+ * the container's thread pool.
+ *
+ * <p>Tasks are run by virtual threads when the JVM supports them (and {@code virtualThreads} is not disabled), or by
+ * a bounded thread pool otherwise. In both cases, at most {@code threads} tasks run concurrently, and at most
+ * {@code queueSize} tasks wait for their turn: further tasks are rejected. A virtual thread is started for each task
+ * (virtual threads are not pooled), and waits for a permit before running its task.
+ *
+ * <p>When the executor is shut down, the tasks that never ran are completed with a
+ * {@link RejectedExecutionException}.
+ *
+ * <pre>
+ *     {@code
+ *     {
+ *         "type": "OffloadExecutor",
+ *         "config": {
+ *             "threads"       :  integer > 0 [ OPTIONAL - default to 32 ]
+ *             "queueSize"     :  integer     [ OPTIONAL - default to 1000 ]
+ *             "virtualThreads":  boolean     [ OPTIONAL - default to true (used if available) ]
+ *             "gracePeriod"   :  duration    [ OPTIONAL - default to '10 seconds' ]
+ *         }
+ *     }
+ *     }
+ * </pre>
+ *
+ * <p>The queue depth, active tasks and wait times are exposed as a JSON object at
+ * {@literal /openig/system/objects/.../[executor-name]/executor}.
+ */
+public class OffloadExecutor {
+
+    private static final String THREAD_NAME_PREFIX = "openig-offload-";
+
+    private final ExecutorService executor;
+    private final int threads;
+    private final int queueSize;
+    private final boolean virtual;
+    /** Bounds the number of running tasks when a virtual thread is started for each task. */
+    private final Semaphore permits;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final Histogram waitTimes = new Histogram(new ExponentiallyDecayingReservoir());
+
+    /**
+     * Creates a new offload executor.
+     *
+     * @param threads
+     *         the maximum number of tasks running concurrently
+     * @param queueSize
+     *         the maximum number of tasks waiting to run
+     * @param virtualThreads
+     *         use virtual threads if the JVM supports them
+     */
+    public OffloadExecutor(final int threads, final int queueSize, final boolean virtualThreads) {
+        if (threads <= 0 || queueSize < 0) {
+            throw new IllegalArgumentException(format("Invalid threads (%d) or queueSize (%d)", threads, queueSize));
+        }
+        this.threads = threads;
+        this.queueSize = queueSize;
+        ExecutorService perTask = virtualThreads ? virtualThreadPerTaskExecutor() : null;
+        this.virtual = perTask != null;
+        if (virtual) {
+            this.executor = perTask;
+            this.permits = new Semaphore(threads, true);
+        } else {
+            // The queue is bounded in submit(), so that waiting tasks can be counted
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 1L, TimeUnit.MINUTES,
+                                                             new LinkedBlockingQueue<Runnable>(),
+                                                             new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+            this.permits = null;
+        }
+    }
+
+    /**
+     * Returns an executor starting a new virtual thread for each task, if the JVM supports them.
+     *
+     * @return an executor starting a new virtual thread for each task, or {@code null}
+     */
+    private static ExecutorService virtualThreadPerTaskExecutor() {
+        try {
+            // Thread.ofVirtual().name(prefix, 0).factory(), through the public Thread.Builder interface
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class)
+                                 .invoke(builder, THREAD_NAME_PREFIX, 0L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                                                    .invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Older JVM
+            return null;
+        }
+    }
+
+    /**
+     * Returns {@code true} if tasks are run by virtual threads.
+     *
+     * @return {@code true} if tasks are run by virtual threads.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Runs the given task on this executor.
+     *
+     * @param task
+     *         the blocking task to run
+     * @param <V>
+     *         the type of the task's result
+     * @return a promise completed with the result of the task, or with the exception it has thrown (or a
+     * {@link RejectedExecutionException} if the queue is full)
+     */
+    public <V> Promise<V, Exception> submit(final Callable<V> task) {
+        final PromiseImpl<V, Exception> promise = PromiseImpl.create();
+        if (queued.incrementAndGet() > queueSize + pendingSlots()) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            promise.handleException(new RejectedExecutionException("Too many blocking tasks are waiting"));
+            return promise;
+        }
+        final Task<V> job = new Task<>(task, promise);
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            // Executor is shut down
+            job.reject(e);
+        }
+        return promise;
+    }
+
+    /**
+     * Number of tasks that can be accepted without waiting, because a thread is available.
+     */
+    private int pendingSlots() {
+        return threads - active.get();
+    }
+
+    /**
+     * Returns the current state of this executor as a JSON compatible map.
+     *
+     * @return the current state of this executor
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("virtualThreads", virtual);
+        statistics.put("queued", Math.max(0, queued.get()));
+        statistics.put("active", active.get());
+        statistics.put("completed", completed.get());
+        statistics.put("rejected", rejected.get());
+        Snapshot snapshot = waitTimes.getSnapshot();
+        Map<String, Object> wait = new LinkedHashMap<>();
+        wait.put("mean", NANOSECONDS.toMillis((long) snapshot.getMean()));
+        wait.put("p95", NANOSECONDS.toMillis((long) snapshot.get95thPercentile()));
+        wait.put("max", NANOSECONDS.toMillis(snapshot.getMax()));
+        statistics.put("waitTime", wait);
+        return statistics;
+    }
+
+    /**
+     * Stops accepting tasks and waits for the running ones to terminate. The tasks still waiting to run after the
+     * grace period are completed with a {@link RejectedExecutionException}.
+     *
+     * @param gracePeriod
+     *         how long to wait for the running tasks
+     * @return the tasks that were never started
+     */
+    public List<Runnable> shutdown(final Duration gracePeriod) {
+        executor.shutdown();
+        try {
+            if (!gracePeriod.isZero()) {
+                executor.awaitTermination(gracePeriod.to(MILLISECONDS), MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Virtual threads waiting for a permit are interrupted and reject their task themselves
+        List<Runnable> jobs = executor.shutdownNow();
+        for (Runnable job : jobs) {
+            if (job instanceof Task) {
+                ((Task<?>) job).reject(new RejectedExecutionException("The executor has been shut down"));
+            }
+        }
+        return jobs;
+    }
+
+    /** A submitted task, completing its promise. */
+    private final class Task<V> implements Runnable {
+        private final Callable<V> task;
+        private final PromiseImpl<V, Exception> promise;
+        private final long submitted = System.nanoTime();
+
+        Task(final Callable<V> task, final PromiseImpl<V, Exception> promise) {
+            this.task = task;
+            this.promise = promise;
+        }
+
+        @Override
+        public void run() {
+            if (permits != null) {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    reject(new RejectedExecutionException("The executor has been shut down", e));
+                    return;
+                }
+            }
+            queued.decrementAndGet();
+            active.incrementAndGet();
+            waitTimes.update(System.nanoTime() - submitted);
+            try {
+                promise.handleResult(task.call());
+            } catch (Exception e) {
+                promise.handleException(e);
+            } finally {
+                active.decrementAndGet();
+                completed.incrementAndGet();
+                if (permits != null) {
+                    permits.release();
+                }
+            }
+        }
+
+        void reject(final RejectedExecutionException exception) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            promise.handleException(exception);
+        }
+    }
+
+    /**
+     * Creates and initializes an offload executor in a heap environment.
+     */
+    public static class Heaplet extends GenericHeaplet {
+
+        private Duration gracePeriod;
+
+        @Override
+        public Object create() throws HeapException {
+            int threads = asInteger(config.get("threads").defaultTo(32));
+            if (threads <= 0) {
+                throw new HeapException("'threads' can only be a positive (non-zero) value");
+            }
+            gracePeriod = asDuration(config.get("gracePeriod").defaultTo("10 seconds"));
+            return new OffloadExecutor(threads,
+                                       asInteger(config.get("queueSize").defaultTo(1000)),
+                                       asBoolean(config.get("virtualThreads").defaultTo(true)));
+        }
+
+        @Override
+        public void start() throws HeapException {
+            final OffloadExecutor executor = (OffloadExecutor) object;
+            EndpointRegistry.Registration registration = endpointRegistry().register("executor", new Handler() {
+                @Override
+                public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                    Response response = new Response(Status.OK);
+                    response.getEntity().setJson(executor.getStatistics());
+                    return newResponsePromise(response);
+                }
+            });
+            logger.info(format("Offload executor statistics available at '%s' (virtual threads: %b)",
+                               registration.getPath(),
+                               executor.isVirtual()));
+        }
+
+        @Override
+        public void destroy() {
+            super.destroy();
+            OffloadExecutor executor = (OffloadExecutor) object;
+            if (executor != null) {
+                List<Runnable> jobs = executor.shutdown(gracePeriod);
+                if (!jobs.isEmpty()) {
+                    logger.debug(format("%d submitted blocking tasks will not be executed", jobs.size()));
+                }
+            }
+        }
+    }
+}
@@ -94,4 +94,34 @@ public class MessageCaptureTest {
 
         verify(logger).info(anyString());
     }
+
+    @Test
+    public void shouldNotCaptureEntityWhenEntityCaptureIsDisabled() throws Exception {
+        MessageCapture capture = new MessageCapture(logger, true);
+
+        capture.capture(new NoEntityCaptureContext(new RootContext()), textRequest(), CapturePoint.REQUEST);
+
+        verify(logger).info(captor.capture());
+        assertThat(captor.getValue()).contains("[entity not captured]")
+                                     .doesNotContain("Hello");
+    }
+
+    @Test
+    public void shouldCaptureEntityWhenEntityCaptureIsDisabledAndEntityIsRequired() throws Exception {
+        MessageCapture capture = new MessageCapture(logger, true);
+        NoEntityCaptureContext context = new NoEntityCaptureContext(new RootContext());
+        NoEntityCaptureContext.requireEntity(context, "Test");
+
+        capture.capture(context, textRequest(), CapturePoint.REQUEST);
+
+        verify(logger).info(captor.capture());
+        assertThat(captor.getValue()).contains("Hello");
+    }
+
+    private static Request textRequest() {
+        Request request = new Request();
+        request.getHeaders().put("Content-Type", "text/plain; charset=UTF-8");
+        request.setEntity("Hello");
+        return request;
+    }
 }
@@ -0,0 +1,162 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.openig.filter.CompressionFilter.DEFAULT_CONTENT_TYPES;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.io.IO;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class CompressionFilterTest {
+
+    private static final String CONTENT = "Lorem ipsum dolor sit amet, consectetur adipiscing elit. "
+            + "Lorem ipsum dolor sit amet, consectetur adipiscing elit.";
+
+    @DataProvider
+    public static Object[][] acceptEncodings() {
+        // @Checkstyle:off
+        return new Object[][] {
+                { null, null },
+                { "identity", null },
+                { "gzip", "gzip" },
+                { "deflate", "deflate" },
+                { "deflate, gzip", "gzip" },
+                { "gzip;q=0.5, deflate", "deflate" },
+                { "gzip;q=0, deflate;q=0", null },
+                { "*", "gzip" },
+                { "*;q=0.1, gzip;q=0", "deflate" },
+        };
+        // @Checkstyle:on
+    }
+
+    @Test(dataProvider = "acceptEncodings")
+    public void shouldNegotiateContentCoding(final String acceptEncoding, final String expected) throws Exception {
+        assertThat(CompressionFilter.negotiate(acceptEncoding)).isEqualTo(expected);
+    }
+
+    @Test
+    public void shouldCompressTextualResponse() throws Exception {
+        CompressionFilter filter = new CompressionFilter(true, false, 6, 0, DEFAULT_CONTENT_TYPES);
+
+        Response response = filter.filter(new RootContext(), request("gzip"), backend("text/html", null)).get();
+
+        assertThat(response.getHeaders().getFirst("Content-Encoding")).isEqualTo("gzip");
+        assertThat(response.getHeaders().getFirst("Vary")).isEqualTo("Accept-Encoding");
+        assertThat(gunzip(response)).isEqualTo(CONTENT);
+    }
+
+    @Test
+    public void shouldNotCompressBinaryResponse() throws Exception {
+        CompressionFilter filter = new CompressionFilter(true, false, 6, 0, DEFAULT_CONTENT_TYPES);
+
+        Response response = filter.filter(new RootContext(), request("gzip"), backend("image/png", null)).get();
+
+        assertThat(response.getHeaders().getFirst("Content-Encoding")).isNull();
+    }
+
+    @Test
+    public void shouldNotCompressSmallResponse() throws Exception {
+        CompressionFilter filter = new CompressionFilter(true, false, 6, 1024, DEFAULT_CONTENT_TYPES);
+
+        Response response = filter.filter(new RootContext(), request("gzip"), backend("text/plain", null)).get();
+
+        assertThat(response.getHeaders().getFirst("Content-Encoding")).isNull();
+    }
+
+    @Test
+    public void shouldReuseCachedCompressedRepresentation() throws Exception {
+        CompressionFilter filter = new CompressionFilter(true, false, 6, 0, DEFAULT_CONTENT_TYPES, 10, 1024);
+
+        Response first = filter.filter(new RootContext(), request("gzip"), backend("text/plain", "\"v1\"")).get();
+        Response second = filter.filter(new RootContext(), request("gzip"), backend("text/plain", "\"v1\"")).get();
+
+        assertThat(first.getHeaders().getFirst("ETag")).isEqualTo("W/\"v1\"");
+        assertThat(second.getHeaders().getFirst("Content-Length"))
+                .isEqualTo(first.getHeaders().getFirst("Content-Length"));
+        assertThat(gunzip(second)).isEqualTo(CONTENT);
+    }
+
+    @Test
+    public void shouldDecompressBackendResponse() throws Exception {
+        CompressionFilter filter = new CompressionFilter(false, true, 6, 0, DEFAULT_CONTENT_TYPES);
+        Handler gzipBackend = new Handler() {
+            @Override
+            public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                Response response = new Response(Status.OK);
+                response.getHeaders().put("Content-Type", "text/plain");
+                response.getHeaders().put("Content-Encoding", "gzip");
+                InputStream gzip = CompressingInputStream.gzip(new ByteArrayInputStream(CONTENT.getBytes()), 6);
+                response.setEntity(IO.newBranchingInputStream(gzip, IO.newTemporaryStorage()));
+                return newResponsePromise(response);
+            }
+        };
+
+        Response response = filter.filter(new RootContext(), request(null), gzipBackend).get();
+
+        assertThat(response.getHeaders().getFirst("Content-Encoding")).isNull();
+        assertThat(response.getEntity().getString()).isEqualTo(CONTENT);
+    }
+
+    private static Request request(final String acceptEncoding) throws Exception {
+        Request request = new Request();
+        request.setMethod("GET");
+        request.setUri("http://www.example.com/");
+        if (acceptEncoding != null) {
+            request.getHeaders().put("Accept-Encoding", acceptEncoding);
+        }
+        return request;
+    }
+
+    private static Handler backend(final String contentType, final String etag) {
+        return new Handler() {
+            @Override
+            public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                Response response = new Response(Status.OK);
+                response.getHeaders().put("Content-Type", contentType);
+                response.getHeaders().put("Content-Length", String.valueOf(CONTENT.length()));
+                if (etag != null) {
+                    response.getHeaders().put("ETag", etag);
+                }
+                response.setEntity(CONTENT);
+                return newResponsePromise(response);
+            }
+        };
+    }
+
+    private static String gunzip(final Response response) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IO.stream(new GZIPInputStream(response.getEntity().getRawContentInputStream()), out);
+        return out.toString();
+    }
+}
@@ -18,6 +18,7 @@ package org.forgerock.openig.filter;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -27,15 +28,20 @@ import java.util.regex.Pattern;
 import org.forgerock.http.Handler;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
+import org.forgerock.openig.decoration.capture.NoEntityCaptureContext;
 import org.forgerock.openig.el.Expression;
 import org.forgerock.openig.regex.PatternTemplate;
 import org.forgerock.openig.util.MessageType;
 import org.forgerock.services.context.AttributesContext;
+import org.forgerock.services.context.Context;
 import org.forgerock.services.context.RootContext;
 import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
 import org.forgerock.util.promise.Promises;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -116,4 +122,33 @@ public class EntityExtractFilterTest {
         Map<String, String> results = (Map<String, String>) context.getAttributes().get("result");
         assertThat(results).containsOnly(entry("hello", (String) null));
     }
+
+    @Test
+    public void shouldOnlyRequireTheEntityOfTheExtractedMessage() throws Exception {
+        EntityExtractFilter filter =
+                new EntityExtractFilter(MessageType.RESPONSE,
+                                        Expression.valueOf("${attributes.result}", Map.class));
+        filter.getExtractor().getPatterns().put("hello", Pattern.compile("Hello(.*)"));
+
+        final NoEntityCaptureContext context = new NoEntityCaptureContext(new AttributesContext(new RootContext()));
+        Request request = new Request();
+        request.setEntity("Hello request");
+        final Response response = new Response();
+        response.setEntity("Hello response");
+        final boolean[] requestNotCaptured = new boolean[1];
+
+        when(terminalHandler.handle(any(Context.class), any(Request.class)))
+                .thenAnswer(new Answer<Promise<Response, NeverThrowsException>>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> answer(final InvocationOnMock invocation) {
+                        requestNotCaptured[0] = NoEntityCaptureContext.isEntityCaptureDisabled(context);
+                        return Promises.newResultPromise(response);
+                    }
+                });
+
+        filter.filter(context, request, terminalHandler);
+
+        assertThat(requestNotCaptured[0]).isTrue();
+        assertThat(context.getEntityConsumers()).containsOnly("EntityExtractFilter");
+    }
 }
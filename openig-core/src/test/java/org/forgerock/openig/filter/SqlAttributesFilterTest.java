@@ -39,10 +39,12 @@ import org.forgerock.services.context.Context;
 import org.forgerock.services.context.RootContext;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promises;
+import org.forgerock.util.time.TimeService;
 import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 @SuppressWarnings("javadoc")
@@ -175,6 +177,49 @@ public class SqlAttributesFilterTest {
         verify(filter.getLogger()).warning(matches(" Placeholder 3 has no provided value as parameter"));
     }
 
+    @Test
+    public void shouldCacheQueryResults() throws Exception {
+        SqlAttributesFilter filter = new SqlAttributesFilter(source,
+                Expression.valueOf("${attributes.result}", Map.class), null);
+        filter.getParameters().add(Expression.valueOf("${attributes.uid}", String.class));
+        filter.setCache(new SqlResultCache(TimeService.SYSTEM, 10, 60000L, 60000L));
+
+        mockDatabaseInteractions();
+        when(pmetadata.getParameterCount()).thenReturn(1);
+
+        assertThat(lookup(filter, "bjensen")).containsOnly(entry("password", "secret"));
+        assertThat(lookup(filter, "bjensen")).containsOnly(entry("password", "secret"));
+        assertThat(lookup(filter, "scarter")).containsOnly(entry("password", "secret"));
+
+        verify(statement, times(2)).executeQuery();
+        verify(statement, times(1)).getParameterMetaData();
+    }
+
+    @DataProvider
+    public static Object[][] singleKeyStatements() {
+        return new Object[][] {
+            { "SELECT * FROM users WHERE uid = ?", "SELECT * FROM users WHERE uid IN (?)" },
+            { "SELECT * FROM users WHERE uid=?", "SELECT * FROM users WHERE uid IN (?)" },
+            // Not a single key lookup: left unchanged (and refused by the heaplet)
+            { "SELECT * FROM users WHERE age >= ?", "SELECT * FROM users WHERE age >= ?" },
+            { "SELECT * FROM users WHERE age <= ?", "SELECT * FROM users WHERE age <= ?" },
+            { "SELECT * FROM users WHERE uid != ?", "SELECT * FROM users WHERE uid != ?" }
+        };
+    }
+
+    @Test(dataProvider = "singleKeyStatements")
+    public void shouldOnlyBatchEqualityConditions(final String statement, final String expected) throws Exception {
+        assertThat(SqlAttributesFilter.Heaplet.batchStatement(statement)).isEqualTo(expected);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> lookup(final SqlAttributesFilter filter, final String uid) throws Exception {
+        AttributesContext context = new AttributesContext(new RootContext());
+        context.getAttributes().put("uid", uid);
+        filter.filter(context, null, terminalHandler);
+        return (Map<String, Object>) context.getAttributes().get("result");
+    }
+
     private void mockDatabaseInteractions() throws Exception {
         // Mock the database interactions
         when(source.getConnection()).thenReturn(connection);
@@ -0,0 +1,228 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.forgerock.util.time.Duration.duration;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.forgerock.openig.heap.Name;
+import org.forgerock.openig.log.Logger;
+import org.forgerock.openig.log.NullLogSink;
+import org.forgerock.openig.thread.OffloadExecutor;
+import org.forgerock.util.promise.Promise;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class SqlBatcherTest {
+
+    private static final String STATEMENT = "SELECT * FROM users WHERE uid IN (?)";
+    private static final String SINGLE_STATEMENT = "SELECT * FROM users WHERE uid = ?";
+
+    @Mock
+    private DataSource source;
+
+    @Mock
+    private Connection connection;
+
+    @Mock
+    private PreparedStatement statement;
+
+    @Mock
+    private ResultSet resultSet;
+
+    @Mock
+    private ResultSetMetaData metadata;
+
+    @Mock
+    private ScheduledExecutorService scheduler;
+
+    @Captor
+    private ArgumentCaptor<Runnable> flush;
+
+    private OffloadExecutor executor;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        executor = new OffloadExecutor(2, 10, false);
+        when(source.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+        when(statement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.getMetaData()).thenReturn(metadata);
+        when(metadata.getColumnCount()).thenReturn(2);
+        when(metadata.getColumnLabel(1)).thenReturn("UID");
+        when(metadata.getColumnLabel(2)).thenReturn("PASSWORD");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        executor.shutdown(duration("1 second"));
+    }
+
+    @Test
+    public void shouldCombineTheLookupsOfAWindowIntoOneQuery() throws Exception {
+        // The key column is read once to demultiplex the row, then once more along with the other columns
+        when(resultSet.next()).thenReturn(true, true, false);
+        when(resultSet.getObject(1)).thenReturn("bjensen", "bjensen", "scarter", "scarter");
+        when(resultSet.getObject(2)).thenReturn("secret", "sprain");
+        SqlBatcher batcher = batcher(10);
+
+        Promise<Map<String, Object>, Exception> bjensen = batcher.lookup("bjensen");
+        Promise<Map<String, Object>, Exception> scarter = batcher.lookup("scarter");
+        Promise<Map<String, Object>, Exception> again = batcher.lookup("bjensen");
+        Promise<Map<String, Object>, Exception> nobody = batcher.lookup("nobody");
+        verify(scheduler).schedule(flush.capture(), eq(5L), eq(TimeUnit.MILLISECONDS));
+        assertThat(bjensen.isDone()).isFalse();
+
+        flush.getValue().run();
+
+        assertThat(bjensen.getOrThrow()).containsOnly(entry("UID", "bjensen"), entry("PASSWORD", "secret"));
+        assertThat(scarter.getOrThrow()).containsOnly(entry("UID", "scarter"), entry("PASSWORD", "sprain"));
+        assertThat(again.getOrThrow()).containsOnly(entry("UID", "bjensen"), entry("PASSWORD", "secret"));
+        assertThat(nobody.getOrThrow()).isEmpty();
+        verify(connection).prepareStatement("SELECT * FROM users WHERE uid IN (?, ?, ?)");
+        verify(statement).setObject(1, "bjensen");
+        verify(statement).setObject(2, "scarter");
+        verify(statement).setObject(3, "nobody");
+        verify(connection).close();
+        assertThat(batcher.getStatistics()).containsOnly(entry("lookups", 4L),
+                                                         entry("batches", 1L),
+                                                         entry("meanBatchSize", 4.0),
+                                                         entry("fallbacks", 0L));
+    }
+
+    @Test
+    public void shouldMatchNumericKeysByValue() throws Exception {
+        when(metadata.getColumnType(1)).thenReturn(Types.BIGINT);
+        when(resultSet.next()).thenReturn(true, true, false);
+        when(resultSet.getObject(1)).thenReturn(42L, 42L, 7L, 7L);
+        when(resultSet.getObject(2)).thenReturn("secret", "sprain");
+        SqlBatcher batcher = batcher(2);
+
+        Promise<Map<String, Object>, Exception> padded = batcher.lookup("042");
+        Promise<Map<String, Object>, Exception> integer = batcher.lookup(7);
+
+        assertThat(padded.getOrThrow()).containsOnly(entry("UID", 42L), entry("PASSWORD", "secret"));
+        assertThat(integer.getOrThrow()).containsOnly(entry("UID", 7L), entry("PASSWORD", "sprain"));
+        verify(connection, times(1)).prepareStatement(anyString());
+    }
+
+    @Test
+    public void shouldLookUpAloneTheKeysTheBatchCouldNotMatch() throws Exception {
+        // The database ignores the case: the returned row matches none of the keys
+        when(resultSet.next()).thenReturn(true, false, true, false);
+        when(resultSet.getObject(1)).thenReturn("bjensen");
+        when(resultSet.getObject(2)).thenReturn("secret");
+        SqlBatcher batcher = batcher(2);
+
+        Promise<Map<String, Object>, Exception> bjensen = batcher.lookup("BJensen");
+        Promise<Map<String, Object>, Exception> nobody = batcher.lookup("nobody");
+
+        assertThat(bjensen.getOrThrow()).containsOnly(entry("UID", "bjensen"), entry("PASSWORD", "secret"));
+        assertThat(nobody.getOrThrow()).isEmpty();
+        verify(connection).prepareStatement("SELECT * FROM users WHERE uid IN (?, ?)");
+        verify(connection, times(2)).prepareStatement(SINGLE_STATEMENT);
+        assertThat(batcher.getStatistics()).containsEntry("fallbacks", 2L);
+    }
+
+    @Test
+    public void shouldExecuteFullBatchesWithoutWaitingForTheWindow() throws Exception {
+        SqlBatcher batcher = batcher(2);
+
+        Promise<Map<String, Object>, Exception> bjensen = batcher.lookup("bjensen");
+        Promise<Map<String, Object>, Exception> scarter = batcher.lookup("scarter");
+
+        assertThat(bjensen.getOrThrow()).isEmpty();
+        assertThat(scarter.getOrThrow()).isEmpty();
+        verify(connection).prepareStatement("SELECT * FROM users WHERE uid IN (?, ?)");
+
+        // The window of the full batch ends with nothing left to flush
+        verify(scheduler).schedule(flush.capture(), anyLong(), any(TimeUnit.class));
+        flush.getValue().run();
+        verify(connection, times(1)).prepareStatement(anyString());
+    }
+
+    @Test
+    public void shouldFailAllTheLookupsOfAFailedBatch() throws Exception {
+        when(statement.executeQuery()).thenThrow(new SQLException("Unexpected"));
+        SqlBatcher batcher = batcher(2);
+
+        Promise<Map<String, Object>, Exception> bjensen = batcher.lookup("bjensen");
+        Promise<Map<String, Object>, Exception> scarter = batcher.lookup("scarter");
+
+        assertFailed(bjensen, "Unexpected");
+        assertFailed(scarter, "Unexpected");
+        verify(connection).close();
+    }
+
+    @Test
+    public void shouldFailWhenTheKeyColumnIsNotReturned() throws Exception {
+        when(metadata.getColumnLabel(1)).thenReturn("MAIL");
+        SqlBatcher batcher = batcher(1);
+
+        assertFailed(batcher.lookup("bjensen"), "The batch statement does not return the key column 'uid'");
+    }
+
+    private static void assertFailed(final Promise<Map<String, Object>, Exception> lookup, final String message)
+            throws Exception {
+        try {
+            lookup.getOrThrow();
+            failBecauseExceptionWasNotThrown(SQLException.class);
+        } catch (SQLException e) {
+            assertThat(e).hasMessage(message);
+        }
+    }
+
+    private SqlBatcher batcher(final int maxSize) {
+        return new SqlBatcher(source,
+                              STATEMENT,
+                              SINGLE_STATEMENT,
+                              "uid",
+                              maxSize,
+                              5L,
+                              scheduler,
+                              executor,
+                              new Logger(new NullLogSink(), Name.of("Test")));
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonMap;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.TimeService;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class SqlResultCacheTest {
+
+    private TimeService time;
+    private AtomicInteger queries;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        time = mock(TimeService.class);
+        when(time.now()).thenReturn(0L);
+        queries = new AtomicInteger();
+    }
+
+    @Test
+    public void shouldCacheResultsUntilTheyExpire() throws Exception {
+        SqlResultCache cache = new SqlResultCache(time, 10, 1000L, 1000L);
+
+        assertThat(get(cache, "bjensen", query("secret"))).containsOnly(entry("password", "secret"));
+        assertThat(get(cache, "bjensen", query("other"))).containsOnly(entry("password", "secret"));
+        assertThat(get(cache, "scarter", query("sprain"))).containsOnly(entry("password", "sprain"));
+
+        when(time.now()).thenReturn(1000L);
+        assertThat(get(cache, "bjensen", query("changed"))).containsOnly(entry("password", "changed"));
+
+        assertThat(queries.get()).isEqualTo(3);
+        assertThat(cache.getStatistics()).containsOnly(entry("entries", 2), entry("hits", 1L), entry("misses", 3L));
+    }
+
+    @Test
+    public void shouldCacheEmptyResultsWithTheirOwnExpiration() throws Exception {
+        SqlResultCache cache = new SqlResultCache(time, 10, 1000L, 100L);
+
+        assertThat(get(cache, "nobody", query(null))).isEmpty();
+        assertThat(get(cache, "nobody", query(null))).isEmpty();
+        when(time.now()).thenReturn(100L);
+        assertThat(get(cache, "nobody", query(null))).isEmpty();
+
+        assertThat(queries.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotCacheEmptyResultsWhenDisabled() throws Exception {
+        SqlResultCache cache = new SqlResultCache(time, 10, 1000L, 0L);
+
+        get(cache, "nobody", query(null));
+        get(cache, "nobody", query(null));
+
+        assertThat(queries.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotCacheFailures() throws Exception {
+        SqlResultCache cache = new SqlResultCache(time, 10, 1000L, 1000L);
+        try {
+            get(cache, "bjensen", new Callable<Promise<Map<String, Object>, Exception>>() {
+                @Override
+                public Promise<Map<String, Object>, Exception> call() throws Exception {
+                    return newExceptionPromise((Exception) new SQLException("Unexpected"));
+                }
+            });
+            failBecauseExceptionWasNotThrown(SQLException.class);
+        } catch (SQLException e) {
+            assertThat(e).hasMessage("Unexpected");
+        }
+
+        assertThat(get(cache, "bjensen", query("secret"))).containsOnly(entry("password", "secret"));
+        assertThat(cache.getStatistics()).contains(entry("entries", 1));
+    }
+
+    @Test
+    public void shouldEvictTheLeastRecentlyUsedResults() throws Exception {
+        SqlResultCache cache = new SqlResultCache(time, 2, 1000L, 1000L);
+
+        get(cache, "a", query("a"));
+        get(cache, "b", query("b"));
+        get(cache, "a", query("a"));
+        get(cache, "c", query("c"));
+        get(cache, "a", query("a"));
+        get(cache, "b", query("b"));
+
+        assertThat(queries.get()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldShareTheQueryOfConcurrentLookups() throws Exception {
+        SqlResultCache cache = new SqlResultCache(time, 10, 1000L, 1000L);
+        final PromiseImpl<Map<String, Object>, Exception> pending = PromiseImpl.create();
+
+        Promise<Map<String, Object>, Exception> first =
+                cache.get(parameters("bjensen"), new Callable<Promise<Map<String, Object>, Exception>>() {
+                    @Override
+                    public Promise<Map<String, Object>, Exception> call() throws Exception {
+                        queries.incrementAndGet();
+                        return pending;
+                    }
+                });
+        Promise<Map<String, Object>, Exception> second = cache.get(parameters("bjensen"), query("other"));
+        assertThat(first.isDone()).isFalse();
+        assertThat(second.isDone()).isFalse();
+
+        pending.handleResult(singletonMap("password", (Object) "secret"));
+
+        assertThat(first.getOrThrow()).containsOnly(entry("password", "secret"));
+        assertThat(second.getOrThrow()).containsOnly(entry("password", "secret"));
+        assertThat(queries.get()).isEqualTo(1);
+    }
+
+    private static Map<String, Object> get(final SqlResultCache cache,
+                                           final String uid,
+                                           final Callable<Promise<Map<String, Object>, Exception>> query)
+            throws Exception {
+        return cache.get(parameters(uid), query).getOrThrow();
+    }
+
+    private static List<Object> parameters(final Object... values) {
+        return asList(values);
+    }
+
+    private Callable<Promise<Map<String, Object>, Exception>> query(final String password) {
+        return new Callable<Promise<Map<String, Object>, Exception>>() {
+            @Override
+            public Promise<Map<String, Object>, Exception> call() throws Exception {
+                queries.incrementAndGet();
+                if (password == null) {
+                    return newResultPromise(Collections.<String, Object>emptyMap());
+                }
+                return newResultPromise(singletonMap("password", (Object) password));
+            }
+        };
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.util.time.Duration.duration;
+import static org.mockito.Mockito.mock;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.log.Logger;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class ConnectionWarmUpTest {
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRefuseNonPositiveConnections() throws Exception {
+        new ConnectionWarmUp.Target(new URI("http://backend.example.com"), 0);
+    }
+
+    @Test
+    public void shouldSendConcurrentRequestsToEachTarget() throws Exception {
+        PendingHandler client = new PendingHandler();
+        ConnectionWarmUp warmUp = new ConnectionWarmUp(client,
+                                                       asList(target("http://one.example.com/", 3),
+                                                              target("https://two.example.com/", 2)),
+                                                       "HEAD",
+                                                       duration("10 milliseconds"),
+                                                       mock(Logger.class));
+
+        // Nothing answered within the timeout
+        assertThat(warmUp.warmUp()).isEqualTo(0);
+
+        assertThat(client.requests).hasSize(5);
+        assertThat(client.requests.get(0).getMethod()).isEqualTo("HEAD");
+        assertThat(client.requests.get(0).getUri().toString()).isEqualTo("http://one.example.com/");
+        assertThat(client.requests.get(4).getUri().toString()).isEqualTo("https://two.example.com/");
+    }
+
+    @Test
+    public void shouldCountSuccessfulConnections() throws Exception {
+        Handler client = new Handler() {
+            private int count;
+
+            @Override
+            public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                Response response = new Response(Status.OK);
+                if (count++ % 2 == 1) {
+                    // Connection failure
+                    response = new Response(Status.BAD_GATEWAY);
+                    response.setCause(new Exception("Boom"));
+                }
+                return Response.newResponsePromise(response);
+            }
+        };
+        ConnectionWarmUp warmUp = new ConnectionWarmUp(client,
+                                                       asList(target("http://one.example.com/", 4)),
+                                                       "OPTIONS",
+                                                       duration("1 second"),
+                                                       mock(Logger.class));
+
+        assertThat(warmUp.warmUp()).isEqualTo(2);
+    }
+
+    private static ConnectionWarmUp.Target target(final String uri, final int connections) throws Exception {
+        return new ConnectionWarmUp.Target(new URI(uri), connections);
+    }
+
+    private static final class PendingHandler implements Handler {
+        private final List<Request> requests = new ArrayList<>();
+
+        @Override
+        public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+            requests.add(request);
+            return PromiseImpl.create();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.util.time.Duration.duration;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.openig.log.Logger;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.FakeTimeService;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class HedgingHandlerTest {
+
+    @Mock
+    private ScheduledExecutorService executor;
+
+    @Mock
+    private ScheduledFuture<?> future;
+
+    private FakeTimeService time;
+    private PendingHandler backend;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        doReturn(future).when(executor).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+        time = new FakeTimeService(0L);
+        backend = new PendingHandler();
+    }
+
+    @Test
+    public void shouldNotHedgeNonIdempotentRequests() throws Exception {
+        HedgingHandler handler = newHandler(null, 1.0);
+
+        handler.handle(new RootContext(), request("POST"));
+
+        assertThat(backend.pending).hasSize(1);
+        verify(executor, never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void shouldReturnHedgeResponseWhenItArrivesFirst() throws Exception {
+        HedgingHandler handler = newHandler(null, 1.0);
+
+        Promise<Response, NeverThrowsException> promise = handler.handle(new RootContext(), request("GET"));
+        scheduledHedge().run();
+        assertThat(backend.pending).hasSize(2);
+
+        Response hedgeResponse = new Response(Status.OK);
+        backend.complete(1, hedgeResponse);
+        backend.complete(0, new Response(Status.OK));
+
+        assertThat(promise.get()).isSameAs(hedgeResponse);
+        assertThat(handler.getStatistics()).containsEntry("hedgesIssued", 1L)
+                                           .containsEntry("hedgesWon", 1L);
+    }
+
+    @Test
+    public void shouldCancelHedgeWhenOriginalRequestCompletesFirst() throws Exception {
+        HedgingHandler handler = newHandler(null, 1.0);
+
+        Promise<Response, NeverThrowsException> promise = handler.handle(new RootContext(), request("GET"));
+        Response response = new Response(Status.OK);
+        backend.complete(0, response);
+
+        assertThat(promise.get()).isSameAs(response);
+        verify(future).cancel(false);
+
+        // Even if the hedge task runs anyway, no hedge is sent
+        scheduledHedge().run();
+        assertThat(backend.pending).hasSize(1);
+        assertThat(handler.getStatistics()).containsEntry("hedgesIssued", 0L);
+    }
+
+    @Test
+    public void shouldNotHedgeWhenBudgetIsExhausted() throws Exception {
+        HedgingHandler handler = newHandler(null, 0.0);
+
+        handler.handle(new RootContext(), request("GET"));
+        scheduledHedge().run();
+
+        assertThat(backend.pending).hasSize(1);
+        assertThat(handler.getStatistics()).containsEntry("hedgesIssued", 0L);
+    }
+
+    @Test
+    public void shouldHedgeRequestsSelectedByCondition() throws Exception {
+        HedgingHandler handler = newHandler(Expression.valueOf("${request.method == 'POST'}", Boolean.class), 1.0);
+
+        handler.handle(new RootContext(), request("POST"));
+        scheduledHedge().run();
+
+        assertThat(backend.pending).hasSize(2);
+    }
+
+    @Test
+    public void shouldUseObservedPercentileAsDelay() throws Exception {
+        HedgingHandler handler = newHandler(null, 1.0);
+        assertThat(handler.currentDelay()).isEqualTo(1000L);
+
+        for (int i = 0; i < 100; i++) {
+            handler.handle(new RootContext(), request("GET"));
+            time.advance(50L);
+            backend.complete(i, new Response(Status.OK));
+        }
+
+        assertThat(handler.currentDelay()).isEqualTo(50L);
+    }
+
+    private HedgingHandler newHandler(final Expression<Boolean> condition, final double budget) {
+        HedgingHandler handler = new HedgingHandler(backend,
+                                                    executor,
+                                                    time,
+                                                    condition,
+                                                    0.95,
+                                                    duration("5 milliseconds"),
+                                                    duration("1 second"),
+                                                    budget);
+        handler.setLogger(mock(Logger.class));
+        return handler;
+    }
+
+    private Runnable scheduledHedge() {
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor).schedule(captor.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+        return captor.getValue();
+    }
+
+    private static Request request(final String method) throws Exception {
+        Request request = new Request();
+        request.setMethod(method);
+        request.setUri("http://backend.example.com/resource");
+        return request;
+    }
+
+    private static final class PendingHandler implements Handler {
+        private final List<PromiseImpl<Response, NeverThrowsException>> pending = new ArrayList<>();
+
+        @Override
+        public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+            PromiseImpl<Response, NeverThrowsException> promise = PromiseImpl.create();
+            pending.add(promise);
+            return promise;
+        }
+
+        void complete(final int index, final Response response) {
+            pending.get(index).handleResult(response);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static com.xebialabs.restito.builder.stub.StubHttp.whenHttp;
+import static com.xebialabs.restito.semantics.Action.status;
+import static com.xebialabs.restito.semantics.Condition.alwaysTrue;
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.util.Options.defaultOptions;
+import static org.forgerock.util.time.Duration.duration;
+import static org.mockito.Mockito.mock;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.handler.HttpClientHandler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.handler.LoadBalancingHandler.Policy;
+import org.forgerock.openig.log.Logger;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.FakeTimeService;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.glassfish.grizzly.http.util.HttpStatus;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.xebialabs.restito.server.StubServer;
+
+@SuppressWarnings("javadoc")
+public class LoadBalancingHandlerTest {
+
+    private static final URI BACKEND_A = URI.create("http://a.example.com:8080");
+    private static final URI BACKEND_B = URI.create("http://b.example.com:8080");
+
+    private FakeTimeService time;
+    private RecordingHandler backends;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        time = new FakeTimeService(1000L);
+        backends = new RecordingHandler();
+    }
+
+    @Test
+    public void shouldRebaseRequestOnSelectedBackend() throws Exception {
+        LoadBalancingHandler handler = newHandler(Policy.LEAST_OUTSTANDING, BACKEND_A);
+
+        Request request = new Request();
+        request.setUri("http://gateway.example.com/orders?id=42");
+        handler.handle(new RootContext(), request);
+
+        assertThat(backends.uris).containsExactly("http://a.example.com:8080/orders?id=42");
+    }
+
+    @Test
+    public void shouldSelectBackendWithLeastOutstandingRequests() throws Exception {
+        LoadBalancingHandler handler = newHandler(Policy.LEAST_OUTSTANDING, BACKEND_A, BACKEND_B);
+        backends.pending = true;
+
+        // Fill both backends with 1 request, then a 3rd one goes on either backend
+        handler.handle(new RootContext(), request());
+        handler.handle(new RootContext(), request());
+        assertThat(backends.countFor(BACKEND_A)).isEqualTo(1);
+        assertThat(backends.countFor(BACKEND_B)).isEqualTo(1);
+
+        // Complete the request sent to A: A is now the least loaded
+        backends.complete(BACKEND_A, new Response(Status.OK));
+        handler.handle(new RootContext(), request());
+        assertThat(backends.countFor(BACKEND_A)).isEqualTo(2);
+        assertThat(backends.countFor(BACKEND_B)).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldPreferLowLatencyBackendWithPeakEwma() throws Exception {
+        LoadBalancingHandler handler = newHandler(Policy.PEAK_EWMA, BACKEND_A, BACKEND_B);
+        backends.pending = true;
+
+        // A answers in 500 ms, B in 10 ms
+        handler.handle(new RootContext(), request());
+        handler.handle(new RootContext(), request());
+        time.advance(10L);
+        backends.complete(BACKEND_B, new Response(Status.OK));
+        time.advance(490L);
+        backends.complete(BACKEND_A, new Response(Status.OK));
+
+        backends.pending = false;
+        for (int i = 0; i < 10; i++) {
+            handler.handle(new RootContext(), request());
+        }
+        assertThat(backends.countFor(BACKEND_B)).isEqualTo(11);
+        assertThat(backends.countFor(BACKEND_A)).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldEjectFailingBackendAndReadmitItLater() throws Exception {
+        LoadBalancingHandler handler = new LoadBalancingHandler(backends,
+                                                                asList(BACKEND_A, BACKEND_B),
+                                                                Policy.LEAST_OUTSTANDING,
+                                                                time,
+                                                                duration("10 seconds"),
+                                                                2,
+                                                                duration("30 seconds"),
+                                                                duration("5 minutes"));
+        handler.setLogger(mock(Logger.class));
+        backends.failing.put(BACKEND_A.getHost(), Status.BAD_GATEWAY);
+
+        for (int i = 0; i < 20; i++) {
+            handler.handle(new RootContext(), request());
+        }
+        // A has been ejected after its 2nd failure
+        assertThat(backends.countFor(BACKEND_A)).isEqualTo(2);
+        assertThat(handler.select().getBaseUri()).isEqualTo(BACKEND_B);
+
+        // After the ejection period, A is selectable again
+        backends.failing.clear();
+        time.advance(duration("31 seconds"));
+        int before = backends.countFor(BACKEND_A);
+        for (int i = 0; i < 20; i++) {
+            handler.handle(new RootContext(), request());
+        }
+        assertThat(backends.countFor(BACKEND_A)).isGreaterThan(before);
+    }
+
+    @Test
+    public void shouldFailOpenWhenEveryBackendIsEjected() throws Exception {
+        LoadBalancingHandler handler = new LoadBalancingHandler(backends,
+                                                                asList(BACKEND_A, BACKEND_B),
+                                                                Policy.LEAST_OUTSTANDING,
+                                                                time,
+                                                                duration("10 seconds"),
+                                                                1,
+                                                                duration("30 seconds"),
+                                                                duration("5 minutes"));
+        handler.setLogger(mock(Logger.class));
+        backends.failing.put(BACKEND_A.getHost(), Status.INTERNAL_SERVER_ERROR);
+        backends.failing.put(BACKEND_B.getHost(), Status.INTERNAL_SERVER_ERROR);
+
+        for (int i = 0; i < 4; i++) {
+            Response response = handler.handle(new RootContext(), request()).get();
+            assertThat(response.getStatus()).isEqualTo(Status.INTERNAL_SERVER_ERROR);
+        }
+        assertThat(backends.uris).hasSize(4);
+    }
+
+    @Test
+    public void shouldBalanceAcrossStubServers() throws Exception {
+        StubServer server1 = new StubServer().run();
+        StubServer server2 = new StubServer().run();
+        try (HttpClientHandler clientHandler = new HttpClientHandler(defaultOptions())) {
+            whenHttp(server1).match(alwaysTrue()).then(status(HttpStatus.OK_200));
+            whenHttp(server2).match(alwaysTrue()).then(status(HttpStatus.OK_200));
+
+            LoadBalancingHandler handler =
+                    new LoadBalancingHandler(new ClientHandler(clientHandler),
+                                             asList(URI.create("http://localhost:" + server1.getPort()),
+                                                    URI.create("http://localhost:" + server2.getPort())),
+                                             Policy.LEAST_OUTSTANDING,
+                                             time);
+            for (int i = 0; i < 20; i++) {
+                Response response = handler.handle(new RootContext(), request()).get();
+                assertThat(response.getStatus()).isEqualTo(Status.OK);
+            }
+            assertThat(server1.getCalls().size() + server2.getCalls().size()).isEqualTo(20);
+            assertThat(server1.getCalls()).isNotEmpty();
+            assertThat(server2.getCalls()).isNotEmpty();
+        } finally {
+            server1.stop();
+            server2.stop();
+        }
+    }
+
+    private LoadBalancingHandler newHandler(final Policy policy, final URI... baseUris) {
+        LoadBalancingHandler handler = new LoadBalancingHandler(backends, asList(baseUris), policy, time);
+        handler.setLogger(mock(Logger.class));
+        return handler;
+    }
+
+    private static Request request() throws Exception {
+        Request request = new Request();
+        request.setUri("http://gateway.example.com/resource");
+        return request;
+    }
+
+    /**
+     * Records the requests it is given and answers immediately, with a failure or let them pending.
+     */
+    private static final class RecordingHandler implements Handler {
+        private final List<String> uris = new ArrayList<>();
+        private final Map<String, Status> failing = new LinkedHashMap<>();
+        private final Map<String, List<PromiseImpl<Response, NeverThrowsException>>> inFlight =
+                new LinkedHashMap<>();
+        private boolean pending;
+
+        @Override
+        public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+            String host = request.getUri().getHost();
+            uris.add(request.getUri().toString());
+            if (failing.containsKey(host)) {
+                return Response.newResponsePromise(new Response(failing.get(host)));
+            }
+            if (pending) {
+                PromiseImpl<Response, NeverThrowsException> promise = PromiseImpl.create();
+                if (!inFlight.containsKey(host)) {
+                    inFlight.put(host, new ArrayList<PromiseImpl<Response, NeverThrowsException>>());
+                }
+                inFlight.get(host).add(promise);
+                return promise;
+            }
+            return Response.newResponsePromise(new Response(Status.OK));
+        }
+
+        void complete(final URI backend, final Response response) {
+            inFlight.get(backend.getHost()).remove(0).handleResult(response);
+        }
+
+        int countFor(final URI backend) {
+            int count = 0;
+            for (String uri : uris) {
+                if (uri.startsWith(backend.toString())) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.util.time.Duration.duration;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.FakeTimeService;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class DeadlinesTest {
+
+    @Mock
+    private ScheduledExecutorService executor;
+
+    @Mock
+    private ScheduledFuture<?> future;
+
+    private FakeTimeService time;
+    private PendingHandler backend;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        doReturn(future).when(executor).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+        time = new FakeTimeService(0L);
+        backend = new PendingHandler();
+    }
+
+    @Test
+    public void shouldKeepTheSoonestDeadline() throws Exception {
+        DeadlineContext outer = new DeadlineContext(new RootContext(), time, duration("1 second"));
+        DeadlineContext inner = new DeadlineContext(outer, time, duration("5 seconds"));
+
+        assertThat(inner.getDeadline()).isEqualTo(1000L);
+        time.advance(1, TimeUnit.SECONDS);
+        assertThat(inner.isExpired()).isTrue();
+        assertThat(DeadlineContext.isExpired(inner)).isTrue();
+        assertThat(DeadlineContext.isExpired(new RootContext())).isFalse();
+    }
+
+    @Test
+    public void shouldPassThroughWithoutDeadline() throws Exception {
+        Deadlines.handle(new RootContext(), new Request(), backend, executor);
+
+        assertThat(backend.pending).isNotNull();
+        verify(executor, never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void shouldNotCallHandlerWhenDeadlineHasExpired() throws Exception {
+        Context context = new DeadlineContext(new RootContext(), time, duration("100 milliseconds"));
+        time.advance(200, TimeUnit.MILLISECONDS);
+
+        Response response = Deadlines.handle(context, new Request(), backend, executor).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.GATEWAY_TIMEOUT);
+        assertThat(backend.pending).isNull();
+    }
+
+    @Test
+    public void shouldReturnGatewayTimeoutWhenDeadlineExpires() throws Exception {
+        Context context = new DeadlineContext(new RootContext(), time, duration("100 milliseconds"));
+        time.advance(40, TimeUnit.MILLISECONDS);
+
+        Promise<Response, NeverThrowsException> promise = Deadlines.handle(context, new Request(), backend, executor);
+        ArgumentCaptor<Runnable> expiration = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor).schedule(expiration.capture(), eq(60L), eq(TimeUnit.MILLISECONDS));
+        expiration.getValue().run();
+
+        assertThat(promise.get().getStatus()).isEqualTo(Status.GATEWAY_TIMEOUT);
+        // A late response is closed, freeing its connection
+        Response late = spy(new Response(Status.OK));
+        backend.pending.handleResult(late);
+        assertThat(promise.get().getStatus()).isEqualTo(Status.GATEWAY_TIMEOUT);
+        verify(late).close();
+    }
+
+    @Test
+    public void shouldReturnResponseReceivedBeforeDeadline() throws Exception {
+        Context context = new DeadlineContext(new RootContext(), time, duration("100 milliseconds"));
+
+        Promise<Response, NeverThrowsException> promise = Deadlines.handle(context, new Request(), backend, executor);
+        Response response = new Response(Status.OK);
+        backend.pending.handleResult(response);
+
+        assertThat(promise.get()).isSameAs(response);
+        verify(future).cancel(false);
+    }
+
+    private static final class PendingHandler implements Handler {
+        private PromiseImpl<Response, NeverThrowsException> pending;
+
+        @Override
+        public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+            pending = PromiseImpl.create();
+            return pending;
+        }
+    }
+}
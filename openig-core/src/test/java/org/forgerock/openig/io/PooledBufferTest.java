@@ -0,0 +1,141 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.io;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+
+import org.forgerock.http.io.Buffer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class PooledBufferTest {
+
+    private SlabPool pool;
+    private MappedSpillRegion region;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        pool = new SlabPool(16, 64, 128);
+        region = new MappedSpillRegion(null, 64, 4);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        region.close();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRefuseSlabSizesThatAreNotPowersOfTwo() throws Exception {
+        new SlabPool(10, 64, 128);
+    }
+
+    @Test
+    public void shouldComputeSizeClasses() throws Exception {
+        assertThat(pool.sizeClass(1)).isEqualTo(16);
+        assertThat(pool.sizeClass(17)).isEqualTo(32);
+        assertThat(pool.sizeClass(32)).isEqualTo(32);
+        assertThat(pool.sizeClass(1000)).isEqualTo(64);
+    }
+
+    @Test
+    public void shouldReadWhatWasAppendedAcrossSegments() throws Exception {
+        Buffer buffer = new PooledBuffer(pool, region, 16, 64, 1024);
+        byte[] data = bytes(200);
+        buffer.append(data, 0, 100);
+        buffer.append(data, 100, 100);
+
+        assertThat(buffer.length()).isEqualTo(200);
+        assertThat(buffer.read(150)).isEqualTo(data[150]);
+        byte[] read = new byte[200];
+        assertThat(buffer.read(0, read, 0, 200)).isEqualTo(200);
+        assertThat(read).isEqualTo(data);
+        assertThat(buffer.read(190, read, 0, 50)).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldSpillPastMemoryLimit() throws Exception {
+        Buffer buffer = new PooledBuffer(pool, region, 16, 64, 1024);
+        buffer.append(bytes(200), 0, 200);
+
+        assertThat(region.getStatistics().get("spills")).isEqualTo(3L);
+        assertThat(region.getStatistics().get("inUse")).isEqualTo(192L);
+
+        buffer.close();
+        assertThat(region.getStatistics().get("inUse")).isEqualTo(0L);
+        assertThat(pool.getStatistics().get("inUse")).isEqualTo(0L);
+    }
+
+    @Test
+    public void shouldReuseReleasedSlabs() throws Exception {
+        Buffer first = new PooledBuffer(pool, null, 16, 64, 1024);
+        first.append(bytes(16), 0, 16);
+        first.close();
+        Buffer second = new PooledBuffer(pool, null, 16, 64, 1024);
+        second.append(bytes(16), 0, 16);
+
+        assertThat(pool.getStatistics()).containsEntry("allocated", 16L)
+                                        .containsEntry("acquisitions", 2L);
+    }
+
+    @Test
+    public void shouldReclaimTheSegmentsOfBuffersThatWereNotClosed() throws Exception {
+        leakBuffer(200);
+        assertThat(pool.getStatistics().get("inUse")).isEqualTo(64L);
+        assertThat(region.getStatistics().get("inUse")).isEqualTo(192L);
+
+        int reclaimed = 0;
+        for (int i = 0; i < 100 && reclaimed == 0; i++) {
+            System.gc();
+            Thread.sleep(10L);
+            reclaimed = pool.reclaim();
+        }
+
+        assertThat(reclaimed).isEqualTo(1);
+        assertThat(pool.getStatistics()).containsEntry("inUse", 0L)
+                                        .containsEntry("reclaimed", 1L);
+        assertThat(region.getStatistics().get("inUse")).isEqualTo(0L);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void shouldFailWhenLimitIsExceeded() throws Exception {
+        Buffer buffer = new PooledBuffer(pool, region, 16, 64, 100);
+        buffer.append(bytes(101), 0, 101);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void shouldFailWhenPoolAndRegionAreExhausted() throws Exception {
+        Buffer buffer = new PooledBuffer(pool, null, 16, 1024, 1024);
+        buffer.append(bytes(256), 0, 256);
+    }
+
+    /** Appends to a buffer that is dropped without being closed. */
+    private void leakBuffer(final int length) throws IOException {
+        new PooledBuffer(pool, region, 16, 64, 1024).append(bytes(length), 0, length);
+    }
+
+    private static byte[] bytes(final int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+}
@@ -27,6 +27,7 @@ import static org.forgerock.util.time.Duration.duration;
 import static org.mockito.Mockito.*;
 
 import java.io.IOException;
+import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.security.KeyFactory;
 import java.security.KeyPair;
@@ -34,6 +35,9 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.spec.RSAPrivateKeySpec;
 import java.security.spec.RSAPublicKeySpec;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 import org.forgerock.http.header.CookieHeader;
@@ -47,9 +51,11 @@ import org.forgerock.json.jose.jwt.JwtClaimsSet;
 import org.forgerock.openig.heap.Name;
 import org.forgerock.openig.log.Logger;
 import org.forgerock.openig.log.NullLogSink;
+import org.forgerock.util.encode.Base64url;
 import org.forgerock.util.time.Duration;
 import org.forgerock.util.time.TimeService;
 import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 @SuppressWarnings("javadoc")
@@ -290,10 +296,126 @@ public class JwtCookieSessionTest {
     public void shouldFailIfSessionIsLargerThanFourThousandsKB() throws Exception {
         Request request = new Request();
         JwtCookieSession session = newJwtSession(request);
-        session.put("more-than-4KB", generateMessageOf(5000));
+        session.put("more-than-two-cookies", generateRandomMessageOf(7000));
         session.save(new Response());
     }
 
+    @Test
+    public void shouldNotCompressSessionContentByDefault() throws Exception {
+        JwtCookieSession session = newJwtSession(new Request());
+        session.put("compressible", generateMessageOf(2000));
+        Response response = new Response();
+        session.save(response);
+
+        List<Cookie> cookies = SetCookieHeader.valueOf(response).getCookies();
+        JwtClaimsSet claimsSet = decryptClaimsSet(cookies.get(0).getValue());
+        assertThat(claimsSet.isDefined("compressible")).isTrue();
+        assertThat(claimsSet.isDefined("_ig_z")).isFalse();
+    }
+
+    @Test
+    public void shouldCompressSessionContent() throws Exception {
+        JwtCookieSession session = newCompressedJwtSession(new Request());
+        session.put("compressible", generateMessageOf(5000));
+        Response response = new Response();
+        session.save(response);
+
+        List<Cookie> cookies = SetCookieHeader.valueOf(response).getCookies();
+        assertThat(cookies).hasSize(1);
+        assertThat(cookies.get(0).getValue().length()).isLessThan(1000);
+        JwtClaimsSet claimsSet = decryptClaimsSet(cookies.get(0).getValue());
+        assertThat(claimsSet.isDefined("compressible")).isFalse();
+
+        Request request = new Request();
+        request.getHeaders().add(new CookieHeader(cookies));
+        assertThat(newJwtSession(request)).contains(entry("compressible", generateMessageOf(5000)));
+    }
+
+    @Test
+    public void shouldNotRoundLargeNumbersOfCompressedSessionContent() throws Exception {
+        BigInteger bigInteger = new BigInteger("123456789012345678901234567890");
+        BigDecimal bigDecimal = new BigDecimal("1234567890.12345678901234567890");
+        JwtCookieSession session = newCompressedJwtSession(new Request());
+        session.put("compressible", generateMessageOf(1000));
+        session.put("long", Long.MAX_VALUE);
+        session.put("bigInteger", bigInteger);
+        session.put("bigDecimal", bigDecimal);
+        Response response = new Response();
+        session.save(response);
+
+        Request request = new Request();
+        request.getHeaders().add(new CookieHeader(SetCookieHeader.valueOf(response).getCookies()));
+        assertThat(newJwtSession(request)).contains(entry("long", Long.MAX_VALUE),
+                                                    entry("bigInteger", bigInteger),
+                                                    entry("bigDecimal", bigDecimal));
+    }
+
+    @Test
+    public void shouldSplitLargeSessionAcrossSeveralCookies() throws Exception {
+        String message = generateRandomMessageOf(5000);
+        JwtCookieSession session = newJwtSession(new Request());
+        session.put("more-than-4KB", message);
+        Response response = new Response();
+        session.save(response);
+
+        List<Cookie> cookies = SetCookieHeader.valueOf(response).getCookies();
+        assertThat(cookies).extracting("name").containsExactly(OPENIG_JWT_SESSION, OPENIG_JWT_SESSION + "_1");
+
+        Request request = new Request();
+        request.getHeaders().add(new CookieHeader(cookies));
+        session = newJwtSession(request);
+        assertThat(session).contains(entry("more-than-4KB", message));
+
+        // The unused cookie is expired once the session gets smaller
+        session.put("more-than-4KB", "small");
+        response = new Response();
+        session.save(response);
+        cookies = SetCookieHeader.valueOf(response).getCookies();
+        assertThat(cookies).extracting("name").containsExactly(OPENIG_JWT_SESSION, OPENIG_JWT_SESSION + "_1");
+        assertThat(cookies.get(1).getExpires()).isEqualTo(new Date(0L));
+    }
+
+    @Test
+    public void shouldNotLoadSessionWithMissingCookie() throws Exception {
+        JwtCookieSession session = newJwtSession(new Request());
+        session.put("more-than-4KB", generateRandomMessageOf(5000));
+        Response response = new Response();
+        session.save(response);
+
+        Request request = new Request();
+        request.getHeaders().add(
+                new CookieHeader(singletonList(SetCookieHeader.valueOf(response).getCookies().get(0))));
+        assertThat(newJwtSession(request)).isEmpty();
+    }
+
+    @DataProvider
+    public static Object[][] forgedCookieCounts() {
+        // @Checkstyle:off
+        return new Object[][] {
+                { "0~x" },
+                { "1~x" },
+                { "3~x" },
+                { "500000~x" },
+                { "2000000000~x" }
+        };
+        // @Checkstyle:on
+    }
+
+    @Test(dataProvider = "forgedCookieCounts")
+    public void shouldRejectForgedCookieCount(final String value) throws Exception {
+        Request request = new Request();
+        setRequestCookie(request, value);
+
+        JwtCookieSession session = newJwtSession(request);
+        assertThat(session).isEmpty();
+
+        // Only the session cookie is expired
+        Response response = new Response();
+        session.save(response);
+        assertThat(SetCookieHeader.valueOf(response).getCookies()).extracting("name")
+                                                                 .containsExactly(OPENIG_JWT_SESSION);
+    }
+
     @Test
     public void shouldWarnTheUserAboutGettingCloseToTheThreshold() throws Exception {
         Request request = new Request();
@@ -305,10 +427,18 @@ public class JwtCookieSessionTest {
                 spied,
                 TimeService.SYSTEM,
                 duration(DEFAULT_SESSION_TIMEOUT));
-        session.put("in-between-3KB-and-4KB", generateMessageOf(2500));
+        session.put("close-to-two-cookies", generateRandomMessageOf(5000));
         session.save(new Response());
 
-        verify(spied).warning(matches("Current JWT session's size \\(.* chars\\) is quite close to the 4KB limit.*"));
+        verify(spied).warning(
+                matches("Current JWT session's size \\(.* chars\\) is quite close to the 8000 chars limit.*"));
+    }
+
+    private static String generateRandomMessageOf(final int size) {
+        // Random content cannot be compressed
+        byte[] bytes = new byte[size * 3 / 4];
+        new Random(42L).nextBytes(bytes);
+        return Base64url.encode(bytes);
     }
 
     private static Object generateMessageOf(final int size) {
@@ -323,6 +453,17 @@ public class JwtCookieSessionTest {
         return newJwtSession(request, logger, TimeService.SYSTEM, duration(DEFAULT_SESSION_TIMEOUT));
     }
 
+    private JwtCookieSession newCompressedJwtSession(final Request request) {
+        return new JwtCookieSession(request,
+                                    keyPair,
+                                    OPENIG_JWT_SESSION,
+                                    logger,
+                                    TimeService.SYSTEM,
+                                    duration(DEFAULT_SESSION_TIMEOUT),
+                                    JwtSessionManager.DEFAULT_MAX_COOKIES,
+                                    true);
+    }
+
     private JwtCookieSession newJwtSession(final Request request,
                                            final Logger logger,
                                            final TimeService timeService,
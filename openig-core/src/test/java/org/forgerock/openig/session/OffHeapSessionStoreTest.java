@@ -0,0 +1,106 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.session;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.util.time.Duration.duration;
+
+import org.forgerock.util.FakeTimeService;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class OffHeapSessionStoreTest {
+
+    private FakeTimeService time;
+    private OffHeapSessionStore store;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        time = new FakeTimeService(1000000L);
+        store = new OffHeapSessionStore(time, 1024, 64, duration(60L, SECONDS), 8);
+    }
+
+    @Test
+    public void shouldStoreSessionsAcrossBlocks() throws Exception {
+        byte[] content = content(300);
+        assertThat(store.put("a", content)).isTrue();
+
+        assertThat(store.get("a")).isEqualTo(content);
+        assertThat(store.free()).isEqualTo(1024 - 320);
+        assertThat(store.get("unknown")).isNull();
+    }
+
+    @Test
+    public void shouldReplaceAndRemoveSessions() throws Exception {
+        store.put("a", content(300));
+        store.put("a", content(10));
+        assertThat(store.get("a")).isEqualTo(content(10));
+        assertThat(store.free()).isEqualTo(1024 - 64);
+
+        store.remove("a");
+        assertThat(store.get("a")).isNull();
+        assertThat(store.free()).isEqualTo(1024);
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedSessions() throws Exception {
+        store.put("a", content(100));
+        store.put("b", content(300));
+        store.get("a");
+
+        assertThat(store.put("c", content(600))).isTrue();
+
+        assertThat(store.get("b")).isNull();
+        assertThat(store.get("a")).isNotNull();
+        assertThat(store.get("c")).isNotNull();
+    }
+
+    @Test
+    public void shouldRejectSessionsLargerThanTheCapacity() throws Exception {
+        assertThat(store.put("a", content(2000))).isFalse();
+        assertThat(store.size()).isZero();
+    }
+
+    @Test
+    public void shouldExpireIdleSessions() throws Exception {
+        store.put("a", content(100));
+        store.put("b", content(100));
+
+        time.advance(30L, SECONDS);
+        store.get("a");
+        time.advance(40L, SECONDS);
+        store.expire();
+
+        assertThat(store.size()).isEqualTo(1);
+        assertThat(store.get("a")).isNotNull();
+
+        time.advance(61L, SECONDS);
+        store.expire();
+        assertThat(store.size()).isZero();
+        assertThat(store.free()).isEqualTo(1024);
+    }
+
+    private static byte[] content(final int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) i;
+        }
+        return content;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.session;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.openig.session.ServerSessionManager.OPENIG_SESSION;
+import static org.forgerock.util.time.Duration.duration;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.forgerock.http.header.CookieHeader;
+import org.forgerock.http.header.SetCookieHeader;
+import org.forgerock.http.protocol.Cookie;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.http.session.Session;
+import org.forgerock.util.FakeTimeService;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class ServerSessionManagerTest {
+
+    private FakeTimeService time;
+    private ServerSessionManager manager;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        time = new FakeTimeService(1000000L);
+        manager = new ServerSessionManager(new OffHeapSessionStore(time, 65536, 256, duration(30L, MINUTES), 8),
+                                           OPENIG_SESSION);
+    }
+
+    @Test
+    public void shouldStoreTheSessionOnTheServerSide() throws Exception {
+        Session session = manager.load(new Request());
+        session.put("user", "bjensen");
+        session.put("claims", singletonMap("groups", asList("admins", 42, 4000000000L, 1.5, true)));
+        Response response = new Response(Status.OK);
+        manager.save(session, response);
+
+        Cookie cookie = SetCookieHeader.valueOf(response).getCookies().get(0);
+        assertThat(cookie.getName()).isEqualTo(OPENIG_SESSION);
+        assertThat(cookie.getValue()).doesNotContain("bjensen");
+
+        Session loaded = manager.load(request(cookie.getValue()));
+        assertThat(loaded).isEqualTo(session);
+
+        // The session identifier is only sent when the session is created
+        response = new Response(Status.OK);
+        loaded.put("user", "jdoe");
+        manager.save(loaded, response);
+        assertThat(response.getHeaders().get("Set-Cookie")).isNull();
+        assertThat(manager.load(request(cookie.getValue())).get("user")).isEqualTo("jdoe");
+    }
+
+    @Test
+    public void shouldNotIssueCookieForUnusedSession() throws Exception {
+        Response response = new Response(Status.OK);
+        manager.save(manager.load(new Request()), response);
+        assertThat(response.getHeaders().get("Set-Cookie")).isNull();
+    }
+
+    @Test
+    public void shouldExpireTheCookieOfUnknownSession() throws Exception {
+        Session session = manager.load(request("unknown"));
+        assertThat(session).isEmpty();
+
+        Response response = new Response(Status.OK);
+        manager.save(session, response);
+
+        Cookie cookie = SetCookieHeader.valueOf(response).getCookies().get(0);
+        assertThat(cookie.getExpires().getTime()).isEqualTo(0L);
+    }
+
+    @Test
+    public void shouldRemoveClearedSession() throws Exception {
+        Session session = manager.load(new Request());
+        session.put("user", "bjensen");
+        Response response = new Response(Status.OK);
+        manager.save(session, response);
+        String id = SetCookieHeader.valueOf(response).getCookies().get(0).getValue();
+
+        Session loaded = manager.load(request(id));
+        loaded.clear();
+        manager.save(loaded, new Response(Status.OK));
+
+        assertThat(manager.getStore().size()).isZero();
+        assertThat(manager.load(request(id))).isEmpty();
+    }
+
+    @Test
+    public void shouldExpireIdleSession() throws Exception {
+        Session session = manager.load(new Request());
+        session.put("user", "bjensen");
+        Response response = new Response(Status.OK);
+        manager.save(session, response);
+        String id = SetCookieHeader.valueOf(response).getCookies().get(0).getValue();
+
+        time.advance(31L, MINUTES);
+
+        assertThat(manager.load(request(id))).isEmpty();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectNonJsonValues() throws Exception {
+        manager.load(new Request()).put("object", new Object());
+    }
+
+    @Test
+    public void shouldSerializeJsonValues() throws Exception {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("string", "h\u00e9llo");
+        values.put("int", -42);
+        values.put("long", 1L << 40);
+        values.put("double", 3.5d);
+        values.put("boolean", false);
+        values.put("null", null);
+        values.put("list", asList(1, "two", singletonMap("three", true)));
+
+        assertThat(SessionValues.decode(SessionValues.encode(values))).isEqualTo(values);
+    }
+
+    private static Request request(final String id) {
+        Request request = new Request();
+        request.getHeaders().add(new CookieHeader(singletonList(new Cookie().setValue(id).setName(OPENIG_SESSION))));
+        return request;
+    }
+}
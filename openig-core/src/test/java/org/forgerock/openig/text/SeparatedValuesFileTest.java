@@ -0,0 +1,162 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.text;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.Executor;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class SeparatedValuesFileTest {
+
+    private File file;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        file = File.createTempFile("users", ".csv");
+        write(file, "uid,name,password\n"
+                + "bjensen,Babs Jensen,secret\n"
+                + "\"scarter\",\"Carter, Sam\",sprain\n"
+                + "short\n"
+                + "bjensen,Duplicate,other\n");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @DataProvider
+    public static Object[][] indexed() {
+        // @Checkstyle:off
+        return new Object[][] {
+                { false },
+                { true },
+        };
+        // @Checkstyle:on
+    }
+
+    @Test(dataProvider = "indexed")
+    public void shouldFindTheFirstMatchingRecord(final boolean indexed) throws Exception {
+        SeparatedValuesFile csv = new SeparatedValuesFile(file);
+        csv.setIndexed(indexed);
+
+        assertThat(csv.getRecord("uid", "bjensen")).containsOnly(entry("uid", "bjensen"),
+                                                                 entry("name", "Babs Jensen"),
+                                                                 entry("password", "secret"));
+        assertThat(csv.getRecord("uid", "scarter")).contains(entry("name", "Carter, Sam"));
+        assertThat(csv.getRecord("name", "Sam")).isNull();
+        assertThat(csv.getRecord("mail", "bjensen")).isNull();
+    }
+
+    @Test(dataProvider = "indexed")
+    public void shouldKeepEmptyValues(final boolean indexed) throws Exception {
+        write(file, "title,uid,name,mail\n"
+                + ",bjensen,,bjensen@example.com\n");
+        SeparatedValuesFile csv = new SeparatedValuesFile(file);
+        csv.setIndexed(indexed);
+
+        assertThat(csv.getRecord("uid", "bjensen")).containsOnly(entry("title", ""),
+                                                                 entry("uid", "bjensen"),
+                                                                 entry("name", ""),
+                                                                 entry("mail", "bjensen@example.com"));
+    }
+
+    @Test
+    public void shouldUseExplicitFields() throws Exception {
+        SeparatedValuesFile csv = new SeparatedValuesFile(file, UTF_8, Separators.COMMA.getSeparator(), false);
+        csv.getFields().add("id");
+        csv.getFields().add("cn");
+        csv.setIndexed(true);
+
+        assertThat(csv.getRecord("id", "scarter")).containsOnly(entry("id", "scarter"), entry("cn", "Carter, Sam"));
+        assertThat(csv.getRecord("id", "uid")).containsOnly(entry("id", "uid"), entry("cn", "name"));
+    }
+
+    @Test
+    public void shouldRebuildTheIndexWhenTheFileChanges() throws Exception {
+        SeparatedValuesFile csv = new SeparatedValuesFile(file);
+        csv.setIndexed(true);
+        assertThat(csv.getRecord("uid", "bjensen")).contains(entry("password", "secret"));
+
+        write(file, "uid,name,password\nbjensen,Babs Jensen,changed\n");
+        file.setLastModified(file.lastModified() + 10000L);
+
+        assertThat(csv.getRecord("uid", "bjensen")).contains(entry("password", "changed"));
+        assertThat(csv.getRecord("uid", "scarter")).isNull();
+        assertThat(csv.getStatistics()).contains(entry("records", 1),
+                                                 entry("lookups", 3L),
+                                                 entry("misses", 1L),
+                                                 entry("reloads", 1L));
+    }
+
+    @Test
+    public void shouldUseThePreviousIndexWhileItIsRebuilt() throws Exception {
+        Executor executor = mock(Executor.class);
+        SeparatedValuesFile csv = new SeparatedValuesFile(file);
+        csv.setIndexed(true);
+        csv.setReloadExecutor(executor);
+        csv.getRecord("uid", "bjensen");
+
+        write(file, "uid,name,password\nbjensen,Babs Jensen,changed\n");
+        file.setLastModified(file.lastModified() + 10000L);
+
+        assertThat(csv.getRecord("uid", "bjensen")).contains(entry("password", "secret"));
+        assertThat(csv.getRecord("uid", "bjensen")).contains(entry("password", "secret"));
+        verify(executor).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void shouldNotReadTheFileForEachLookup() throws Exception {
+        StringBuilder content = new StringBuilder("uid,name,password\n");
+        for (int i = 0; i < 100000; i++) {
+            content.append("user.").append(i).append(",User ").append(i).append(",password").append(i).append('\n');
+        }
+        write(file, content.toString());
+        SeparatedValuesFile csv = new SeparatedValuesFile(file);
+        csv.setIndexed(true);
+        csv.getRecord("uid", "user.0");
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 100000; i++) {
+            assertThat(csv.getRecord("uid", "user." + i)).hasSize(3);
+        }
+        // Scanning the file for each lookup would take minutes
+        assertThat(System.nanoTime() - start).isLessThan(10000000000L);
+    }
+
+    private static void write(final File file, final String content) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8)) {
+            writer.write(content);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.thread;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.forgerock.util.time.Duration.duration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.util.promise.Promise;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class OffloadExecutorTest {
+
+    private OffloadExecutor executor;
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        if (executor != null) {
+            executor.shutdown(duration("1 second"));
+        }
+    }
+
+    @Test
+    public void shouldRunTaskOnAnotherThread() throws Exception {
+        executor = new OffloadExecutor(2, 10, false);
+        final Thread caller = Thread.currentThread();
+
+        Promise<Thread, Exception> promise = executor.submit(new Callable<Thread>() {
+            @Override
+            public Thread call() throws Exception {
+                return Thread.currentThread();
+            }
+        });
+
+        assertThat(promise.get(5, TimeUnit.SECONDS)).isNotSameAs(caller);
+        assertThat(executor.getStatistics()).containsEntry("rejected", 0L);
+    }
+
+    @Test(expectedExceptions = ExecutionException.class)
+    public void shouldPropagateTaskException() throws Exception {
+        executor = new OffloadExecutor(1, 10, false);
+
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                throw new Exception("Boom");
+            }
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void shouldRejectTasksWhenQueueIsFull() throws Exception {
+        executor = new OffloadExecutor(1, 1, false);
+        final CountDownLatch latch = new CountDownLatch(1);
+        Callable<Void> blocking = new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                latch.await();
+                return null;
+            }
+        };
+
+        // One running, one waiting
+        Promise<Void, Exception> running = executor.submit(blocking);
+        Promise<Void, Exception> waiting = executor.submit(blocking);
+        Promise<Void, Exception> rejected = executor.submit(blocking);
+
+        try {
+            rejected.getOrThrow(5, TimeUnit.SECONDS);
+            failBecauseExceptionWasNotThrown(RejectedExecutionException.class);
+        } catch (RejectedExecutionException e) {
+            assertThat(executor.getStatistics()).containsEntry("rejected", 1L);
+        } finally {
+            latch.countDown();
+        }
+        running.get(5, TimeUnit.SECONDS);
+        waiting.get(5, TimeUnit.SECONDS);
+    }
+
+    @DataProvider
+    public static Object[][] virtualThreads() {
+        // @Checkstyle:off
+        return new Object[][] {
+                { false },
+                { true }
+        };
+        // @Checkstyle:on
+    }
+
+    @Test(dataProvider = "virtualThreads")
+    public void shouldRejectTheWaitingTasksWhenShutDown(final boolean virtualThreads) throws Exception {
+        executor = new OffloadExecutor(1, 10, virtualThreads);
+        final CountDownLatch started = new CountDownLatch(1);
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                started.countDown();
+                new CountDownLatch(1).await();
+                return null;
+            }
+        });
+        Promise<Void, Exception> waiting = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                return null;
+            }
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+        executor.shutdown(duration("0 seconds"));
+
+        try {
+            waiting.getOrThrow(5, TimeUnit.SECONDS);
+            failBecauseExceptionWasNotThrown(RejectedExecutionException.class);
+        } catch (RejectedExecutionException e) {
+            assertThat(executor.getStatistics()).containsEntry("rejected", 1L);
+        }
+    }
+
+    @Test(dataProvider = "virtualThreads")
+    public void shouldNotRunMoreTasksConcurrentlyThanThreads(final boolean virtualThreads) throws Exception {
+        executor = new OffloadExecutor(4, 1000, virtualThreads);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<Promise<Void, Exception>> promises = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            promises.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    int current = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), current));
+                    }
+                    Thread.sleep(1L);
+                    running.decrementAndGet();
+                    return null;
+                }
+            }));
+        }
+        for (Promise<Void, Exception> promise : promises) {
+            promise.getOrThrow(5, TimeUnit.SECONDS);
+        }
+
+        assertThat(maxRunning.get()).isBetween(1, 4);
+    }
+}
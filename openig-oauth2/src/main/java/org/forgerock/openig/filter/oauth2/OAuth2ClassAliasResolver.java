@@ -23,6 +23,7 @@ import org.forgerock.openig.alias.ClassAliasResolver;
 import org.forgerock.openig.filter.oauth2.client.ClientRegistration;
 import org.forgerock.openig.filter.oauth2.client.Issuer;
 import org.forgerock.openig.filter.oauth2.client.OAuth2ClientFilter;
+import org.forgerock.openig.filter.oauth2.client.UserInfoCache;
 
 /**
  * Register all the aliases supported by the {@literal openig-oauth2} module.
@@ -36,6 +37,7 @@ public class OAuth2ClassAliasResolver implements ClassAliasResolver {
         ALIASES.put("OAuth2ClientFilter", OAuth2ClientFilter.class);
         ALIASES.put("OAuth2ResourceServerFilter", OAuth2ResourceServerFilterHeaplet.class);
         ALIASES.put("OAuth2RSFilter", OAuth2ResourceServerFilterHeaplet.class);
+        ALIASES.put("UserInfoCache", UserInfoCache.class);
     }
 
     @Override
@@ -17,11 +17,13 @@
 package org.forgerock.openig.filter.oauth2;
 
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.forgerock.http.filter.Filters.chainOf;
 import static org.forgerock.openig.el.Bindings.bindings;
 import static org.forgerock.openig.heap.Keys.CLIENT_HANDLER_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.asDuration;
 import static org.forgerock.openig.util.JsonValues.getWithDeprecation;
 import static org.forgerock.openig.util.JsonValues.ofExpression;
 import static org.forgerock.util.time.Duration.duration;
@@ -29,6 +31,7 @@ import static org.forgerock.util.time.Duration.duration;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 
 import org.forgerock.authz.modules.oauth2.AccessToken;
 import org.forgerock.authz.modules.oauth2.AccessTokenException;
@@ -44,6 +47,8 @@ import org.forgerock.openig.el.Expression;
 import org.forgerock.openig.el.ExpressionException;
 import org.forgerock.openig.filter.ConditionEnforcementFilter;
 import org.forgerock.openig.filter.oauth2.cache.CachingAccessTokenResolver;
+import org.forgerock.openig.filter.oauth2.resolver.JwkSetCache;
+import org.forgerock.openig.filter.oauth2.resolver.JwtAccessTokenResolver;
 import org.forgerock.openig.filter.oauth2.resolver.OpenAmAccessTokenResolver;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
@@ -82,6 +87,26 @@ import org.forgerock.util.time.TimeService;
  * {@literal scopes}, {@literal tokenInfoEndpoint} and {@literal providerHandler} are the 3 only mandatory
  * configuration attributes.
  * <p>
+ * When the authorization server issues signed JWT access tokens, they can be validated locally (signature,
+ * expiration, issuer and audience), without calling the {@literal tokenInfoEndpoint}, with the {@literal jwt}
+ * optional attribute:
+ *
+ * <pre>
+ * {@code
+ * "jwt": {
+ *   "issuer": "https://openam.example.com:8443/openam/oauth2",       [ REQUIRED ]
+ *   "jwksUri": "https://openam.example.com:8443/openam/oauth2/connect/jwk_uri",  [ REQUIRED ]
+ *   "audience": [ "resource-server" ],       [ OPTIONAL - not checked by default ]
+ *   "skew": "30 seconds",                    [ OPTIONAL - tolerated clock difference ]
+ *   "refreshInterval": "15 minutes",         [ OPTIONAL - background refresh of the keys ]
+ *   "minRefetchInterval": "30 seconds"       [ OPTIONAL - minimum delay between 2 fetches on unknown key ids ]
+ * }
+ * }
+ * </pre>
+ *
+ * In that case, {@literal tokenInfoEndpoint} becomes optional: when it is set, opaque (non JWT) tokens are still
+ * resolved with it, otherwise they are rejected.
+ * <p>
  * If {@literal cacheExpiration} is not set, the default is to keep the {@link AccessToken}s for 1 minute.
  * {@literal cacheExpiration} is expressed using natural language (use {@literal zero} or {@literal none}
  * to deactivate caching, any 0 valued duration will also deactivate it):
@@ -117,6 +142,7 @@ public class OAuth2ResourceServerFilterHeaplet extends GenericHeaplet {
     public static final String DEFAULT_REALM_NAME = "OpenIG";
 
     private ThreadSafeCache<String, Promise<AccessToken, AccessTokenException>> cache;
+    private ScheduledFuture<?> scheduledRefresh;
 
     @Override
     public Object create() throws HeapException {
@@ -125,10 +151,18 @@ public class OAuth2ResourceServerFilterHeaplet extends GenericHeaplet {
                                            Handler.class);
 
         TimeService time = heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class);
-        AccessTokenResolver resolver = new OpenAmAccessTokenResolver(
-                httpHandler,
-                time,
-                config.get("tokenInfoEndpoint").required().asString());
+        AccessTokenResolver resolver = null;
+        JsonValue jwt = config.get("jwt");
+        if (jwt.isNull() || config.isDefined("tokenInfoEndpoint")) {
+            resolver = new OpenAmAccessTokenResolver(
+                    httpHandler,
+                    time,
+                    config.get("tokenInfoEndpoint").required().asString());
+        }
+        if (jwt.isNotNull()) {
+            // Verify JWT access tokens locally, opaque tokens are still given to the tokeninfo endpoint
+            resolver = createJwtResolver(jwt, httpHandler, time, resolver);
+        }
 
         // Build the cache
         Duration expiration = duration(config.get("cacheExpiration").defaultTo("1 minute").asString());
@@ -164,8 +198,51 @@ public class OAuth2ResourceServerFilterHeaplet extends GenericHeaplet {
         return filter;
     }
 
+    private AccessTokenResolver createJwtResolver(final JsonValue jwt,
+                                                  final Handler httpHandler,
+                                                  final TimeService time,
+                                                  final AccessTokenResolver fallback) throws HeapException {
+        final JwkSetCache keys = new JwkSetCache(httpHandler,
+                                                 jwt.get("jwksUri").required().asURI(),
+                                                 time,
+                                                 asDuration(jwt.get("minRefetchInterval").defaultTo("30 seconds")));
+        Set<String> audiences = new HashSet<>();
+        JsonValue audience = jwt.get("audience");
+        if (audience.isString()) {
+            audiences.add(audience.asString());
+        } else if (audience.isNotNull()) {
+            audiences.addAll(audience.asList(String.class));
+        }
+
+        // Fetch the keys ahead of the first request, then keep them up to date in the background
+        keys.refresh();
+        Duration refreshInterval = asDuration(jwt.get("refreshInterval").defaultTo("15 minutes"));
+        if (!refreshInterval.isZero() && !refreshInterval.isUnlimited()) {
+            ScheduledExecutorService executorService =
+                    heap.resolve(config.get("executor").defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY),
+                                 ScheduledExecutorService.class);
+            long period = refreshInterval.to(MILLISECONDS);
+            scheduledRefresh = executorService.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    keys.refresh();
+                }
+            }, period, period, MILLISECONDS);
+        }
+
+        return new JwtAccessTokenResolver(keys,
+                                          time,
+                                          jwt.get("issuer").required().asString(),
+                                          audiences,
+                                          asDuration(jwt.get("skew").defaultTo("30 seconds")),
+                                          fallback);
+    }
+
     @Override
     public void destroy() {
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+        }
         if (cache != null) {
             cache.clear();
         }
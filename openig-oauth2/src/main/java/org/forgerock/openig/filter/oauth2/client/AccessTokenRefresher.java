@@ -0,0 +1,123 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2.client;
+
+import static org.forgerock.util.Reject.checkNotNull;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.ExceptionHandler;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Refreshes the access tokens so that concurrent refreshes with the same refresh token (typically the parallel
+ * requests of a session that all got their access token rejected) result in a single call to the authorization
+ * server: all of them wait for, and get, the same refreshed access token response.
+ * <p>
+ * As the refresh token may be rotated by the authorization server, a successful refresh is also reused by the
+ * requests that present the same refresh token during {@link #REUSE_WINDOW} milliseconds after its completion (their
+ * session was loaded before the refreshed one was saved). A failed refresh is never reused.
+ */
+final class AccessTokenRefresher {
+
+    /** How long (in milliseconds) a successful refresh is reused. */
+    static final long REUSE_WINDOW = 10000L;
+
+    private final TimeService time;
+    private final ConcurrentMap<String, Refresh> refreshes = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new access token refresher.
+     *
+     * @param time
+     *         the time service used to expire the completed refreshes
+     */
+    AccessTokenRefresher(final TimeService time) {
+        this.time = checkNotNull(time);
+    }
+
+    /**
+     * Refreshes the access token of the given session, unless a refresh with the same refresh token is in progress or
+     * has just completed.
+     *
+     * @param context
+     *         the context of the request that needs the refresh
+     * @param session
+     *         the session holding the refresh token
+     * @param registration
+     *         the client registration used to refresh the access token
+     * @return a promise completed with the access token response
+     */
+    Promise<JsonValue, OAuth2ErrorException> refresh(final Context context,
+                                                     final OAuth2Session session,
+                                                     final ClientRegistration registration) {
+        purge();
+        final String key = registration.getName() + ':' + session.getRefreshToken();
+        final Refresh refresh = new Refresh();
+        final Refresh current = refreshes.putIfAbsent(key, refresh);
+        if (current != null) {
+            return current.promise;
+        }
+        registration.refreshAccessToken(context, session)
+                    .thenOnResultOrException(new ResultHandler<JsonValue>() {
+                        @Override
+                        public void handleResult(final JsonValue response) {
+                            refresh.completedAt = time.now();
+                            refresh.promise.handleResult(response);
+                        }
+                    }, new ExceptionHandler<OAuth2ErrorException>() {
+                        @Override
+                        public void handleException(final OAuth2ErrorException exception) {
+                            refreshes.remove(key, refresh);
+                            refresh.promise.handleException(exception);
+                        }
+                    });
+        return refresh.promise;
+    }
+
+    /**
+     * Returns the number of pending (or reusable) refreshes.
+     *
+     * @return the number of pending (or reusable) refreshes
+     */
+    int size() {
+        return refreshes.size();
+    }
+
+    private void purge() {
+        for (Iterator<Map.Entry<String, Refresh>> iterator = refreshes.entrySet().iterator(); iterator.hasNext();) {
+            final long completedAt = iterator.next().getValue().completedAt;
+            if (completedAt != 0L && time.since(completedAt) >= REUSE_WINDOW) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /** A pending (or completed) refresh. */
+    private static final class Refresh {
+        private final PromiseImpl<JsonValue, OAuth2ErrorException> promise = PromiseImpl.create();
+        private volatile long completedAt;
+    }
+}
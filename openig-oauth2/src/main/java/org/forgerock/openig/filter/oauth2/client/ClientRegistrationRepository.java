@@ -17,95 +17,60 @@ package org.forgerock.openig.filter.oauth2.client;
 
 import static org.forgerock.util.Reject.checkNotNull;
 
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class handles the {@link ClientRegistration}s defined in the
- * {@link OAuth2ClientFilter} using {@link ReentrantReadWriteLock} to improve
- * concurrency.
+ * {@link OAuth2ClientFilter}, and the ones added by dynamic client
+ * registration. Lookups are lock-free: the registrations are indexed in
+ * concurrent maps by name and by issuer.
  */
 class ClientRegistrationRepository {
 
-    private List<ClientRegistration> registrations;
-    private Map<String, ClientRegistration> registrationsByName;
-    private Map<Issuer, ClientRegistration> registrationsByIssuer;
-    private final ReadWriteLock rwl = new ReentrantReadWriteLock();
-    private final Lock r = rwl.readLock();
-    private final Lock w = rwl.writeLock();
+    private final ConcurrentMap<String, ClientRegistration> registrationsByName = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Issuer, ClientRegistration> registrationsByIssuer = new ConcurrentHashMap<>();
+    private final AtomicReference<ClientRegistration> defaultRegistration = new AtomicReference<>();
+    private final AtomicInteger count = new AtomicInteger();
 
     ClientRegistrationRepository() {
-        this(new LinkedList<ClientRegistration>());
     }
 
     ClientRegistrationRepository(List<ClientRegistration> registrations) {
-        this.registrations = checkNotNull(registrations);
-        this.registrationsByName = new HashMap<>(registrations.size());
-        this.registrationsByIssuer = new HashMap<>(registrations.size());
-        for (final ClientRegistration cr : registrations) {
-            registrationsByName.put(cr.getName(), cr);
-            registrationsByIssuer.put(cr.getIssuer(), cr);
+        for (final ClientRegistration cr : checkNotNull(registrations)) {
+            add(cr);
         }
     }
 
     void add(ClientRegistration clientRegistration) {
-        w.lock();
-        try {
-            registrations.add(clientRegistration);
-            registrationsByName.put(clientRegistration.getName(), clientRegistration);
-            registrationsByIssuer.put(clientRegistration.getIssuer(), clientRegistration);
-        } finally {
-            w.unlock();
-        }
+        defaultRegistration.compareAndSet(null, clientRegistration);
+        count.incrementAndGet();
+        registrationsByName.put(clientRegistration.getName(), clientRegistration);
+        registrationsByIssuer.put(clientRegistration.getIssuer(), clientRegistration);
     }
 
     ClientRegistration findByName(String name) {
         if (name == null) {
             return null;
         }
-        r.lock();
-        try {
-            return registrationsByName.get(name);
-        } finally {
-            r.unlock();
-        }
+        return registrationsByName.get(name);
     }
 
     ClientRegistration findByIssuer(Issuer issuer) {
         if (issuer == null) {
             return null;
         }
-        r.lock();
-        try {
-            return registrationsByIssuer.get(issuer);
-        } finally {
-            r.unlock();
-        }
+        return registrationsByIssuer.get(issuer);
     }
 
     ClientRegistration findDefault() {
-        if (registrations.isEmpty()) {
-            return null;
-        }
-        r.lock();
-        try {
-            return registrations.get(0);
-        } finally {
-            r.unlock();
-        }
+        return defaultRegistration.get();
     }
 
     boolean needsNascarPage() {
-        r.lock();
-        try {
-            return registrations.size() != 1;
-        } finally {
-            r.unlock();
-        }
+        return count.get() != 1;
     }
 }
@@ -0,0 +1,94 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2.client;
+
+import java.util.concurrent.Callable;
+
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.Function;
+import org.forgerock.util.PromiseCache;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Caches the {@link Issuer}s discovered by the {@link DiscoveryFilter} (WebFinger and OpenID well-known
+ * configuration), keyed by the discovered host base.
+ *
+ * <p>A discovered issuer is cached for {@code expiration}: concurrent discoveries of the same host share the same
+ * calls, failures are not cached. When the cache is full, the least recently used issuers are evicted.
+ */
+final class DiscoveryCache {
+
+    private final PromiseCache<String, Issuer, DiscoveryException> cache;
+    private final Function<Issuer, Duration, NeverThrowsException> timeToLive;
+
+    /**
+     * Creates a new cache of discovered issuers.
+     *
+     * @param time
+     *         the time service
+     * @param maxEntries
+     *         the maximum number of cached issuers
+     * @param expiration
+     *         how long a discovered issuer is cached
+     * @throws IllegalArgumentException
+     *         if {@code maxEntries} or {@code expiration} is not positive
+     */
+    DiscoveryCache(final TimeService time, final int maxEntries, final Duration expiration) {
+        this.cache = new PromiseCache<>(time, maxEntries, expiration);
+        this.timeToLive = new Function<Issuer, Duration, NeverThrowsException>() {
+            @Override
+            public Duration apply(final Issuer issuer) {
+                return expiration;
+            }
+        };
+    }
+
+    /**
+     * Returns the issuer discovered for the given host base, performing the discovery if it is not cached.
+     *
+     * @param hostBase
+     *         the host base of the account identifier
+     * @param discovery
+     *         performs the discovery when the issuer is not cached
+     * @return a promise completed with the discovered issuer
+     */
+    Promise<Issuer, DiscoveryException> get(final String hostBase,
+                                            final Callable<Promise<Issuer, DiscoveryException>> discovery) {
+        return cache.getValue(hostBase, new AsyncFunction<String, Issuer, DiscoveryException>() {
+            @Override
+            public Promise<Issuer, DiscoveryException> apply(final String key) throws DiscoveryException {
+                try {
+                    return discovery.call();
+                } catch (Exception e) {
+                    throw new DiscoveryException("Unable to discover the issuer", e);
+                }
+            }
+        }, timeToLive);
+    }
+
+    /**
+     * Returns the number of cached issuers (including the pending discoveries).
+     *
+     * @return the number of cached issuers
+     */
+    int size() {
+        return cache.size();
+    }
+}
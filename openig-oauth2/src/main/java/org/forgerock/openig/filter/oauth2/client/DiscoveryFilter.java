@@ -18,19 +18,18 @@ package org.forgerock.openig.filter.oauth2.client;
 import static java.lang.String.format;
 import static org.forgerock.http.Responses.newInternalServerError;
 import static org.forgerock.http.protocol.Status.OK;
+import static java.util.concurrent.TimeUnit.HOURS;
 import static org.forgerock.http.util.Uris.withQuery;
-import static org.forgerock.json.JsonValue.field;
-import static org.forgerock.json.JsonValue.json;
-import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.openig.filter.oauth2.client.Issuer.ISSUER_KEY;
 import static org.forgerock.openig.filter.oauth2.client.OAuth2Utils.getJsonContent;
 import static org.forgerock.util.promise.Promises.newExceptionPromise;
 import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.forgerock.util.time.Duration.duration;
 
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
 
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
@@ -49,6 +48,8 @@ import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.Function;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
 
 /**
  * In order for an OpenID Connect Relying Party to utilize OpenID Connect
@@ -69,7 +70,8 @@ import org.forgerock.util.promise.Promise;
  * <br>
  * Then, IG verifies if an existing {@link Issuer} already exists in the heap
  * corresponding to the extracted host name. If it exists, reuse it. If not,
- * IG verifies this host name is not part of an Issuer "supportedDomain".
+ * IG verifies this host name is not part of an Issuer "supportedDomain"
+ * (the supported domains of the heap issuers are indexed once).
  * If the host name belongs to an {@link Issuer} supported Domain, this
  * {@link Issuer} is used. Otherwise, discovery process continues...
  * <br>
@@ -79,7 +81,8 @@ import org.forgerock.util.promise.Promise;
  * <br>
  * Based on the returned OpenID Issuer's location, the OpenID well-known
  * end-point is extracted and the filter builds a {@link Issuer} which is
- * placed in the context and in the heap to be reused if needed.
+ * placed in the context and in a bounded cache (see {@link DiscoveryCache})
+ * to be reused until it expires.
  * </p>
  *
  * @see <a href="https://openid.net/specs/openid-connect-discovery-1_0.html">
@@ -91,12 +94,20 @@ public class DiscoveryFilter implements Filter {
     private static final String WELLKNOWN_WEBFINGER = ".well-known/webfinger";
     private static final String WELLKNOWN_OPENID_CONFIGURATION = ".well-known/openid-configuration";
 
+    /** The default maximum number of cached discovered issuers. */
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    /** The default time a discovered issuer is cached. */
+    static final Duration DEFAULT_EXPIRATION = duration(1L, HOURS);
+
     private final Handler discoveryHandler;
     private final Heap heap;
+    private final DiscoveryCache cache;
     private final Logger logger;
+    private volatile SupportedDomains supportedDomains;
 
     /**
-     * Creates a discovery filter.
+     * Creates a discovery filter, caching the discovered issuers with the default settings.
      * @param handler
      *            The handler to perform the queries.
      * @param heap
@@ -105,8 +116,24 @@ public class DiscoveryFilter implements Filter {
      *            For logging activities.
      */
     DiscoveryFilter(final Handler handler, final Heap heap, final Logger logger) {
+        this(handler, heap, new DiscoveryCache(TimeService.SYSTEM, DEFAULT_MAX_ENTRIES, DEFAULT_EXPIRATION), logger);
+    }
+
+    /**
+     * Creates a discovery filter.
+     * @param handler
+     *            The handler to perform the queries.
+     * @param heap
+     *            A reference to the current heap.
+     * @param cache
+     *            The cache of the discovered issuers.
+     * @param logger
+     *            For logging activities.
+     */
+    DiscoveryFilter(final Handler handler, final Heap heap, final DiscoveryCache cache, final Logger logger) {
         this.discoveryHandler = handler;
         this.heap = heap;
+        this.cache = cache;
         this.logger = logger;
     }
 
@@ -132,7 +159,7 @@ public class DiscoveryFilter implements Filter {
                 });
     }
 
-    private Promise<Issuer, DiscoveryException> retrieveIssuer(Context context, Request request) {
+    private Promise<Issuer, DiscoveryException> retrieveIssuer(final Context context, final Request request) {
         final AccountIdentifier account;
         try {
             account = extractFromInput(request.getForm().getFirst("discovery"));
@@ -143,14 +170,14 @@ public class DiscoveryFilter implements Filter {
         final String hostString = account.getHostBase().toASCIIString();
         Issuer issuer;
         try {
-            // Auto-created Issuer heap objects are named according to the discovered host base.
+            // Issuers may be declared in the heap with the name of their host base.
             issuer = heap.get(hostString, Issuer.class);
             if (issuer != null) {
                 return newResultPromise(issuer);
             }
 
             // Checks if this domain name should be supported by an existing issuer.
-            issuer = fromSupportedDomainNames(hostString);
+            issuer = getSupportedDomains().find(hostString);
             if (issuer != null) {
                 return newResultPromise(issuer);
             }
@@ -158,48 +185,34 @@ public class DiscoveryFilter implements Filter {
             return newExceptionPromise(new DiscoveryException("Error while retrieving the Issuer", e));
         }
 
-        // Performs discovery otherwise.
-        return performOpenIdIssuerDiscovery(context, account)
-                .then(new Function<URI, Issuer, DiscoveryException>() {
-                    @Override
-                    public Issuer apply(URI wellKnownUri) throws DiscoveryException {
-                        JsonValue issuerDeclaration = createIssuerDeclaration(hostString, wellKnownUri);
-                        try {
-                            return heap.resolve(issuerDeclaration, Issuer.class);
-                        } catch (HeapException e) {
-                            String message = format("Cannot resolve the issuerDeclaration '%s'",
-                                                    issuerDeclaration.toString());
-                            logger.error(message);
-                            logger.error(e);
-                            throw new DiscoveryException(message, e);
-                        }
-                    }
-                });
+        // Performs discovery otherwise (or reuses a previous discovery).
+        return cache.get(hostString, new Callable<Promise<Issuer, DiscoveryException>>() {
+            @Override
+            public Promise<Issuer, DiscoveryException> call() {
+                return performOpenIdIssuerDiscovery(context, account)
+                        .thenAsync(new AsyncFunction<URI, Issuer, DiscoveryException>() {
+                            @Override
+                            public Promise<Issuer, DiscoveryException> apply(URI wellKnownUri) {
+                                return Issuer.build(context, hostString, wellKnownUri, null, discoveryHandler);
+                            }
+                        });
+            }
+        });
     }
 
     /**
      * The given domain name can match one or none domain names supported by
-     * Issuers declared in this route. If the given domain name matches the
-     * patterns given by an Issuer 'supportedDomains' attributes, then the
-     * corresponding Issuer is returned to be used.
+     * Issuers declared in this route. The supported domains of these issuers
+     * are indexed the first time they are needed: as the discovered issuers
+     * are not added to the heap, they do not change afterwards.
      */
-    private Issuer fromSupportedDomainNames(final String givenDomainName) throws HeapException {
-        for (final Issuer definedIssuer : heap.getAll(Issuer.class)) {
-            final List<Pattern> domainNames = definedIssuer.getSupportedDomains();
-            for (final Pattern domainName : domainNames) {
-                if (domainName.matcher(givenDomainName).matches()) {
-                    return definedIssuer;
-                }
-            }
+    private SupportedDomains getSupportedDomains() throws HeapException {
+        SupportedDomains domains = supportedDomains;
+        if (domains == null) {
+            domains = new SupportedDomains(heap.getAll(Issuer.class));
+            supportedDomains = domains;
         }
-        return null;
-    }
-
-    private JsonValue createIssuerDeclaration(final String issuerName, final URI wellKnowIssuerUri) {
-        return json(
-                object(field("name", issuerName),
-                       field("type", "Issuer"),
-                       field("config", object(field("wellKnownEndpoint", wellKnowIssuerUri.toString())))));
+        return domains;
     }
 
     /**
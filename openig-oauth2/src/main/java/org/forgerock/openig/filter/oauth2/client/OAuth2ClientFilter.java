@@ -18,6 +18,8 @@ package org.forgerock.openig.filter.oauth2.client;
 
 import static java.lang.String.format;
 import static java.util.Collections.emptyMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.forgerock.authz.modules.oauth2.OAuth2Error.E_ACCESS_DENIED;
 import static org.forgerock.authz.modules.oauth2.OAuth2Error.E_INVALID_REQUEST;
 import static org.forgerock.authz.modules.oauth2.OAuth2Error.E_INVALID_TOKEN;
@@ -36,12 +38,16 @@ import static org.forgerock.openig.filter.oauth2.client.OAuth2Utils.matchesUri;
 import static org.forgerock.openig.filter.oauth2.client.OAuth2Utils.removeSession;
 import static org.forgerock.openig.filter.oauth2.client.OAuth2Utils.saveSession;
 import static org.forgerock.openig.heap.Keys.CLIENT_HANDLER_HEAP_KEY;
-import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.http.DeadlineContext.isExpired;
+import static org.forgerock.openig.http.Deadlines.newGatewayTimeout;
+import static org.forgerock.openig.util.JsonValues.asDuration;
 import static org.forgerock.openig.util.JsonValues.asExpression;
+import static org.forgerock.openig.util.JsonValues.asInteger;
 import static org.forgerock.openig.util.JsonValues.getWithDeprecation;
 import static org.forgerock.openig.util.JsonValues.ofRequiredHeapObject;
 import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.Utils.closeSilently;
 import static org.forgerock.util.promise.Promises.newResultPromise;
 import static org.forgerock.util.time.Duration.duration;
 
@@ -51,8 +57,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeoutException;
 
 import org.forgerock.authz.modules.oauth2.OAuth2Error;
 import org.forgerock.http.Filter;
@@ -67,12 +72,12 @@ import org.forgerock.openig.el.Expression;
 import org.forgerock.openig.heap.GenericHeapObject;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.http.DeadlineContext;
 import org.forgerock.services.context.Context;
 import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.Factory;
 import org.forgerock.util.Function;
 import org.forgerock.util.LazyMap;
-import org.forgerock.util.ThreadSafeCache;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
 import org.forgerock.util.time.Duration;
@@ -114,9 +119,19 @@ import org.forgerock.util.time.TimeService;
  * "defaultLogoutGoto"            : expression,             [OPTIONAL - default return empty page]
  * "requireLogin"                 : boolean                 [OPTIONAL - default require login]
  * "requireHttps"                 : boolean                 [OPTIONAL - default require SSL]
- * "cacheExpiration"              : duration                [OPTIONAL - default to 20 seconds]
- * "executor"                     : executor                [OPTIONAL - by default uses 'ScheduledThreadPool'
- *                                                                      heap object]
+ * "userInfoCache"                : reference or            [OPTIONAL - a (shareable) UserInfoCache, by default a
+ *                                  inlined declaration                 cache dedicated to this filter is used]
+ * "cacheExpiration"              : duration                [OPTIONAL - when no userInfoCache is set, how long
+ *                                                                      the dedicated cache keeps a user info resource,
+ *                                                                      default to 20 seconds, 0 disables the cache]
+ * "refreshBeforeExpiration"      : duration                [OPTIONAL - refresh the access token when it expires
+ *                                                                      within this duration, default to disabled]
+ * "executor"                     : executor                [DEPRECATED - ignored, the user info cache does not
+ *                                                                      need an executor anymore]
+ * "discoveryCache"               : {                       [OPTIONAL - caches the issuers found by discovery.]
+ *             "maxEntries"       : integer,                    [OPTIONAL - default to 1000]
+ *             "maxExpiration"    : duration                    [OPTIONAL - default to 1 hour]
+ * }
  * "metadata"                     : {                       [OPTIONAL - contains metadata dedicated for dynamic
  *                                                                      client registration.]
  *             "redirect_uris"    : [ strings ],                [REQUIRED for dynamic client registration.]
@@ -125,6 +140,11 @@ import org.forgerock.util.time.TimeService;
  * }
  * </pre>
  *
+ * The access token of a session is refreshed once, even when several concurrent requests of this session find it
+ * expired: they all wait for the same refresh. When {@code refreshBeforeExpiration} is set, the access token is also
+ * refreshed before forwarding the request when it expires within this duration, so that the protected resource
+ * rarely rejects it.
+ *
  * For example, if you want to use a nascar page (with multiple client
  * registrations, defined in the "registrations" attribute):
  *
@@ -253,9 +273,11 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
     private boolean requireLogin = true;
     private Expression<?> target;
     private final TimeService time;
-    private ThreadSafeCache<String, Map<String, Object>> userInfoCache;
+    private UserInfoCache userInfoCache;
     private final Handler discoveryAndDynamicRegistrationChain;
     private final ClientRegistrationRepository registrations;
+    private final AccessTokenRefresher refresher;
+    private long refreshBeforeExpiration = -1L;
 
     /**
      * Constructs an {@link OAuth2ClientFilter}.
@@ -277,6 +299,7 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
                               Expression<String> clientEndpoint) {
         this.registrations = checkNotNull(registrations);
         this.time = time;
+        this.refresher = new AccessTokenRefresher(time);
         this.clientEndpoint = clientEndpoint;
         this.discoveryAndDynamicRegistrationChain = discoveryAndDynamicRegistrationChain;
     }
@@ -444,6 +467,27 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
         return this;
     }
 
+    /**
+     * Sets how long before its expiration the access token of a session is
+     * proactively refreshed. This configuration parameter is optional: by
+     * default, the access token is only refreshed once it has been rejected by
+     * the protected resource.
+     *
+     * @param refreshBeforeExpiration
+     *            the duration before the expiration of the access token during
+     *            which it is refreshed, or {@code null} to disable the
+     *            proactive refresh.
+     * @return This filter.
+     */
+    public OAuth2ClientFilter setRefreshBeforeExpiration(final Duration refreshBeforeExpiration) {
+        if (refreshBeforeExpiration == null || refreshBeforeExpiration.isUnlimited()) {
+            this.refreshBeforeExpiration = -1L;
+        } else {
+            this.refreshBeforeExpiration = refreshBeforeExpiration.to(SECONDS);
+        }
+        return this;
+    }
+
     /**
      * Sets the expression which will be used for storing authorization
      * information in the context. This configuration parameter is required.
@@ -532,7 +576,8 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
                         session.getClientRegistrationName()));
             }
             final JsonValue accessTokenResponse =
-                    blockingCall(client.getAccessToken(context, code, buildCallbackUri(context, request).toString()),
+                    blockingCall(context,
+                                 client.getAccessToken(context, code, buildCallbackUri(context, request).toString()),
                                  "getting the access token");
 
             /*
@@ -614,6 +659,36 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
         if (!session.isAuthorized() && requireLogin) {
             return sendAuthorizationRedirect(context, request, null);
         }
+        if (refreshToken && isAboutToExpire(session)) {
+            final ClientRegistration clientRegistration = getClientRegistration(session);
+            if (clientRegistration != null) {
+                return refreshAccessTokenAndSaveSession(context, request, session, clientRegistration)
+                        .thenAsync(new AsyncFunction<OAuth2Session, Response, NeverThrowsException>() {
+
+                            @Override
+                            public Promise<Response, NeverThrowsException> apply(OAuth2Session refreshedSession) {
+                                return handleAuthorizedResource(context, request, next, refreshedSession, false);
+                            }
+                        }, new AsyncFunction<OAuth2ErrorException, Response, NeverThrowsException>() {
+
+                            @Override
+                            public Promise<Response, NeverThrowsException> apply(OAuth2ErrorException e) {
+                                // The access token may still be accepted: go on with it
+                                logger.debug("Fail to refresh the OAuth2 access token before its expiration");
+                                logger.debug(e);
+                                return handleAuthorizedResource(context, request, next, session, true);
+                            }
+                        });
+            }
+        }
+        return handleAuthorizedResource(context, request, next, session, refreshToken);
+    }
+
+    private Promise<Response, NeverThrowsException> handleAuthorizedResource(final Context context,
+                                                                             final Request request,
+                                                                             final Handler next,
+                                                                             final OAuth2Session session,
+                                                                             final boolean refreshToken) {
         if (session.isAuthorized()) {
             fillTarget(context, session, request);
         }
@@ -624,6 +699,14 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
         return promise;
     }
 
+    private boolean isAboutToExpire(final OAuth2Session session) {
+        if (refreshBeforeExpiration < 0L || !session.isAuthorized() || session.getRefreshToken() == null) {
+            return false;
+        }
+        final Long expiresIn = session.getExpiresIn();
+        return expiresIn != null && expiresIn <= refreshBeforeExpiration;
+    }
+
     private AsyncFunction<Response, Response, NeverThrowsException> passThroughOrRefreshToken(
             final Context context,
             final Request request,
@@ -647,13 +730,19 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
                     return newResultPromise(response);
                 }
 
+                if (isExpired(context)) {
+                    // No time left to refresh the access token and to retry
+                    closeSilently(response);
+                    return newResultPromise(newGatewayTimeout());
+                }
+
                 // At this point, we only react once to try to refresh the access token.
                 logger.debug(format("The access token may have expired: %s", error.getErrorDescription()));
                 return refreshAccessTokenAndSaveSession(context, request, session, clientRegistration)
-                        .thenAsync(new AsyncFunction<Void, Response, NeverThrowsException>() {
+                        .thenAsync(new AsyncFunction<OAuth2Session, Response, NeverThrowsException>() {
 
                             @Override
-                            public Promise<Response, NeverThrowsException> apply(Void value) {
+                            public Promise<Response, NeverThrowsException> apply(OAuth2Session refreshedSession) {
                                 // Try to access to the protected resource again with new access token.
                                 return handleProtectedResource(context, request, next, false);
                             }
@@ -672,24 +761,24 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
         };
     }
 
-    private Promise<Void, OAuth2ErrorException> refreshAccessTokenAndSaveSession(
+    private Promise<OAuth2Session, OAuth2ErrorException> refreshAccessTokenAndSaveSession(
             final Context context,
             final Request request,
             final OAuth2Session session,
             final ClientRegistration clientRegistration) {
 
-        return clientRegistration.refreshAccessToken(context, session).then(
-                new Function<JsonValue, Void, OAuth2ErrorException>() {
+        return refresher.refresh(context, session, clientRegistration).then(
+                new Function<JsonValue, OAuth2Session, OAuth2ErrorException>() {
 
                     @Override
-                    public Void apply(JsonValue refreshedAccessTokenResponse) throws OAuth2ErrorException {
+                    public OAuth2Session apply(JsonValue refreshedAccessTokenResponse) throws OAuth2ErrorException {
                         final OAuth2Session refreshedSession = session.stateRefreshed(refreshedAccessTokenResponse);
                         try {
                             saveSession(context, refreshedSession, buildUri(context, request, clientEndpoint));
                         } catch (final ResponseException e) {
                             throw new OAuth2ErrorException(E_SERVER_ERROR, "unable to save the session", e);
                         }
-                        return null;
+                        return refreshedSession;
                     }
                 });
     }
@@ -797,20 +886,20 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
     }
 
     /**
-     * Set the cache of user info resources. The cache is keyed by the OAuth 2.0 Access Token. It should be configured
-     * with a small expiration duration (something between 5 and 30 seconds).
+     * Set the cache of user info resources. The cache is keyed by the OAuth 2.0 Access Token and can be shared by
+     * several filters.
      *
      * @param userInfoCache
      *         the cache of user info resources.
      */
-    public void setUserInfoCache(final ThreadSafeCache<String, Map<String, Object>> userInfoCache) {
+    public void setUserInfoCache(final UserInfoCache userInfoCache) {
         this.userInfoCache = userInfoCache;
     }
 
     /** Creates and initializes the filter in a heap environment. */
     public static class Heaplet extends GenericHeaplet {
 
-        private ThreadSafeCache<String, Map<String, Object>> cache;
+        private UserInfoCache cache;
 
         @Override
         public Object create() throws HeapException {
@@ -835,9 +924,21 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
                 }
             }
             final ClientRegistrationRepository registrations = new ClientRegistrationRepository(clients);
+            final JsonValue discoveryCache = config.get("discoveryCache");
+            final int maxEntries = asInteger(discoveryCache.get("maxEntries")
+                                                           .defaultTo(DiscoveryFilter.DEFAULT_MAX_ENTRIES));
+            final Duration maxExpiration = discoveryCache.isDefined("maxExpiration")
+                    ? asDuration(discoveryCache.get("maxExpiration"))
+                    : DiscoveryFilter.DEFAULT_EXPIRATION;
+            final DiscoveryCache discoveries;
+            try {
+                discoveries = new DiscoveryCache(time, maxEntries, maxExpiration);
+            } catch (IllegalArgumentException e) {
+                throw new HeapException("Invalid discoveryCache: " + e.getMessage(), e);
+            }
             final Handler discoveryAndDynamicRegistrationChain = chainOf(
                     new AuthorizationRedirectHandler(time, clientEndpoint, logger),
-                    new DiscoveryFilter(discoveryHandler, heap, logger),
+                    new DiscoveryFilter(discoveryHandler, heap, discoveries, logger),
                     new ClientRegistrationFilter(registrations, discoveryHandler, config.get("metadata"), logger));
 
             final OAuth2ClientFilter filter = new OAuth2ClientFilter(registrations,
@@ -860,15 +961,29 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
             filter.setDefaultLogoutGoto(asExpression(config.get("defaultLogoutGoto"), String.class));
             filter.setRequireHttps(config.get("requireHttps").defaultTo(true).asBoolean());
             filter.setRequireLogin(config.get("requireLogin").defaultTo(true).asBoolean());
-            // Build the cache of user-info
-            Duration expiration = duration(config.get("cacheExpiration").defaultTo("20 seconds").asString());
-            if (!expiration.isZero()) {
-                ScheduledExecutorService executor = heap.resolve(config.get("executor")
-                                                                       .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY),
-                                                                 ScheduledExecutorService.class);
-                cache = new ThreadSafeCache<>(executor);
-                cache.setDefaultTimeout(expiration);
-                filter.setUserInfoCache(cache);
+            JsonValue refreshBeforeExpiration = config.get("refreshBeforeExpiration");
+            if (refreshBeforeExpiration.isNotNull()) {
+                filter.setRefreshBeforeExpiration(duration(refreshBeforeExpiration.asString()));
+            }
+            // Use the shared cache of user-info, or build a dedicated one
+            final JsonValue userInfoCache = config.get("userInfoCache");
+            if (userInfoCache.isNotNull()) {
+                filter.setUserInfoCache(heap.resolve(userInfoCache, UserInfoCache.class));
+            } else {
+                Duration expiration = duration(config.get("cacheExpiration").defaultTo("20 seconds").asString());
+                if (!expiration.isZero()) {
+                    cache = new UserInfoCache(time,
+                                              UserInfoCache.DEFAULT_MAX_ENTRIES,
+                                              expiration,
+                                              UserInfoCache.DEFAULT_MAX_EXPIRATION,
+                                              false);
+                    filter.setUserInfoCache(cache);
+                }
+            }
+            if (config.isDefined("executor")) {
+                logger.warning(format("[%s] The 'executor' attribute is deprecated and ignored: the user info cache "
+                                      + "does not need an executor anymore",
+                                      config.getPointer()));
             }
 
             return filter;
@@ -904,32 +1019,14 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
              * When the 'user_info' attribute is accessed for the first time,
              * try to load the value (from the cache or not depending on the configuration).
              * The callable (factory for loading user info resource) will perform the appropriate HTTP request
-             * to retrieve the user info as JSON, and then will return that content as a Map
+             * to retrieve the user info as JSON (unless it is cached), and then will return that content as a Map
              */
-
-            if (userInfoCache == null) {
-                // No cache is configured, go directly though the callable
-                try {
-                    return callable.call();
-                } catch (Exception e) {
-                    logger.warning(format("Unable to call UserInfo Endpoint from client registration '%s'",
-                                          callable.getClientRegistration().getName()));
-                    logger.warning(e);
-                }
-            } else {
-                // A cache is configured, extract the value from the cache
-                try {
-                    return userInfoCache.getValue(callable.getSession().getAccessToken(),
-                                                  callable);
-                } catch (InterruptedException e) {
-                    logger.warning(format("Interrupted when calling UserInfo Endpoint from client registration '%s'",
-                                          callable.getClientRegistration().getName()));
-                    logger.warning(e);
-                } catch (ExecutionException e) {
-                    logger.warning(format("Unable to call UserInfo Endpoint from client registration '%s'",
-                                          callable.getClientRegistration().getName()));
-                    logger.warning(e);
-                }
+            try {
+                return callable.call();
+            } catch (Exception e) {
+                logger.warning(format("Unable to call UserInfo Endpoint from client registration '%s'",
+                                      callable.getClientRegistration().getName()));
+                logger.warning(e);
             }
 
             // In case of errors, returns an empty Map
@@ -959,7 +1056,7 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
         @Override
         public Map<String, Object> call() throws Exception {
             try {
-                return blockingCall(clientRegistration.getUserInfo(context, session), "getting the user info").asMap();
+                return blockingCall(context, getUserInfo(), "getting the user info").asMap();
             } catch (OAuth2ErrorException e) {
                 final OAuth2Error error = e.getOAuth2Error();
                 if (error.is(E_INVALID_TOKEN) && session.getRefreshToken() != null) {
@@ -973,11 +1070,12 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
         private Map<String, Object> updateSessionStateWithRefreshTokenOrFailWithNewSession() throws ResponseException,
                                                                                              OAuth2ErrorException {
             try {
-                JsonValue refreshAccessToken = blockingCall(clientRegistration.refreshAccessToken(context, session),
+                JsonValue refreshAccessToken = blockingCall(context,
+                                                            refresher.refresh(context, session, clientRegistration),
                                                             "refreshing the access token");
                 session = session.stateRefreshed(refreshAccessToken);
                 saveSession(context, session, buildUri(context, request, clientEndpoint));
-                return blockingCall(clientRegistration.getUserInfo(context, session), "getting the user info").asMap();
+                return blockingCall(context, getUserInfo(), "getting the user info").asMap();
             } catch (OAuth2ErrorException ex) {
                 logger.debug("Fail to refresh OAuth2 Access Token");
                 logger.debug(ex);
@@ -987,8 +1085,11 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
             }
         }
 
-        public OAuth2Session getSession() {
-            return session;
+        private Promise<JsonValue, OAuth2ErrorException> getUserInfo() {
+            if (userInfoCache == null) {
+                return clientRegistration.getUserInfo(context, session);
+            }
+            return userInfoCache.getUserInfo(context, session, clientRegistration);
         }
 
         public ClientRegistration getClientRegistration() {
@@ -996,13 +1097,21 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
         }
     }
 
-    private static <V, E extends Exception> V blockingCall(Promise<V, E> promise, String message)
+    private static <V, E extends Exception> V blockingCall(Context context, Promise<V, E> promise, String message)
             throws E, OAuth2ErrorException {
         try {
+            if (context.containsContext(DeadlineContext.class)) {
+                // Do not wait longer than the time left to process the request
+                long remaining = context.asContext(DeadlineContext.class).getRemaining();
+                return promise.getOrThrow(remaining, MILLISECONDS);
+            }
             return promise.getOrThrow();
         } catch (InterruptedException e) {
             // TODO Remove the getOrThrow()
             throw new OAuth2ErrorException(E_SERVER_ERROR, "Interrupted while " + message, e);
+        } catch (TimeoutException e) {
+            promise.cancel(true);
+            throw new OAuth2ErrorException(E_SERVER_ERROR, "Request deadline expired while " + message, e);
         }
     }
 }
@@ -0,0 +1,109 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2.client;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Indexes the {@linkplain Issuer#getSupportedDomains() supported domains} of a set of issuers.
+ *
+ * <p>The supported domains that are plain host names (with an optional port, such as {@literal openam.com:8092}) are
+ * looked up in a hash map, the other patterns are evaluated in turn.
+ */
+final class SupportedDomains {
+
+    /** The prefix and suffix added by the {@link Issuer} to each supported domain. */
+    private static final String PREFIX = "(http|https)://";
+    private static final String SUFFIX = "/$";
+
+    /** Characters allowed in a literal domain name (the dot being escaped or not). */
+    private static final Pattern LITERAL = Pattern.compile("([A-Za-z0-9\\-:]|\\\\?\\.)+");
+
+    private final Map<String, Issuer> literals = new HashMap<>();
+    private final List<Map.Entry<Pattern, Issuer>> patterns = new ArrayList<>();
+
+    /**
+     * Indexes the supported domains of the given issuers. When several issuers support the same literal domain name,
+     * the first one wins.
+     *
+     * @param issuers
+     *         the issuers to index
+     */
+    SupportedDomains(final List<Issuer> issuers) {
+        for (Issuer issuer : issuers) {
+            for (Pattern domain : issuer.getSupportedDomains()) {
+                final String literal = literal(domain);
+                if (literal != null) {
+                    if (!literals.containsKey(literal)) {
+                        literals.put(literal, issuer);
+                    }
+                } else {
+                    patterns.add(new AbstractMap.SimpleImmutableEntry<>(domain, issuer));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the issuer supporting the given host base, or {@code null} if none does.
+     *
+     * @param hostBase
+     *         the host base (such as {@literal https://openam.com:8092/})
+     * @return the issuer supporting the given host base, or {@code null} if none does
+     */
+    Issuer find(final String hostBase) {
+        if (hostBase.endsWith("/")) {
+            final int start = hostBase.indexOf("://");
+            if (start > 0) {
+                final String scheme = hostBase.substring(0, start);
+                if ("http".equals(scheme) || "https".equals(scheme)) {
+                    final Issuer issuer = literals.get(hostBase.substring(start + 3, hostBase.length() - 1));
+                    if (issuer != null) {
+                        return issuer;
+                    }
+                }
+            }
+        }
+        for (Map.Entry<Pattern, Issuer> pattern : patterns) {
+            if (pattern.getKey().matcher(hostBase).matches()) {
+                return pattern.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the domain name matched by the given supported domain pattern if it is a literal domain name, or
+     * {@code null}.
+     */
+    static String literal(final Pattern domain) {
+        final String pattern = domain.pattern();
+        if (!pattern.startsWith(PREFIX) || !pattern.endsWith(SUFFIX)) {
+            return null;
+        }
+        final String name = pattern.substring(PREFIX.length(), pattern.length() - SUFFIX.length());
+        if (!LITERAL.matcher(name).matches()) {
+            return null;
+        }
+        return name.replace("\\.", ".");
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2.client;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.forgerock.authz.modules.oauth2.OAuth2Error.E_INVALID_TOKEN;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.asDuration;
+import static org.forgerock.openig.util.JsonValues.asInteger;
+import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.time.Duration.duration;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.Function;
+import org.forgerock.util.PromiseCache;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Caches the user info resources loaded by the {@link OAuth2ClientFilter}s, keyed by the UserInfo endpoint and the
+ * OAuth 2.0 access token. Declared in the heap, the same cache can be shared by several filters.
+ *
+ * <p>A user info resource is cached for {@literal expiration}, and never beyond the expiration of the access token,
+ * the least recently used ones being evicted when the cache holds {@literal maxEntries} resources. Concurrent loads
+ * of the same resource share the same call to the UserInfo endpoint.
+ *
+ * <p>When {@literal staleWhileRevalidate} is enabled, a resource older than {@literal expiration} is not dropped but
+ * reloaded in the background, the cached (stale) value being served in the meantime: a failed reload keeps the
+ * cached value (unless the access token is rejected). Such a resource can then be served until the access token
+ * expires, and at most {@literal maxExpiration} after it was first loaded: only enable it when the user info can be
+ * a bit outdated.
+ *
+ * <pre>
+ *     {@code {
+ *         "name": "UserInfoCache",
+ *         "type": "UserInfoCache",
+ *         "config": {
+ *           "maxEntries": 10000,
+ *           "expiration": "20 seconds",
+ *           "staleWhileRevalidate": false,
+ *           "maxExpiration": "1 hour"
+ *         }
+ *       }
+ *     }
+ * </pre>
+ */
+public class UserInfoCache {
+
+    /** The default maximum number of cached user info resources. */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /** The default duration after which a cached user info resource expires (or is reloaded). */
+    public static final Duration DEFAULT_EXPIRATION = duration("20 seconds");
+
+    /** The default maximum duration a user info resource is cached. */
+    public static final Duration DEFAULT_MAX_EXPIRATION = duration("1 hour");
+
+    /** A failed reload drops the cached user info resource when the access token is not valid anymore. */
+    private static final Function<OAuth2ErrorException, Boolean, NeverThrowsException> EVICT_ON_INVALID_TOKEN =
+            new Function<OAuth2ErrorException, Boolean, NeverThrowsException>() {
+                @Override
+                public Boolean apply(final OAuth2ErrorException exception) {
+                    return exception.getOAuth2Error().is(E_INVALID_TOKEN);
+                }
+            };
+
+    private final TimeService time;
+    private final Duration expiration;
+    private final boolean staleWhileRevalidate;
+    private final PromiseCache<String, JsonValue, OAuth2ErrorException> cache;
+
+    /**
+     * Creates a new cache of user info resources.
+     *
+     * @param time
+     *         the time service
+     * @param maxEntries
+     *         the maximum number of cached user info resources
+     * @param expiration
+     *         the duration after which a cached user info resource expires (or is reloaded in the background)
+     * @param maxExpiration
+     *         the maximum duration a user info resource is cached (when the access token lives longer)
+     * @param staleWhileRevalidate
+     *         whether an expired user info resource is served while it is reloaded in the background
+     * @throws IllegalArgumentException
+     *         if {@code maxEntries} or {@code maxExpiration} is not positive
+     */
+    public UserInfoCache(final TimeService time,
+                         final int maxEntries,
+                         final Duration expiration,
+                         final Duration maxExpiration,
+                         final boolean staleWhileRevalidate) {
+        this.time = checkNotNull(time);
+        this.expiration = checkNotNull(expiration);
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        this.cache = new PromiseCache<>(time, maxEntries, maxExpiration);
+    }
+
+    /**
+     * Returns the user info resource of the given session, loading it if it is not cached (or expired).
+     *
+     * @param context
+     *         the context of the request that needs the user info resource
+     * @param session
+     *         the session holding the access token
+     * @param registration
+     *         the client registration used to load the user info resource
+     * @return a promise completed with the user info resource
+     */
+    Promise<JsonValue, OAuth2ErrorException> getUserInfo(final Context context,
+                                                         final OAuth2Session session,
+                                                         final ClientRegistration registration) {
+        final Long expiresIn = session.getExpiresIn();
+        if (expiresIn != null && expiresIn <= 0L) {
+            // The access token has expired: not worth caching
+            return registration.getUserInfo(context, session);
+        }
+        // Never beyond the expiration of the access token (nor maxExpiration)
+        final Duration maxAge = expiresIn != null ? duration(expiresIn, SECONDS) : Duration.UNLIMITED;
+        final String key = registration.getIssuer().getUserInfoEndpoint() + " " + session.getAccessToken();
+        final AsyncFunction<String, JsonValue, OAuth2ErrorException> load =
+                new AsyncFunction<String, JsonValue, OAuth2ErrorException>() {
+                    @Override
+                    public Promise<JsonValue, OAuth2ErrorException> apply(final String cacheKey) {
+                        return registration.getUserInfo(context, session);
+                    }
+                };
+        if (staleWhileRevalidate) {
+            return cache.getValue(key, load, timeToLive(Long.MAX_VALUE), maxAge, EVICT_ON_INVALID_TOKEN);
+        }
+        final long expiresAt = maxAge.isUnlimited() ? Long.MAX_VALUE : time.now() + maxAge.to(MILLISECONDS);
+        return cache.getValue(key, load, timeToLive(expiresAt));
+    }
+
+    /**
+     * Returns the number of cached user info resources (including the pending loads).
+     *
+     * @return the number of cached user info resources
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Removes all the cached user info resources.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /** A loaded user info resource is cached for {@code expiration}, but not after {@code expiresAt}. */
+    private Function<JsonValue, Duration, NeverThrowsException> timeToLive(final long expiresAt) {
+        return new Function<JsonValue, Duration, NeverThrowsException>() {
+            @Override
+            public Duration apply(final JsonValue userInfo) {
+                if (expiresAt == Long.MAX_VALUE) {
+                    return expiration;
+                }
+                final long timeToLive = Math.min(expiration.to(MILLISECONDS), expiresAt - time.now());
+                return timeToLive > 0L ? duration(timeToLive, MILLISECONDS) : Duration.ZERO;
+            }
+        };
+    }
+
+    /**
+     * Creates and initializes a user info cache in a heap environment.
+     */
+    public static class Heaplet extends GenericHeaplet {
+
+        @Override
+        public Object create() throws HeapException {
+            final TimeService time = heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class);
+            final int maxEntries = asInteger(config.get("maxEntries").defaultTo(DEFAULT_MAX_ENTRIES));
+            final Duration expiration = config.isDefined("expiration")
+                    ? asDuration(config.get("expiration"))
+                    : DEFAULT_EXPIRATION;
+            final Duration maxExpiration = config.isDefined("maxExpiration")
+                    ? asDuration(config.get("maxExpiration"))
+                    : DEFAULT_MAX_EXPIRATION;
+            if (expiration.isZero() || expiration.isUnlimited()) {
+                throw new HeapException("The user info cache expiration has to be positive");
+            }
+            try {
+                return new UserInfoCache(time,
+                                         maxEntries,
+                                         expiration,
+                                         maxExpiration,
+                                         config.get("staleWhileRevalidate").defaultTo(false).asBoolean());
+            } catch (IllegalArgumentException e) {
+                throw new HeapException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void destroy() {
+            super.destroy();
+            if (object != null) {
+                ((UserInfoCache) object).clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2.resolver;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.Utils.closeSilently;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.forgerock.authz.modules.oauth2.AccessTokenException;
+import org.forgerock.http.Handler;
+import org.forgerock.http.Responses;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.Function;
+import org.forgerock.util.encode.Base64url;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Keeps the public keys published by an authorization server as a JSON Web Key Set (JWKS), so that signed access
+ * tokens can be verified without calling the authorization server.
+ * <p>
+ * The key set is refreshed with {@link #refresh()} (usually periodically, in the background). When a token refers
+ * to a key that is not known yet (the authorization server rotated its keys), the key set is fetched again, but at
+ * most once per {@code minRefetchInterval}: tokens with made-up key identifiers cannot flood the authorization
+ * server. Concurrent refreshes share the same request.
+ * <p>
+ * Only RSA and EC signing keys are kept, the malformed keys of the set are ignored. A key is only given for the
+ * signature algorithms it can verify: the {@literal RS*} algorithms for an RSA key, the {@literal ES*} algorithm of
+ * its curve for an EC key, and only its {@literal alg} if the key declares one.
+ */
+public class JwkSetCache {
+
+    private static final Map<String, String> CURVES = new HashMap<>();
+    private static final Map<String, String> CURVE_ALGORITHMS = new HashMap<>();
+    private static final Set<String> RSA_ALGORITHMS = new HashSet<>(Arrays.asList("RS256", "RS384", "RS512"));
+
+    static {
+        CURVES.put("P-256", "secp256r1");
+        CURVES.put("P-384", "secp384r1");
+        CURVES.put("P-521", "secp521r1");
+        CURVE_ALGORITHMS.put("P-256", "ES256");
+        CURVE_ALGORITHMS.put("P-384", "ES384");
+        CURVE_ALGORITHMS.put("P-521", "ES512");
+    }
+
+    /** Key under which a key without identifier is stored. */
+    private static final String NO_KEY_ID = "";
+
+    private final Handler client;
+    private final URI jwksUri;
+    private final TimeService time;
+    private final long minRefetchInterval;
+
+    private volatile Map<String, Jwk> keys = Collections.emptyMap();
+    private long lastFetch;
+    private boolean fetched;
+    private Promise<Map<String, Jwk>, AccessTokenException> inFlight;
+
+    /**
+     * Creates a new key set cache.
+     *
+     * @param client
+     *         the handler used to fetch the key set
+     * @param jwksUri
+     *         the URI of the key set
+     * @param time
+     *         the time service
+     * @param minRefetchInterval
+     *         the minimum time between two fetches triggered by unknown key identifiers
+     */
+    public JwkSetCache(final Handler client,
+                       final URI jwksUri,
+                       final TimeService time,
+                       final Duration minRefetchInterval) {
+        this.client = checkNotNull(client);
+        this.jwksUri = checkNotNull(jwksUri);
+        this.time = checkNotNull(time);
+        this.minRefetchInterval = minRefetchInterval.to(MILLISECONDS);
+    }
+
+    /**
+     * Returns the public key with the given identifier, fetching the key set again if this key is unknown and the
+     * key set has not been fetched too recently. The key is refused if it cannot verify signatures made with the
+     * given algorithm.
+     *
+     * @param keyId
+     *         the key identifier ({@literal kid}), may be {@code null} if the key set has a single key
+     * @param algorithm
+     *         the JWS signature algorithm ({@literal alg} of the JWT header) the key is used for
+     * @return a promise completed with the public key, or with an {@link AccessTokenException} if it is unknown or
+     * cannot be used with this algorithm
+     */
+    public Promise<PublicKey, AccessTokenException> findKey(final String keyId, final String algorithm) {
+        Jwk jwk = lookup(keys, keyId);
+        if (jwk != null) {
+            try {
+                return newResultPromise(jwk.keyFor(keyId, algorithm));
+            } catch (AccessTokenException e) {
+                return newExceptionPromise(e);
+            }
+        }
+        if (!canRefetch()) {
+            return newExceptionPromise(unknownKey(keyId));
+        }
+        return fetchShared().then(new Function<Map<String, Jwk>, PublicKey, AccessTokenException>() {
+            @Override
+            public PublicKey apply(final Map<String, Jwk> refreshed) throws AccessTokenException {
+                Jwk jwk = lookup(refreshed, keyId);
+                if (jwk == null) {
+                    throw unknownKey(keyId);
+                }
+                return jwk.keyFor(keyId, algorithm);
+            }
+        });
+    }
+
+    /**
+     * Fetches the key set. If a fetch is already in progress, its result is shared. On failure, the previously
+     * fetched keys are kept.
+     *
+     * @return a promise completed with the fetched keys, indexed by key identifier
+     */
+    public Promise<Map<String, PublicKey>, AccessTokenException> refresh() {
+        return fetchShared().then(new Function<Map<String, Jwk>, Map<String, PublicKey>, AccessTokenException>() {
+            @Override
+            public Map<String, PublicKey> apply(final Map<String, Jwk> refreshed) {
+                Map<String, PublicKey> publicKeys = new HashMap<>();
+                for (Map.Entry<String, Jwk> jwk : refreshed.entrySet()) {
+                    publicKeys.put(jwk.getKey(), jwk.getValue().key);
+                }
+                return Collections.unmodifiableMap(publicKeys);
+            }
+        });
+    }
+
+    private synchronized Promise<Map<String, Jwk>, AccessTokenException> fetchShared() {
+        if (inFlight != null) {
+            return inFlight;
+        }
+        lastFetch = time.now();
+        fetched = true;
+        final Promise<Map<String, Jwk>, AccessTokenException> promise = fetch();
+        inFlight = promise;
+        promise.thenAlways(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (JwkSetCache.this) {
+                    if (inFlight == promise) {
+                        inFlight = null;
+                    }
+                }
+            }
+        });
+        return promise;
+    }
+
+    private synchronized boolean canRefetch() {
+        return inFlight != null || !fetched || time.since(lastFetch) >= minRefetchInterval;
+    }
+
+    private Promise<Map<String, Jwk>, AccessTokenException> fetch() {
+        Request request = new Request();
+        request.setMethod("GET");
+        request.setUri(jwksUri);
+        request.getHeaders().put("Accept", "application/json");
+        return client.handle(new RootContext(), request)
+                     .then(new Function<Response, Map<String, Jwk>, AccessTokenException>() {
+                         @Override
+                         public Map<String, Jwk> apply(final Response response) throws AccessTokenException {
+                             try {
+                                 if (!Status.OK.equals(response.getStatus())) {
+                                     throw new AccessTokenException(format("Cannot fetch the key set from %s: %s",
+                                                                           jwksUri,
+                                                                           response.getStatus()));
+                                 }
+                                 Map<String, Jwk> parsed = parse(new JsonValue(response.getEntity().getJson()));
+                                 keys = parsed;
+                                 return parsed;
+                             } catch (IOException | RuntimeException e) {
+                                 // Also fail the in-flight fetch on unexpected content, rather than leaving it pending
+                                 throw new AccessTokenException(format("Cannot read the key set from %s", jwksUri), e);
+                             } finally {
+                                 closeSilently(response);
+                             }
+                         }
+                     }, Responses.<Map<String, Jwk>, AccessTokenException>noopExceptionFunction());
+    }
+
+    /**
+     * Parses the signing keys of a JSON Web Key Set. The keys that cannot be used (malformed, or of an unsupported
+     * type) are ignored.
+     *
+     * @param jwks
+     *         the key set, as JSON
+     * @return the keys, indexed by key identifier
+     */
+    static Map<String, Jwk> parse(final JsonValue jwks) {
+        Map<String, Jwk> parsed = new HashMap<>();
+        for (JsonValue jwk : jwks.get("keys").required()) {
+            try {
+                String use = jwk.get("use").asString();
+                if (use != null && !"sig".equals(use)) {
+                    continue;
+                }
+                Jwk key = toJwk(jwk);
+                if (key != null) {
+                    String keyId = jwk.get("kid").asString();
+                    parsed.put(keyId == null ? NO_KEY_ID : keyId, key);
+                }
+            } catch (GeneralSecurityException | RuntimeException e) {
+                // Ignore the keys we cannot use (JsonValueException for a missing or mistyped member)
+            }
+        }
+        return Collections.unmodifiableMap(parsed);
+    }
+
+    private static Jwk toJwk(final JsonValue jwk) throws GeneralSecurityException {
+        String type = jwk.get("kty").required().asString();
+        String algorithm = jwk.get("alg").asString();
+        if ("RSA".equals(type)) {
+            RSAPublicKeySpec spec = new RSAPublicKeySpec(integer(jwk.get("n")), integer(jwk.get("e")));
+            return new Jwk(KeyFactory.getInstance("RSA").generatePublic(spec), RSA_ALGORITHMS, algorithm);
+        }
+        if ("EC".equals(type)) {
+            String crv = jwk.get("crv").required().asString();
+            String curve = CURVES.get(crv);
+            if (curve == null) {
+                return null;
+            }
+            AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+            parameters.init(new ECGenParameterSpec(curve));
+            ECPoint point = new ECPoint(integer(jwk.get("x")), integer(jwk.get("y")));
+            ECPublicKeySpec spec = new ECPublicKeySpec(point, parameters.getParameterSpec(ECParameterSpec.class));
+            return new Jwk(KeyFactory.getInstance("EC").generatePublic(spec),
+                           Collections.singleton(CURVE_ALGORITHMS.get(crv)),
+                           algorithm);
+        }
+        return null;
+    }
+
+    private static BigInteger integer(final JsonValue value) {
+        byte[] bytes = Base64url.decode(value.required().asString());
+        if (bytes == null) {
+            throw new IllegalArgumentException(format("Invalid base64url value '%s'", value.getPointer()));
+        }
+        return new BigInteger(1, bytes);
+    }
+
+    private static Jwk lookup(final Map<String, Jwk> keys, final String keyId) {
+        if (keyId == null && keys.size() == 1) {
+            return keys.values().iterator().next();
+        }
+        return keys.get(keyId == null ? NO_KEY_ID : keyId);
+    }
+
+    private static AccessTokenException unknownKey(final String keyId) {
+        return new AccessTokenException(format("No signing key found with identifier '%s'", keyId));
+    }
+
+    /** A signing key, with the signature algorithms it can verify. */
+    static final class Jwk {
+        private final PublicKey key;
+        private final Set<String> algorithms;
+
+        private Jwk(final PublicKey key, final Set<String> supported, final String algorithm) {
+            this.key = key;
+            if (algorithm == null) {
+                this.algorithms = supported;
+            } else {
+                // A key restricted to one algorithm
+                this.algorithms = supported.contains(algorithm)
+                        ? Collections.singleton(algorithm)
+                        : Collections.<String>emptySet();
+            }
+        }
+
+        private PublicKey keyFor(final String keyId, final String algorithm) throws AccessTokenException {
+            if (!algorithms.contains(algorithm)) {
+                throw new AccessTokenException(format("The signing key '%s' cannot verify '%s' signatures",
+                                                      keyId,
+                                                      algorithm));
+            }
+            return key;
+        }
+    }
+}
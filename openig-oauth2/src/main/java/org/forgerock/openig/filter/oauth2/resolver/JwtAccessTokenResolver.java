@@ -0,0 +1,315 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2.resolver;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.forgerock.http.util.Json.readJson;
+import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.forgerock.authz.modules.oauth2.AccessToken;
+import org.forgerock.authz.modules.oauth2.AccessTokenException;
+import org.forgerock.authz.modules.oauth2.AccessTokenResolver;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.JsonValueException;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.Function;
+import org.forgerock.util.encode.Base64url;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * A {@link JwtAccessTokenResolver} validates signed JWT access tokens locally, without calling the authorization
+ * server: the signature is verified with the issuer's public keys (see {@link JwkSetCache}), then the {@literal exp},
+ * {@literal nbf}, {@literal iss} and {@literal aud} claims are checked. The token scopes are read from the
+ * {@literal scope} claim (a space-separated string or an array).
+ * <p>
+ * Tokens that are not JWTs (opaque tokens) are given to the fallback resolver, if any (usually an introspection
+ * based resolver such as {@link OpenAmAccessTokenResolver}).
+ * <p>
+ * The RSA ({@literal RS256}, {@literal RS384}, {@literal RS512}) and ECDSA ({@literal ES256}, {@literal ES384},
+ * {@literal ES512}) signature algorithms are supported.
+ */
+public class JwtAccessTokenResolver implements AccessTokenResolver {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Map<String, String> ALGORITHMS = new HashMap<>();
+
+    static {
+        ALGORITHMS.put("RS256", "SHA256withRSA");
+        ALGORITHMS.put("RS384", "SHA384withRSA");
+        ALGORITHMS.put("RS512", "SHA512withRSA");
+        ALGORITHMS.put("ES256", "SHA256withECDSA");
+        ALGORITHMS.put("ES384", "SHA384withECDSA");
+        ALGORITHMS.put("ES512", "SHA512withECDSA");
+    }
+
+    private final JwkSetCache keys;
+    private final TimeService time;
+    private final String issuer;
+    private final Set<String> audiences;
+    private final long skew;
+    private final AccessTokenResolver fallback;
+
+    /**
+     * Creates a new resolver of signed JWT access tokens.
+     *
+     * @param keys
+     *         the public keys of the issuer
+     * @param time
+     *         the time service used to check the token validity period
+     * @param issuer
+     *         the expected issuer ({@literal iss} claim)
+     * @param audiences
+     *         the accepted audiences: the {@literal aud} claim must contain one of them (if empty, the audience is
+     *         not checked)
+     * @param skew
+     *         the tolerated clock difference with the issuer
+     * @param fallback
+     *         the resolver used for tokens that are not JWTs (may be {@code null})
+     */
+    public JwtAccessTokenResolver(final JwkSetCache keys,
+                                  final TimeService time,
+                                  final String issuer,
+                                  final Set<String> audiences,
+                                  final Duration skew,
+                                  final AccessTokenResolver fallback) {
+        this.keys = checkNotNull(keys);
+        this.time = checkNotNull(time);
+        this.issuer = checkNotNull(issuer);
+        this.audiences = Collections.unmodifiableSet(new HashSet<>(audiences));
+        this.skew = skew.to(MILLISECONDS);
+        this.fallback = fallback;
+    }
+
+    @Override
+    public Promise<AccessToken, AccessTokenException> resolve(final Context context, final String token) {
+        final String[] parts = token.split("\\.", -1);
+        final JsonValue header;
+        final JsonValue claims;
+        try {
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Not a signed JWT");
+            }
+            header = decode(parts[0]);
+            claims = decode(parts[1]);
+        } catch (IOException | RuntimeException e) {
+            // Opaque token
+            if (fallback != null) {
+                return fallback.resolve(context, token);
+            }
+            return newExceptionPromise(new AccessTokenException("The access token is not a signed JWT"));
+        }
+
+        final String alg;
+        final String algorithm;
+        final String keyId;
+        try {
+            alg = header.get("alg").required().asString();
+            algorithm = ALGORITHMS.get(alg);
+            keyId = header.get("kid").asString();
+        } catch (JsonValueException e) {
+            return newExceptionPromise(new AccessTokenException("Invalid JWT header", e));
+        }
+        if (algorithm == null) {
+            return newExceptionPromise(new AccessTokenException(
+                    format("Unsupported JWT signature algorithm '%s'", alg)));
+        }
+
+        // The key must be of the type (and curve) of the header's algorithm, and allow it if it declares its own
+        return keys.findKey(keyId, alg)
+                   .then(new Function<PublicKey, AccessToken, AccessTokenException>() {
+                       @Override
+                       public AccessToken apply(final PublicKey key) throws AccessTokenException {
+                           verifySignature(parts, algorithm, key);
+                           return validate(token, claims);
+                       }
+                   });
+    }
+
+    private static void verifySignature(final String[] parts, final String algorithm, final PublicKey key)
+            throws AccessTokenException {
+        try {
+            byte[] signature = Base64url.decode(parts[2]);
+            if (algorithm.endsWith("ECDSA")) {
+                signature = toDer(signature);
+            }
+            Signature verifier = Signature.getInstance(algorithm);
+            verifier.initVerify(key);
+            verifier.update((parts[0] + "." + parts[1]).getBytes(UTF_8));
+            if (!verifier.verify(signature)) {
+                throw new AccessTokenException("Invalid JWT signature");
+            }
+        } catch (GeneralSecurityException | RuntimeException e) {
+            throw new AccessTokenException("Cannot verify the JWT signature", e);
+        }
+    }
+
+    private AccessToken validate(final String token, final JsonValue claims) throws AccessTokenException {
+        try {
+            long now = time.now();
+            if (!issuer.equals(claims.get("iss").asString())) {
+                throw new AccessTokenException(format("Unexpected JWT issuer '%s'", claims.get("iss").asString()));
+            }
+            long expiresAt = MILLISECONDS.convert(claims.get("exp").required().asLong(), SECONDS);
+            if (now - skew >= expiresAt) {
+                throw new AccessTokenException("The JWT access token has expired");
+            }
+            if (claims.isDefined("nbf")
+                    && now + skew < MILLISECONDS.convert(claims.get("nbf").asLong(), SECONDS)) {
+                throw new AccessTokenException("The JWT access token is not valid yet");
+            }
+            if (!audiences.isEmpty() && Collections.disjoint(audiences, values(claims.get("aud")))) {
+                throw new AccessTokenException("The JWT access token is not intended for this resource server");
+            }
+            return new JwtAccessToken(claims, token, values(claims.get("scope")), expiresAt);
+        } catch (JsonValueException e) {
+            throw new AccessTokenException("Invalid JWT claims", e);
+        }
+    }
+
+    /**
+     * Returns the values of a claim that can either be a single (space-separated) string or an array of strings.
+     */
+    private static Set<String> values(final JsonValue claim) {
+        Set<String> values = new LinkedHashSet<>();
+        if (claim.isString()) {
+            values.addAll(Arrays.asList(claim.asString().trim().split("\\s+")));
+            values.remove("");
+        } else if (claim.isList()) {
+            values.addAll(claim.asList(String.class));
+        }
+        return values;
+    }
+
+    private static JsonValue decode(final String part) throws IOException {
+        String json = new String(Base64url.decode(part), UTF_8);
+        JsonValue value = new JsonValue(readJson(new StringReader(json)));
+        if (!value.isMap()) {
+            throw new IOException("JWT parts have to be JSON objects");
+        }
+        return value;
+    }
+
+    /**
+     * Converts a JWS ECDSA signature (R and S concatenated) to the DER encoding expected by the JCA.
+     */
+    private static byte[] toDer(final byte[] signature) {
+        if (signature.length == 0 || signature.length % 2 != 0) {
+            throw new IllegalArgumentException("Invalid ECDSA signature");
+        }
+        int half = signature.length / 2;
+        byte[] r = unsigned(Arrays.copyOfRange(signature, 0, half));
+        byte[] s = unsigned(Arrays.copyOfRange(signature, half, signature.length));
+        int length = 2 + r.length + 2 + s.length;
+        byte[] der;
+        int offset;
+        if (length < 128) {
+            der = new byte[2 + length];
+            der[1] = (byte) length;
+            offset = 2;
+        } else {
+            der = new byte[3 + length];
+            der[1] = (byte) 0x81;
+            der[2] = (byte) length;
+            offset = 3;
+        }
+        der[0] = 0x30;
+        der[offset++] = 0x02;
+        der[offset++] = (byte) r.length;
+        System.arraycopy(r, 0, der, offset, r.length);
+        offset += r.length;
+        der[offset++] = 0x02;
+        der[offset++] = (byte) s.length;
+        System.arraycopy(s, 0, der, offset, s.length);
+        return der;
+    }
+
+    /**
+     * Strips the leading zeros of a big-endian integer, keeping a single one if the most significant bit is set.
+     */
+    private static byte[] unsigned(final byte[] value) {
+        int start = 0;
+        while (start < value.length - 1 && value[start] == 0) {
+            start++;
+        }
+        boolean pad = (value[start] & 0x80) != 0;
+        byte[] result = new byte[value.length - start + (pad ? 1 : 0)];
+        System.arraycopy(value, start, result, pad ? 1 : 0, value.length - start);
+        return result;
+    }
+
+    /**
+     * A validated JWT access token.
+     */
+    private static final class JwtAccessToken implements AccessToken {
+        private final JsonValue claims;
+        private final String token;
+        private final Set<String> scopes;
+        private final long expiresAt;
+
+        JwtAccessToken(final JsonValue claims, final String token, final Set<String> scopes, final long expiresAt) {
+            this.claims = claims;
+            this.token = token;
+            this.scopes = Collections.unmodifiableSet(scopes);
+            this.expiresAt = expiresAt;
+        }
+
+        @Override
+        public String getToken() {
+            return token;
+        }
+
+        @Override
+        public Set<String> getScopes() {
+            return scopes;
+        }
+
+        @Override
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        @Override
+        public Map<String, Object> getInfo() {
+            return claims.asMap();
+        }
+
+        @Override
+        public JsonValue asJsonValue() {
+            return claims;
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package org.forgerock.openig.filter.oauth2.client;
 
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.forgerock.http.protocol.Response.newResponsePromise;
 import static org.forgerock.json.JsonValue.array;
@@ -22,8 +23,10 @@ import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.openig.filter.oauth2.client.DiscoveryFilter.OPENID_SERVICE;
+import static org.forgerock.util.time.Duration.duration;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -40,8 +43,10 @@ import org.forgerock.http.routing.UriRouterContext;
 import org.forgerock.openig.filter.oauth2.client.DiscoveryFilter.AccountIdentifier;
 import org.forgerock.openig.heap.Heap;
 import org.forgerock.openig.log.Logger;
+import org.forgerock.services.context.AttributesContext;
 import org.forgerock.services.context.Context;
 import org.forgerock.services.context.RootContext;
+import org.forgerock.util.time.TimeService;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
@@ -65,12 +70,19 @@ public class DiscoveryFilterTest {
     @Mock
     private Handler handler;
 
+    @Mock
+    private Handler next;
+
+    @Mock
+    private TimeService time;
+
     @Mock
     private Logger logger;
 
     @BeforeMethod
     public void setUp() throws Exception {
         initMocks(this);
+        when(next.handle(any(Context.class), any(Request.class))).thenReturn(newResponsePromise(new Response()));
         context = new UriRouterContext(new RootContext(),
                                        null,
                                        null,
@@ -244,4 +256,58 @@ public class DiscoveryFilterTest {
         final DiscoveryFilter df = new DiscoveryFilter(handler, heap, logger);
         df.performOpenIdIssuerDiscovery(context, account).getOrThrow();
     }
+
+    @Test
+    public void shouldDiscoverTheIssuerOnce() throws Exception {
+        // given
+        final Response webFinger = new Response(Status.OK);
+        webFinger.setEntity(json(object(field("links", array(object(
+                                                                field("rel", OPENID_SERVICE),
+                                                                field("href", "http://localhost:8090/openam/oauth2")))))));
+        final Response wellKnown = new Response(Status.OK);
+        wellKnown.setEntity(json(object(field("authorization_endpoint", "http://localhost:8090/openam/authorize"),
+                                        field("token_endpoint", "http://localhost:8090/openam/access_token"))));
+        when(handler.handle(any(Context.class), any(Request.class)))
+                .thenReturn(newResponsePromise(webFinger), newResponsePromise(wellKnown));
+        final Request request = new Request();
+        request.setMethod("GET").setUri("http://www.example.com/login?discovery=http://openam.example.com/jackson");
+        final DiscoveryFilter df = new DiscoveryFilter(handler,
+                                                       heap,
+                                                       new DiscoveryCache(time, 10, duration(1L, MINUTES)),
+                                                       logger);
+
+        // when
+        final AttributesContext first = new AttributesContext(new RootContext());
+        df.filter(first, request, next).get();
+        final AttributesContext second = new AttributesContext(new RootContext());
+        df.filter(second, request, next).get();
+
+        // then
+        verify(handler, times(2)).handle(any(Context.class), any(Request.class));
+        verify(next, times(2)).handle(any(Context.class), eq(request));
+        final Issuer issuer = (Issuer) first.getAttributes().get(Issuer.ISSUER_KEY);
+        assertThat(issuer.getName()).isEqualTo("http://openam.example.com/");
+        assertThat(issuer.getTokenEndpoint().toString()).isEqualTo("http://localhost:8090/openam/access_token");
+        assertThat(second.getAttributes().get(Issuer.ISSUER_KEY)).isSameAs(issuer);
+    }
+
+    @Test
+    public void shouldUseTheIssuerSupportingTheDomain() throws Exception {
+        // given
+        final Issuer issuer = new Issuer("openam", json(object(
+                field("authorizeEndpoint", "http://openam.com/openam/authorize"),
+                field("tokenEndpoint", "http://openam.com/openam/access_token"),
+                field("supportedDomains", array("openam.com", "openam.com:8092", ".*\\.example\\.org")))));
+        when(heap.getAll(Issuer.class)).thenReturn(Collections.singletonList(issuer));
+        final Request request = new Request();
+        request.setMethod("GET").setUri("http://www.example.com/login?discovery=alice@openam.com:8092");
+        final AttributesContext attributesContext = new AttributesContext(new RootContext());
+
+        // when
+        new DiscoveryFilter(handler, heap, logger).filter(attributesContext, request, next).get();
+
+        // then
+        assertThat(attributesContext.getAttributes().get(Issuer.ISSUER_KEY)).isSameAs(issuer);
+        verifyZeroInteractions(handler);
+    }
 }
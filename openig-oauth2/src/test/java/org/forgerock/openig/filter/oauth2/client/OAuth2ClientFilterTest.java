@@ -33,6 +33,7 @@ import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.openig.filter.oauth2.client.OAuth2TestUtils.buildAuthorizedOAuth2Session;
 import static org.forgerock.openig.filter.oauth2.client.OAuth2TestUtils.buildClientRegistration;
 import static org.forgerock.openig.filter.oauth2.client.OAuth2TestUtils.newSession;
+import static org.forgerock.util.time.Duration.duration;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.times;
@@ -62,6 +63,9 @@ import org.forgerock.openig.heap.Name;
 import org.forgerock.services.context.AttributesContext;
 import org.forgerock.services.context.Context;
 import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
 import org.forgerock.util.time.TimeService;
 import org.mockito.Mock;
 import org.testng.annotations.BeforeMethod;
@@ -316,6 +320,102 @@ public class OAuth2ClientFilterTest {
         verifyZeroInteractions(failureHandler, discoveryAndDynamicRegistrationChain);
     }
 
+    @Test
+    public void shouldRefreshTheTokenOnceForConcurrentRequests() throws Exception {
+        // Given
+        when(next.handle(eq(context), any(Request.class)))
+            // Both requests are unauthorized due to an invalid access token.
+            .thenReturn(newResponsePromise(buildOAuth2ErrorResponse(UNAUTHORIZED,
+                                                                    E_INVALID_TOKEN,
+                                                                    ACCESS_TOKEN_HAS_EXPIRED)))
+            .thenReturn(newResponsePromise(buildOAuth2ErrorResponse(UNAUTHORIZED,
+                                                                    E_INVALID_TOKEN,
+                                                                    ACCESS_TOKEN_HAS_EXPIRED)))
+            // Then they succeed to access the protected resource.
+            .thenReturn(newResponsePromise(buildOAuth2Response(OK, json(object(field("success", "Access granted"))))));
+        // The refresh of the access token is still pending when the second request needs it
+        final PromiseImpl<Response, NeverThrowsException> refresh = PromiseImpl.create();
+        when(registrationHandler.handle(eq(context), any(Request.class))).thenReturn(refresh);
+        registrations.add(buildClientRegistration(DEFAULT_CLIENT_REGISTRATION_NAME, registrationHandler));
+
+        final OAuth2ClientFilter filter = buildOAuth2ClientFilter();
+        filter.setTarget(Expression.valueOf("${attributes.openid}", Object.class));
+
+        setSessionAuthorized();
+
+        // When
+        final Promise<Response, NeverThrowsException> first = filter.filter(context, request, next);
+        final Promise<Response, NeverThrowsException> second = filter.filter(context, request, next);
+        refresh.handleResult(buildOAuth2Response(OK, json(object(field("access_token", NEW_ACCESS_TOKEN),
+                                                                 field("refresh_token", NEW_REFRESH_TOKEN),
+                                                                 field("expires_in", 1000),
+                                                                 field("id_token", OAuth2TestUtils.ID_TOKEN)))));
+
+        // Then
+        assertThat(first.get().getStatus()).isEqualTo(OK);
+        assertThat(second.get().getStatus()).isEqualTo(OK);
+        assertThatTargetAttributesAreSetAndContain(NEW_ACCESS_TOKEN, NEW_REFRESH_TOKEN);
+        verify(next, times(4)).handle(eq(context), any(Request.class));
+        verify(registrationHandler).handle(eq(context), any(Request.class));
+        verifyZeroInteractions(failureHandler, discoveryAndDynamicRegistrationChain);
+    }
+
+    @Test
+    public void shouldRefreshTheTokenBeforeItExpires() throws Exception {
+        // Given
+        // The access token of the session expires in 10 seconds
+        when(time.now()).thenReturn(1460018871000L);
+        when(next.handle(eq(context), any(Request.class)))
+            .thenReturn(newResponsePromise(buildOAuth2Response(OK, json(object(field("success", "Access granted"))))));
+        when(registrationHandler.handle(eq(context), any(Request.class)))
+            .thenReturn(newResponsePromise(buildOAuth2Response(OK, json(object(field("access_token", NEW_ACCESS_TOKEN),
+                                                             field("refresh_token", NEW_REFRESH_TOKEN),
+                                                             field("expires_in", 1000),
+                                                             field("id_token", OAuth2TestUtils.ID_TOKEN))))));
+        registrations.add(buildClientRegistration(DEFAULT_CLIENT_REGISTRATION_NAME, registrationHandler));
+
+        final OAuth2ClientFilter filter = buildOAuth2ClientFilter();
+        filter.setTarget(Expression.valueOf("${attributes.openid}", Object.class));
+        filter.setRefreshBeforeExpiration(duration("30 seconds"));
+
+        setSessionAuthorized();
+
+        // When
+        final Response response = filter.filter(context, request, next).get();
+
+        // Then
+        assertThatTargetAttributesAreSetAndContain(NEW_ACCESS_TOKEN, NEW_REFRESH_TOKEN);
+
+        assertThat(response.getStatus()).isEqualTo(OK);
+        verify(next).handle(eq(context), any(Request.class));
+        verify(registrationHandler).handle(eq(context), any(Request.class));
+        verifyZeroInteractions(failureHandler, discoveryAndDynamicRegistrationChain);
+    }
+
+    @Test
+    public void shouldNotRefreshTheTokenLongBeforeItExpires() throws Exception {
+        // Given
+        // The access token of the session expires in 10 minutes
+        when(time.now()).thenReturn(1460018281000L);
+        when(next.handle(eq(context), any(Request.class)))
+            .thenReturn(newResponsePromise(buildOAuth2Response(OK, json(object(field("success", "Access granted"))))));
+        registrations.add(buildClientRegistration(DEFAULT_CLIENT_REGISTRATION_NAME, registrationHandler));
+
+        final OAuth2ClientFilter filter = buildOAuth2ClientFilter();
+        filter.setTarget(Expression.valueOf("${attributes.openid}", Object.class));
+        filter.setRefreshBeforeExpiration(duration("30 seconds"));
+
+        setSessionAuthorized();
+
+        // When
+        final Response response = filter.filter(context, request, next).get();
+
+        // Then
+        assertThat(response.getStatus()).isEqualTo(OK);
+        verify(next).handle(eq(context), any(Request.class));
+        verifyZeroInteractions(registrationHandler, failureHandler, discoveryAndDynamicRegistrationChain);
+    }
+
     /**
      * All non 401(and not about refreshing the access token) error responses
      * are returned without any process.
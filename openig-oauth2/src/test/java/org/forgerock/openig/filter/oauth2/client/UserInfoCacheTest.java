@@ -0,0 +1,197 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2.client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openig.filter.oauth2.client.OAuth2TestUtils.buildAuthorizedOAuth2Session;
+import static org.forgerock.openig.filter.oauth2.client.OAuth2TestUtils.buildClientRegistration;
+import static org.forgerock.util.time.Duration.duration;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.TimeService;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class UserInfoCacheTest {
+
+    /** The access token of the test sessions expires at this time (in seconds). */
+    private static final long EXPIRES_AT = 1460018881L;
+
+    private Context context;
+    private ClientRegistration registration;
+
+    @Mock
+    private Handler handler;
+
+    @Mock
+    private TimeService time;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        initMocks(this);
+        context = new RootContext();
+        registration = buildClientRegistration("openam", handler);
+        // The access token expires in 1 hour
+        setNow(EXPIRES_AT - 3600L);
+        respondWith("bob");
+    }
+
+    @Test
+    public void shouldLoadTheUserInfoOnce() throws Exception {
+        UserInfoCache cache = newUserInfoCache(100);
+        OAuth2Session session = newSession("access-token");
+
+        assertThat(subject(cache, session)).isEqualTo("bob");
+        assertThat(subject(cache, session)).isEqualTo("bob");
+
+        verify(handler, times(1)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldReloadTheExpiredUserInfo() throws Exception {
+        UserInfoCache cache = newUserInfoCache(100);
+        OAuth2Session session = newSession("access-token");
+        assertThat(subject(cache, session)).isEqualTo("bob");
+
+        respondWith("alice");
+        setNow(EXPIRES_AT - 3600L + 30L);
+
+        // No stale value is served by default
+        assertThat(subject(cache, session)).isEqualTo("alice");
+        assertThat(subject(cache, session)).isEqualTo("alice");
+
+        verify(handler, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldRefreshTheUserInfoInTheBackground() throws Exception {
+        UserInfoCache cache = newStaleWhileRevalidateUserInfoCache();
+        OAuth2Session session = newSession("access-token");
+        assertThat(subject(cache, session)).isEqualTo("bob");
+
+        PromiseImpl<Response, NeverThrowsException> refresh = PromiseImpl.create();
+        when(handler.handle(any(Context.class), any(Request.class))).thenReturn(refresh);
+        setNow(EXPIRES_AT - 3600L + 30L);
+
+        // The cached value is served while it is reloaded
+        assertThat(subject(cache, session)).isEqualTo("bob");
+        assertThat(subject(cache, session)).isEqualTo("bob");
+        refresh.handleResult(userInfo("alice"));
+        assertThat(subject(cache, session)).isEqualTo("alice");
+
+        verify(handler, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldKeepTheCachedUserInfoWhenTheRefreshFails() throws Exception {
+        UserInfoCache cache = newStaleWhileRevalidateUserInfoCache();
+        OAuth2Session session = newSession("access-token");
+        assertThat(subject(cache, session)).isEqualTo("bob");
+
+        when(handler.handle(any(Context.class), any(Request.class)))
+                .thenReturn(newResponsePromise(new Response(Status.BAD_GATEWAY)));
+        setNow(EXPIRES_AT - 3600L + 30L);
+
+        assertThat(subject(cache, session)).isEqualTo("bob");
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldExpireTheUserInfoWithTheAccessToken() throws Exception {
+        UserInfoCache cache = newUserInfoCache(100);
+        // The access token expires in 10 seconds
+        setNow(EXPIRES_AT - 10L);
+        assertThat(subject(cache, newSession("access-token"))).isEqualTo("bob");
+
+        respondWith("alice");
+        setNow(EXPIRES_AT + 1L);
+
+        assertThat(subject(cache, newSession("access-token"))).isEqualTo("alice");
+    }
+
+    @Test
+    public void shouldEvictTheLeastRecentlyUsedUserInfo() throws Exception {
+        UserInfoCache cache = newUserInfoCache(1);
+        subject(cache, newSession("access-token-1"));
+        subject(cache, newSession("access-token-2"));
+        subject(cache, newSession("access-token-1"));
+
+        assertThat(cache.size()).isEqualTo(1);
+        verify(handler, times(3)).handle(any(Context.class), any(Request.class));
+    }
+
+    private UserInfoCache newUserInfoCache(final int maxEntries) {
+        return new UserInfoCache(time, maxEntries, duration("20 seconds"), duration("1 hour"), false);
+    }
+
+    private UserInfoCache newStaleWhileRevalidateUserInfoCache() {
+        return new UserInfoCache(time, 100, duration("20 seconds"), duration("1 hour"), true);
+    }
+
+    private String subject(final UserInfoCache cache, final OAuth2Session session) throws Exception {
+        return cache.getUserInfo(context, session, registration).getOrThrow().get("sub").asString();
+    }
+
+    private OAuth2Session newSession(final String accessToken) throws Exception {
+        JsonValue json = buildAuthorizedOAuth2Session("openam", "http://www.example.com/myapp");
+        json.get("atr").put("access_token", accessToken);
+        json.put("ea", EXPIRES_AT);
+        return OAuth2Session.fromJson(time, json);
+    }
+
+    private void setNow(final long seconds) {
+        when(time.now()).thenReturn(seconds * 1000L);
+    }
+
+    private void respondWith(final String subject) throws Exception {
+        when(handler.handle(any(Context.class), any(Request.class)))
+                .thenAnswer(new Answer<Promise<Response, NeverThrowsException>>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> answer(final InvocationOnMock invocation) {
+                        return newResponsePromise(userInfo(subject));
+                    }
+                });
+    }
+
+    private static Response userInfo(final String subject) {
+        Response response = new Response(Status.OK);
+        response.setEntity(json(object(field("sub", subject))).asMap());
+        return response;
+    }
+}
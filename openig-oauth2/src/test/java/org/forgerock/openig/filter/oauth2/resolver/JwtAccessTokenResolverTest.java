@@ -0,0 +1,260 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2.resolver;
+
+import static java.lang.String.format;
+import static java.util.Collections.singleton;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.forgerock.util.time.Duration.duration;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.authz.modules.oauth2.AccessToken;
+import org.forgerock.authz.modules.oauth2.AccessTokenException;
+import org.forgerock.authz.modules.oauth2.AccessTokenResolver;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.FakeTimeService;
+import org.forgerock.util.encode.Base64url;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class JwtAccessTokenResolverTest {
+
+    private static final String ISSUER = "https://openam.example.com/oauth2";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private KeyPair keyPair;
+    private FakeTimeService time;
+    private JwksHandler jwks;
+    private JwkSetCache keys;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+        time = new FakeTimeService(1000000L);
+        jwks = new JwksHandler(jwk("key-1", (RSAPublicKey) keyPair.getPublic()));
+        keys = new JwkSetCache(jwks, new URI("https://openam.example.com/jwks"), time, duration("30 seconds"));
+    }
+
+    @Test
+    public void shouldValidateSignedToken() throws Exception {
+        String token = sign("key-1", claims(ISSUER, 1060L));
+
+        AccessToken accessToken = resolver(null).resolve(new RootContext(), token).getOrThrow();
+
+        assertThat(accessToken.getToken()).isEqualTo(token);
+        assertThat(accessToken.getScopes()).containsOnly("email", "profile");
+        assertThat(accessToken.getExpiresAt()).isEqualTo(1060000L);
+        assertThat(accessToken.getInfo()).containsEntry("sub", "bjensen");
+    }
+
+    @Test(expectedExceptions = AccessTokenException.class, expectedExceptionsMessageRegExp = ".*expired")
+    public void shouldRejectExpiredToken() throws Exception {
+        String token = sign("key-1", claims(ISSUER, 900L));
+
+        resolver(null).resolve(new RootContext(), token).getOrThrow();
+    }
+
+    @Test(expectedExceptions = AccessTokenException.class, expectedExceptionsMessageRegExp = ".*issuer.*")
+    public void shouldRejectTokenFromAnotherIssuer() throws Exception {
+        String token = sign("key-1", claims("https://evil.example.com", 1060L));
+
+        resolver(null).resolve(new RootContext(), token).getOrThrow();
+    }
+
+    @Test(expectedExceptions = AccessTokenException.class, expectedExceptionsMessageRegExp = ".*signature")
+    public void shouldRejectTamperedToken() throws Exception {
+        String token = sign("key-1", claims(ISSUER, 1060L));
+        String[] parts = token.split("\\.");
+        String tampered = parts[0] + "." + encode(claims(ISSUER, 9999L)) + "." + parts[2];
+
+        resolver(null).resolve(new RootContext(), tampered).getOrThrow();
+    }
+
+    @Test
+    public void shouldRateLimitRefetchOnUnknownKeyId() throws Exception {
+        JwtAccessTokenResolver resolver = resolver(null);
+        resolver.resolve(new RootContext(), sign("key-1", claims(ISSUER, 1060L))).getOrThrow();
+        assertThat(jwks.requests).isEqualTo(1);
+
+        // Unknown kid: the key set is not fetched again before 30 seconds
+        for (int i = 0; i < 5; i++) {
+            try {
+                resolver.resolve(new RootContext(), sign("unknown", claims(ISSUER, 1060L))).getOrThrow();
+                failBecauseExceptionWasNotThrown(AccessTokenException.class);
+            } catch (AccessTokenException e) {
+                assertThat(e).hasMessageContaining("unknown");
+            }
+        }
+        assertThat(jwks.requests).isEqualTo(1);
+
+        time.advance(31, TimeUnit.SECONDS);
+        resolver.resolve(new RootContext(), sign("unknown", claims(ISSUER, 1100L)));
+        assertThat(jwks.requests).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldIgnoreMalformedKeys() throws Exception {
+        jwks.keys.add(0, json(object(field("kty", "RSA"),
+                                     field("kid", "bad-modulus"),
+                                     field("n", "*"),
+                                     field("e", "AQAB"))));
+        jwks.keys.add(0, json(object(field("kid", "no-type"), field("n", "AQAB"), field("e", "AQAB"))));
+        jwks.keys.add(0, json(object(field("kty", "EC"), field("kid", "no-curve"))));
+
+        String token = sign("key-1", claims(ISSUER, 1060L));
+
+        assertThat(resolver(null).resolve(new RootContext(), token).getOrThrow().getToken()).isEqualTo(token);
+        assertThat(keys.refresh().getOrThrow()).containsOnlyKeys("key-1");
+    }
+
+    @Test(expectedExceptions = AccessTokenException.class,
+          expectedExceptionsMessageRegExp = ".*cannot verify 'ES256'.*")
+    public void shouldRejectTokenWhoseAlgorithmDoesNotMatchTheKeyType() throws Exception {
+        String token = sign("key-1", "ES256", claims(ISSUER, 1060L));
+
+        resolver(null).resolve(new RootContext(), token).getOrThrow();
+    }
+
+    @Test(expectedExceptions = AccessTokenException.class,
+          expectedExceptionsMessageRegExp = ".*cannot verify 'RS256'.*")
+    public void shouldRejectTokenWhoseAlgorithmIsNotTheOneOfTheKey() throws Exception {
+        jwks.keys.get(0).put("alg", "RS512");
+        String token = sign("key-1", claims(ISSUER, 1060L));
+
+        resolver(null).resolve(new RootContext(), token).getOrThrow();
+    }
+
+    @Test
+    public void shouldGiveOpaqueTokensToFallbackResolver() throws Exception {
+        AccessTokenResolver fallback = mock(AccessTokenResolver.class);
+        AccessToken opaque = mock(AccessToken.class);
+        Promise<AccessToken, AccessTokenException> promise = newResultPromise(opaque);
+        when(fallback.resolve(any(Context.class), anyString())).thenReturn(promise);
+
+        AccessToken accessToken = resolver(fallback).resolve(new RootContext(), "1fc0e143-f248").getOrThrow();
+
+        assertThat(accessToken).isSameAs(opaque);
+        verify(fallback).resolve(any(Context.class), anyString());
+        assertThat(jwks.requests).isEqualTo(0);
+    }
+
+    private JwtAccessTokenResolver resolver(final AccessTokenResolver fallback) {
+        return new JwtAccessTokenResolver(keys,
+                                          time,
+                                          ISSUER,
+                                          singleton("resource-server"),
+                                          duration("10 seconds"),
+                                          fallback);
+    }
+
+    private String sign(final String keyId, final String claims) throws Exception {
+        return sign(keyId, "RS256", claims);
+    }
+
+    private String sign(final String keyId, final String alg, final String claims) throws Exception {
+        String header = doubleQuote(format("{'alg': '%s', 'kid': '%s'}", alg, keyId));
+        String signingInput = encode(header) + "." + encode(claims);
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(signingInput.getBytes(UTF_8));
+        return signingInput + "." + Base64url.encode(signature.sign());
+    }
+
+    private static String claims(final String issuer, final long expiresAt) {
+        return doubleQuote(format("{'iss': '%s', 'sub': 'bjensen', 'aud': ['resource-server', 'another'], "
+                                          + "'scope': 'email profile', 'exp': %d, 'nbf': 990}",
+                                  issuer,
+                                  expiresAt));
+    }
+
+    private static String doubleQuote(final String value) {
+        return value.replaceAll("'", "\"");
+    }
+
+    private static JsonValue jwk(final String keyId, final RSAPublicKey key) {
+        return json(object(field("kty", "RSA"),
+                           field("kid", keyId),
+                           field("use", "sig"),
+                           field("n", encode(key.getModulus())),
+                           field("e", encode(key.getPublicExponent()))));
+    }
+
+    private static String encode(final BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes[0] == 0) {
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        return Base64url.encode(bytes);
+    }
+
+    private static String encode(final String value) {
+        return Base64url.encode(value.getBytes(UTF_8));
+    }
+
+    private static final class JwksHandler implements Handler {
+        private final List<JsonValue> keys = new ArrayList<>();
+        private int requests;
+
+        JwksHandler(final JsonValue jwk) {
+            keys.add(jwk);
+        }
+
+        @Override
+        public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+            requests++;
+            List<Object> jwks = new ArrayList<>();
+            for (JsonValue jwk : keys) {
+                jwks.add(jwk.getObject());
+            }
+            Response response = new Response(Status.OK);
+            response.setEntity(json(object(field("keys", jwks))).getObject());
+            return Response.newResponsePromise(response);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.openam;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.time.Duration.duration;
+
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+
+import org.forgerock.http.util.Json;
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.Function;
+import org.forgerock.util.PromiseCache;
+import org.forgerock.util.encode.Base64;
+import org.forgerock.util.encode.Base64url;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Caches the tokens issued by the OpenAM STS for a given id_token, so that the same id_token presented repeatedly
+ * is transformed once.
+ * <p>
+ * The cache is keyed by a digest of the id_token (the id_token itself is not kept). An issued token expires at the
+ * earliest of the id_token expiration ({@literal exp} claim), the end of validity of the issued assertion (its
+ * {@literal NotOnOrAfter} attributes) and {@code maxExpiration}. Concurrent transformations of the same id_token
+ * share the same STS call, failures are not cached. When the cache is full, the least recently used entries are
+ * evicted.
+ *
+ * @param <E>
+ *         the type of the transformation failures
+ */
+final class IssuedTokenCache<E extends Exception> {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern NOT_ON_OR_AFTER = Pattern.compile("NotOnOrAfter\\s*=\\s*[\"']([^\"']+)[\"']");
+
+    private final TimeService time;
+    private final PromiseCache<String, String, E> cache;
+
+    /**
+     * Creates a new cache of issued tokens.
+     *
+     * @param time
+     *         the time service
+     * @param maxEntries
+     *         the maximum number of cached tokens
+     * @param maxExpiration
+     *         the maximum time a token is cached
+     * @throws IllegalArgumentException
+     *         if {@code maxEntries} or {@code maxExpiration} is not positive
+     */
+    IssuedTokenCache(final TimeService time, final int maxEntries, final Duration maxExpiration) {
+        this.time = checkNotNull(time);
+        this.cache = new PromiseCache<>(time, maxEntries, maxExpiration);
+    }
+
+    /**
+     * Returns the token issued for the given id_token, transforming it if it is not cached.
+     *
+     * @param idToken
+     *         the id_token to transform
+     * @param transformation
+     *         performs the transformation when the issued token is not cached
+     * @return a promise completed with the issued token
+     */
+    Promise<String, E> get(final String idToken, final Callable<Promise<String, E>> transformation) {
+        return cache.getValue(digest(idToken), new AsyncFunction<String, String, E>() {
+            @Override
+            public Promise<String, E> apply(final String key) {
+                try {
+                    return transformation.call();
+                } catch (Exception e) {
+                    throw new IllegalStateException("Unable to start the token transformation", e);
+                }
+            }
+        }, new Function<String, Duration, NeverThrowsException>() {
+            @Override
+            public Duration apply(final String issuedToken) {
+                return timeToLive(idToken, issuedToken);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of cached tokens (including the pending transformations).
+     *
+     * @return the number of cached tokens
+     */
+    int size() {
+        return cache.size();
+    }
+
+    private Duration timeToLive(final String idToken, final String issuedToken) {
+        final long expiresAt = expiresAt(idToken, issuedToken);
+        if (expiresAt == Long.MAX_VALUE) {
+            // Capped to maxExpiration
+            return Duration.UNLIMITED;
+        }
+        final long timeToLive = expiresAt - time.now();
+        return timeToLive > 0L ? duration(timeToLive, MILLISECONDS) : Duration.ZERO;
+    }
+
+    private long expiresAt(final String idToken, final String issuedToken) {
+        long expiresAt = Long.MAX_VALUE;
+        final Long exp = idTokenExpiration(idToken);
+        if (exp != null) {
+            expiresAt = Math.min(expiresAt, exp);
+        }
+        final Matcher matcher = NOT_ON_OR_AFTER.matcher(issuedToken);
+        DatatypeFactory datatypes = null;
+        while (matcher.find()) {
+            if (datatypes == null) {
+                datatypes = newDatatypeFactory();
+            }
+            try {
+                expiresAt = Math.min(expiresAt,
+                                     datatypes.newXMLGregorianCalendar(matcher.group(1))
+                                              .toGregorianCalendar()
+                                              .getTimeInMillis());
+            } catch (IllegalArgumentException e) {
+                // Not a dateTime, ignore it
+            }
+        }
+        return expiresAt;
+    }
+
+    private static DatatypeFactory newDatatypeFactory() {
+        try {
+            return DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException e) {
+            throw new IllegalStateException("Cannot parse the NotOnOrAfter dates", e);
+        }
+    }
+
+    /**
+     * Returns the expiration time of the id_token in milliseconds, or {@code null} if it cannot be read.
+     */
+    static Long idTokenExpiration(final String idToken) {
+        final String[] parts = idToken.split("\\.");
+        if (parts.length < 2) {
+            return null;
+        }
+        try {
+            final String claims = new String(Base64url.decode(parts[1]), UTF_8);
+            final Long exp = new JsonValue(Json.readJson(new StringReader(claims))).get("exp").asLong();
+            return exp != null ? MILLISECONDS.convert(exp, SECONDS) : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static String digest(final String idToken) {
+        try {
+            return Base64.encode(MessageDigest.getInstance("SHA-256").digest(idToken.getBytes(UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+}
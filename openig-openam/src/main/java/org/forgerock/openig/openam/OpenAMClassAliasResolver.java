@@ -30,6 +30,7 @@ public class OpenAMClassAliasResolver implements ClassAliasResolver {
     static {
         ALIASES.put("PolicyEnforcementFilter", PolicyEnforcementFilter.class);
         ALIASES.put("TokenTransformationFilter", TokenTransformationFilter.class);
+        ALIASES.put("SsoTokenPool", SsoTokenPool.class);
     }
 
     @Override
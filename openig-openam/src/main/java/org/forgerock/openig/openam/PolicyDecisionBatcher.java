@@ -0,0 +1,228 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.openam;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.http.routing.Version.version;
+import static org.forgerock.util.Reject.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.JsonValueException;
+import org.forgerock.json.resource.ActionRequest;
+import org.forgerock.json.resource.ActionResponse;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.RequestHandler;
+import org.forgerock.json.resource.Requests;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourcePath;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.ExceptionHandler;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+
+/**
+ * Groups the policy evaluations of the same subject (with the same application and environment) that are requested
+ * within a short window into a single {@literal evaluate} action listing all the resources, and completes the
+ * promise of each resource with its own decision.
+ * <p>
+ * A batch is sent when its window elapses or as soon as it holds {@code maxResources} distinct resources. The batched
+ * call is made in the context of the first request of the batch, so that the filters of the policies handler (such
+ * as the {@link SsoTokenFilter}, which keeps the PEP SSO token in the session) can use it.
+ */
+class PolicyDecisionBatcher {
+
+    private final RequestHandler requestHandler;
+    private final String endpoint;
+    private final String action;
+    private final ScheduledExecutorService executor;
+    private final long window;
+    private final int maxResources;
+
+    /** Pending batches, keyed by the evaluation content without the resources. */
+    private final Map<Map<String, Object>, Batch> pending = new HashMap<>();
+
+    /**
+     * Creates a new batcher of policy evaluations.
+     *
+     * @param requestHandler
+     *         the handler used to perform the policy evaluations
+     * @param endpoint
+     *         the policies endpoint
+     * @param action
+     *         the evaluation action
+     * @param executor
+     *         the executor used to send the batches when their window elapses
+     * @param window
+     *         how long the evaluations are collected before being sent
+     * @param maxResources
+     *         the maximum number of resources evaluated by a single request
+     */
+    PolicyDecisionBatcher(final RequestHandler requestHandler,
+                          final String endpoint,
+                          final String action,
+                          final ScheduledExecutorService executor,
+                          final Duration window,
+                          final int maxResources) {
+        this.requestHandler = checkNotNull(requestHandler);
+        this.endpoint = checkNotNull(endpoint);
+        this.action = checkNotNull(action);
+        this.executor = checkNotNull(executor);
+        this.window = window.to(MILLISECONDS);
+        this.maxResources = maxResources;
+    }
+
+    /**
+     * Adds the evaluation of a single resource to the pending batch of its subject.
+     *
+     * @param context
+     *         the context of the request asking for this evaluation
+     * @param content
+     *         the content of the evaluate action, holding a single resource
+     * @return a promise completed with the policy decision of this resource
+     */
+    Promise<JsonValue, ResourceException> evaluate(final Context context, final JsonValue content) {
+        final String resource = content.get("resources").get(0).asString();
+        final Map<String, Object> key = new LinkedHashMap<>(content.asMap());
+        key.remove("resources");
+
+        final Promise<JsonValue, ResourceException> promise;
+        Batch full = null;
+        synchronized (pending) {
+            Batch batch = pending.get(key);
+            if (batch == null) {
+                batch = new Batch(key, context);
+                pending.put(key, batch);
+                batch.schedule();
+            }
+            promise = batch.add(resource);
+            if (batch.size() >= maxResources) {
+                pending.remove(key);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            full.send();
+        }
+        return promise;
+    }
+
+    /**
+     * The evaluations collected for a subject.
+     */
+    private final class Batch implements Runnable {
+        private final Map<String, Object> content;
+        private final Context context;
+        private final Map<String, PromiseImpl<JsonValue, ResourceException>> resources = new LinkedHashMap<>();
+        private Future<?> expiration;
+
+        Batch(final Map<String, Object> content, final Context context) {
+            this.content = content;
+            this.context = context;
+        }
+
+        PromiseImpl<JsonValue, ResourceException> add(final String resource) {
+            PromiseImpl<JsonValue, ResourceException> promise = resources.get(resource);
+            if (promise == null) {
+                promise = PromiseImpl.create();
+                resources.put(resource, promise);
+            }
+            return promise;
+        }
+
+        int size() {
+            return resources.size();
+        }
+
+        void schedule() {
+            expiration = executor.schedule(this, window, MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            // The window has elapsed: send the batch, unless it has already been sent because it was full
+            synchronized (pending) {
+                if (pending.get(content) != this) {
+                    return;
+                }
+                pending.remove(content);
+            }
+            send();
+        }
+
+        void send() {
+            if (expiration != null) {
+                expiration.cancel(false);
+            }
+            final Map<String, Object> body = new LinkedHashMap<>(content);
+            body.put("resources", new ArrayList<>(resources.keySet()));
+            final ActionRequest request = Requests.newActionRequest(ResourcePath.valueOf(endpoint), action);
+            request.setContent(new JsonValue(body));
+            request.setResourceVersion(version(2, 0));
+
+            requestHandler.handleAction(context, request)
+                          .thenOnResult(new ResultHandler<ActionResponse>() {
+                              @Override
+                              public void handleResult(final ActionResponse response) {
+                                  dispatch(response.getJsonContent());
+                              }
+                          })
+                          .thenOnException(new ExceptionHandler<ResourceException>() {
+                              @Override
+                              public void handleException(final ResourceException exception) {
+                                  fail(exception);
+                              }
+                          });
+        }
+
+        private void dispatch(final JsonValue decisions) {
+            final Map<String, JsonValue> byResource = new HashMap<>();
+            try {
+                for (JsonValue decision : decisions) {
+                    byResource.put(decision.get("resource").asString(), decision);
+                }
+            } catch (JsonValueException e) {
+                fail(new InternalServerErrorException("Unable to read the policy decisions", e));
+                return;
+            }
+            for (Map.Entry<String, PromiseImpl<JsonValue, ResourceException>> entry : resources.entrySet()) {
+                final JsonValue decision = byResource.get(entry.getKey());
+                if (decision != null) {
+                    entry.getValue().handleResult(decision);
+                } else {
+                    entry.getValue().handleException(new InternalServerErrorException(
+                            format("No policy decision returned for the resource '%s'", entry.getKey())));
+                }
+            }
+        }
+
+        private void fail(final ResourceException exception) {
+            for (PromiseImpl<JsonValue, ResourceException> promise : resources.values()) {
+                promise.handleException(exception);
+            }
+        }
+    }
+}
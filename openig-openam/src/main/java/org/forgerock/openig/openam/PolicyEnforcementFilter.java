@@ -17,12 +17,15 @@
 package org.forgerock.openig.openam;
 
 import static java.lang.String.format;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptySet;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.forgerock.http.handler.Handlers.chainOf;
 import static org.forgerock.http.protocol.Response.newResponsePromise;
 import static org.forgerock.http.protocol.Status.FORBIDDEN;
 import static org.forgerock.http.protocol.Status.INTERNAL_SERVER_ERROR;
 import static org.forgerock.http.routing.Version.version;
+import static org.forgerock.http.util.Uris.formDecodeParameterNameOrValue;
 import static org.forgerock.json.JsonValue.array;
 import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.fieldIfNotNull;
@@ -31,28 +34,37 @@ import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.openig.el.Bindings.bindings;
 import static org.forgerock.openig.heap.Keys.CLIENT_HANDLER_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.http.DeadlineContext.isExpired;
+import static org.forgerock.openig.http.Deadlines.newGatewayTimeout;
 import static org.forgerock.openig.util.JsonValues.asDuration;
 import static org.forgerock.openig.util.JsonValues.asExpression;
+import static org.forgerock.openig.util.JsonValues.asInteger;
 import static org.forgerock.openig.util.JsonValues.asString;
 import static org.forgerock.openig.util.StringUtil.trailingSlash;
 import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.promise.Promises.newResultPromise;
 import static org.forgerock.util.time.Duration.duration;
 
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
-import org.forgerock.http.MutableUri;
 import org.forgerock.http.header.AcceptApiVersionHeader;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.JsonValueException;
 import org.forgerock.json.resource.ActionRequest;
@@ -71,14 +83,19 @@ import org.forgerock.openig.el.Expressions;
 import org.forgerock.openig.heap.GenericHeapObject;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.http.EndpointRegistry;
 import org.forgerock.services.context.Context;
 import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.Function;
 import org.forgerock.util.ThreadSafeCache;
 import org.forgerock.util.annotations.VisibleForTesting;
+import org.forgerock.util.promise.ExceptionHandler;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
 import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
 
 /**
  * This filter requests policy decisions from OpenAM which evaluates the
@@ -106,6 +123,8 @@ import org.forgerock.util.time.Duration;
  *                                                                        provided in heap.]
  *          "realm"                  :    String,             [OPTIONAL - default is '/']
  *          "ssoTokenHeader"         :    String,             [OPTIONAL]
+ *          "sharedSsoToken"         :    object,             [OPTIONAL - shares the SSO token of the PEP user
+ *                                                                        across sessions, see below]
  *          "application"            :    String,             [OPTIONAL]
  *          "ssoTokenSubject"        :    expression,         [OPTIONAL - must be specified if no jwtSubject or
  *                                                                        claimsSubject ]
@@ -119,6 +138,12 @@ import org.forgerock.util.time.Duration;
  *          "environment"            :    map/expression,     [OPTIONAL - instance of Map<String, List<Object>>]
  *          "executor"               :    executor            [OPTIONAL - by default uses 'ScheduledThreadPool'
  *                                                                        heap object]
+ *          "batch"                  :    object,             [OPTIONAL - evaluates the resources of a subject in
+ *                                                                        batches, see below]
+ *          "ignoredQueryParameters" :    array of Strings,   [OPTIONAL - query parameters removed from the
+ *                                                                        evaluated URI, '*' removes the whole query]
+ *          "subtreeCache"           :    object,             [OPTIONAL - caches the decisions of whole subtrees,
+ *                                                                        see below]
  *      }
  *  }
  *  }
@@ -132,6 +157,41 @@ import org.forgerock.util.time.Duration;
  * calls must present the session token, aka SSO Token, in an HTTP header as
  * proof of authentication).
  * <p>
+ * By default, the SSO token is stored in the session of each client. When
+ * "sharedSsoToken" is set, the tokens obtained with the same credentials are
+ * shared by all the sessions, and renewed before the OpenAM idle timeout:
+ * <pre>
+ * {@code "sharedSsoToken": {
+ *     "renewAfter" : duration,   [OPTIONAL - default to 25 minutes]
+ *     "pool"       : reference   [OPTIONAL - an SsoTokenPool heap object, to share the tokens with other filters]
+ * }}
+ * </pre>
+ * Without "pool", the filter keeps its tokens in a pool of its own, cleared when the heap is destroyed.
+ * <p>
+ * When "batch" is set, the evaluations of the same subject (with the same
+ * application and environment) that miss the cache within a short window are
+ * sent to OpenAM as a single evaluate request listing all the resources:
+ * <pre>
+ * {@code "batch": {
+ *     "window"       : duration,  [OPTIONAL - default to 10 milliseconds]
+ *     "maxResources" : integer    [OPTIONAL - default to 50, a full batch is sent immediately]
+ * }}
+ * </pre>
+ * <p>
+ * When "subtreeCache" is set, a cache miss asks OpenAM for the decisions of
+ * the whole subtree of the requested URI (evaluateTree action): a decision for
+ * a resource pattern such as {@literal http://example.com/api/orders/*}
+ * then answers all the URIs it matches, until it expires. URIs that are not
+ * covered by the subtree decisions are evaluated (and cached) on their own,
+ * as are the URIs with a query string (not matched by a trailing '*') and the
+ * URIs matched by several decisions (that OpenAM would combine).
+ * The hit rate of this cache is published by an endpoint of the heap object.
+ * <pre>
+ * {@code "subtreeCache": {
+ *     "maxEntries" : integer    [OPTIONAL - default to 10000 decisions]
+ * }}
+ * </pre>
+ * <p>
  * The target represents a map in the attribute context where the "attributes"
  * and "advices" map fields from the policy decision will be saved in. By
  * default, these values are stored in ${attributes.policy.attributes} and
@@ -171,11 +231,17 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
 
     private static final String POLICY_ENDPOINT = "/policies";
     private static final String EVALUATE_ACTION = "evaluate";
+    private static final String EVALUATE_TREE_ACTION = "evaluateTree";
     private static final String SUBJECT_ERROR =
             "The attribute 'ssoTokenSubject' or 'jwtSubject' or 'claimsSubject' must be specified";
 
     private ThreadSafeCache<String, Promise<JsonValue, ResourceException>> policyDecisionCache;
     private final RequestHandler requestHandler;
+    private PolicyDecisionBatcher batcher;
+    private SubtreePolicyDecisionCache subtreeCache;
+    private final ConcurrentMap<String, Promise<JsonValue, ResourceException>> pendingTrees =
+            new ConcurrentHashMap<>();
+    private Set<String> ignoredQueryParameters = emptySet();
     private String application;
     private Expression<String> ssoTokenSubject;
     private Expression<String> jwtSubject;
@@ -213,10 +279,57 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
         this.policyDecisionCache = cache;
     }
 
+    /**
+     * Enables the batching of the policy evaluations: the evaluations of the same subject that are requested within
+     * the given window are sent to OpenAM as a single request. By default, each resource is evaluated on its own.
+     *
+     * @param executor
+     *            The executor used to send the pending evaluations when the window elapses.
+     * @param window
+     *            How long the evaluations are collected before being sent.
+     * @param maxResources
+     *            The maximum number of resources evaluated by a single request: a batch that reaches this size is
+     *            sent without waiting for the end of the window.
+     */
+    public void setBatching(final ScheduledExecutorService executor, final Duration window, final int maxResources) {
+        this.batcher = new PolicyDecisionBatcher(requestHandler,
+                                                 POLICY_ENDPOINT,
+                                                 EVALUATE_ACTION,
+                                                 executor,
+                                                 window,
+                                                 maxResources);
+    }
+
+    /**
+     * Sets the subtree cache: on a cache miss, the decisions of the whole subtree of the requested URI are asked to
+     * OpenAM, and the decisions for resource patterns answer all the URIs they match.
+     *
+     * @param subtreeCache
+     *            The subtree cache for the policy decisions ({@code null} to only cache exact resources).
+     */
+    public void setSubtreeCache(final SubtreePolicyDecisionCache subtreeCache) {
+        this.subtreeCache = subtreeCache;
+    }
+
+    /**
+     * Sets the query parameters that are removed from the requested URI before its evaluation (and the look up of
+     * its cached decision). The {@literal *} name removes the whole query.
+     *
+     * @param ignoredQueryParameters
+     *            The names of the query parameters that do not change the policy decision.
+     */
+    public void setIgnoredQueryParameters(final Set<String> ignoredQueryParameters) {
+        this.ignoredQueryParameters = checkNotNull(ignoredQueryParameters);
+    }
+
     @Override
     public Promise<Response, NeverThrowsException> filter(final Context context,
                                                           final Request request,
                                                           final Handler next) {
+        if (isExpired(context)) {
+            // Too late to ask for a policy decision
+            return newResponsePromise(newGatewayTimeout());
+        }
 
         return askForPolicyDecision(context, request)
                     .then(evaluatePolicyDecision(context, request))
@@ -322,21 +435,150 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
         actionRequest.setResourceVersion(version(2, 0));
 
         final JsonValue subject = resources.get("subject");
-        final String key = createKeyCache(request.getUri().toASCIIString(),
-                                          subject.get("ssoToken").asString(),
-                                          subject.get("jwt").asString(),
-                                          subject.get("claims").asMap() != null
-                                                      ? subject.get("claims").asMap().hashCode()
-                                                      : 0);
+        final String uri = resourceUri(request);
+        final String subjectKey = createKeyCache("",
+                                                 subject.get("ssoToken").asString(),
+                                                 subject.get("jwt").asString(),
+                                                 subject.get("claims").asMap() != null
+                                                         ? subject.get("claims").asMap().hashCode()
+                                                         : 0);
+        final String key = uri + subjectKey;
+        final Callable<Promise<JsonValue, ResourceException>> evaluation =
+                batcher != null
+                        ? getBatchedPolicyDecisionCallable(context, batcher, resources)
+                        : getPolicyDecisionCallable(context, requestHandler, actionRequest);
+        if (subtreeCache != null) {
+            return askForSubtreePolicyDecision(context, resources, subjectKey, uri, key, evaluation);
+        }
+        return askForCachedPolicyDecision(key, evaluation);
+    }
+
+    private Promise<JsonValue, ResourceException> askForCachedPolicyDecision(
+            final String key,
+            final Callable<Promise<JsonValue, ResourceException>> evaluation) {
         try {
-            return policyDecisionCache.getValue(key,
-                                                getPolicyDecisionCallable(context, requestHandler, actionRequest),
-                                                extractDurationFromTtl());
+            return policyDecisionCache.getValue(key, evaluation, extractDurationFromTtl());
         } catch (InterruptedException | ExecutionException e) {
             return new InternalServerErrorException(e).asPromise();
         }
     }
 
+    private Promise<JsonValue, ResourceException> askForSubtreePolicyDecision(
+            final Context context,
+            final JsonValue resources,
+            final String subject,
+            final String uri,
+            final String key,
+            final Callable<Promise<JsonValue, ResourceException>> evaluation) {
+        final JsonValue cached = subtreeCache.get(subject, uri);
+        if (cached != null) {
+            return newResultPromise(cached);
+        }
+        final String root = parentOf(uri);
+        if (subtreeCache.isEvaluated(subject, root)) {
+            // The subtree decisions do not cover this URI: evaluate it on its own
+            return askForCachedPolicyDecision(key, evaluation);
+        }
+        return evaluateTree(context, resources, subject, root)
+                .thenAsync(new AsyncFunction<JsonValue, JsonValue, ResourceException>() {
+                    @Override
+                    public Promise<JsonValue, ResourceException> apply(final JsonValue decisions) {
+                        final JsonValue decision = subtreeCache.find(subject, uri);
+                        if (decision != null) {
+                            return newResultPromise(decision);
+                        }
+                        return askForCachedPolicyDecision(key, evaluation);
+                    }
+                }, new AsyncFunction<ResourceException, JsonValue, ResourceException>() {
+                    @Override
+                    public Promise<JsonValue, ResourceException> apply(final ResourceException exception) {
+                        logger.debug("Cannot evaluate the policies of the subtree " + root);
+                        logger.debug(exception);
+                        return askForCachedPolicyDecision(key, evaluation);
+                    }
+                });
+    }
+
+    /**
+     * Asks OpenAM for the decisions of the subtree rooted at {@code root}. Concurrent evaluations of the same subtree
+     * for the same subject share the same request.
+     */
+    private Promise<JsonValue, ResourceException> evaluateTree(final Context context,
+                                                               final JsonValue resources,
+                                                               final String subject,
+                                                               final String root) {
+        final String treeKey = root + subject;
+        final PromiseImpl<JsonValue, ResourceException> tree = PromiseImpl.create();
+        final Promise<JsonValue, ResourceException> pending = pendingTrees.putIfAbsent(treeKey, tree);
+        if (pending != null) {
+            return pending;
+        }
+
+        final JsonValue content = resources.copy();
+        content.remove("resources");
+        content.put("resource", root);
+        final ActionRequest treeRequest = Requests.newActionRequest(ResourcePath.valueOf(POLICY_ENDPOINT),
+                                                                    EVALUATE_TREE_ACTION);
+        treeRequest.setContent(content);
+        treeRequest.setResourceVersion(version(2, 0));
+        requestHandler.handleAction(context, treeRequest)
+                      .thenOnResult(new ResultHandler<ActionResponse>() {
+                          @Override
+                          public void handleResult(final ActionResponse response) {
+                              try {
+                                  subtreeCache.putAll(subject, root, response.getJsonContent());
+                                  pendingTrees.remove(treeKey);
+                                  tree.handleResult(response.getJsonContent());
+                              } catch (JsonValueException e) {
+                                  pendingTrees.remove(treeKey);
+                                  tree.handleException(new InternalServerErrorException(e));
+                              }
+                          }
+                      })
+                      .thenOnException(new ExceptionHandler<ResourceException>() {
+                          @Override
+                          public void handleException(final ResourceException exception) {
+                              pendingTrees.remove(treeKey);
+                              tree.handleException(exception);
+                          }
+                      });
+        return tree;
+    }
+
+    private static String parentOf(final String uri) {
+        final int query = uri.indexOf('?');
+        final String path = query < 0 ? uri : uri.substring(0, query);
+        return path.substring(0, path.lastIndexOf('/') + 1);
+    }
+
+    private String resourceUri(final Request request) {
+        return normalizeUri(request.getUri().toASCIIString(), ignoredQueryParameters);
+    }
+
+    /**
+     * Removes the ignored query parameters from the given URI.
+     */
+    @VisibleForTesting
+    static String normalizeUri(final String uri, final Set<String> ignoredQueryParameters) {
+        final int index = uri.indexOf('?');
+        if (index < 0 || ignoredQueryParameters.isEmpty()) {
+            return uri;
+        }
+        if (ignoredQueryParameters.contains("*")) {
+            return uri.substring(0, index);
+        }
+        final StringBuilder query = new StringBuilder();
+        for (String parameter : uri.substring(index + 1).split("&")) {
+            final int equals = parameter.indexOf('=');
+            final String name = formDecodeParameterNameOrValue(equals < 0 ? parameter
+                                                                          : parameter.substring(0, equals));
+            if (!ignoredQueryParameters.contains(name)) {
+                query.append(query.length() == 0 ? "" : "&").append(parameter);
+            }
+        }
+        return query.length() == 0 ? uri.substring(0, index) : uri.substring(0, index + 1) + query;
+    }
+
     @VisibleForTesting
     JsonValue buildResources(final Context context, final Request request) throws ExpressionException,
                                                                                   NotSupportedException {
@@ -352,7 +594,7 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
             throw new NotSupportedException(SUBJECT_ERROR);
         }
 
-        return json(object(field("resources", array(request.getUri().toASCIIString())),
+        return json(object(field("resources", array(resourceUri(request))),
                            field("subject", subject.getObject()),
                            fieldIfNotNull("application", application),
                            fieldIfNotNull("environment", environment != null ? environment.apply(bindings) : null)));
@@ -395,6 +637,19 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
         };
     }
 
+    private static Callable<Promise<JsonValue, ResourceException>> getBatchedPolicyDecisionCallable(
+                                                                                  final Context context,
+                                                                                  final PolicyDecisionBatcher batcher,
+                                                                                  final JsonValue resources) {
+        return new Callable<Promise<JsonValue, ResourceException>>() {
+
+            @Override
+            public Promise<JsonValue, ResourceException> call() throws Exception {
+                return batcher.evaluate(context, resources);
+            }
+        };
+    }
+
     @VisibleForTesting
     static String createKeyCache(final String requestedUri,
                                  final String ssoToken,
@@ -428,8 +683,7 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
 
             @Override
             public Boolean apply(final JsonValue policyDecision) {
-                final MutableUri original = request.getUri();
-                if (policyDecision.get("resource").asString().equals(original.toASCIIString())) {
+                if (policyDecision.get("resource").asString().equals(resourceUri(request))) {
                     final Map<String, Object> extra = new LinkedHashMap<>();
                     extra.put("attributes", policyDecision.get("attributes").asMap());
                     extra.put("advices", policyDecision.get("advices").asMap());
@@ -449,6 +703,8 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
     public static class Heaplet extends GenericHeaplet {
 
         private ThreadSafeCache<String, Promise<JsonValue, ResourceException>> cache;
+        private SubtreePolicyDecisionCache subtreeCache;
+        private SsoTokenPool ownPool;
 
         @Override
         public Object create() throws HeapException {
@@ -475,6 +731,19 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
                                                                          pepUsername,
                                                                          pepPassword,
                                                                          logger);
+                final JsonValue sharedSsoToken = config.get("sharedSsoToken");
+                SsoTokenPool pool = heap.resolve(sharedSsoToken.get("pool"), SsoTokenPool.class, true);
+                if (pool == null) {
+                    ownPool = new SsoTokenPool(heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class),
+                                               SsoTokenPool.DEFAULT_MAX_ENTRIES);
+                    pool = ownPool;
+                }
+                ssoTokenFilter.setTokenPool(pool);
+                if (!sharedSsoToken.isNull()) {
+                    ssoTokenFilter.setSharedTokens(pool,
+                                                   asDuration(sharedSsoToken.get("renewAfter")
+                                                                            .defaultTo("25 minutes")));
+                }
 
                 final PolicyEnforcementFilter filter =
                         new PolicyEnforcementFilter(normalizeToJsonEndpoint(openamUrl, realm),
@@ -508,6 +777,32 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
                 cache.setMaxTimeout(cacheMaxExpiration);
                 filter.setCache(cache);
 
+                filter.setIgnoredQueryParameters(new LinkedHashSet<>(config.get("ignoredQueryParameters")
+                                                                           .defaultTo(emptyList())
+                                                                           .asList(String.class)));
+                final JsonValue subtree = config.get("subtreeCache");
+                if (!subtree.isNull()) {
+                    final int maxEntries = asInteger(subtree.get("maxEntries").defaultTo(10000));
+                    if (maxEntries < 1) {
+                        throw new HeapException("The subtree cache maxEntries has to be a positive integer");
+                    }
+                    subtreeCache = new SubtreePolicyDecisionCache(heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class),
+                                                                  cacheMaxExpiration,
+                                                                  maxEntries);
+                    filter.setSubtreeCache(subtreeCache);
+                }
+
+                final JsonValue batch = config.get("batch");
+                if (!batch.isNull()) {
+                    final Duration window = asDuration(batch.get("window").defaultTo("10 milliseconds"));
+                    final int maxResources = asInteger(batch.get("maxResources").defaultTo(50));
+                    if (window.isZero() || window.isUnlimited() || maxResources < 1) {
+                        throw new HeapException("The batch window has to be a positive duration and "
+                                                        + "maxResources a positive integer");
+                    }
+                    filter.setBatching(executor, window, maxResources);
+                }
+
                 return filter;
             } catch (URISyntaxException e) {
                 throw new HeapException(e);
@@ -563,11 +858,34 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
             return new URI(builder.toString());
         }
 
+        @Override
+        public void start() throws HeapException {
+            if (subtreeCache == null) {
+                return;
+            }
+            final SubtreePolicyDecisionCache statistics = subtreeCache;
+            EndpointRegistry.Registration registration = endpointRegistry().register("cache", new Handler() {
+                @Override
+                public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                    Response response = new Response(Status.OK);
+                    response.getEntity().setJson(statistics.getStatistics());
+                    return newResponsePromise(response);
+                }
+            });
+            logger.info(format("Policy decision cache statistics available at '%s'", registration.getPath()));
+        }
+
         @Override
         public void destroy() {
             if (cache != null) {
                 cache.clear();
             }
+            if (subtreeCache != null) {
+                subtreeCache.clear();
+            }
+            if (ownPool != null) {
+                ownPool.clear();
+            }
         }
 
         private class ApiVersionProtocolHeaderFilter implements Filter {
@@ -19,20 +19,27 @@ package org.forgerock.openig.openam;
 import static org.forgerock.http.Responses.newInternalServerError;
 import static org.forgerock.http.protocol.Response.newResponsePromise;
 import static org.forgerock.http.protocol.Status.FORBIDDEN;
+import static org.forgerock.http.protocol.Status.UNAUTHORIZED;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.openig.el.Bindings.bindings;
 import static org.forgerock.util.Reject.checkNotNull;
 import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.forgerock.util.time.Duration.duration;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
 import org.forgerock.http.session.SessionContext;
 import org.forgerock.openig.el.Bindings;
 import org.forgerock.openig.el.Expression;
@@ -41,8 +48,11 @@ import org.forgerock.services.context.Context;
 import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.Function;
 import org.forgerock.util.annotations.VisibleForTesting;
+import org.forgerock.util.encode.Base64;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
 
 /**
  * Provides an OpenAM SSO Token in the given header name for downstream components.
@@ -50,6 +60,10 @@ import org.forgerock.util.promise.Promise;
  * <p>The SSO Token is stored in the session to avoid DOS on OpenAM endpoints.
  *
  * <p>If the request failed, a unique attempt to refresh the SSO token is tried.
+ *
+ * <p>When the credentials are the ones of a service account, the SSO tokens can instead be shared by all the
+ * sessions (see {@link SsoTokenPool}): they are renewed before the OpenAM idle timeout, and a rejected token is
+ * renewed once for all the requests that used it. Tokens are also shared when there is no session to store them.
  */
 public class SsoTokenFilter implements Filter {
 
@@ -57,6 +71,9 @@ public class SsoTokenFilter implements Filter {
     static final String BASE_ENDPOINT = "json";
     static final String AUTHENTICATION_ENDPOINT = "/authenticate";
     static final String DEFAULT_HEADER_NAME = "iPlanetDirectoryPro";
+    static final Duration DEFAULT_RENEW_AFTER = duration("25 minutes");
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
     private final Handler ssoClientHandler;
     private final URI openamUrl;
@@ -65,6 +82,9 @@ public class SsoTokenFilter implements Filter {
     private final Expression<String> username;
     private final Expression<String> password;
     private final Logger logger;
+    private SsoTokenPool pool;
+    private boolean shared;
+    private Duration renewAfter = DEFAULT_RENEW_AFTER;
 
     SsoTokenFilter(final Handler ssoClientHandler,
                    final URI openamUrl,
@@ -87,6 +107,31 @@ public class SsoTokenFilter implements Filter {
         return nonNullRealm.startsWith("/") ? nonNullRealm : "/" + nonNullRealm;
     }
 
+    /**
+     * Shares the SSO tokens obtained with the same credentials in the given pool, instead of storing them in the
+     * session of each client.
+     *
+     * @param pool
+     *         the pool of SSO tokens
+     * @param renewAfter
+     *         the age at which a shared token is renewed (shorter than the OpenAM idle timeout)
+     */
+    void setSharedTokens(final SsoTokenPool pool, final Duration renewAfter) {
+        this.pool = checkNotNull(pool);
+        this.renewAfter = checkNotNull(renewAfter);
+        this.shared = true;
+    }
+
+    /**
+     * Sets the pool keeping the SSO tokens of the requests that have no session to store them in.
+     *
+     * @param pool
+     *         the pool of SSO tokens
+     */
+    void setTokenPool(final SsoTokenPool pool) {
+        this.pool = checkNotNull(pool);
+    }
+
     @Override
     public Promise<Response, NeverThrowsException> filter(final Context context,
                                                           final Request request,
@@ -112,10 +157,9 @@ public class SsoTokenFilter implements Filter {
 
                     @Override
                     public Promise<Response, NeverThrowsException> apply(Response response) {
-                        if (response.getStatus().equals(FORBIDDEN)) {
-                            final SessionContext sessionContext = context.asContext(SessionContext.class);
-                            sessionContext.getSession().remove(SSO_TOKEN_KEY);
-                            return createSsoToken(context, request)
+                        if (isTokenRejected(response.getStatus())) {
+                            final String rejected = request.getHeaders().getFirst(headerName);
+                            return renewSsoToken(context, request, rejected)
                                     .thenAsync(executeRequestWithToken);
                         }
                         return newResponsePromise(response);
@@ -127,7 +171,21 @@ public class SsoTokenFilter implements Filter {
                 .thenAsync(checkResponse);
     }
 
+    private static boolean isTokenRejected(final Status status) {
+        return FORBIDDEN.equals(status) || UNAUTHORIZED.equals(status);
+    }
+
+    /**
+     * The tokens are shared when sharing has been enabled, or when there is no session to store them in.
+     */
+    private boolean isShared(final Context context) {
+        return shared || (pool != null && !context.containsContext(SessionContext.class));
+    }
+
     private Promise<String, NeverThrowsException> findSsoToken(final Context context, final Request request) {
+        if (isShared(context)) {
+            return pool.getToken(credentials(context, request), renewAfter, authenticate(context, request));
+        }
         final SessionContext sessionContext = context.asContext(SessionContext.class);
         if (sessionContext.getSession().containsKey(SSO_TOKEN_KEY)) {
             return newResultPromise((String) sessionContext.getSession().get(SSO_TOKEN_KEY));
@@ -136,12 +194,63 @@ public class SsoTokenFilter implements Filter {
         }
     }
 
+    private Promise<String, NeverThrowsException> renewSsoToken(final Context context,
+                                                                final Request request,
+                                                                final String rejected) {
+        if (isShared(context)) {
+            return pool.renew(credentials(context, request), rejected, authenticate(context, request));
+        }
+        final SessionContext sessionContext = context.asContext(SessionContext.class);
+        sessionContext.getSession().remove(SSO_TOKEN_KEY);
+        return createSsoToken(context, request);
+    }
+
     private Promise<String, NeverThrowsException> createSsoToken(final Context context, final Request request) {
         return ssoClientHandler.handle(context, authenticationRequest(bindings(context, request)))
-                               .then(extractSsoToken(context));
+                               .then(extractSsoToken())
+                               .thenOnResult(new ResultHandler<String>() {
+                                   @Override
+                                   public void handleResult(final String token) {
+                                       if (token != null) {
+                                           context.asContext(SessionContext.class)
+                                                  .getSession()
+                                                  .put(SSO_TOKEN_KEY, token);
+                                       }
+                                   }
+                               });
+    }
+
+    private Callable<Promise<String, NeverThrowsException>> authenticate(final Context context,
+                                                                         final Request request) {
+        return new Callable<Promise<String, NeverThrowsException>>() {
+            @Override
+            public Promise<String, NeverThrowsException> call() throws Exception {
+                return ssoClientHandler.handle(context, authenticationRequest(bindings(context, request)))
+                                       .then(extractSsoToken());
+            }
+        };
+    }
+
+    /**
+     * Returns the key of the evaluated credentials in the token pool (the password is only kept as a digest).
+     */
+    @VisibleForTesting
+    String credentials(final Context context, final Request request) {
+        final Bindings bindings = bindings(context, request);
+        final StringBuilder key = new StringBuilder(openamUrl.toASCIIString()).append(realm)
+                                                                              .append('@')
+                                                                              .append(username.eval(bindings))
+                                                                              .append('@');
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            key.append(Base64.encode(digest.digest(String.valueOf(password.eval(bindings)).getBytes(UTF_8))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+        return key.toString();
     }
 
-    private Function<Response, String, NeverThrowsException> extractSsoToken(final Context context) {
+    private Function<Response, String, NeverThrowsException> extractSsoToken() {
         return new Function<Response, String, NeverThrowsException>() {
             @Override
             public String apply(Response response) {
@@ -150,7 +259,6 @@ public class SsoTokenFilter implements Filter {
                     @SuppressWarnings("unchecked")
                     final Map<String, String> result = (Map<String, String>) response.getEntity().getJson();
                     token = result.get("tokenId");
-                    context.asContext(SessionContext.class).getSession().put(SSO_TOKEN_KEY, token);
                 } catch (IOException e) {
                     logger.warning("Couldn't parse as JSON the OpenAM authentication response");
                     logger.warning(e);
@@ -0,0 +1,247 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.openam;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.asInteger;
+import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Shares the OpenAM SSO tokens obtained with the same credentials across sessions (and filters), so that a service
+ * account authenticates a few times per hour instead of once per client session.
+ * <p>
+ * A token is renewed when it is older than {@code renewAfter} (that has to be shorter than the idle timeout of the
+ * OpenAM sessions): the first caller starts the authentication and, until it completes, all the callers keep on
+ * using the current token. When OpenAM rejects a token, a single renewal is made for all the callers that got it
+ * rejected. A failed authentication is never cached.
+ * <p>
+ * Each {@link PolicyEnforcementFilter} and {@link TokenTransformationFilter} has its own pool, unless a pool declared
+ * in the heap is referenced by their {@literal sharedSsoToken.pool} attribute:
+ *
+ * <pre>
+ *     {@code {
+ *         "name": "SsoTokenPool",
+ *         "type": "SsoTokenPool",
+ *         "config": {
+ *           "maxEntries": 1024
+ *         }
+ *       }
+ *     }
+ * </pre>
+ *
+ * The tokens are forgotten when the pool is destroyed with its heap.
+ */
+public final class SsoTokenPool {
+
+    /** The default maximum number of credentials whose token is kept. */
+    static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private final TimeService time;
+    private final int maxEntries;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new SSO token pool.
+     *
+     * @param time
+     *         the time service used to compute the age of the tokens
+     * @param maxEntries
+     *         the maximum number of credentials whose token is kept
+     */
+    SsoTokenPool(final TimeService time, final int maxEntries) {
+        this.time = checkNotNull(time);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the token obtained with the given credentials, authenticating if there is none yet.
+     *
+     * @param credentials
+     *         a key identifying the OpenAM instance, realm and credentials used to authenticate
+     * @param renewAfter
+     *         the age at which the token is renewed
+     * @param authenticate
+     *         performs the authentication, completed with the token or with {@code null} on failure
+     * @return a promise completed with the token, or with {@code null} if the authentication failed
+     */
+    Promise<String, NeverThrowsException> getToken(final String credentials,
+                                                   final Duration renewAfter,
+                                                   final Callable<Promise<String, NeverThrowsException>> authenticate) {
+        final Entry entry = entry(credentials);
+        if (entry == null) {
+            // The pool is full: do not share this token
+            return call(authenticate);
+        }
+        return entry.get(renewAfter.to(MILLISECONDS), authenticate);
+    }
+
+    /**
+     * Renews the token obtained with the given credentials after OpenAM rejected it. If it has already been renewed,
+     * the new token is returned immediately.
+     *
+     * @param credentials
+     *         a key identifying the OpenAM instance, realm and credentials used to authenticate
+     * @param rejected
+     *         the token that has been rejected
+     * @param authenticate
+     *         performs the authentication, completed with the token or with {@code null} on failure
+     * @return a promise completed with the new token, or with {@code null} if the authentication failed
+     */
+    Promise<String, NeverThrowsException> renew(final String credentials,
+                                                final String rejected,
+                                                final Callable<Promise<String, NeverThrowsException>> authenticate) {
+        final Entry entry = entry(credentials);
+        if (entry == null) {
+            return call(authenticate);
+        }
+        return entry.renew(rejected, authenticate);
+    }
+
+    /**
+     * Removes all the tokens of this pool.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    private Entry entry(final String credentials) {
+        Entry entry = entries.get(credentials);
+        if (entry != null) {
+            return entry;
+        }
+        if (entries.size() >= maxEntries) {
+            // Forget the tokens that nobody asked for recently
+            for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+                if (iterator.next().isIdle()) {
+                    iterator.remove();
+                }
+            }
+            if (entries.size() >= maxEntries) {
+                return null;
+            }
+        }
+        final Entry created = new Entry();
+        entry = entries.putIfAbsent(credentials, created);
+        return entry != null ? entry : created;
+    }
+
+    private static Promise<String, NeverThrowsException> call(
+            final Callable<Promise<String, NeverThrowsException>> authenticate) {
+        try {
+            return authenticate.call();
+        } catch (Exception e) {
+            return newResultPromise(null);
+        }
+    }
+
+    /** The token of a set of credentials. */
+    private final class Entry {
+        private String token;
+        private long obtainedAt;
+        private long renewAfter;
+        private Promise<String, NeverThrowsException> inFlight;
+
+        synchronized Promise<String, NeverThrowsException> get(
+                final long renewAfter,
+                final Callable<Promise<String, NeverThrowsException>> authenticate) {
+            this.renewAfter = renewAfter;
+            if (token == null) {
+                return authenticate(authenticate);
+            }
+            if (time.since(obtainedAt) >= renewAfter) {
+                // Renew proactively, the current token is still valid in the meantime
+                authenticate(authenticate);
+            }
+            return newResultPromise(token);
+        }
+
+        synchronized Promise<String, NeverThrowsException> renew(
+                final String rejected,
+                final Callable<Promise<String, NeverThrowsException>> authenticate) {
+            if (token != null && !token.equals(rejected)) {
+                return newResultPromise(token);
+            }
+            token = null;
+            return authenticate(authenticate);
+        }
+
+        synchronized boolean isIdle() {
+            return inFlight == null && (token == null || time.since(obtainedAt) >= 2 * renewAfter);
+        }
+
+        /** Starts an authentication, unless one is already in progress. Has to be called with the lock held. */
+        private Promise<String, NeverThrowsException> authenticate(
+                final Callable<Promise<String, NeverThrowsException>> authenticate) {
+            if (inFlight != null) {
+                return inFlight;
+            }
+            final Promise<String, NeverThrowsException> promise = call(authenticate);
+            inFlight = promise;
+            promise.thenOnResult(new ResultHandler<String>() {
+                @Override
+                public void handleResult(final String renewed) {
+                    synchronized (Entry.this) {
+                        if (inFlight == promise) {
+                            inFlight = null;
+                        }
+                        if (renewed != null) {
+                            token = renewed;
+                            obtainedAt = time.now();
+                        }
+                    }
+                }
+            });
+            return promise;
+        }
+    }
+
+    /** Creates and initializes an SSO token pool in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+
+        @Override
+        public Object create() throws HeapException {
+            final int maxEntries = asInteger(config.get("maxEntries").defaultTo(DEFAULT_MAX_ENTRIES));
+            if (maxEntries < 1) {
+                throw new HeapException("The SSO token pool maxEntries has to be positive");
+            }
+            return new SsoTokenPool(heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class), maxEntries);
+        }
+
+        @Override
+        public void destroy() {
+            super.destroy();
+            if (object != null) {
+                ((SsoTokenPool) object).clear();
+            }
+        }
+    }
+}
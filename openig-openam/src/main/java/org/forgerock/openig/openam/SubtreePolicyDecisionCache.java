@@ -0,0 +1,400 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.openam;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.util.Reject.checkNotNull;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.annotations.VisibleForTesting;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Caches the policy decisions returned by OpenAM in subtree mode ({@literal evaluateTree} action), so that a
+ * decision for a resource pattern such as {@literal http://example.com/api/orders/*} answers all the URIs it
+ * matches until it expires.
+ * <p>
+ * The decisions of each subject are kept in a trie indexed by the path segments of the resources: exact resources
+ * are stored under their last segment, while patterns ending with {@literal *} are stored in the node of their
+ * longest complete path and match any URI starting with the pattern. Patterns with other wildcards are not cached,
+ * but their literal prefix (before their first wildcard) is kept: as the decisions of the policies matching a
+ * resource are combined by OpenAM, a URI starting with such a prefix is never answered by the cache.
+ * <p>
+ * As in OpenAM, a trailing {@literal *} does not match the query string: a URI with a query is only answered by an
+ * exact decision. OpenAM combines the decisions of all the policies matching a resource, so a URI matched by more
+ * than one cached decision is not answered either: it is a miss, and gets evaluated on its own.
+ * <p>
+ * The cache holds at most {@code maxEntries} decisions: when it is full, the decisions of the least recently used
+ * subjects are evicted.
+ */
+public class SubtreePolicyDecisionCache {
+
+    private static final String WILDCARD = "*";
+    private static final String ONE_LEVEL_WILDCARD = "-*-";
+
+    private final TimeService time;
+    private final long maxExpiration;
+    private final int maxEntries;
+
+    /** Tries of decisions, by subject, in access order. */
+    private final LinkedHashMap<String, Node> subjects = new LinkedHashMap<>(16, 0.75f, true);
+    private int size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a new subtree policy decision cache.
+     *
+     * @param time
+     *         the time service used to expire the decisions
+     * @param maxExpiration
+     *         the maximum time a decision is kept, whatever its {@literal ttl}
+     * @param maxEntries
+     *         the maximum number of decisions kept
+     */
+    public SubtreePolicyDecisionCache(final TimeService time, final Duration maxExpiration, final int maxEntries) {
+        this.time = checkNotNull(time);
+        this.maxExpiration = maxExpiration.to(MILLISECONDS);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the cached decision that applies to the given URI, and records the hit or the miss.
+     *
+     * @param subject
+     *         the key of the subject
+     * @param uri
+     *         the requested (normalized) URI
+     * @return the decision, with its {@literal resource} set to {@code uri}, or {@code null} if none applies
+     */
+    public JsonValue get(final String subject, final String uri) {
+        final JsonValue decision = find(subject, uri);
+        (decision != null ? hits : misses).incrementAndGet();
+        return decision;
+    }
+
+    /**
+     * Returns the cached decision that applies to the given URI, without recording the hit or the miss.
+     *
+     * @param subject
+     *         the key of the subject
+     * @param uri
+     *         the requested (normalized) URI
+     * @return the decision, with its {@literal resource} set to {@code uri}, or {@code null} if none applies
+     */
+    synchronized JsonValue find(final String subject, final String uri) {
+        final Node root = subjects.get(subject);
+        if (root == null) {
+            return null;
+        }
+        final long now = time.now();
+        // A trailing '*' does not match the query string (OpenAM needs '*?*' for that)
+        final boolean query = uri.indexOf('?') >= 0;
+        final String[] segments = uri.split("/", -1);
+        Node node = root;
+        Entry match = null;
+        int matches = 0;
+        boolean expired = false;
+        boolean uncached = false;
+        // Visit the root (holding the patterns without a path) and the nodes of the URI directories
+        for (int i = 0; node != null; i++) {
+            uncached |= matchesWildcards(node, uri, now);
+            if (!query) {
+                for (Entry pattern : node.patterns.values()) {
+                    if (pattern.expiresAt <= now) {
+                        expired = true;
+                    } else if (uri.startsWith(pattern.prefix)) {
+                        match = pattern;
+                        matches++;
+                    }
+                }
+            }
+            if (i == segments.length - 1) {
+                break;
+            }
+            node = node.children.get(segments[i]);
+        }
+        if (node != null) {
+            final Entry exact = node.resources.get(segments[segments.length - 1]);
+            if (exact != null && exact.expiresAt <= now) {
+                expired = true;
+            } else if (exact != null) {
+                match = exact;
+                matches++;
+            }
+        }
+        if (expired && purge(root, now)) {
+            subjects.remove(subject);
+        }
+        if (matches != 1 || uncached) {
+            // OpenAM would combine the decisions of all the matching policies (including the ones not cached)
+            return null;
+        }
+        final JsonValue decision = match.decision.copy();
+        decision.put("resource", uri);
+        return decision;
+    }
+
+    /**
+     * Returns {@code true} if the subtree rooted at the given resource has been evaluated for this subject and its
+     * decisions have not expired yet: a miss under this root can be evaluated as a single resource.
+     *
+     * @param subject
+     *         the key of the subject
+     * @param root
+     *         the root resource of the subtree
+     * @return {@code true} if the subtree decisions are cached
+     */
+    public synchronized boolean isEvaluated(final String subject, final String root) {
+        final Node node = lookup(subjects.get(subject), directory(root), false);
+        return node != null && node.evaluatedUntil > time.now();
+    }
+
+    /**
+     * Caches the decisions of a subtree evaluation.
+     *
+     * @param subject
+     *         the key of the subject
+     * @param root
+     *         the root resource of the evaluated subtree
+     * @param decisions
+     *         the decisions returned by OpenAM
+     */
+    public synchronized void putAll(final String subject, final String root, final JsonValue decisions) {
+        final long now = time.now();
+        Node trie = subjects.get(subject);
+        if (trie != null) {
+            purge(trie, now);
+        } else {
+            trie = new Node();
+            subjects.put(subject, trie);
+        }
+        long evaluatedUntil = now + maxExpiration;
+        for (JsonValue decision : decisions) {
+            final String resource = decision.get("resource").asString();
+            if (resource == null) {
+                continue;
+            }
+            final long expiresAt = now + Math.min(ttl(decision), maxExpiration);
+            evaluatedUntil = Math.min(evaluatedUntil, expiresAt);
+            final boolean pattern = resource.endsWith(WILDCARD);
+            final String prefix = pattern ? resource.substring(0, resource.length() - 1) : resource;
+            if (prefix.contains(WILDCARD)) {
+                // Only the exact resources and the trailing wildcards are supported: keep the literal prefix of
+                // the other patterns, so that the URIs they may match are not answered by the other decisions
+                final String literal = literalPrefix(resource);
+                lookup(trie, directory(literal), true).wildcards.put(literal, new Entry(literal, null, expiresAt));
+                continue;
+            }
+            final Node node = lookup(trie, directory(prefix), true);
+            final Map<String, Entry> entries = pattern ? node.patterns : node.resources;
+            final String name = pattern ? prefix : prefix.substring(prefix.lastIndexOf('/') + 1);
+            if (entries.put(name, new Entry(prefix, decision.copy(), expiresAt)) == null) {
+                size++;
+            }
+        }
+        lookup(trie, directory(root), true).evaluatedUntil = evaluatedUntil;
+        evict(subject);
+    }
+
+    /**
+     * Returns the number of cached decisions.
+     *
+     * @return the number of cached decisions
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Removes all the cached decisions.
+     */
+    public synchronized void clear() {
+        subjects.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the hit-rate statistics of this cache.
+     *
+     * @return the statistics of this cache, as a JSON compatible map
+     */
+    public Map<String, Object> getStatistics() {
+        final long hitCount = hits.get();
+        final long missCount = misses.get();
+        final Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("size", size());
+        statistics.put("maxEntries", maxEntries);
+        statistics.put("hits", hitCount);
+        statistics.put("misses", missCount);
+        statistics.put("hitRate", hitCount + missCount == 0 ? 0d : (double) hitCount / (hitCount + missCount));
+        return statistics;
+    }
+
+    private void evict(final String current) {
+        final Iterator<Map.Entry<String, Node>> iterator = subjects.entrySet().iterator();
+        while (size > maxEntries && iterator.hasNext()) {
+            final Map.Entry<String, Node> eldest = iterator.next();
+            if (eldest.getKey().equals(current) && subjects.size() > 1) {
+                continue;
+            }
+            size -= eldest.getValue().count();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Returns the number of trie nodes, for all the subjects.
+     *
+     * @return the number of trie nodes
+     */
+    @VisibleForTesting
+    synchronized int nodes() {
+        int nodes = 0;
+        for (Node root : subjects.values()) {
+            nodes += root.nodes();
+        }
+        return nodes;
+    }
+
+    /**
+     * Removes the expired decisions below the given node, and the nodes left empty. Returns {@code true} if the
+     * given node is itself empty.
+     */
+    private boolean purge(final Node node, final long now) {
+        size -= purge(node.resources, now) + purge(node.patterns, now);
+        // The literal prefixes of the uncached patterns are not counted as decisions
+        purge(node.wildcards, now);
+        for (Iterator<Node> iterator = node.children.values().iterator(); iterator.hasNext();) {
+            if (purge(iterator.next(), now)) {
+                iterator.remove();
+            }
+        }
+        return node.resources.isEmpty()
+                && node.patterns.isEmpty()
+                && node.wildcards.isEmpty()
+                && node.children.isEmpty()
+                && node.evaluatedUntil <= now;
+    }
+
+    private static int purge(final Map<String, Entry> entries, final long now) {
+        int removed = 0;
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+            if (iterator.next().expiresAt <= now) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Returns {@code true} if the given URI starts with the literal prefix of a pattern that is not cached.
+     */
+    private static boolean matchesWildcards(final Node node, final String uri, final long now) {
+        for (Entry wildcards : node.wildcards.values()) {
+            if (wildcards.expiresAt > now && uri.startsWith(wildcards.prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String literalPrefix(final String resource) {
+        int end = resource.indexOf(WILDCARD);
+        final int oneLevel = resource.indexOf(ONE_LEVEL_WILDCARD);
+        if (oneLevel >= 0 && oneLevel < end) {
+            end = oneLevel;
+        }
+        return resource.substring(0, end);
+    }
+
+    private static long ttl(final JsonValue decision) {
+        final Long ttl = decision.get("ttl").asLong();
+        return ttl == null || ttl < 0 ? 0 : ttl;
+    }
+
+    /**
+     * Returns the directory segments of a resource: the segments before its last {@literal /}.
+     */
+    private static String[] directory(final String resource) {
+        final String[] segments = resource.split("/", -1);
+        final String[] directory = new String[segments.length - 1];
+        System.arraycopy(segments, 0, directory, 0, directory.length);
+        return directory;
+    }
+
+    private static Node lookup(final Node root, final String[] path, final boolean create) {
+        Node node = root;
+        for (int i = 0; i < path.length && node != null; i++) {
+            Node child = node.children.get(path[i]);
+            if (child == null && create) {
+                child = new Node();
+                node.children.put(path[i], child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /** A node of a trie, for a path segment. */
+    private static final class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private final Map<String, Entry> resources = new HashMap<>();
+        private final Map<String, Entry> patterns = new HashMap<>();
+        /** The literal prefixes of the patterns that are not cached. */
+        private final Map<String, Entry> wildcards = new HashMap<>();
+        private long evaluatedUntil;
+
+        int count() {
+            int count = resources.size() + patterns.size();
+            for (Node child : children.values()) {
+                count += child.count();
+            }
+            return count;
+        }
+
+        int nodes() {
+            int nodes = 1;
+            for (Node child : children.values()) {
+                nodes += child.nodes();
+            }
+            return nodes;
+        }
+    }
+
+    /** A cached decision. */
+    private static final class Entry {
+        private final String prefix;
+        private final JsonValue decision;
+        private final long expiresAt;
+
+        Entry(final String prefix, final JsonValue decision, final long expiresAt) {
+            this.prefix = prefix;
+            this.decision = decision;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -22,7 +22,10 @@ import static org.forgerock.http.protocol.Response.newResponsePromise;
 import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.openig.el.Bindings.bindings;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.asDuration;
 import static org.forgerock.openig.util.JsonValues.asExpression;
+import static org.forgerock.openig.util.JsonValues.asInteger;
 import static org.forgerock.openig.util.JsonValues.asString;
 import static org.forgerock.openig.util.JsonValues.evaluateJsonStaticExpression;
 import static org.forgerock.openig.util.StringUtil.trailingSlash;
@@ -32,21 +35,27 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
+import org.forgerock.http.Responses;
 import org.forgerock.http.handler.Handlers;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
 import org.forgerock.openig.el.Expression;
 import org.forgerock.openig.heap.GenericHeapObject;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
 import org.forgerock.services.context.Context;
 import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.Function;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
 
 /**
  * A {@link TokenTransformationFilter} is responsible to transform a token issued by OpenAM
@@ -91,6 +100,17 @@ import org.forgerock.util.promise.Promise;
  * for all REST calls to OpenAM (as opposed to the {@code next} Handler of the filter method that is dedicated to
  * continue the execution flow through the chain).
  *
+ * <p>The optional {@literal sharedSsoToken} attribute shares the SSO token obtained with the same credentials
+ * across all the sessions (instead of storing it in each session), renewing it after {@literal renewAfter}
+ * (default to 25 minutes): {@code "sharedSsoToken": { "renewAfter": "25 minutes" }}. Its optional {@literal pool}
+ * attribute references an {@link SsoTokenPool} heap object, to share the tokens with other filters; otherwise the
+ * filter keeps its tokens in a pool of its own, cleared when the heap is destroyed.
+ *
+ * <p>The optional {@literal cache} attribute keeps the issued tokens, so that an id_token presented repeatedly is
+ * transformed once: {@code "cache": { "maxEntries": 1000, "maxExpiration": "5 minutes" }} (these are the default
+ * values). A token is cached until the earliest of the id_token expiration, the end of validity of the issued
+ * assertion and {@literal maxExpiration}.
+ *
  * <p>If errors are happening during the token transformation, the error response is returned as-is to the caller,
  * and informative messages are being logged for the administrator.
  */
@@ -100,6 +120,7 @@ public class TokenTransformationFilter extends GenericHeapObject implements Filt
     private final URI endpoint;
     private final Expression<String> idToken;
     private final Expression<String> target;
+    private IssuedTokenCache<TransformationException> cache;
 
     /**
      * Constructs a new TokenTransformationFilter transforming the OpenID Connect id_token from {@code idToken}
@@ -131,48 +152,69 @@ public class TokenTransformationFilter extends GenericHeapObject implements Filt
             return newResponsePromise(newInternalServerError());
         }
 
-        return handler.handle(context, transformationRequest(resolvedIdToken))
-                      .thenAsync(processIssuedToken(context, request, next));
-    }
+        return issuedToken(context, resolvedIdToken)
+                .thenAsync(new AsyncFunction<String, Response, NeverThrowsException>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> apply(final String token) {
+                        target.set(bindings(context, request), token);
 
-    private AsyncFunction<Response, Response, NeverThrowsException> processIssuedToken(final Context context,
-                                                                                       final Request request,
-                                                                                       final Handler next) {
-        return new AsyncFunction<Response, Response, NeverThrowsException>() {
-            @Override
-            public Promise<Response, NeverThrowsException> apply(final Response response) {
-                try {
-                    Map<String, Object> json = parseJsonObject(response);
-                    if (response.getStatus() != Status.OK) {
-                        logger.error(format("Server side error (%s, %s) while transforming id_token:%s",
-                                            response.getStatus(),
-                                            json.get("reason"),
-                                            json.get("message")));
-                        return newResponsePromise(new Response(Status.BAD_GATEWAY));
+                        // Forward the initial request
+                        return next.handle(context, request);
                     }
-
-                    String token = (String) json.get("issued_token");
-                    if (token == null) {
-                        // Unlikely to happen, since this is an OK response
-                        logger.error("STS issued_token is null");
-                        return newResponsePromise(newInternalServerError());
+                }, new AsyncFunction<TransformationException, Response, NeverThrowsException>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> apply(final TransformationException e) {
+                        return newResponsePromise(e.toResponse());
                     }
-                    target.set(bindings(context, request, response), token);
-
-                    // Forward the initial request
-                    return next.handle(context, request);
-                } catch (IOException e) {
-                    logger.error(format("Can't get JSON back from %s", endpoint));
-                    logger.error(e);
-                    return newResponsePromise(newInternalServerError(e));
-                }
-            }
+                });
+    }
 
-            @SuppressWarnings("unchecked")
-            private Map<String, Object> parseJsonObject(final Response response) throws IOException {
-                return (Map<String, Object>) response.getEntity().getJson();
+    private Promise<String, TransformationException> issuedToken(final Context context, final String resolvedIdToken) {
+        if (cache == null) {
+            return transform(context, resolvedIdToken);
+        }
+        return cache.get(resolvedIdToken, new Callable<Promise<String, TransformationException>>() {
+            @Override
+            public Promise<String, TransformationException> call() throws Exception {
+                return transform(context, resolvedIdToken);
             }
-        };
+        });
+    }
+
+    private Promise<String, TransformationException> transform(final Context context, final String resolvedIdToken) {
+        return handler.handle(context, transformationRequest(resolvedIdToken))
+                      .then(new Function<Response, String, TransformationException>() {
+                          @Override
+                          public String apply(final Response response) throws TransformationException {
+                              try {
+                                  Map<String, Object> json = parseJsonObject(response);
+                                  if (response.getStatus() != Status.OK) {
+                                      logger.error(format("Server side error (%s, %s) while transforming id_token:%s",
+                                                          response.getStatus(),
+                                                          json.get("reason"),
+                                                          json.get("message")));
+                                      throw new TransformationException(Status.BAD_GATEWAY, null);
+                                  }
+
+                                  String token = (String) json.get("issued_token");
+                                  if (token == null) {
+                                      // Unlikely to happen, since this is an OK response
+                                      logger.error("STS issued_token is null");
+                                      throw new TransformationException(Status.INTERNAL_SERVER_ERROR, null);
+                                  }
+                                  return token;
+                              } catch (IOException e) {
+                                  logger.error(format("Can't get JSON back from %s", endpoint));
+                                  logger.error(e);
+                                  throw new TransformationException(Status.INTERNAL_SERVER_ERROR, e);
+                              }
+                          }
+                      }, Responses.<String, TransformationException>noopExceptionFunction());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> parseJsonObject(final Response response) throws IOException {
+        return (Map<String, Object>) response.getEntity().getJson();
     }
 
     private Request transformationRequest(final String resolvedIdToken) {
@@ -188,9 +230,39 @@ public class TokenTransformationFilter extends GenericHeapObject implements Filt
                                                          field("subject_confirmation", "BEARER"))));
     }
 
+    /**
+     * Sets the cache of the issued tokens. By default, every id_token is transformed.
+     *
+     * @param cache the cache of the issued tokens, may be {@code null}
+     */
+    void setCache(final IssuedTokenCache<TransformationException> cache) {
+        this.cache = cache;
+    }
+
+    /** A failed token transformation, and the status of the response returned to the caller. */
+    static final class TransformationException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final Status status;
+
+        TransformationException(final Status status, final Exception cause) {
+            super(cause);
+            this.status = status;
+        }
+
+        Response toResponse() {
+            if (Status.INTERNAL_SERVER_ERROR.equals(status)) {
+                return getCause() != null ? newInternalServerError((Exception) getCause()) : newInternalServerError();
+            }
+            return new Response(status);
+        }
+    }
+
     /** Creates and initializes a token transformation filter in a heap environment. */
     public static class Heaplet extends GenericHeaplet {
 
+        private SsoTokenPool ownPool;
+
         @Override
         public Object create() throws HeapException {
             Handler amHandler = heap.resolve(config.get("amHandler").required(),
@@ -207,16 +279,51 @@ public class TokenTransformationFilter extends GenericHeapObject implements Filt
                                                                username,
                                                                password,
                                                                logger);
+            JsonValue sharedSsoToken = config.get("sharedSsoToken");
+            SsoTokenPool pool = heap.resolve(sharedSsoToken.get("pool"), SsoTokenPool.class, true);
+            if (pool == null) {
+                ownPool = new SsoTokenPool(heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class),
+                                           SsoTokenPool.DEFAULT_MAX_ENTRIES);
+                pool = ownPool;
+            }
+            ssoTokenFilter.setTokenPool(pool);
+            if (!sharedSsoToken.isNull()) {
+                ssoTokenFilter.setSharedTokens(pool,
+                                               asDuration(sharedSsoToken.get("renewAfter").defaultTo("25 minutes")));
+            }
 
             Expression<String> idToken = asExpression(config.get("idToken").required(), String.class);
             Expression<String> target = asExpression(config.get("target").required(), String.class);
 
             String instance = evaluateJsonStaticExpression(config.get("instance").required()).asString();
 
-            return new TokenTransformationFilter(Handlers.chainOf(amHandler, ssoTokenFilter),
-                                                 transformationEndpoint(baseUri, realm, instance),
-                                                 idToken,
-                                                 target);
+            TokenTransformationFilter filter =
+                    new TokenTransformationFilter(Handlers.chainOf(amHandler, ssoTokenFilter),
+                                                  transformationEndpoint(baseUri, realm, instance),
+                                                  idToken,
+                                                  target);
+            JsonValue cache = config.get("cache");
+            if (!cache.isNull()) {
+                int maxEntries = asInteger(cache.get("maxEntries").defaultTo(1000));
+                Duration maxExpiration = asDuration(cache.get("maxExpiration").defaultTo("5 minutes"));
+                try {
+                    filter.setCache(new IssuedTokenCache<TransformationException>(heap.get(TIME_SERVICE_HEAP_KEY,
+                                                                                           TimeService.class),
+                                                                                  maxEntries,
+                                                                                  maxExpiration));
+                } catch (IllegalArgumentException e) {
+                    throw new HeapException(e.getMessage(), e);
+                }
+            }
+            return filter;
+        }
+
+        @Override
+        public void destroy() {
+            super.destroy();
+            if (ownPool != null) {
+                ownPool.clear();
+            }
         }
 
         private URI getOpenamBaseUri() throws HeapException {
@@ -16,6 +16,7 @@
 
 package org.forgerock.openig.openam;
 
+import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
 import static java.util.Collections.singletonMap;
 import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
@@ -34,14 +35,18 @@ import static org.forgerock.openig.heap.Keys.CLIENT_HANDLER_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.LOGSINK_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.TEMPORARY_STORAGE_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.openam.PolicyEnforcementFilter.DEFAULT_POLICY_KEY;
 import static org.forgerock.openig.openam.PolicyEnforcementFilter.createKeyCache;
+import static org.forgerock.openig.openam.PolicyEnforcementFilter.normalizeUri;
 import static org.forgerock.openig.openam.PolicyEnforcementFilter.Heaplet.normalizeToJsonEndpoint;
 import static org.forgerock.util.Options.defaultOptions;
+import static org.forgerock.util.time.Duration.duration;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -49,7 +54,10 @@ import static org.mockito.MockitoAnnotations.initMocks;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
@@ -80,10 +88,14 @@ import org.forgerock.services.context.AttributesContext;
 import org.forgerock.services.context.Context;
 import org.forgerock.services.context.RootContext;
 import org.forgerock.util.ThreadSafeCache;
+import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.TimeService;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -185,7 +197,14 @@ public class PolicyEnforcementFilterTest {
                     field("pepUsername", "jackson"),
                     field("pepPassword", "password"),
                     field("ssoTokenSubject", "${attributes.ssoTokenSubject}"),
-                    field("environment", ENVIRONMENT.getObject()))) } };
+                    field("environment", ENVIRONMENT.getObject()))) },
+            { json(object(
+                    field("openamUrl", OPENAM_URI),
+                    field("pepUsername", "jackson"),
+                    field("pepPassword", "password"),
+                    field("ssoTokenSubject", "${attributes.ssoTokenSubject}"),
+                    field("batch", object(field("window", "5 milliseconds"),
+                                          field("maxResources", 20))))) } };
     }
 
     @DataProvider
@@ -249,7 +268,14 @@ public class PolicyEnforcementFilterTest {
                     field("pepUsername", "jackson"),
                     field("pepPassword", "password"),
                     field("ssoTokenSubject", "${attributes.ssoTokenSubject}"),
-                    field("environment", 123))) } };
+                    field("environment", 123))) },
+            /* Invalid batch size */
+            { json(object(
+                    field("openamUrl", OPENAM_URI),
+                    field("pepUsername", "jackson"),
+                    field("pepPassword", "password"),
+                    field("ssoTokenSubject", "${attributes.ssoTokenSubject}"),
+                    field("batch", object(field("maxResources", 0))))) } };
     }
 
     @Test(dataProvider = "invalidConfigurations",
@@ -451,6 +477,138 @@ public class PolicyEnforcementFilterTest {
         verify(next, times(3)).handle(attributesContext, resourceRequest);
     }
 
+    @Test
+    public void shouldBatchPolicyEvaluationsOfTheSameSubject() throws Exception {
+        // Given
+        final String otherResource = "http://example.com/user.1/edit";
+        final Request otherRequest = new Request();
+        otherRequest.setMethod("GET").setUri(otherResource);
+
+        final ScheduledExecutorService executorService = mock(ScheduledExecutorService.class);
+        final PolicyEnforcementFilter filter = buildPolicyEnforcementFilter();
+        filter.setBatching(executorService, duration("10 milliseconds"), 50);
+
+        when(policiesHandler.handle(any(Context.class), any(Request.class)))
+            .thenReturn(newResponsePromise(policyDecisionsResponse(otherResource)));
+        when(next.handle(any(Context.class), eq(resourceRequest)))
+            .thenReturn(newResponsePromise(displayResourceResponse()));
+
+        // When
+        final Promise<Response, NeverThrowsException> allowed = filter.filter(attributesContext,
+                                                                              resourceRequest,
+                                                                              next);
+        final Promise<Response, NeverThrowsException> denied = filter.filter(attributesContext,
+                                                                             otherRequest,
+                                                                             next);
+        // Then: nothing is sent before the end of the window
+        verify(policiesHandler, never()).handle(any(Context.class), any(Request.class));
+        verify(executorService).schedule(captor.capture(), eq(10L), eq(TimeUnit.MILLISECONDS));
+        assertThat(allowed.isDone()).isFalse();
+
+        captor.getValue().run();
+
+        final ArgumentCaptor<Request> policyRequest = ArgumentCaptor.forClass(Request.class);
+        verify(policiesHandler).handle(any(Context.class), policyRequest.capture());
+        assertThat(json(policyRequest.getValue().getEntity().getJson()).get("resources").asList())
+            .containsExactly(RESOURCE_URI, otherResource);
+        assertThat(allowed.get().getStatus()).isEqualTo(OK);
+        assertThat(denied.get().getStatus()).isEqualTo(FORBIDDEN);
+    }
+
+    @Test
+    public void shouldSendFullBatchWithoutWaiting() throws Exception {
+        // Given
+        final String otherResource = "http://example.com/user.1/edit";
+        final Request otherRequest = new Request();
+        otherRequest.setMethod("GET").setUri(otherResource);
+
+        final PolicyEnforcementFilter filter = buildPolicyEnforcementFilter();
+        filter.setBatching(mock(ScheduledExecutorService.class), duration("1 minute"), 2);
+
+        when(policiesHandler.handle(any(Context.class), any(Request.class)))
+            .thenReturn(newResponsePromise(policyDecisionsResponse(otherResource)));
+        when(next.handle(any(Context.class), eq(resourceRequest)))
+            .thenReturn(newResponsePromise(displayResourceResponse()));
+
+        // When
+        final Promise<Response, NeverThrowsException> allowed = filter.filter(attributesContext,
+                                                                              resourceRequest,
+                                                                              next);
+        final Promise<Response, NeverThrowsException> denied = filter.filter(attributesContext,
+                                                                             otherRequest,
+                                                                             next);
+        // Then
+        verify(policiesHandler).handle(any(Context.class), any(Request.class));
+        assertThat(allowed.get().getStatus()).isEqualTo(OK);
+        assertThat(denied.get().getStatus()).isEqualTo(FORBIDDEN);
+    }
+
+    @Test
+    public void shouldBatchPolicyEvaluationsThroughTheHeapletChain() throws Exception {
+        // Given: the policies handler also authenticates the PEP user for the SsoTokenFilter of the chain
+        final String otherResource = "http://example.com/user.1/edit";
+        final Request otherRequest = new Request();
+        otherRequest.setMethod("GET").setUri(otherResource);
+
+        final PolicyEnforcementFilter filter = buildPolicyEnforcementFilter(
+                buildMinimalHeapletConfiguration().put("batch", object(field("window", "1 minute"),
+                                                                       field("maxResources", 2))));
+
+        when(policiesHandler.handle(any(Context.class), any(Request.class)))
+            .thenAnswer(new Answer<Promise<Response, NeverThrowsException>>() {
+                @Override
+                public Promise<Response, NeverThrowsException> answer(final InvocationOnMock invocation) {
+                    final Request request = (Request) invocation.getArguments()[1];
+                    if (request.getUri().getPath().endsWith("/authenticate")) {
+                        final Response response = new Response(OK);
+                        response.setEntity(object(field("tokenId", "pep-token")));
+                        return newResponsePromise(response);
+                    }
+                    return newResponsePromise(policyDecisionsResponse(otherResource));
+                }
+            });
+        when(next.handle(any(Context.class), eq(resourceRequest)))
+            .thenReturn(newResponsePromise(displayResourceResponse()));
+
+        // When
+        final Promise<Response, NeverThrowsException> allowed = filter.filter(attributesContext,
+                                                                              resourceRequest,
+                                                                              next);
+        final Promise<Response, NeverThrowsException> denied = filter.filter(attributesContext,
+                                                                             otherRequest,
+                                                                             next);
+
+        // Then: a single evaluation, sent with the PEP SSO token kept in the session
+        assertThat(allowed.get().getStatus()).isEqualTo(OK);
+        assertThat(denied.get().getStatus()).isEqualTo(FORBIDDEN);
+        final ArgumentCaptor<Request> requests = ArgumentCaptor.forClass(Request.class);
+        verify(policiesHandler, times(2)).handle(any(Context.class), requests.capture());
+        final Request evaluation = requests.getAllValues().get(1);
+        assertThat(evaluation.getHeaders().getFirst("iPlanetDirectoryPro")).isEqualTo("pep-token");
+        assertThat(json(evaluation.getEntity().getJson()).get("resources").asList())
+            .containsExactly(RESOURCE_URI, otherResource);
+        assertThat(sessionContext.getSession()).containsValue("pep-token");
+    }
+
+    @DataProvider
+    private static Object[][] urisToNormalize() {
+        return new Object[][] {
+            { "http://example.com/orders/42", asList("_"), "http://example.com/orders/42" },
+            { "http://example.com/orders/42?_=1234", asList("_"), "http://example.com/orders/42" },
+            { "http://example.com/orders?page=2&_=1234&sort=id", asList("_"),
+              "http://example.com/orders?page=2&sort=id" },
+            { "http://example.com/orders?page=2&_=1234", Collections.<String>emptyList(),
+              "http://example.com/orders?page=2&_=1234" },
+            { "http://example.com/orders?page=2&_=1234", asList("*"), "http://example.com/orders" } };
+    }
+
+    @Test(dataProvider = "urisToNormalize")
+    public void shouldRemoveIgnoredQueryParameters(final String uri,
+                                                   final List<String> ignored,
+                                                   final String expected) {
+        assertThat(normalizeUri(uri, new HashSet<>(ignored))).isEqualTo(expected);
+    }
+
     @DataProvider
     private static Object[][] givenAndExpectedKey() {
         return new Object[][] {
@@ -656,6 +814,16 @@ public class PolicyEnforcementFilterTest {
                             field("attributes", object())));
     }
 
+    @SuppressWarnings("unchecked")
+    private static Response policyDecisionsResponse(final String otherResource) {
+        final List<Object> decisions = new ArrayList<>((List<Object>) policyDecision());
+        decisions.addAll((List<Object>) emptyPolicyDecision(otherResource));
+        final Response response = new Response();
+        response.setStatus(OK);
+        response.setEntity(decisions);
+        return response;
+    }
+
     private static Response displayResourceResponse() {
         final Response response = new Response();
         response.setStatus(OK);
@@ -707,6 +875,7 @@ public class PolicyEnforcementFilterTest {
         heap.put(TEMPORARY_STORAGE_HEAP_KEY, new TemporaryStorage());
         heap.put(LOGSINK_HEAP_KEY, new ConsoleLogSink());
         heap.put(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY, newSingleThreadScheduledExecutor());
+        heap.put(TIME_SERVICE_HEAP_KEY, TimeService.SYSTEM);
         heap.put(CLIENT_HANDLER_HEAP_KEY, new ClientHandler(new HttpClientHandler(defaultOptions())));
         heap.put("policiesHandler", policiesHandler);
         return heap;
@@ -22,10 +22,12 @@ import static org.forgerock.http.protocol.Status.BAD_REQUEST;
 import static org.forgerock.http.protocol.Status.FORBIDDEN;
 import static org.forgerock.http.protocol.Status.INTERNAL_SERVER_ERROR;
 import static org.forgerock.http.protocol.Status.OK;
+import static org.forgerock.http.protocol.Status.UNAUTHORIZED;
 import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.openig.el.Bindings.bindings;
 import static org.forgerock.openig.openam.SsoTokenFilter.SSO_TOKEN_KEY;
+import static org.forgerock.util.time.Duration.duration;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -35,6 +37,7 @@ import static org.mockito.Mockito.when;
 import java.io.IOException;
 import java.net.URI;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.forgerock.http.Handler;
 import org.forgerock.http.protocol.Request;
@@ -46,6 +49,9 @@ import org.forgerock.openig.log.Logger;
 import org.forgerock.services.context.AttributesContext;
 import org.forgerock.services.context.Context;
 import org.forgerock.services.context.RootContext;
+import org.forgerock.util.FakeTimeService;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.PromiseImpl;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.testng.annotations.BeforeMethod;
@@ -254,6 +260,90 @@ public class SsoTokenFilterTest {
 
     }
 
+    @Test
+    public void shouldShareSsoTokenAcrossSessions() throws Exception {
+        // Given
+        final SsoTokenFilter filter = buildSharedSsoTokenFilter(new SsoTokenPool(new FakeTimeService(0L), 10));
+        when(authenticate.handle(any(Context.class), any(Request.class)))
+                .thenReturn(newResponsePromise(authenticationSucceeded(VALID_TOKEN)));
+        when(next.handle(any(Context.class), any(Request.class))).thenReturn(newResponsePromise(new Response(OK)));
+
+        // When: 3 requests in 3 different sessions
+        for (int i = 0; i < 3; i++) {
+            final Request request = new Request();
+            final Context context = new SessionContext(new RootContext(), new SimpleMapSession());
+            filter.filter(context, request, next).get();
+            assertThat(request.getHeaders().getFirst(DEFAULT_HEADER_NAME)).isEqualTo(VALID_TOKEN);
+        }
+
+        // Then
+        verify(authenticate).handle(any(Context.class), any(Request.class));
+        assertThat(sessionContext.getSession()).doesNotContainKey(SSO_TOKEN_KEY);
+    }
+
+    @Test
+    public void shouldRenewSharedSsoTokenBeforeIdleTimeout() throws Exception {
+        // Given
+        final FakeTimeService time = new FakeTimeService(0L);
+        final SsoTokenFilter filter = buildSharedSsoTokenFilter(new SsoTokenPool(time, 10));
+        final PromiseImpl<Response, NeverThrowsException> renewal = PromiseImpl.create();
+        when(authenticate.handle(any(Context.class), any(Request.class)))
+                .thenReturn(newResponsePromise(authenticationSucceeded(REVOKED_TOKEN)))
+                .thenReturn(renewal);
+        when(next.handle(any(Context.class), any(Request.class))).thenReturn(newResponsePromise(new Response(OK)));
+        filter.filter(attributesContext, new Request(), next).get();
+
+        // When: the token is too old, it is used while it is renewed
+        time.advance(26, TimeUnit.MINUTES);
+        final Request request = new Request();
+        filter.filter(attributesContext, request, next).get();
+        assertThat(request.getHeaders().getFirst(DEFAULT_HEADER_NAME)).isEqualTo(REVOKED_TOKEN);
+        renewal.handleResult(authenticationSucceeded(VALID_TOKEN));
+
+        // Then
+        final Request renewed = new Request();
+        filter.filter(attributesContext, renewed, next).get();
+        verify(authenticate, times(2)).handle(any(Context.class), any(Request.class));
+        assertThat(renewed.getHeaders().getFirst(DEFAULT_HEADER_NAME)).isEqualTo(VALID_TOKEN);
+    }
+
+    @Test
+    public void shouldRenewRejectedSharedSsoTokenOnce() throws Exception {
+        // Given
+        final SsoTokenPool pool = new SsoTokenPool(new FakeTimeService(0L), 10);
+        final SsoTokenFilter filter = buildSharedSsoTokenFilter(pool);
+        when(authenticate.handle(any(Context.class), any(Request.class)))
+                .thenReturn(newResponsePromise(authenticationSucceeded(REVOKED_TOKEN)))
+                .thenReturn(newResponsePromise(authenticationSucceeded(VALID_TOKEN)));
+        final Response unauthorized = new Response(UNAUTHORIZED);
+        when(next.handle(any(Context.class), any(Request.class))).thenReturn(newResponsePromise(unauthorized))
+                                                                 .thenReturn(newResponsePromise(new Response(OK)));
+
+        // When
+        final Response response = filter.filter(attributesContext, new Request(), next).get();
+        // Another request that got the revoked token rejected reuses the renewed token
+        final String renewed = pool.renew(filter.credentials(attributesContext, new Request()),
+                                          REVOKED_TOKEN,
+                                          null).get();
+
+        // Then
+        assertThat(response.getStatus()).isEqualTo(OK);
+        assertThat(renewed).isEqualTo(VALID_TOKEN);
+        verify(authenticate, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    private static Response authenticationSucceeded(final String token) {
+        final Response response = new Response(OK);
+        response.setEntity(object(field("tokenId", token)));
+        return response;
+    }
+
+    private static SsoTokenFilter buildSharedSsoTokenFilter(final SsoTokenPool pool) throws Exception {
+        final SsoTokenFilter filter = buildSsoTokenFilter();
+        filter.setSharedTokens(pool, duration("25 minutes"));
+        return filter;
+    }
+
     private static SsoTokenFilter buildSsoTokenFilter() throws Exception {
         return buildSsoTokenFilter(null);
     }
@@ -0,0 +1,174 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.openam;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.time.Duration.duration;
+
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.FakeTimeService;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class SubtreePolicyDecisionCacheTest {
+
+    private static final String ROOT = "http://example.com/api/";
+
+    private FakeTimeService time;
+    private SubtreePolicyDecisionCache cache;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        time = new FakeTimeService(0L);
+        cache = new SubtreePolicyDecisionCache(time, duration("1 minute"), 10);
+    }
+
+    @Test
+    public void shouldAnswerAllUrisMatchingAPattern() throws Exception {
+        cache.putAll("@bjensen", ROOT, json(array(decision("http://example.com/api/orders/*", true, 30000L))));
+
+        JsonValue decision = cache.get("@bjensen", "http://example.com/api/orders/42/items");
+
+        assertThat(decision.get("resource").asString()).isEqualTo("http://example.com/api/orders/42/items");
+        assertThat(decision.get("actions").get("GET").asBoolean()).isTrue();
+        assertThat(cache.get("@bjensen", "http://example.com/api/customers/1")).isNull();
+        assertThat(cache.get("@scarter", "http://example.com/api/orders/42")).isNull();
+        assertThat(cache.isEvaluated("@bjensen", ROOT)).isTrue();
+    }
+
+    @Test
+    public void shouldNotMatchTheQueryStringWithATrailingWildcard() throws Exception {
+        cache.putAll("@bjensen", ROOT, json(array(decision("http://example.com/api/orders/*", true, 30000L),
+                                                  decision("http://example.com/api/orders/1?x=y", false, 30000L))));
+
+        // OpenAM would not apply 'orders/*' to these URIs
+        assertThat(cache.get("@bjensen", "http://example.com/api/orders/2?x=y")).isNull();
+        assertThat(cache.get("@bjensen", "http://example.com/api/orders/?x=y")).isNull();
+        // but answers the exact resource
+        assertThat(allowed(cache.get("@bjensen", "http://example.com/api/orders/1?x=y"))).isFalse();
+    }
+
+    @Test
+    public void shouldNotCacheQueryWildcards() throws Exception {
+        cache.putAll("@bjensen", ROOT, json(array(decision("http://example.com/api/orders/*?*", true, 30000L))));
+
+        assertThat(cache.size()).isEqualTo(0);
+        assertThat(cache.get("@bjensen", "http://example.com/api/orders/1?x=y")).isNull();
+    }
+
+    @Test
+    public void shouldNotAnswerUrisMatchedBySeveralDecisions() throws Exception {
+        cache.putAll("@bjensen", ROOT, json(array(decision("http://example.com/api/*", false, 30000L),
+                                                  decision("http://example.com/api/orders/*", true, 30000L),
+                                                  decision("http://example.com/api/orders/admin", false, 30000L))));
+
+        // OpenAM combines the decisions of all the matching policies: leave it to OpenAM
+        assertThat(cache.get("@bjensen", "http://example.com/api/orders/42")).isNull();
+        assertThat(cache.get("@bjensen", "http://example.com/api/orders/admin")).isNull();
+        assertThat(allowed(cache.get("@bjensen", "http://example.com/api/customers/1"))).isFalse();
+    }
+
+    @Test
+    public void shouldNotAnswerUrisThatAnUncachedPatternMayMatch() throws Exception {
+        cache.putAll("@bjensen", ROOT, json(array(decision("http://example.com/api/*", true, 30000L),
+                                                  decision("http://example.com/api/orders/-*-/admin", false, 30000L),
+                                                  decision("http://example.com/api/items/*/edit", false, 30000L))));
+
+        // OpenAM would combine the allowing decision with the denying ones
+        assertThat(cache.get("@bjensen", "http://example.com/api/orders/42/admin")).isNull();
+        assertThat(cache.get("@bjensen", "http://example.com/api/items/1/edit")).isNull();
+        // but the URIs no other pattern can match are answered
+        assertThat(allowed(cache.get("@bjensen", "http://example.com/api/customers/1"))).isTrue();
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldExpireDecisionsAfterTheirTtl() throws Exception {
+        cache.putAll("@bjensen", ROOT, json(array(decision("http://example.com/api/orders/*", true, 30000L))));
+        assertThat(cache.size()).isEqualTo(1);
+
+        time.advance(31, TimeUnit.SECONDS);
+
+        assertThat(cache.get("@bjensen", "http://example.com/api/orders/42")).isNull();
+        assertThat(cache.isEvaluated("@bjensen", ROOT)).isFalse();
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldPruneTheNodesLeftEmpty() throws Exception {
+        cache.putAll("@bjensen", ROOT, json(array(decision("http://example.com/api/orders/1/items/2", true, 1000L),
+                                                  decision("http://example.com/api/other", true, 30000L))));
+        int nodes = cache.nodes();
+
+        time.advance(2, TimeUnit.SECONDS);
+        assertThat(cache.get("@bjensen", "http://example.com/api/orders/1/items/2")).isNull();
+
+        // The 'orders', '1' and 'items' nodes are gone
+        assertThat(cache.nodes()).isEqualTo(nodes - 3);
+        assertThat(cache.size()).isEqualTo(1);
+
+        time.advance(1, TimeUnit.MINUTES);
+        assertThat(cache.get("@bjensen", "http://example.com/api/other")).isNull();
+        assertThat(cache.nodes()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedSubjects() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            cache.putAll("@alice", ROOT, json(array(decision(ROOT + "alice/" + i, true, 30000L))));
+        }
+        for (int i = 0; i < 6; i++) {
+            cache.putAll("@bob", ROOT, json(array(decision(ROOT + "bob/" + i, true, 30000L))));
+        }
+
+        assertThat(cache.size()).isEqualTo(6);
+        assertThat(cache.get("@alice", ROOT + "alice/0")).isNull();
+        assertThat(cache.get("@bob", ROOT + "bob/0")).isNotNull();
+    }
+
+    @Test
+    public void shouldComputeHitRate() throws Exception {
+        cache.putAll("@bjensen", ROOT, json(array(decision("http://example.com/api/orders/*", true, 30000L))));
+        cache.get("@bjensen", "http://example.com/api/orders/1");
+        cache.get("@bjensen", "http://example.com/api/orders/2");
+        cache.get("@bjensen", "http://example.com/api/orders/3");
+        cache.get("@bjensen", "http://example.com/other");
+
+        assertThat(cache.getStatistics()).containsEntry("hits", 3L)
+                                         .containsEntry("misses", 1L)
+                                         .containsEntry("hitRate", 0.75d);
+    }
+
+    private static boolean allowed(final JsonValue decision) {
+        return decision.get("actions").get("GET").defaultTo(false).asBoolean();
+    }
+
+    private static Object decision(final String resource, final boolean allowed, final long ttl) {
+        return object(field("resource", resource),
+                      field("ttl", ttl),
+                      field("actions", object(field("GET", allowed))),
+                      field("attributes", object()),
+                      field("advices", object()));
+    }
+}
@@ -22,6 +22,7 @@ import static org.forgerock.http.protocol.Response.newResponsePromise;
 import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.time.Duration.duration;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
@@ -31,6 +32,8 @@ import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
 
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
@@ -50,6 +53,8 @@ import org.forgerock.openig.log.NullLogSink;
 import org.forgerock.services.context.AttributesContext;
 import org.forgerock.services.context.Context;
 import org.forgerock.services.context.RootContext;
+import org.forgerock.util.FakeTimeService;
+import org.forgerock.util.encode.Base64url;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
@@ -61,6 +66,7 @@ import org.testng.annotations.Test;
 @SuppressWarnings("javadoc")
 public class TokenTransformationFilterTest {
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final String SAML_ASSERTIONS = "[The result SAML assertions]";
     private static final String ID_TOKEN_JWT = "[Some OpenID Connect id_token JWT]";
     private static final Response ISSUED_TOKEN_RESPONSE =
@@ -96,6 +102,7 @@ public class TokenTransformationFilterTest {
         heap = new HeapImpl(Name.of("heap"));
         heap.put(Keys.LOGSINK_HEAP_KEY, new NullLogSink());
         heap.put(Keys.TEMPORARY_STORAGE_HEAP_KEY, new TemporaryStorage());
+        heap.put(Keys.TIME_SERVICE_HEAP_KEY, new FakeTimeService(0L));
         heap.put("#mock-handler", transformationHandler);
     }
 
@@ -155,6 +162,35 @@ public class TokenTransformationFilterTest {
                 .isEqualTo(new URI(expected));
     }
 
+    @Test
+    public void shouldShareTheSsoTokensOfAPoolDeclaredInTheHeap() throws Exception {
+        when(transformationHandler.handle(any(Context.class), any(Request.class)))
+                .thenReturn(newResponsePromise(SSO_TOKEN_RESPONSE));
+
+        SsoTokenPool.Heaplet poolHeaplet = new SsoTokenPool.Heaplet();
+        heap.put("pool", poolHeaplet.create(Name.of("pool"), json(object()), heap));
+        JsonValue config = json(object(field("openamUri", "http://www.example.com:8090/openam/"),
+                                       field("username", "guillaume"),
+                                       field("password", "s3cr3t"),
+                                       field("idToken", "${attributes.id_token}"),
+                                       field("target", "${attributes.saml}"),
+                                       field("instance", "oidc_saml"),
+                                       field("sharedSsoToken", object(field("pool", "pool"))),
+                                       field("amHandler", "#mock-handler")));
+        Filter first = (Filter) new TokenTransformationFilter.Heaplet().create(Name.of("first"), config, heap);
+        Filter second = (Filter) new TokenTransformationFilter.Heaplet().create(Name.of("second"), config, heap);
+
+        first.filter(context, new Request(), next);
+        second.filter(context, new Request(), next);
+        // A single authentication, then one transformation per filter
+        verify(transformationHandler, times(3)).handle(any(Context.class), any(Request.class));
+
+        // The tokens are forgotten with the heap
+        poolHeaplet.destroy();
+        second.filter(context, new Request(), next);
+        verify(transformationHandler, times(5)).handle(any(Context.class), any(Request.class));
+    }
+
     @Test
     public void shouldTransformIdTokenToSamlAssertions() throws Exception {
         when(transformationHandler.handle(eq(context), any(Request.class)))
@@ -203,4 +239,56 @@ public class TokenTransformationFilterTest {
         // Original request has not been forwarded
         verifyZeroInteractions(next);
     }
+
+    @Test
+    public void shouldTransformSameIdTokenOnceUntilItExpires() throws Exception {
+        FakeTimeService time = new FakeTimeService(1000000L);
+        attributesContext.getAttributes().put("id_token", idToken(1060L));
+        when(transformationHandler.handle(eq(context), any(Request.class)))
+                .thenReturn(newResponsePromise(new Response(Status.OK)
+                                                       .setEntity(object(field("issued_token", SAML_ASSERTIONS)))));
+        when(next.handle(eq(context), any(Request.class))).thenReturn(newResponsePromise(new Response(Status.OK)));
+
+        TokenTransformationFilter filter = buildFilter();
+        filter.setCache(new IssuedTokenCache<TokenTransformationFilter.TransformationException>(time,
+                                                                                               10,
+                                                                                               duration("5 minutes")));
+
+        filter.filter(context, new Request(), next).get();
+        filter.filter(context, new Request(), next).get();
+        verify(transformationHandler).handle(eq(context), any(Request.class));
+        assertThat(attributesContext.getAttributes()).contains(entry("saml_token", SAML_ASSERTIONS));
+
+        // The id_token expires before the maximum expiration
+        time.advance(61, TimeUnit.SECONDS);
+        filter.filter(context, new Request(), next).get();
+        verify(transformationHandler, times(2)).handle(eq(context), any(Request.class));
+    }
+
+    @Test
+    public void shouldNotCacheFailedTransformations() throws Exception {
+        when(transformationHandler.handle(eq(context), any(Request.class)))
+                .thenReturn(newResponsePromise(ERROR_RESPONSE));
+
+        TokenTransformationFilter filter = buildFilter();
+        filter.setCache(new IssuedTokenCache<TokenTransformationFilter.TransformationException>(
+                new FakeTimeService(0L), 10, duration("5 minutes")));
+
+        assertThat(filter.filter(context, new Request(), next).get().getStatus()).isEqualTo(Status.BAD_GATEWAY);
+        assertThat(filter.filter(context, new Request(), next).get().getStatus()).isEqualTo(Status.BAD_GATEWAY);
+        verify(transformationHandler, times(2)).handle(eq(context), any(Request.class));
+    }
+
+    private TokenTransformationFilter buildFilter() throws Exception {
+        return new TokenTransformationFilter(transformationHandler,
+                                             new URI("http://openam.example.com/"),
+                                             Expression.valueOf("${attributes.id_token}", String.class),
+                                             Expression.valueOf("${attributes.saml_token}", String.class));
+    }
+
+    private static String idToken(final long expiresAt) {
+        String claims = "{\"iss\": \"https://openam.example.com\", \"exp\": " + expiresAt + "}";
+        return Base64url.encode("{\"alg\": \"RS256\"}".getBytes(UTF_8)) + "."
+                + Base64url.encode(claims.getBytes(UTF_8)) + ".signature";
+    }
 }
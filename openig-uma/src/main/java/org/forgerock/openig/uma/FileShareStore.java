@@ -0,0 +1,359 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.uma;
+
+import static java.lang.String.format;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openig.util.JsonValues.asInteger;
+import static org.forgerock.openig.util.JsonValues.evaluate;
+import static org.forgerock.util.Utils.closeSilently;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+
+/**
+ * A {@link FileShareStore} persists the shares in an append-only file.
+ *
+ * <p>Each creation and each removal of a share appends a compact binary record to the file, so that storing a share
+ * costs a single write. At {@linkplain #load() load time}, the file is read sequentially to rebuild the shares: a
+ * truncated or corrupted record (such as a partial write at the time of a crash) ends the file and is discarded.
+ *
+ * <p>Removed shares leave obsolete records in the file: when there are more than {@code compactionThreshold} of them
+ * (and more than live shares), the file is compacted by rewriting the live shares into a new file that atomically
+ * replaces the previous one.
+ *
+ * <p>The file holds credentials: the PAT (Protection API Token) of each share, in clear. Where the file system
+ * supports POSIX permissions, the file (and its compacted copy) is only readable and writable by its owner; keep it
+ * in a directory that is not readable by other users either.
+ *
+ * <pre>
+ *     {@code {
+ *         "name": "ShareStore",
+ *         "type": "FileShareStore",
+ *         "config": {
+ *           "file": "/path/to/shares.db",
+ *           "compactionThreshold": 1000
+ *         }
+ *       }
+ *     }
+ * </pre>
+ */
+public class FileShareStore implements ShareStore, Closeable {
+
+    /** The first bytes of a share store file ({@literal UMA} followed by the version of the format). */
+    private static final int MAGIC = 0x554d4101;
+
+    /** Records larger than this are considered as corrupted. */
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+    private static final byte STORE = 1;
+    private static final byte REMOVE = 2;
+
+    /** The share attributes, in the order of the {@link #STORE} records. */
+    private static final String[] ATTRIBUTES = { "id", "pattern", "resource_set_id", "user_access_policy_uri", "pat" };
+
+    /** The store holds PATs: only its owner can read it. */
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    private final File file;
+    private final int compactionThreshold;
+
+    /** The live shares, by identifier. */
+    private final Map<String, JsonValue> shares = new LinkedHashMap<>();
+    private int obsolete;
+    private FileChannel channel;
+
+    /**
+     * Creates a new store using the given file, compacted after 1000 obsolete records.
+     *
+     * @param file
+     *         the file where the shares are stored (created if needed)
+     */
+    public FileShareStore(final File file) {
+        this(file, 1000);
+    }
+
+    /**
+     * Creates a new store using the given file.
+     *
+     * @param file
+     *         the file where the shares are stored (created if needed)
+     * @param compactionThreshold
+     *         the number of obsolete records that triggers a compaction
+     */
+    public FileShareStore(final File file, final int compactionThreshold) {
+        this.file = file;
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    @Override
+    public synchronized List<JsonValue> load() throws IOException {
+        close();
+        shares.clear();
+        obsolete = 0;
+        final long valid = file.length() >= 4 ? read() : 0L;
+        if (valid < file.length()) {
+            // Discard the trailing incomplete record
+            try (FileChannel truncated = FileChannel.open(file.toPath(), WRITE)) {
+                truncated.truncate(valid);
+            }
+        }
+        if (!compactIfNeeded()) {
+            open();
+        }
+        final List<JsonValue> loaded = new ArrayList<>(shares.size());
+        for (JsonValue share : shares.values()) {
+            loaded.add(share.copy());
+        }
+        return loaded;
+    }
+
+    @Override
+    public synchronized void store(final JsonValue share) throws IOException {
+        append(storeRecord(share));
+        if (shares.put(share.get("id").asString(), share.copy()) != null) {
+            obsolete++;
+        }
+    }
+
+    @Override
+    public synchronized void remove(final String shareId) throws IOException {
+        if (!shares.containsKey(shareId)) {
+            return;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(REMOVE);
+        out.writeUTF(shareId);
+        append(bytes.toByteArray());
+        shares.remove(shareId);
+        // Both the STORE and the REMOVE records are now obsolete
+        obsolete += 2;
+        compactIfNeeded();
+    }
+
+    /**
+     * Closes the file. It is re-opened by the next operation.
+     *
+     * @throws IOException
+     *         if the file cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Reads the records of the file, and returns the offset of the end of the last valid record.
+     */
+    private long read() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(format("%s is not a share store file", file));
+            }
+            long offset = 4L;
+            final CRC32 crc = new CRC32();
+            byte[] record = new byte[256];
+            while (true) {
+                final int length;
+                final int checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                        return offset;
+                    }
+                    if (record.length < length) {
+                        record = new byte[length];
+                    }
+                    in.readFully(record, 0, length);
+                } catch (EOFException e) {
+                    return offset;
+                }
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    return offset;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(record, 0, length)));
+                offset += 8 + length;
+            }
+        }
+    }
+
+    private void apply(final DataInputStream record) throws IOException {
+        final byte type = record.readByte();
+        if (type == STORE) {
+            final JsonValue share = json(object());
+            for (String attribute : ATTRIBUTES) {
+                share.put(attribute, readString(record));
+            }
+            if (shares.put(share.get("id").asString(), share) != null) {
+                obsolete++;
+            }
+        } else if (type == REMOVE) {
+            obsolete += shares.remove(record.readUTF()) != null ? 2 : 1;
+        } else {
+            throw new IOException(format("Unknown record type %d in %s", type, file));
+        }
+    }
+
+    private void append(final byte[] record) throws IOException {
+        if (channel == null) {
+            open();
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+        final ByteBuffer buffer = ByteBuffer.allocate(8 + record.length);
+        buffer.putInt(record.length).putInt((int) crc.getValue()).put(record).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void open() throws IOException {
+        channel = openOwnerOnly(file.toPath(), CREATE, WRITE, APPEND);
+        if (channel.size() == 0L) {
+            channel.write((ByteBuffer) ByteBuffer.allocate(4).putInt(MAGIC).flip());
+        }
+    }
+
+    private boolean compactIfNeeded() throws IOException {
+        if (obsolete <= compactionThreshold || obsolete <= shares.size()) {
+            return false;
+        }
+        close();
+        final File compacted = new File(file.getPath() + ".compact");
+        channel = openOwnerOnly(compacted.toPath(), CREATE, WRITE, TRUNCATE_EXISTING);
+        try {
+            channel.write((ByteBuffer) ByteBuffer.allocate(4).putInt(MAGIC).flip());
+            for (JsonValue share : shares.values()) {
+                append(storeRecord(share));
+            }
+            channel.force(true);
+        } finally {
+            close();
+        }
+        Files.move(compacted.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        obsolete = 0;
+        open();
+        return true;
+    }
+
+    /**
+     * Opens the given file, restricting its permissions to its owner where POSIX permissions are supported (also
+     * for a file created before, with the default permissions).
+     */
+    private static FileChannel openOwnerOnly(final Path path, final OpenOption... options) throws IOException {
+        if (!path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return FileChannel.open(path, options);
+        }
+        final FileChannel opened = FileChannel.open(path,
+                                                    new HashSet<>(Arrays.asList(options)),
+                                                    PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        try {
+            Files.setPosixFilePermissions(path, OWNER_ONLY);
+        } catch (IOException e) {
+            closeSilently(opened);
+            throw e;
+        }
+        return opened;
+    }
+
+    private static byte[] storeRecord(final JsonValue share) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(STORE);
+        for (String attribute : ATTRIBUTES) {
+            writeString(out, share.get(attribute).asString());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Creates and initializes a file share store in a heap environment.
+     */
+    public static class Heaplet extends GenericHeaplet {
+
+        @Override
+        public Object create() throws HeapException {
+            File file = new File(evaluate(config.get("file").required()));
+            int compactionThreshold = asInteger(config.get("compactionThreshold").defaultTo(1000));
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new HeapException(format("Cannot create the directory of the share store %s", file));
+            }
+            return new FileShareStore(file, compactionThreshold);
+        }
+
+        @Override
+        public void destroy() {
+            super.destroy();
+            if (object != null) {
+                closeSilently((FileShareStore) object);
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.uma;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.time.Duration.duration;
+
+import java.util.concurrent.Callable;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.Function;
+import org.forgerock.util.PromiseCache;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Caches the introspection results of the RPTs (Requesting Party Tokens), so that a requesting party reusing its RPT
+ * is introspected once.
+ *
+ * <p>The results are cached per RPT and PAT (Protection API Token): an RPT is introspected with the PAT of the
+ * resource owner of the share, and the result obtained by one resource owner is not given to another one.
+ *
+ * <p>Only the active tokens are cached: until the earliest of their expiration ({@literal exp} claim) and
+ * {@code maxExpiration}. Concurrent introspections of the same RPT share the same call to the authorization server,
+ * failures and inactive tokens are not cached. When the cache is full, the least recently used entries are evicted.
+ */
+final class IntrospectionCache {
+
+    private final TimeService time;
+    private final PromiseCache<String, JsonValue, UmaException> cache;
+    private final Function<JsonValue, Duration, NeverThrowsException> timeToLive =
+            new Function<JsonValue, Duration, NeverThrowsException>() {
+                @Override
+                public Duration apply(final JsonValue result) {
+                    return timeToLive(result);
+                }
+            };
+
+    /**
+     * Creates a new cache of introspection results.
+     *
+     * @param time
+     *         the time service
+     * @param maxEntries
+     *         the maximum number of cached introspection results
+     * @param maxExpiration
+     *         the maximum time an introspection result is cached
+     * @throws IllegalArgumentException
+     *         if {@code maxEntries} or {@code maxExpiration} is not positive
+     */
+    IntrospectionCache(final TimeService time, final int maxEntries, final Duration maxExpiration) {
+        this.time = checkNotNull(time);
+        this.cache = new PromiseCache<>(time, maxEntries, maxExpiration);
+    }
+
+    /**
+     * Returns the introspection result of the given RPT made with the given PAT, introspecting it if it is not cached.
+     *
+     * @param rpt
+     *         the RPT
+     * @param pat
+     *         the PAT the RPT is introspected with
+     * @param introspection
+     *         performs the introspection when the result is not cached
+     * @return a promise completed with the introspection result
+     */
+    Promise<JsonValue, UmaException> get(final String rpt,
+                                         final String pat,
+                                         final Callable<Promise<JsonValue, UmaException>> introspection) {
+        // Bearer tokens cannot contain spaces
+        return cache.getValue(rpt + " " + pat, new AsyncFunction<String, JsonValue, UmaException>() {
+            @Override
+            public Promise<JsonValue, UmaException> apply(final String key) throws UmaException {
+                try {
+                    return introspection.call();
+                } catch (Exception e) {
+                    throw new UmaException("Unable to introspect the RPT", e);
+                }
+            }
+        }, timeToLive);
+    }
+
+    /**
+     * Returns the number of cached introspection results (including the pending introspections).
+     *
+     * @return the number of cached introspection results
+     */
+    int size() {
+        return cache.size();
+    }
+
+    private Duration timeToLive(final JsonValue result) {
+        if (!Boolean.TRUE.equals(result.get("active").getObject())) {
+            return Duration.ZERO;
+        }
+        final JsonValue exp = result.get("exp");
+        if (!exp.isNumber()) {
+            // Capped to maxExpiration
+            return Duration.UNLIMITED;
+        }
+        final long timeToLive = MILLISECONDS.convert(exp.asLong(), SECONDS) - time.now();
+        return timeToLive > 0L ? duration(timeToLive, MILLISECONDS) : Duration.ZERO;
+    }
+}
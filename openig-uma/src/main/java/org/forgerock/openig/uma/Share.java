@@ -41,7 +41,15 @@ class Share {
           final JsonValue resourceSet,
           final Pattern pattern,
           final String accessToken) {
-        this.id = UUID.randomUUID().toString();
+        this(UUID.randomUUID().toString(), template, resourceSet, pattern, accessToken);
+    }
+
+    Share(final String id,
+          final ShareTemplate template,
+          final JsonValue resourceSet,
+          final Pattern pattern,
+          final String accessToken) {
+        this.id = id;
         this.template = template;
         this.resourceSet = resourceSet;
         this.pattern = pattern;
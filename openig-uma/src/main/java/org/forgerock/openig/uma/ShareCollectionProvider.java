@@ -32,6 +32,7 @@ import org.forgerock.json.resource.BadRequestException;
 import org.forgerock.json.resource.CollectionResourceProvider;
 import org.forgerock.json.resource.CreateRequest;
 import org.forgerock.json.resource.DeleteRequest;
+import org.forgerock.json.resource.InternalServerErrorException;
 import org.forgerock.json.resource.NotFoundException;
 import org.forgerock.json.resource.NotSupportedException;
 import org.forgerock.json.resource.PatchRequest;
@@ -101,7 +102,12 @@ class ShareCollectionProvider implements CollectionResourceProvider {
     public Promise<ResourceResponse, ResourceException> deleteInstance(final Context context,
                                                                        final String resourceId,
                                                                        final DeleteRequest request) {
-        Share share = service.removeShare(resourceId);
+        Share share;
+        try {
+            share = service.removeShare(resourceId);
+        } catch (UmaException e) {
+            return new InternalServerErrorException("Failed to remove a share", e).asPromise();
+        }
         if (share == null) {
             return new NotFoundException(format("Share %s is unknown", resourceId)).asPromise();
         }
@@ -0,0 +1,222 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.uma;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Indexes the {@link Share}s by the resource path they protect, so that finding the {@link Share} of a request does
+ * not require to match every shared pattern.
+ *
+ * <p>Each share is indexed by its pattern string: a request path equal to a pattern that matches it (the common case
+ * of a literal resource path) is found with a single hash lookup. Shares whose pattern contains regular expression
+ * constructs are also stored in a trie indexed by the path segments of their literal prefix (the characters before
+ * the first regular expression construct): only the patterns stored along the request path are matched, and the one
+ * with the longest literal prefix wins.
+ *
+ * <p>Lookups do not lock and can run while shares are added or removed.
+ */
+class ShareIndex {
+
+    /** Characters that start a regular expression construct. */
+    private static final String META_CHARACTERS = "\\[](){}.*+?^$|";
+
+    /** Characters that make the previous character optional. */
+    private static final String QUANTIFIERS = "*?{";
+
+    private final ConcurrentMap<String, Share> byId = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Share> byPattern = new ConcurrentHashMap<>();
+    private final Node root = new Node();
+
+    /**
+     * Adds a share to this index.
+     *
+     * @param share
+     *         the share to index
+     * @return {@code false} if a share with the same pattern is already indexed (the given share is not added)
+     */
+    synchronized boolean add(final Share share) {
+        final String pattern = share.getPattern().pattern();
+        if (byPattern.putIfAbsent(pattern, share) != null) {
+            return false;
+        }
+        byId.put(share.getId(), share);
+        final String prefix = literalPrefix(pattern);
+        if (prefix.length() != pattern.length()) {
+            Node node = root;
+            for (String segment : directory(prefix)) {
+                Node child = node.children.get(segment);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+            node.shares.put(share.getId(), new Candidate(share, prefix.length()));
+        }
+        return true;
+    }
+
+    /**
+     * Removes a share from this index.
+     *
+     * @param shareId
+     *         the identifier of the share to remove
+     * @return the removed share, or {@code null} if none was indexed with this identifier
+     */
+    synchronized Share remove(final String shareId) {
+        final Share share = byId.remove(shareId);
+        if (share == null) {
+            return null;
+        }
+        final String pattern = share.getPattern().pattern();
+        byPattern.remove(pattern);
+        final String prefix = literalPrefix(pattern);
+        if (prefix.length() != pattern.length()) {
+            remove(root, directory(prefix), 0, shareId);
+        }
+        return share;
+    }
+
+    /**
+     * Returns the share with the given identifier.
+     *
+     * @param shareId
+     *         share identifier
+     * @return the share, or {@code null} if none was indexed with this identifier
+     */
+    Share get(final String shareId) {
+        return byId.get(shareId);
+    }
+
+    /**
+     * Returns {@code true} if a share has been created with the given path as pattern.
+     *
+     * @param path
+     *         the shared path
+     * @return {@code true} if the path is shared
+     */
+    boolean isShared(final String path) {
+        return byPattern.containsKey(path);
+    }
+
+    /**
+     * Returns the share that best matches the given path: the share whose pattern is the path itself, or else the
+     * matching share with the longest literal prefix.
+     *
+     * @param path
+     *         the requested path
+     * @return the best share, or {@code null} if no share matches
+     */
+    Share find(final String path) {
+        final Share exact = byPattern.get(path);
+        if (exact != null && exact.getPattern().matcher(path).matches()) {
+            return exact;
+        }
+        Share best = null;
+        int longest = -1;
+        Node node = root;
+        final String[] segments = path.split("/", -1);
+        for (int i = 0; node != null; i++) {
+            for (Candidate candidate : node.shares.values()) {
+                if (candidate.prefixLength > longest && candidate.share.getPattern().matcher(path).matches()) {
+                    best = candidate.share;
+                    longest = candidate.prefixLength;
+                }
+            }
+            node = i < segments.length ? node.children.get(segments[i]) : null;
+        }
+        return best;
+    }
+
+    /**
+     * Returns the indexed shares.
+     *
+     * @return a view of the indexed shares
+     */
+    Collection<Share> values() {
+        return byId.values();
+    }
+
+    private static boolean remove(final Node node, final List<String> path, final int depth, final String shareId) {
+        if (depth == path.size()) {
+            node.shares.remove(shareId);
+        } else {
+            final Node child = node.children.get(path.get(depth));
+            if (child != null && remove(child, path, depth + 1, shareId)) {
+                node.children.remove(path.get(depth));
+            }
+        }
+        return node.shares.isEmpty() && node.children.isEmpty();
+    }
+
+    /**
+     * Returns the characters of the pattern that any matching path starts with.
+     */
+    static String literalPrefix(final String pattern) {
+        if (pattern.indexOf('|') != -1) {
+            // Alternatives: no common prefix can be inferred cheaply
+            return "";
+        }
+        for (int i = 0; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+            if (META_CHARACTERS.indexOf(c) != -1) {
+                if (QUANTIFIERS.indexOf(c) != -1 && i > 0) {
+                    // The previous character may be absent
+                    return pattern.substring(0, i - 1);
+                }
+                return pattern.substring(0, i);
+            }
+        }
+        return pattern;
+    }
+
+    /**
+     * Returns the complete path segments of a prefix: the segments before its last {@literal /}.
+     */
+    private static List<String> directory(final String prefix) {
+        final List<String> segments = new ArrayList<>();
+        int start = 0;
+        int slash;
+        while ((slash = prefix.indexOf('/', start)) != -1) {
+            segments.add(prefix.substring(start, slash));
+            start = slash + 1;
+        }
+        return segments;
+    }
+
+    /** A node of the trie, for a path segment. */
+    private static final class Node {
+        private final ConcurrentMap<String, Node> children = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, Candidate> shares = new ConcurrentHashMap<>();
+    }
+
+    /** A share stored in the trie, with the length of its literal prefix. */
+    private static final class Candidate {
+        private final Share share;
+        private final int prefixLength;
+
+        Candidate(final Share share, final int prefixLength) {
+            this.share = share;
+            this.prefixLength = prefixLength;
+        }
+    }
+}
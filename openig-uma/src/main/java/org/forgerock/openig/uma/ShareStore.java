@@ -0,0 +1,70 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.uma;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.forgerock.json.JsonValue;
+
+/**
+ * A {@link ShareStore} persists the shares managed by an {@link UmaSharingService}, so that they survive restarts
+ * without registering their resource sets again.
+ *
+ * <p>A share is exchanged as a JSON object with the following attributes (all strings):
+ * <pre>
+ *     {@code {
+ *         "id": "...",
+ *         "pattern": "/alice/allergies",
+ *         "resource_set_id": "...",
+ *         "user_access_policy_uri": "...",
+ *         "pat": "..."
+ *       }
+ *     }
+ * </pre>
+ */
+public interface ShareStore {
+
+    /**
+     * Returns all the stored shares.
+     *
+     * @return the stored shares, in creation order
+     * @throws IOException
+     *         if the shares cannot be read
+     */
+    List<JsonValue> load() throws IOException;
+
+    /**
+     * Stores a newly created share.
+     *
+     * @param share
+     *         the share to store
+     * @throws IOException
+     *         if the share cannot be stored
+     */
+    void store(JsonValue share) throws IOException;
+
+    /**
+     * Removes a share.
+     *
+     * @param shareId
+     *         the identifier of the share to remove
+     * @throws IOException
+     *         if the share cannot be removed
+     */
+    void remove(String shareId) throws IOException;
+}
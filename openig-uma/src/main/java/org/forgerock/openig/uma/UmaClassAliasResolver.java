@@ -28,6 +28,7 @@ public class UmaClassAliasResolver implements ClassAliasResolver {
     private static final Map<String, Class<?>> ALIASES = new HashMap<>();
 
     static {
+        ALIASES.put("FileShareStore", FileShareStore.class);
         ALIASES.put("UmaService", UmaSharingService.class);
         ALIASES.put("UmaFilter", UmaResourceServerFilter.class);
     }
@@ -24,16 +24,23 @@ import static org.forgerock.json.JsonValue.array;
 import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.http.DeadlineContext.isExpired;
+import static org.forgerock.openig.http.Deadlines.newGatewayTimeout;
+import static org.forgerock.openig.util.JsonValues.asDuration;
+import static org.forgerock.openig.util.JsonValues.asInteger;
 import static org.forgerock.util.Utils.closeSilently;
 
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.forgerock.authz.modules.oauth2.OAuth2;
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
+import org.forgerock.http.Responses;
 import org.forgerock.http.header.WarningHeader;
 import org.forgerock.http.protocol.Form;
 import org.forgerock.http.protocol.Request;
@@ -49,6 +56,8 @@ import org.forgerock.util.Function;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
 import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
 
 /**
  * An {@link UmaResourceServerFilter} implements a PEP (Policy Enforcement Point) and is responsible to ensure the
@@ -60,17 +69,27 @@ import org.forgerock.util.promise.ResultHandler;
  *         "type": "UmaFilter",
  *         "config": {
  *           "protectionApiHandler": "HttpsClient",
- *           "umaService": "UmaService"
+ *           "umaService": "UmaService",
+ *           "cache": {
+ *             "maxEntries": 1000,
+ *             "maxExpiration": "5 minutes"
+ *           }
  *         }
  *       }
  *     }
  * </pre>
+ *
+ * <p>The optional {@literal cache} attribute enables the caching of the RPT introspection results: a requesting party
+ * reusing its RPT is introspected once per resource owner (with the PAT of the share), and its permissions are then
+ * verified against the cached result until the RPT expires or for {@literal maxExpiration} at most (defaults to
+ * 5 minutes). At most {@literal maxEntries} results are cached (defaults to 1000). Inactive RPTs are not cached.
  */
 public class UmaResourceServerFilter extends GenericHeapObject implements Filter {
 
     private final UmaSharingService umaService;
     private final Handler protectionApiHandler;
     private final String realm;
+    private IntrospectionCache cache;
 
     /**
      * Constructs a new UmaResourceServerFilter.
@@ -90,10 +109,24 @@ public class UmaResourceServerFilter extends GenericHeapObject implements Filter
         this.realm = realm;
     }
 
+    /**
+     * Caches the RPT introspection results.
+     *
+     * @param cache
+     *         the cache of introspection results ({@code null} to introspect every RPT)
+     */
+    void setCache(final IntrospectionCache cache) {
+        this.cache = cache;
+    }
+
     @Override
     public Promise<Response, NeverThrowsException> filter(final Context context,
                                                           final Request request,
                                                           final Handler next) {
+        if (isExpired(context)) {
+            // Too late to call the authorization server
+            return newResponsePromise(newGatewayTimeout());
+        }
 
         try {
             // Find a Share for this request
@@ -104,7 +137,14 @@ public class UmaResourceServerFilter extends GenericHeapObject implements Filter
             if (rpt != null) {
                 // Validate the token
                 return introspectToken(context, rpt, share.getPAT())
-                        .thenAsync(new VerifyScopesAsyncFunction(share, context, request, next));
+                        .thenAsync(new VerifyScopesAsyncFunction(share, context, request, next),
+                                   new AsyncFunction<UmaException, Response, NeverThrowsException>() {
+                                       @Override
+                                       public Promise<Response, NeverThrowsException> apply(
+                                               final UmaException e) {
+                                           return newResponsePromise(newInternalServerError(e));
+                                       }
+                                   });
             }
 
             // Error case: ask for a ticket
@@ -176,9 +216,27 @@ public class UmaResourceServerFilter extends GenericHeapObject implements Filter
                            field("scopes", array(scopes.toArray(new Object[scopes.size()])))));
     }
 
-    private Promise<Response, NeverThrowsException> introspectToken(final Context context,
-                                                                    final String token,
-                                                                    final String pat) {
+    private Promise<JsonValue, UmaException> introspectToken(final Context context,
+                                                             final String token,
+                                                             final String pat) {
+        if (cache == null) {
+            return introspect(context, token, pat);
+        }
+        return cache.get(token, pat, new Callable<Promise<JsonValue, UmaException>>() {
+            @Override
+            public Promise<JsonValue, UmaException> call() throws Exception {
+                return introspect(context, token, pat);
+            }
+        });
+    }
+
+    /**
+     * Calls the introspection endpoint. A token that cannot be introspected is considered as inactive, while a
+     * malformed introspection result is an error.
+     */
+    private Promise<JsonValue, UmaException> introspect(final Context context,
+                                                        final String token,
+                                                        final String pat) {
         Request request = new Request();
         request.setUri(umaService.getIntrospectionEndpoint());
         // Should accept a PAT as per the spec (See OPENAM-6320 / OPENAM-5928)
@@ -191,10 +249,27 @@ public class UmaResourceServerFilter extends GenericHeapObject implements Filter
         query.putSingle("client_secret", umaService.getClientSecret());
         query.toRequestEntity(request);
 
-        return protectionApiHandler.handle(context, request);
+        return protectionApiHandler.handle(context, request)
+                                   .then(new Function<Response, JsonValue, UmaException>() {
+                                       @Override
+                                       public JsonValue apply(final Response response) throws UmaException {
+                                           try {
+                                               if (Status.OK != response.getStatus()) {
+                                                   return json(object(field("active", false)));
+                                               }
+                                               return json(response.getEntity().getJson());
+                                           } catch (IOException e) {
+                                               logger.debug("Cannot extract JSON from token introspection "
+                                                                    + "response, possibly malformed JSON");
+                                               throw new UmaException("Malformed token introspection response", e);
+                                           } finally {
+                                               closeSilently(response);
+                                           }
+                                       }
+                                   }, Responses.<JsonValue, UmaException>noopExceptionFunction());
     }
 
-    private class VerifyScopesAsyncFunction implements AsyncFunction<Response, Response, NeverThrowsException> {
+    private class VerifyScopesAsyncFunction implements AsyncFunction<JsonValue, Response, NeverThrowsException> {
         private final Share share;
         private final Context context;
         private final Request request;
@@ -211,44 +286,35 @@ public class UmaResourceServerFilter extends GenericHeapObject implements Filter
         }
 
         @Override
-        public Promise<Response, NeverThrowsException> apply(final Response token) {
+        public Promise<Response, NeverThrowsException> apply(final JsonValue value) {
 
-            if (Status.OK == token.getStatus()) {
-                JsonValue value = null;
-                try {
-                    value = json(token.getEntity().getJson());
-                } catch (IOException e) {
-                    logger.debug("Cannot extract JSON from token introspection response, possibly malformed JSON");
-                    return newResponsePromise(newInternalServerError(e));
+            if (Boolean.TRUE.equals(value.get("active").getObject())) {
+                // Got a valid token
+                // Need to verify embed scopes against required scopes
+                ShareTemplate template = share.getTemplate();
+                Set<String> required = template.getScopes(request);
+                if (getScopes(value, share.getResourceSetId()).containsAll(required)) {
+                    // All required scopes are present, continue the request processing
+                    return next.handle(context, request);
                 }
-                if (value.get("active").asBoolean()) {
-                    // Got a valid token
-                    // Need to verify embed scopes against required scopes
-                    ShareTemplate template = share.getTemplate();
-                    Set<String> required = template.getScopes(request);
-                    if (getScopes(value, share.getResourceSetId()).containsAll(required)) {
-                        // All required scopes are present, continue the request processing
-                        return next.handle(context, request);
-                    }
 
-                    logger.trace("Insufficient scopes encoded in RPT, asking for a new ticket");
-                    // Not all of the required scopes are in the token
-                    // Error case: ask for a ticket, append an error code
-                    return ticket(context, share, request)
-                            .thenOnResult(new ResultHandler<Response>() {
-                                @Override
-                                public void handleResult(final Response response) {
-
-                                    // Update the Authorization header with a proper error code
-                                    String authorization = response.getHeaders()
-                                                                   .getFirst("WWW-Authenticate");
-                                    if (authorization != null) {
-                                        authorization = authorization.concat(", error=\"insufficient_scope\"");
-                                        response.getHeaders().put("WWW-Authenticate", authorization);
-                                    }
+                logger.trace("Insufficient scopes encoded in RPT, asking for a new ticket");
+                // Not all of the required scopes are in the token
+                // Error case: ask for a ticket, append an error code
+                return ticket(context, share, request)
+                        .thenOnResult(new ResultHandler<Response>() {
+                            @Override
+                            public void handleResult(final Response response) {
+
+                                // Update the Authorization header with a proper error code
+                                String authorization = response.getHeaders()
+                                                               .getFirst("WWW-Authenticate");
+                                if (authorization != null) {
+                                    authorization = authorization.concat(", error=\"insufficient_scope\"");
+                                    response.getHeaders().put("WWW-Authenticate", authorization);
                                 }
-                            });
-                }
+                            }
+                        });
             }
 
             // Error case: ask for a ticket
@@ -317,7 +383,20 @@ public class UmaResourceServerFilter extends GenericHeapObject implements Filter
             UmaSharingService service = heap.resolve(config.get("umaService").required(), UmaSharingService.class);
             Handler handler = heap.resolve(config.get("protectionApiHandler").required(), Handler.class);
             String realm = config.get("realm").defaultTo("uma").asString();
-            return new UmaResourceServerFilter(service, handler, realm);
+            UmaResourceServerFilter filter = new UmaResourceServerFilter(service, handler, realm);
+            JsonValue cache = config.get("cache");
+            if (!cache.isNull()) {
+                int maxEntries = asInteger(cache.get("maxEntries").defaultTo(1000));
+                Duration maxExpiration = asDuration(cache.get("maxExpiration").defaultTo("5 minutes"));
+                try {
+                    filter.setCache(new IntrospectionCache(heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class),
+                                                           maxEntries,
+                                                           maxExpiration));
+                } catch (IllegalArgumentException e) {
+                    throw new HeapException(e.getMessage(), e);
+                }
+            }
+            return filter;
         }
     }
 }
@@ -32,9 +32,7 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -96,6 +94,10 @@ import org.forgerock.util.promise.Promise;
  *     }
  * </pre>
  *
+ * <p>The optional {@code shareStore} attribute references a {@link ShareStore} (such as a {@link FileShareStore})
+ * where the shares are persisted: they are loaded when the service starts, so that they survive restarts without
+ * registering their resource sets again. Stored shares that no longer match any resource are ignored.
+ *
  * Along with the {@code UmaService}, a REST endpoint is deployed in OpenIG's API namespace:
  * {@literal /openig/api/system/objects/../objects/[name-of-the-uma-service-object]/share}.
  * The dotted segment depends on your deployment (like which RouterHandler hosts the route that
@@ -104,7 +106,8 @@ import org.forgerock.util.promise.Promise;
 public class UmaSharingService {
 
     private final List<ShareTemplate> templates = new ArrayList<>();
-    private final Map<String, Share> shares = new TreeMap<>();
+    private final ShareIndex shares = new ShareIndex();
+    private ShareStore store;
 
     private final Handler protectionApiHandler;
     private final URI authorizationServer;
@@ -148,6 +151,32 @@ public class UmaSharingService {
         this.clientSecret = clientSecret;
     }
 
+    /**
+     * Loads the shares persisted in the given store, and persists the shares created or removed from now on in it.
+     *
+     * @param store
+     *         the store where the shares are persisted
+     * @throws IOException
+     *         if the stored shares cannot be loaded
+     */
+    public void setShareStore(final ShareStore store) throws IOException {
+        for (JsonValue stored : store.load()) {
+            String pattern = stored.get("pattern").asString();
+            ShareTemplate template = findShareTemplate(pattern);
+            if (template != null) {
+                JsonValue resourceSet = json(object(field("_id", stored.get("resource_set_id").asString()),
+                                                    field("user_access_policy_uri",
+                                                          stored.get("user_access_policy_uri").asString())));
+                shares.add(new Share(stored.get("id").asString(),
+                                     template,
+                                     resourceSet,
+                                     Pattern.compile(pattern),
+                                     stored.get("pat").asString()));
+            }
+        }
+        this.store = store;
+    }
+
     /**
      * Append a trailing {@literal /} if missing.
      *
@@ -202,7 +231,11 @@ public class UmaSharingService {
                             try {
                                 JsonValue value = json(response.getEntity().getJson());
                                 Share share = new Share(matching, value, Pattern.compile(resourcePath), pat);
-                                shares.put(share.getId(), share);
+                                if (!shares.add(share)) {
+                                    // Concurrently shared
+                                    throw new UmaException(format("Resource %s is already shared", resourcePath));
+                                }
+                                store(share);
                                 return share;
                             } catch (IOException e) {
                                 throw new UmaException("Can't read the CREATE resource_set response", e);
@@ -213,6 +246,21 @@ public class UmaSharingService {
                 }, Responses.<Share, UmaException>noopExceptionFunction());
     }
 
+    private void store(final Share share) throws UmaException {
+        if (store != null) {
+            try {
+                store.store(json(object(field("id", share.getId()),
+                                        field("pattern", share.getPattern().pattern()),
+                                        field("resource_set_id", share.getResourceSetId()),
+                                        field("user_access_policy_uri", share.getUserAccessPolicyUri()),
+                                        field("pat", share.getPAT()))));
+            } catch (IOException e) {
+                shares.remove(share.getId());
+                throw new UmaException(format("Cannot store the share of %s", share.getPattern()), e);
+            }
+        }
+    }
+
     /**
      * Select, among the registered templates, the one that match best the resource path to be shared.
      *
@@ -234,12 +282,7 @@ public class UmaSharingService {
     }
 
     private boolean isShared(final String path) {
-        for (Share share : shares.values()) {
-            if (path.equals(share.getPattern().toString())) {
-                return true;
-            }
-        }
-        return false;
+        return shares.isShared(path);
     }
 
     private Promise<Response, NeverThrowsException> createResourceSet(final Context context,
@@ -279,20 +322,12 @@ public class UmaSharingService {
     public Share findShare(Request request) throws UmaException {
 
         // Need to find which Share to use
-        // The logic here is that the longest matching segment denotes the best share
+        // The logic here is that the most specific matching share denotes the best share
         //   request: /alice/allergies/pollen
         //   shares: [ /alice.*, /alice/allergies, /alice/allergies/pollen ]
         // expects the last share to be returned
-        Share matching = null;
         String path = request.getUri().getPath();
-        int longest = -1;
-        for (Share share : shares.values()) {
-            Matcher matcher = share.getPattern().matcher(path);
-            if (matcher.matches() && matcher.end() > longest) {
-                matching = share;
-                longest = matcher.end();
-            }
-        }
+        Share matching = shares.find(path);
 
         // Fail-fast if no shares matched
         if (matching == null) {
@@ -309,9 +344,20 @@ public class UmaSharingService {
      * @param shareId
      *         share identifier
      * @return the removed Share instance if found, {@code null} otherwise.
+     * @throws UmaException
+     *         when the removal cannot be persisted (the share is kept)
      */
-    public Share removeShare(String shareId) {
-        return shares.remove(shareId);
+    public Share removeShare(String shareId) throws UmaException {
+        Share share = shares.remove(shareId);
+        if (share != null && store != null) {
+            try {
+                store.remove(shareId);
+            } catch (IOException e) {
+                shares.add(share);
+                throw new UmaException(format("Cannot remove the share %s from the store", shareId), e);
+            }
+        }
+        return share;
     }
 
     /**
@@ -388,6 +434,12 @@ public class UmaSharingService {
                                                                   uri,
                                                                   clientId,
                                                                   clientSecret);
+                ShareStore store = heap.resolve(config.get("shareStore"), ShareStore.class, true);
+                if (store != null) {
+                    service.setShareStore(store);
+                    logger.info(format("%d UMA shares loaded from the share store", service.listShares().size()));
+                }
+
                 // register admin endpoint
                 Handler httpHandler = newHttpHandler(newCollection(new ShareCollectionProvider(service)));
                 EndpointRegistry.Registration share = endpointRegistry().register("share", httpHandler);
@@ -396,6 +448,8 @@ public class UmaSharingService {
                 return service;
             } catch (URISyntaxException e) {
                 throw new HeapException("Cannot build UmaSharingService", e);
+            } catch (IOException e) {
+                throw new HeapException("Cannot load the UMA shares", e);
             }
         }
 
@@ -0,0 +1,142 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.uma;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+import org.forgerock.json.JsonValue;
+import org.testng.annotations.AfterMethod;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class FileShareStoreTest {
+
+    private File file;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        file = File.createTempFile("shares", ".db");
+        file.delete();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void shouldReloadStoredShares() throws Exception {
+        FileShareStore store = new FileShareStore(file);
+        assertThat(store.load()).isEmpty();
+        store.store(share("1", "/alice/allergies"));
+        store.store(share("2", "/alice/contacts"));
+        store.store(share("3", "/bob/.*"));
+        store.remove("2");
+        store.close();
+
+        List<JsonValue> shares = new FileShareStore(file).load();
+
+        assertThat(shares).hasSize(2);
+        assertThat(shares.get(0).getObject()).isEqualTo(share("1", "/alice/allergies").getObject());
+        assertThat(shares.get(1).get("pattern").asString()).isEqualTo("/bob/.*");
+        assertThat(shares.get(1).get("user_access_policy_uri").asString()).isNull();
+    }
+
+    @Test
+    public void shouldDiscardTruncatedRecord() throws Exception {
+        FileShareStore store = new FileShareStore(file);
+        store.load();
+        store.store(share("1", "/alice/allergies"));
+        store.store(share("2", "/alice/contacts"));
+        store.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        store = new FileShareStore(file);
+        assertThat(store.load()).hasSize(1);
+        store.store(share("3", "/bob/.*"));
+        store.close();
+
+        assertThat(new FileShareStore(file).load()).hasSize(2);
+    }
+
+    @Test
+    public void shouldCompactObsoleteRecords() throws Exception {
+        FileShareStore store = new FileShareStore(file, 10);
+        store.load();
+        store.store(share("live", "/alice/allergies"));
+        for (int i = 0; i < 6; i++) {
+            store.store(share(String.valueOf(i), "/bob/" + i));
+        }
+        long beforeCompaction = file.length();
+        for (int i = 0; i < 6; i++) {
+            store.remove(String.valueOf(i));
+        }
+        store.close();
+
+        assertThat(file.length()).isLessThan(beforeCompaction);
+        List<JsonValue> shares = new FileShareStore(file).load();
+        assertThat(shares).hasSize(1);
+        assertThat(shares.get(0).get("id").asString()).isEqualTo("live");
+    }
+
+    @Test
+    public void shouldOnlyLetTheOwnerReadTheStore() throws Exception {
+        if (!file.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            throw new SkipException("POSIX permissions are not supported");
+        }
+        // A store created before, with the default permissions
+        Files.createFile(file.toPath(),
+                         PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-r--r--")));
+
+        FileShareStore store = new FileShareStore(file, 1);
+        store.load();
+        store.store(share("1", "/alice/allergies"));
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath()))).isEqualTo("rw-------");
+
+        // Compacted
+        for (int i = 2; i < 5; i++) {
+            store.store(share(String.valueOf(i), "/bob/" + i));
+            store.remove(String.valueOf(i));
+        }
+        store.close();
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath()))).isEqualTo("rw-------");
+    }
+
+    private static JsonValue share(final String id, final String pattern) {
+        JsonValue share = json(object(field("id", id),
+                                      field("pattern", pattern),
+                                      field("resource_set_id", "rs-" + id),
+                                      field("pat", "PAT")));
+        if (!pattern.endsWith("*")) {
+            share.put("user_access_policy_uri", "https://as.example.com/share/" + id);
+        }
+        return share;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.uma;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class ShareIndexTest {
+
+    private static final ShareTemplate TEMPLATE =
+            new ShareTemplate(Pattern.compile(".*"), new ArrayList<ShareTemplate.Action>());
+
+    @DataProvider
+    public static Object[][] literalPrefixes() {
+        // @Checkstyle:off
+        return new Object[][] {
+                { "/alice/allergies", "/alice/allergies" },
+                { "/alice/allergies/.*", "/alice/allergies/" },
+                { "/alice/allergies/?", "/alice/allergies" },
+                { "/alice/allergies/pollen+", "/alice/allergies/pollen" },
+                { "/alice/(allergies|pollen)", "" },
+                { "^/alice", "" }
+        };
+        // @Checkstyle:on
+    }
+
+    @Test(dataProvider = "literalPrefixes")
+    public void shouldComputeLiteralPrefix(final String pattern, final String expected) throws Exception {
+        assertThat(ShareIndex.literalPrefix(pattern)).isEqualTo(expected);
+    }
+
+    @Test
+    public void shouldPreferTheMostSpecificShare() throws Exception {
+        ShareIndex index = new ShareIndex();
+        Share all = share("/alice.*");
+        Share allergies = share("/alice/allergies.*");
+        Share pollen = share("/alice/allergies/pollen");
+        index.add(all);
+        index.add(allergies);
+        index.add(pollen);
+
+        assertThat(index.find("/alice/allergies/pollen")).isSameAs(pollen);
+        assertThat(index.find("/alice/allergies/dust")).isSameAs(allergies);
+        assertThat(index.find("/alice/contacts")).isSameAs(all);
+        assertThat(index.find("/bob/allergies")).isNull();
+    }
+
+    @Test
+    public void shouldNotAddTheSamePatternTwice() throws Exception {
+        ShareIndex index = new ShareIndex();
+
+        assertThat(index.add(share("/alice/allergies"))).isTrue();
+        assertThat(index.add(share("/alice/allergies"))).isFalse();
+        assertThat(index.values()).hasSize(1);
+    }
+
+    @Test
+    public void shouldRemoveShares() throws Exception {
+        ShareIndex index = new ShareIndex();
+        Share allergies = share("/alice/allergies/.*");
+        Share pollen = share("/alice/allergies/pollen");
+        index.add(allergies);
+        index.add(pollen);
+
+        assertThat(index.remove(allergies.getId())).isSameAs(allergies);
+        assertThat(index.remove(pollen.getId())).isSameAs(pollen);
+        assertThat(index.remove(pollen.getId())).isNull();
+
+        assertThat(index.find("/alice/allergies/pollen")).isNull();
+        assertThat(index.find("/alice/allergies/dust")).isNull();
+        assertThat(index.isShared("/alice/allergies/pollen")).isFalse();
+        assertThat(index.get(allergies.getId())).isNull();
+    }
+
+    @DataProvider
+    public static Object[][] shareCounts() {
+        // @Checkstyle:off
+        return new Object[][] {
+                { 10000 },
+                { 100000 }
+        };
+        // @Checkstyle:on
+    }
+
+    /**
+     * Looks up every share among many: with a linear scan, this would match {@code count * count} patterns.
+     */
+    @Test(dataProvider = "shareCounts", timeOut = 30000)
+    public void shouldFindSharesAmongManyShares(final int count) throws Exception {
+        ShareIndex index = new ShareIndex();
+        List<Share> shares = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Share share = share(i % 2 == 0 ? "/user" + i + "/records" : "/user" + i + "/records/.*");
+            shares.add(share);
+            index.add(share);
+        }
+
+        for (int i = 0; i < count; i++) {
+            String path = i % 2 == 0 ? "/user" + i + "/records" : "/user" + i + "/records/" + i;
+            assertThat(index.find(path)).isSameAs(shares.get(i));
+        }
+        assertThat(index.find("/user" + count + "/records")).isNull();
+    }
+
+    private static Share share(final String pattern) {
+        return new Share(TEMPLATE, json(object(field("_id", pattern))), Pattern.compile(pattern), "PAT");
+    }
+}
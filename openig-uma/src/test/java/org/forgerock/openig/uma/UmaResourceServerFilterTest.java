@@ -24,15 +24,18 @@ import static org.forgerock.json.JsonValue.array;
 import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.time.Duration.duration;
 import static org.hamcrest.CoreMatchers.allOf;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.argThat;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import org.forgerock.http.Handler;
@@ -43,6 +46,7 @@ import org.forgerock.json.JsonValue;
 import org.forgerock.openig.el.Expression;
 import org.forgerock.openig.el.ExpressionException;
 import org.forgerock.services.context.Context;
+import org.forgerock.util.FakeTimeService;
 import org.hamcrest.BaseMatcher;
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
@@ -115,6 +119,80 @@ public class UmaResourceServerFilterTest {
         verify(terminal).handle(null, request);
     }
 
+    @Test
+    public void shouldIntrospectTheSameRptOnce() throws Exception {
+        request.getHeaders().put("Authorization", format("Bearer %s", RPT));
+        URI introspectionUri = mockTokenIntrospection(new Response(Status.OK).setEntity(validToken()),
+                                                      new Response(Status.OK).setEntity(validToken()));
+        UmaResourceServerFilter filter = new UmaResourceServerFilter(service, handler, null);
+        filter.setCache(new IntrospectionCache(new FakeTimeService(0L), 10, duration("5 minutes")));
+
+        filter.filter(null, request, terminal);
+        filter.filter(null, request, terminal);
+
+        verify(handler).handle(any(Context.class), argThat(hasUri(introspectionUri)));
+        verify(terminal, times(2)).handle(null, request);
+    }
+
+    @Test
+    public void shouldIntrospectTheSameRptOncePerResourceOwner() throws Exception {
+        request.getHeaders().put("Authorization", format("Bearer %s", RPT));
+        Request other = new Request();
+        other.getHeaders().put("Authorization", format("Bearer %s", RPT));
+        when(service.findShare(other)).thenReturn(new Share(SHARE_TEMPLATE,
+                                                            resourceSet(),
+                                                            Pattern.compile(""),
+                                                            "2/anotherOwnerPat"));
+        URI introspectionUri = mockTokenIntrospection(new Response(Status.OK).setEntity(validToken()),
+                                                      new Response(Status.OK).setEntity(validToken()));
+        UmaResourceServerFilter filter = new UmaResourceServerFilter(service, handler, null);
+        filter.setCache(new IntrospectionCache(new FakeTimeService(0L), 10, duration("5 minutes")));
+
+        filter.filter(null, request, terminal);
+        filter.filter(null, other, terminal);
+        filter.filter(null, request, terminal);
+        filter.filter(null, other, terminal);
+
+        // Once with the PAT of each share's resource owner
+        verify(handler, times(2)).handle(any(Context.class), argThat(hasUri(introspectionUri)));
+    }
+
+    @Test
+    public void shouldIntrospectTheRptAgainOnceExpired() throws Exception {
+        request.getHeaders().put("Authorization", format("Bearer %s", RPT));
+        FakeTimeService time = new FakeTimeService(0L);
+        Object token = object(field("active", true),
+                              field("exp", 60L),
+                              field("permissions", array(object(field("resource_set_id", RS_ID),
+                                                                field("scopes", array("required"))))));
+        URI introspectionUri = mockTokenIntrospection(new Response(Status.OK).setEntity(token),
+                                                      new Response(Status.OK).setEntity(token));
+        UmaResourceServerFilter filter = new UmaResourceServerFilter(service, handler, null);
+        filter.setCache(new IntrospectionCache(time, 10, duration("5 minutes")));
+
+        filter.filter(null, request, terminal);
+        time.advance(61, TimeUnit.SECONDS);
+        filter.filter(null, request, terminal);
+
+        verify(handler, times(2)).handle(any(Context.class), argThat(hasUri(introspectionUri)));
+    }
+
+    @Test
+    public void shouldNotCacheInactiveRpt() throws Exception {
+        request.getHeaders().put("Authorization", format("Bearer %s", RPT));
+        URI introspectionUri = mockTokenIntrospection(new Response(Status.OK).setEntity(inactiveToken()),
+                                                      new Response(Status.OK).setEntity(inactiveToken()));
+        mockTicketCreation();
+        UmaResourceServerFilter filter = new UmaResourceServerFilter(service, handler, null);
+        filter.setCache(new IntrospectionCache(new FakeTimeService(0L), 10, duration("5 minutes")));
+
+        filter.filter(null, request, terminal).get();
+        filter.filter(null, request, terminal).get();
+
+        verify(handler, times(2)).handle(any(Context.class), argThat(hasUri(introspectionUri)));
+        verifyZeroInteractions(terminal);
+    }
+
     private static Object validToken() {
         return object(field("active", true),
                       field("permissions", array(object(field("resource_set_id", RS_ID),
@@ -179,11 +257,20 @@ public class UmaResourceServerFilterTest {
                                                         field("scopes", array("another-scope"))))));
     }
 
-    private void mockTokenIntrospection(final Response response) throws URISyntaxException {
+    private URI mockTokenIntrospection(final Response response) throws URISyntaxException {
         URI introspectionUri = new URI("http://as.example.com/oauth2/introspect");
         when(service.getIntrospectionEndpoint()).thenReturn(introspectionUri);
         when(handler.handle(any(Context.class), argThat(hasUri(introspectionUri))))
                 .thenReturn(Response.newResponsePromise(response));
+        return introspectionUri;
+    }
+
+    private URI mockTokenIntrospection(final Response first, final Response second) throws URISyntaxException {
+        URI introspectionUri = mockTokenIntrospection(first);
+        when(handler.handle(any(Context.class), argThat(hasUri(introspectionUri))))
+                .thenReturn(Response.newResponsePromise(first))
+                .thenReturn(Response.newResponsePromise(second));
+        return introspectionUri;
     }
 
     private void mockTicketCreation() throws URISyntaxException {
@@ -16,6 +16,7 @@
 
 package org.forgerock.openig.uma;
 
+import static java.util.Arrays.asList;
 import static java.util.Collections.singleton;
 import static java.util.Collections.singletonList;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -26,6 +27,9 @@ import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.json.JsonValue.set;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import java.net.URI;
@@ -187,6 +191,39 @@ public class UmaSharingServiceTest {
         assertThat(service.getShare(share.getId())).isNotNull();
     }
 
+    @Test
+    public void shouldLoadAndPersistSharesWithStore() throws Exception {
+        ShareTemplate template = new ShareTemplate(Pattern.compile("/alice/allergies.*"),
+                                                   singletonList(
+                                                           createAction("http://uma.example.com/allergies#read")));
+        UmaSharingService service = new UmaSharingService(handler,
+                                                          singletonList(template),
+                                                          new URI("http://localhost"),
+                                                          "uma",
+                                                          "uma");
+        ShareStore store = mock(ShareStore.class);
+        when(store.load()).thenReturn(asList(json(object(field("id", "stored"),
+                                                         field("pattern", "/alice/allergies"),
+                                                         field("resource_set_id", "rs-stored"),
+                                                         field("pat", PAT))),
+                                             json(object(field("id", "orphan"),
+                                                         field("pattern", "/bob/heart"),
+                                                         field("resource_set_id", "rs-orphan"),
+                                                         field("pat", PAT)))));
+
+        service.setShareStore(store);
+
+        Request request = new Request();
+        request.setUri("http://localhost/alice/allergies");
+        assertThat(service.findShare(request).getResourceSetId()).isEqualTo("rs-stored");
+        assertThat(service.getShare("stored").getTemplate()).isSameAs(template);
+        assertThat(service.listShares()).hasSize(1);
+        verifyZeroInteractions(handler);
+
+        service.removeShare("stored");
+        verify(store).remove("stored");
+    }
+
     @Test
     public void shouldRegisterUmaShareEndpoint() throws Exception {
         Router router = new Router();